@@ -1,131 +1,663 @@
 package io.dazraf.oauth2;
 
+import io.dazraf.oauth2.authentication.BlockingAuthProvider;
+import io.dazraf.oauth2.authentication.ClaimsAuthProvider;
 import io.dazraf.oauth2.authentication.InMemoryAuthenticationProvider;
+import io.dazraf.oauth2.authentication.UserSessions;
+import io.dazraf.oauth2.authorisation.ClientRegistration;
+import io.dazraf.oauth2.authorisation.ClientRegistry;
 import io.dazraf.oauth2.authorisation.InMemoryAuthorizer;
+import io.dazraf.oauth2.authorisation.TokenMessage;
+import io.dazraf.oauth2.authorisation.TokenService;
+import io.dazraf.oauth2.capture.TrafficCapture;
+import io.dazraf.oauth2.oidc.KeyManager;
+import io.dazraf.oauth2.oidc.OpenIDProvider;
+import io.dazraf.oauth2.tracing.Tracer;
+import io.dazraf.oauth2.util.AdmissionController;
 import io.dazraf.oauth2.util.AuthRedirectHandler;
+import io.dazraf.oauth2.util.FormParser;
+import io.dazraf.oauth2.util.FutureChain;
+import io.dazraf.oauth2.util.HealthCheck;
+import io.dazraf.oauth2.util.RealmTable;
+import io.dazraf.oauth2.util.RequestTracker;
+import io.dazraf.oauth2.util.StartupReport;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.net.JksOptions;
+import io.vertx.core.shareddata.LocalMap;
 import io.vertx.ext.auth.AuthProvider;
 import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.*;
 import io.vertx.ext.web.sstore.LocalSessionStore;
+import io.vertx.ext.web.sstore.SessionStore;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import static io.dazraf.oauth2.util.AdmissionController.Priority.AUTHORIZE;
+import static io.dazraf.oauth2.util.AdmissionController.Priority.TOKEN;
+import static io.dazraf.oauth2.util.AdmissionController.Priority.TOKENINFO;
 import static io.vertx.ext.web.Router.router;
 
 public class OAuth2ServerVerticle extends AbstractVerticle {
   private static final Logger LOG = LoggerFactory.getLogger(OAuth2ServerVerticle.class);
+  private static final String KEYSTORE_PATH = "jks/keystore.jks";
+  private static final String KEYSTORE_PASSWORD = "8a5500n";
+  private static final long MAX_BUFFERED_BODY_LENGTH = 64 * 1024;
 
-  public static void main(String[] args) {
+  private final RequestTracker requestTracker = RequestTracker.create();
+  private AdmissionController admission;
+  // stateless, so shared by every realm
+  private final StaticHandler staticHandler = StaticHandler.create("oauth2-server-web");
+  // for the routes that don't read their own bodies
+  private final BodyHandler bodyHandler = BodyHandler.create().setBodyLimit(MAX_BUFFERED_BODY_LENGTH);
+  private FormParser formParser;
+  private Tracer tracer;
+  private TrafficCapture capture;
+  private HealthCheck health;
+  // when the first certificate in the keystore expires
+  private volatile long certificateExpiresAt = Long.MAX_VALUE;
+  private final List<Realm> realms = new ArrayList<>();
+  private HttpServer server;
+  private KeyManager signingKeys;
+  private long keyRotationTimer = -1;
+  private long drainTimeout;
+  private LocalMap<Integer, String> shardClaims;
+  private int shard;
+  private int shardCount;
+
+  public static void main(String[] args) throws IOException {
+    JsonObject config = loadDefaultConfig();
     Vertx vertx = Vertx.vertx();
-    vertx.deployVerticle(OAuth2ServerVerticle.class.getName());
+    // one instance per event loop, each owning a shard of the grants and tokens
+    int instances = config.getInteger("instances", Runtime.getRuntime().availableProcessors());
+    vertx.deployVerticle(OAuth2ServerVerticle.class.getName(),
+      new DeploymentOptions().setConfig(config).setInstances(instances), deployed -> {
+        if (deployed.failed()) {
+          LOG.error("failed to deploy", deployed.cause());
+        } else if (Boolean.getBoolean("oauth2.trainingRun")) {
+          exerciseAndExit(vertx, config);
+        }
+      });
+  }
+
+  /**
+   * For building a class data sharing archive: make a request on the main paths, so that the classes they load are
+   * archived too, and exit
+   */
+  private static void exerciseAndExit(Vertx vertx, JsonObject config) {
+    String apiPath = config.getString("basePath", "/oauth2") + config.getString("apiPath", "/api");
+    HttpClient client = vertx.createHttpClient(new HttpClientOptions()
+      .setSsl(true).setTrustAll(true).setVerifyHost(false).setDefaultPort(config.getInteger("port", 8080)));
+    client.getNow(apiPath + "/tokeninfo?access_token=0000000000000", tokenInfo ->
+      client.getNow(apiPath + "/authorize?client_id=unknown", authorize -> {
+        LOG.info("training run complete after {}ms. exiting", StartupReport.millisSinceJvmStart());
+        vertx.close(closed -> System.exit(0));
+      }));
   }
 
   @Override
   public void start(Future<Void> startFuture) throws Exception {
+    long startedAt = System.nanoTime();
 
     // resolve the config
     JsonObject config = getConfigObject();
     LOG.info("running with config: {}", config.toString());
 
-    // get the config fields for the paths
     int port = config.getInteger("port", 8080);
-    String base = config.getString("basePath", "/oauth2");
-    String loginURL = config.getString("loginURL", base + "/login.html");
-    String apiPath = base + config.getString("apiPath", "/api");
-
-    // create the handlers
-    final AuthProvider authProvider = createAuthProvider(config);
-    final AuthHandler authHandler = AuthRedirectHandler.create(authProvider, loginURL);
-    final StaticHandler staticHandler = StaticHandler.create("oauth2-server-web");
-    final InMemoryAuthorizer authorizer = InMemoryAuthorizer.create(
-      base,
-      config.getJsonObject("clients"),
-      config.getJsonObject("scopes"));
-
-    // setup the router
-    final Router router = router(vertx);
+    JsonObject shutdown = config.getJsonObject("shutdown", new JsonObject());
+    drainTimeout = shutdown.getLong("drainTimeout", 5000L);
+    shardCount = Math.max(1, context.getInstanceCount());
+    shard = claimShard(shardCount);
+
+    // parse the keystore, load the TLS classes, and load the keys that sign id_tokens, on a worker while the rest is
+    // set up. Every instance shares the signing keys
+    signingKeys = KeyManager.shared(vertx, deploymentID(), config.getJsonObject("signingKeys", new JsonObject()));
+    Future<Buffer> keyStore = loadKeyStore();
 
-    setupCoreWebHandlers(authProvider, router);
+    // polls held open for a device code are idle until the resource owner decides, so they aren't load
+    admission = AdmissionController.create(vertx, config.getJsonObject("admission", new JsonObject()),
+      () -> requestTracker.getInFlight() - getHeldDevicePollCount());
+    formParser = FormParser.create(vertx, config.getJsonObject("forms", new JsonObject()));
+    tracer = Tracer.create(vertx, config.getJsonObject("tracing"), shard);
+    capture = TrafficCapture.create(vertx, config.getJsonObject("capture"));
+    health = HealthCheck.create(vertx, config.getJsonObject("health", new JsonObject()));
+    health.addStats("shard", () -> shard);
+    health.addStats("lag", admission::getLag);
+    health.addStats("inFlight", requestTracker::getInFlight);
+    health.addStats("certificate", this::getCertificateExpiry);
+    health.notReadyWhile("shedding", admission::isOverloaded);
+    health.notReadyWhile("draining", requestTracker::isDraining);
+    if (shard == 0) {
+      // one instance is enough to keep the shared keys on schedule
+      scheduleKeyRotation();
+    }
 
-    setupLoginHandlers(base, apiPath, authProvider, router);
+    // the top level of the config is the default realm, and each entry in realms is another, all on the one server
+    realms.add(new Realm("", config, port));
+    JsonObject namedRealms = config.getJsonObject("realms", new JsonObject());
+    for (String name : namedRealms.fieldNames()) {
+      realms.add(new Realm(name, realmConfig(config, name), port));
+    }
+    RealmTable<Realm> realmTable = RealmTable.create();
+    realms.forEach(realm -> realmTable.add(realm.host, realm.basePath, realm));
+    health.refresh();
+    Future<Void> clientsLoaded = loadClientRegistries();
 
-    // auth protected paths
-    router.route(apiPath + "/authorize").handler(authHandler);
-    router.route(apiPath + "/approveauth").handler(authHandler);
-    router.route(apiPath + "/reset").handler(authHandler);
+    // start listening as soon as the keystore and registered clients are ready, and finish starting once the
+    // templates are too
+    Future<HttpServer> listening = Future.future();
+    List<Future<Void>> loading = new ArrayList<>();
+    loading.add(FutureChain.when(keyStore).mapVoid());
+    loading.add(clientsLoaded);
+    FutureChain.join(loading).setHandler(loaded -> {
+      if (loaded.failed()) {
+        listening.fail(loaded.cause());
+        return;
+      }
+      HttpServerOptions serverOptions = new HttpServerOptions()
+        .setSsl(true)
+        .setKeyStoreOptions(new JksOptions().setValue(keyStore.result()).setPassword(KEYSTORE_PASSWORD));
+      server = vertx.createHttpServer(serverOptions);
+      server.requestHandler(request -> {
+        Realm realm = realmTable.find(request.headers().get("Host"), request.path());
+        if (realm == null) {
+          request.response().setStatusCode(404).end();
+        } else {
+          realm.router.accept(request);
+        }
+      }).listen(port, listening.completer());
+    });
+    List<Future<Void>> ready = new ArrayList<>();
+    ready.add(FutureChain.when(listening).mapVoid());
+    for (Realm realm : realms) {
+      Future<Void> realmReady = Future.future();
+      realm.authorizer.whenReady(realmReady.completer());
+      ready.add(realmReady);
+    }
+    FutureChain.join(ready).setHandler(started -> {
+      if (started.succeeded()) {
+        LOG.info("shard {} of {} started on https://localhost:{} with {} realms in {}ms", shard, shardCount, port,
+          realms.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        startFuture.complete();
+      } else {
+        LOG.error("failed to startup", started.cause());
+        startFuture.fail(started.cause());
+      }
+    });
+  }
 
-    // bind api
-    router.route(apiPath + "/authorize").handler(authorizer::authorize);
-    router.route(apiPath + "/token").handler(authorizer::token);
-    router.get(apiPath + "/approveauth").handler(authorizer::approveAuth);
-    router.route(apiPath + "/tokeninfo").handler(authorizer::tokenInfo);
-    router.get(apiPath + "/reset").handler(authorizer::reset);
+  /**
+   * Read and check the keystore on a worker. Building the key manager and TLS context here also loads the security
+   * providers, which would otherwise happen on the event loop when the server starts listening. The id_token signing
+   * keys are loaded, or generated the first time, here too.
+   */
+  private Future<Buffer> loadKeyStore() {
+    Future<Buffer> result = Future.future();
+    vertx.<Buffer>executeBlocking(future -> {
+      try {
+        // read from the classpath directly: the instances start together, and racing each other to unpack it into
+        // Vert.x's file cache can leave some of them reading a partly written copy
+        Buffer value = Buffer.buffer(IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(KEYSTORE_PATH)));
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(new ByteArrayInputStream(value.getBytes()), KEYSTORE_PASSWORD.toCharArray());
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
+        SSLContext.getInstance("TLS").init(keyManagers.getKeyManagers(), null, null);
+        for (String alias : Collections.list(keyStore.aliases())) {
+          Certificate certificate = keyStore.getCertificate(alias);
+          if (certificate instanceof X509Certificate) {
+            certificateExpiresAt = Math.min(certificateExpiresAt,
+              ((X509Certificate) certificate).getNotAfter().getTime());
+          }
+        }
+        signingKeys.load();
+        future.complete(value);
+      } catch (Exception e) {
+        future.fail(e);
+      }
+    }, false, result.completer());
+    return result;
+  }
 
-    // and index html routing
-    router.get(base).handler(context -> {
-      context.response().putHeader("location", base + "/index.html").setStatusCode(302).end();
+  /**
+   * @return when the TLS certificate expires, and how many days that leaves, which is negative once it has
+   */
+  private JsonObject getCertificateExpiry() {
+    if (certificateExpiresAt == Long.MAX_VALUE) {
+      return null;
+    }
+    return new JsonObject()
+      .put("expiresAt", Instant.ofEpochMilli(certificateExpiresAt).toString())
+      .put("daysLeft", Math.floorDiv(certificateExpiresAt - System.currentTimeMillis(), TimeUnit.DAYS.toMillis(1)));
+  }
+
+  /**
+   * Replay each realm's log of registered clients on a worker. The instances share the registries, so whichever gets
+   * to a registry first loads it.
+   */
+  private Future<Void> loadClientRegistries() {
+    Future<Void> result = Future.future();
+    vertx.<Void>executeBlocking(future -> {
+      try {
+        for (Realm realm : realms) {
+          realm.clientRegistry.load();
+        }
+        future.complete();
+      } catch (Exception e) {
+        future.fail(e);
+      }
+    }, false, result.completer());
+    return result;
+  }
+
+  /**
+   * Check, at most a minute apart, whether the signing keys are due to be rotated, and rotate them on a worker if so
+   */
+  private void scheduleKeyRotation() {
+    long interval = Math.min(signingKeys.getRotationInterval(), TimeUnit.MINUTES.toMillis(1));
+    keyRotationTimer = vertx.setPeriodic(interval, timerID -> {
+      if (!signingKeys.isRotationDue(System.currentTimeMillis())) {
+        return;
+      }
+      vertx.executeBlocking(future -> {
+        try {
+          signingKeys.rotate();
+          future.complete();
+        } catch (Exception e) {
+          future.fail(e);
+        }
+      }, false, rotated -> {
+        if (rotated.failed()) {
+          LOG.error("failed to rotate signing keys. will try again", rotated.cause());
+        }
+      });
     });
+  }
 
-    // bind static handler
-    router.get(base + "/*").handler(staticHandler);
-
-    // start it up
-    HttpServerOptions serverOptions = new HttpServerOptions();
-    serverOptions
-      .setSsl(true)
-      .setKeyStoreOptions(new JksOptions().setPath("jks/keystore.jks").setPassword("8a5500n"));
-
-    vertx.createHttpServer(serverOptions)
-      .requestHandler(router::accept)
-      .listen(port, asyncResult -> {
-        if (asyncResult.succeeded()) {
-          LOG.info("started on https://localhost:{}{}", port, base);
-          startFuture.complete();
+  @Override
+  public void stop(Future<Void> stopFuture) throws Exception {
+    // devices polling for a token would otherwise hold up the drain until their polls time out
+    realms.forEach(realm -> realm.authorizer.releaseDevicePolls());
+    LOG.info("stopping: draining {} in-flight requests", requestTracker.getInFlight());
+    requestTracker.drain(vertx, drainTimeout, drained -> {
+      if (requestTracker.getInFlight() > 0) {
+        LOG.warn("{} requests still in flight after {}ms. closing anyway", requestTracker.getInFlight(), drainTimeout);
+      }
+      server.close(closed -> {
+        admission.stop(vertx);
+        health.stop(vertx);
+        tracer.close();
+        if (capture != null) {
+          capture.close();
+        }
+        shardClaims.remove(shard);
+        if (keyRotationTimer >= 0) {
+          vertx.cancelTimer(keyRotationTimer);
+        }
+        KeyManager.release(vertx, deploymentID());
+        Throwable failure = null;
+        for (Realm realm : realms) {
+          try {
+            realm.close();
+          } catch (Throwable e) {
+            LOG.error("failed to write snapshot of realm {}", realm, e);
+            failure = e;
+          }
+        }
+        if (failure == null) {
+          stopFuture.complete();
         } else {
-          LOG.error("failed to startup", asyncResult.cause());
-          startFuture.fail(asyncResult.cause());
+          stopFuture.fail(failure);
         }
       });
+    });
+    // so that load balancers stop sending requests straight away
+    health.refresh();
   }
 
   private JsonObject getConfigObject() throws IOException {
     JsonObject config = config();
-    LOG.info("config not set. loading default.json");
     if (config == null || config.isEmpty()) {
-      String text = IOUtils.toString(ClassLoader.getSystemClassLoader().getResourceAsStream("config/default.json"));
-      config = new JsonObject(text);
+      LOG.info("config not set. loading default.json");
+      return loadDefaultConfig();
     }
-    return config;
+    // the instances of a deployment share one config object, and each shard is on its own event loop
+    return config.copy();
   }
 
-  private void setupLoginHandlers(String base, String apiPath, AuthProvider authProvider, Router router) {
-    // bind login
-    router.route(apiPath + "/login").handler(FormLoginHandler.create(authProvider));
-    // bind logout
-    router.route(apiPath + "/logout").handler(context -> {
-      context.clearUser();
-      // Redirect back to the index page
-      context.response().putHeader("location", base + "/index.html").setStatusCode(302).end();
-    });
+  private static JsonObject loadDefaultConfig() throws IOException {
+    String text = IOUtils.toString(ClassLoader.getSystemClassLoader().getResourceAsStream("config/default.json"));
+    return new JsonObject(text);
   }
 
-  private void setupCoreWebHandlers(AuthProvider authProvider, Router router) {
+  /**
+   * A named realm's config: the realm's own fields, and any it doesn't set from the top level, apart from those that
+   * place the default realm and those that say who may use it. It is served under <code>/name</code>, unless it sets
+   * its own <code>basePath</code>, or a <code>host</code> to serve it on instead. Its users, clients and
+   * registration are only ever its own, so a realm that doesn't set them has none, rather than the default realm's.
+   */
+  static JsonObject realmConfig(JsonObject config, String name) {
+    JsonObject own = config.getJsonObject("realms").getJsonObject(name);
+    JsonObject realm = config.copy();
+    realm.remove("realms");
+    realm.remove("host");
+    realm.remove("loginURL");
+    realm.remove("issuer");
+    realm.remove("userDirectory");
+    realm.remove("registration");
+    realm.put("users", new JsonObject());
+    realm.put("clients", new JsonObject());
+    if (!own.containsKey("host")) {
+      realm.put("basePath", "/" + name);
+    }
+    return realm.mergeIn(own);
+  }
+
+  private int getHeldDevicePollCount() {
+    int held = 0;
+    for (Realm realm : realms) {
+      held += realm.authorizer.getHeldDevicePollCount();
+    }
+    return held;
+  }
+
+  /**
+   * Each instance of a deployment takes the lowest shard id not already held by one of its siblings
+   */
+  private int claimShard(int shardCount) {
+    shardClaims = vertx.sharedData().getLocalMap("oauth2.shards." + deploymentID());
+    String owner = Integer.toHexString(System.identityHashCode(this));
+    for (int i = 0; i < shardCount; i++) {
+      if (shardClaims.putIfAbsent(i, owner) == null) {
+        return i;
+      }
+    }
+    throw new IllegalStateException("all " + shardCount + " shards are already claimed");
+  }
+
+  private void setupLoginHandlers(String base, String apiPath, AuthProvider authProvider, UserSessions userSessions,
+                                  Router router) {
+    // bind login, indexing the session by user so that it can be revoked
+    router.route(apiPath + "/login").handler(userSessions.recordLogin());
+    router.route(apiPath + "/login").handler(tracer.stage("login", FormLoginHandler.create(authProvider)));
+    // bind logout, ending the session and redirecting back to the index page
+    router.route(apiPath + "/logout").handler(userSessions.logout(base + "/index.html"));
+  }
+
+  /**
+   * @param bodyReaders the handlers that read the bodies of paths that aren't buffered in full, by path
+   */
+  private void setupCoreWebHandlers(AuthProvider authProvider, SessionStore sessionStore, String sessionCookieName,
+                                    Map<String, Handler<RoutingContext>> bodyReaders, Router router) {
     router.route().handler(CookieHandler.create());
-    router.route().handler(BodyHandler.create());
-    router.route().handler(SessionHandler.create(LocalSessionStore.create(vertx)));
+    router.route().handler(tracer.stage("body", context -> {
+      bodyReaders.getOrDefault(context.request().path(), bodyHandler).handle(context);
+    }));
+    router.route().handler(tracer.stage("session",
+      SessionHandler.create(sessionStore).setSessionCookieName(sessionCookieName)));
     router.route().handler(UserSessionHandler.create(authProvider));
+    if (tracer.isEnabled()) {
+      router.route().handler(tracer.joinSession());
+    }
   }
 
-  private AuthProvider createAuthProvider(JsonObject config) {
-    return InMemoryAuthenticationProvider.create(config.getJsonObject("users"));
+  /**
+   * A tenant: its clients, scopes and users, the stores of what it has granted, and the routes that serve them under
+   * its base path. The realms of an instance share its event loop, server, request tracking, admission control and
+   * signing keys, but nothing one tenant could see or change of another's. Each has its own authorizer, users, session
+   * store and session cookie, so a login to one realm isn't a login to another, and its own event bus addresses and
+   * snapshot files.
+   */
+  private class Realm {
+    final String name;
+    final String host;
+    final String basePath;
+    final Router router = router(vertx);
+    final InMemoryAuthorizer authorizer;
+    final ClientRegistry clientRegistry;
+    // appended to the names of what the realm would otherwise share with the default realm
+    private final String suffix;
+    private final BlockingAuthProvider userDirectory;
+    private final MessageConsumer<TokenMessage> tokenService;
+    private final Path snapshotPath;
+    private boolean templatesReady = false;
+
+    /**
+     * @param name the realm's name, or empty for the default realm
+     */
+    Realm(String name, JsonObject config, int port) {
+      this.name = name;
+      this.suffix = name.isEmpty() ? "" : "." + name;
+      this.host = config.getString("host");
+      this.basePath = config.getString("basePath", "/oauth2");
+      String base = basePath;
+      String loginURL = config.getString("loginURL", base + "/login.html");
+      String apiPath = base + config.getString("apiPath", "/api");
+      String snapshotFile = config.getJsonObject("shutdown", new JsonObject()).getString("snapshotFile");
+      if (snapshotFile != null) {
+        snapshotFile += suffix;
+        if (shardCount > 1) {
+          snapshotFile += "." + shard;
+        }
+      }
+      snapshotPath = snapshotFile != null ? Paths.get(snapshotFile) : null;
+
+      // create the handlers. Users are looked up in the userDirectory if there is one, and are otherwise the users
+      // listed in the config
+      JsonObject directoryConfig = config.getJsonObject("userDirectory");
+      userDirectory = directoryConfig == null
+        ? null : BlockingAuthProvider.shared(vertx, deploymentID() + suffix, directoryConfig);
+      final ClaimsAuthProvider authProvider = userDirectory != null
+        ? userDirectory : InMemoryAuthenticationProvider.create(config.getJsonObject("users"));
+      final Handler<RoutingContext> authHandler = tracer.stage("authenticate",
+        AuthRedirectHandler.create(authProvider, loginURL));
+      // the private end points expose or change every user's state, so they need a user with the admin role
+      final Handler<RoutingContext> adminHandler = tracer.stage("authenticate",
+        AuthRedirectHandler.create(authProvider, loginURL).addAuthority(InMemoryAuthenticationProvider.ADMIN));
+      final SessionStore sessionStore = LocalSessionStore.create(vertx,
+        LocalSessionStore.DEFAULT_SESSION_MAP_NAME + suffix);
+      final UserSessions userSessions = UserSessions.create(sessionStore);
+      // clients may be registered at run time if the realm has a registration config, and are then kept in its file
+      JsonObject registrationConfig = config.getJsonObject("registration");
+      JsonObject registryConfig = registrationConfig == null ? new JsonObject() : registrationConfig.copy();
+      if (registryConfig.containsKey("file")) {
+        registryConfig.put("file", registryConfig.getString("file") + suffix);
+      }
+      clientRegistry = ClientRegistry.shared(vertx, deploymentID() + suffix, config.getJsonObject("clients"),
+        registryConfig);
+      authorizer = InMemoryAuthorizer.create(
+        vertx,
+        base,
+        clientRegistry,
+        config.getJsonObject("scopes"),
+        "oauth2.shard." + deploymentID() + suffix + ".",
+        shard,
+        shardCount);
+      if (snapshotPath != null) {
+        try {
+          authorizer.restoreSnapshot(snapshotPath);
+        } catch (IOException e) {
+          LOG.warn("could not restore snapshot of realm {}. starting with empty state", this, e);
+        }
+      }
+      authorizer.whenReady(compiled -> templatesReady = compiled.succeeded());
+      health.notReadyWhile("starting" + suffix, () -> !templatesReady);
+      health.notReadyWhile("restoring" + suffix, authorizer::isRestoring);
+      health.addStats("tokens" + suffix, authorizer::getTokenHeadroom);
+      authorizer.addShardStats("admission", admission::toJson);
+      authorizer.addShardStats("forms", formParser::toJson);
+      if (tracer.isEnabled()) {
+        authorizer.addShardStats("tracing", tracer::toJson);
+      }
+      if (capture != null) {
+        authorizer.addShardStats("capture", capture::toJson);
+      }
+      authorizer.addShardStats("clients", clientRegistry::toJson);
+      authorizer.addUserRevoker("sessions", userSessions::destroy);
+      if (userDirectory != null) {
+        authorizer.addShardStats("userDirectory", userDirectory::toJson);
+        // so that a user disabled in the directory can't log in again on what was cached about them
+        authorizer.addUserRevoker("directoryCache", userDirectory::invalidate);
+      }
+
+      // OpenID Connect, for grants that include the openid scope
+      String issuer = config.getString("issuer",
+        "https://" + (host != null ? host : "localhost") + ":" + port + base);
+      String apiURL = issuer + config.getString("apiPath", "/api");
+      ClientRegistration registration = registrationConfig == null
+        ? null : ClientRegistration.create(clientRegistry, apiURL + "/register", registrationConfig);
+      OpenIDProvider openID = OpenIDProvider.create(issuer, apiURL, signingKeys, authProvider::getClaims,
+        config.getJsonObject("scopes").fieldNames(), registration != null);
+      authorizer.setOpenIDProvider(openID);
+      authorizer.setDeviceVerificationURI(issuer + "/device.html");
+      authorizer.addShardStats("signingKeys", signingKeys::toJson);
+
+      // serve validation and issuance to co-located services over the event bus too
+      tokenService = TokenService.bind(vertx,
+        config.getString("eventBusAddress", TokenService.DEFAULT_ADDRESS) + suffix, authorizer);
+
+      // setup the router. Health probes are answered before anything else, and aren't recorded, traced or counted
+      router.route(base + "/health/live").handler(health.live());
+      router.route(base + "/health/ready").handler(health.ready());
+      // then record what arrives first if it is being captured for replay
+      if (capture != null) {
+        router.route().handler(capture.capture());
+      }
+      if (tracer.isEnabled()) {
+        router.route().handler(tracer.trace());
+      }
+      router.route().handler(requestTracker);
+
+      // shed load by priority before doing any work on the request
+      router.route(apiPath + "/login").handler(admission.admit(AUTHORIZE));
+      router.route(apiPath + "/authorize").handler(admission.admit(AUTHORIZE));
+      router.route(apiPath + "/approveauth").handler(admission.admit(AUTHORIZE));
+      router.route(apiPath + "/device_authorization").handler(admission.admit(AUTHORIZE));
+      router.route(apiPath + "/device").handler(admission.admit(AUTHORIZE));
+      router.route(apiPath + "/token").handler(admission.admit(TOKEN));
+      router.route(apiPath + "/tokeninfo").handler(admission.admit(TOKENINFO));
+      router.route(apiPath + "/register*").handler(admission.admit(AUTHORIZE));
+
+      // the token, introspection and revocation end points only need a few small form fields, so they are parsed as
+      // they arrive rather than buffered, and an import is streamed by its handler
+      Map<String, Handler<RoutingContext>> bodyReaders = new HashMap<>();
+      bodyReaders.put(apiPath + "/token", formParser.expect("grant_type", "client_id", "redirect_uri", "code",
+        "device_code", "subject_token", "subject_token_type", "requested_token_type", "scope", "audience"));
+      bodyReaders.put(apiPath + "/tokeninfo", formParser.expect("access_token", "require"));
+      bodyReaders.put(apiPath + "/revoke-user", formParser.expect("username"));
+      bodyReaders.put(apiPath + "/import", context -> {
+        // hold the body back until its handler is ready to read it
+        context.request().pause();
+        context.next();
+      });
+      setupCoreWebHandlers(authProvider, sessionStore, SessionHandler.DEFAULT_SESSION_COOKIE_NAME + suffix,
+        bodyReaders, router);
+
+      setupLoginHandlers(base, apiPath, authProvider, userSessions, router);
+
+      // no new flows once we've started shutting down
+      router.route(apiPath + "/authorize").handler(requestTracker.rejectWhileDraining());
+      router.route(apiPath + "/device_authorization").handler(requestTracker.rejectWhileDraining());
+      router.route(apiPath + "/register*").handler(requestTracker.rejectWhileDraining());
+
+      // auth protected paths
+      router.route(apiPath + "/authorize").handler(authHandler);
+      router.route(apiPath + "/approveauth").handler(authHandler);
+      router.route(apiPath + "/device").handler(authHandler);
+
+      // admin protected paths
+      router.route(apiPath + "/reset").handler(adminHandler);
+      router.route(apiPath + "/usage").handler(adminHandler);
+      router.route(apiPath + "/shards").handler(adminHandler);
+      router.route(apiPath + "/revoke-user").handler(adminHandler);
+      router.route(apiPath + "/export").handler(adminHandler);
+      router.route(apiPath + "/import").handler(adminHandler);
+      router.route(apiPath + "/rotate-keys").handler(adminHandler);
+
+      // bind api
+      router.route(apiPath + "/authorize").handler(tracer.stage("authorize", authorizer::authorize));
+      router.route(apiPath + "/token").handler(tracer.stage("token", authorizer::token));
+      router.get(apiPath + "/approveauth").handler(tracer.stage("approveauth", authorizer::approveAuth));
+      router.post(apiPath + "/approveauth").handler(tracer.stage("approveauth", authorizer::approveAuth));
+      router.post(apiPath + "/device_authorization").handler(tracer.stage("device_authorization",
+        authorizer::deviceAuthorization));
+      router.get(apiPath + "/device").handler(tracer.stage("device", authorizer::verifyDevice));
+      router.route(apiPath + "/tokeninfo").handler(StartupReport.firstResponse("tokeninfo"));
+      router.route(apiPath + "/tokeninfo").handler(tracer.stage("tokeninfo", authorizer::tokenInfo));
+      router.get(apiPath + "/reset").handler(authorizer::reset);
+      router.get(apiPath + "/usage").handler(authorizer::usage);
+      router.get(apiPath + "/shards").handler(authorizer::shardStats);
+      router.post(apiPath + "/revoke-user").handler(authorizer::revokeUser);
+      router.get(apiPath + "/export").handler(authorizer::exportState);
+      router.post(apiPath + "/import").handler(authorizer::importState);
+      router.get(base + OpenIDProvider.DISCOVERY_PATH).handler(openID::discovery);
+      router.get(apiPath + "/jwks").handler(openID::jwks);
+      if (registration != null) {
+        router.post(apiPath + "/register").handler(registration::register);
+        router.get(apiPath + "/register/:clientID").handler(registration::read);
+        router.put(apiPath + "/register/:clientID").handler(registration::update);
+      }
+      if (name.isEmpty()) {
+        // the signing keys are shared by every realm, so only admins of the default realm may rotate them
+        router.post(apiPath + "/rotate-keys").handler(openID::rotateKeys);
+      }
+
+      // and index html routing
+      router.get(base).handler(context -> {
+        context.response().putHeader("location", base + "/index.html").setStatusCode(302).end();
+      });
+
+      // bind static handler
+      router.get(base + "/*").handler(staticHandler);
+    }
+
+    /**
+     * Stop taking requests from the event bus and from other shards, and write the realm's snapshot if it has one
+     */
+    void close() throws IOException {
+      tokenService.unregister();
+      authorizer.close();
+      if (userDirectory != null) {
+        BlockingAuthProvider.release(vertx, deploymentID() + suffix);
+      }
+      ClientRegistry.release(vertx, deploymentID() + suffix);
+      if (snapshotPath != null) {
+        authorizer.writeSnapshot(snapshotPath);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return name.isEmpty() ? "default" : name;
+    }
   }
 }
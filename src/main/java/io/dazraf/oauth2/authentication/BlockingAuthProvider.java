@@ -0,0 +1,426 @@
+package io.dazraf.oauth2.authentication;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.ext.auth.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adapts a blocking {@link UserDirectory} to the {@link io.vertx.ext.auth.AuthProvider} contract, which is called on
+ * an event loop.
+ * <p>
+ * Lookups run on virtual threads when the JVM has them, and otherwise on a pool of <code>maxConcurrency</code> daemon
+ * threads. Either way no more than <code>maxConcurrency</code> lookups query the directory at once, and no more than
+ * <code>maxQueued</code> more wait their turn: a login beyond that fails at once, rather than queueing behind a
+ * directory that has stopped answering. A login also fails if its lookup takes longer than <code>timeout</code>; the
+ * lookup carries on, and what it finds is cached for the user's next attempt. Logins with the same username and
+ * password at the same time share one lookup.
+ * <p>
+ * The directory checks the password. What it decided is cached against a keyed hash of the username and password,
+ * never the password itself: a login it accepted for <code>cacheTTL</code>, and one it refused for
+ * <code>negativeCacheTTL</code>, up to <code>cacheSize</code> users, so the directory sees about one lookup per user
+ * per TTL however often they log in. A different password always goes to the directory, so a changed password works
+ * at once, and the old one stops working when its entry expires, or at once when the user is revoked. A refused
+ * login never displaces the user's accepted one. The claims for id_tokens are needed on the event loop, so they come
+ * from the last accepted login too. Only the fields of the user's entry named in <code>claims</code> are claims, by
+ * default the OpenID Connect standard ones, so a column the directory happens to return, such as a lockout flag or
+ * an internal id, is never told to a client.
+ * <p>
+ * One provider is shared by the instances of a deployment, so the limits apply to the directory as a whole. Results
+ * are handed back on the context that asked for them.
+ */
+public class BlockingAuthProvider implements ClaimsAuthProvider, Shareable {
+  private static final Logger LOG = LoggerFactory.getLogger(BlockingAuthProvider.class);
+  private static final String CREDENTIAL_MAC = "HmacSHA256";
+  // OpenID Connect Core 1.0, section 5.1, other than sub
+  private static final List<String> STANDARD_CLAIMS = Arrays.asList("name", "given_name", "family_name",
+    "middle_name", "nickname", "preferred_username", "profile", "picture", "website", "email", "email_verified",
+    "gender", "birthdate", "zoneinfo", "locale", "phone_number", "phone_number_verified", "address", "updated_at");
+
+  private final Vertx vertx;
+  private final UserDirectory directory;
+  private final ExecutorService executor;
+  private final String executorKind;
+  private final int maxConcurrency;
+  private final int maxPending;
+  private final Semaphore permits;
+  private final long timeout;
+  private final long cacheTTL;
+  private final long negativeCacheTTL;
+  private final int cacheSize;
+  private final Set<String> claimNames;
+  // known only to this process, so a cached credential can't be checked against guessed passwords anywhere else
+  private final SecretKeySpec credentialKey;
+  private final Map<String, CachedUser> cache = new ConcurrentHashMap<>();
+  private final Map<String, CompletableFuture<CachedUser>> lookups = new ConcurrentHashMap<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder negativeHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  // instances using the shared provider. Guarded by the class
+  private int references = 0;
+
+  /**
+   * @param key what the instances sharing the provider have in common, such as their deployment and realm
+   * @return the provider shared under <code>key</code>, creating it and its directory if need be. Each call must be
+   * matched by a {@link #release}.
+   * @see #create(Vertx, UserDirectory, JsonObject)
+   */
+  public static synchronized BlockingAuthProvider shared(Vertx vertx, String key, JsonObject config) {
+    LocalMap<String, BlockingAuthProvider> providers = vertx.sharedData().getLocalMap("oauth2.userDirectory");
+    BlockingAuthProvider provider = providers.get(key);
+    if (provider == null) {
+      provider = create(vertx, createDirectory(config), config);
+      providers.put(key, provider);
+    }
+    provider.references++;
+    return provider;
+  }
+
+  /**
+   * Stop using the provider shared under <code>key</code>. When the last instance has released it, it is closed.
+   */
+  public static synchronized void release(Vertx vertx, String key) {
+    LocalMap<String, BlockingAuthProvider> providers = vertx.sharedData().getLocalMap("oauth2.userDirectory");
+    BlockingAuthProvider provider = providers.get(key);
+    if (provider != null && --provider.references == 0) {
+      providers.remove(key);
+      provider.close();
+    }
+  }
+
+  /**
+   * @param config the <code>executor</code> to run lookups on, <code>auto</code>, <code>virtual</code> or
+   *               <code>pool</code>; <code>maxConcurrency</code> and <code>maxQueued</code> lookups; the
+   *               <code>timeout</code>, <code>cacheTTL</code> and <code>negativeCacheTTL</code> in millis; the
+   *               <code>cacheSize</code>; and the <code>claims</code> to assert from a user's entry
+   */
+  public static BlockingAuthProvider create(Vertx vertx, UserDirectory directory, JsonObject config) {
+    return new BlockingAuthProvider(vertx, directory, config);
+  }
+
+  private BlockingAuthProvider(Vertx vertx, UserDirectory directory, JsonObject config) {
+    this.vertx = vertx;
+    this.directory = directory;
+    this.maxConcurrency = Math.max(1, config.getInteger("maxConcurrency", 16));
+    this.maxPending = maxConcurrency + Math.max(0, config.getInteger("maxQueued", 64));
+    this.permits = new Semaphore(maxConcurrency);
+    this.timeout = config.getLong("timeout", 2000L);
+    this.cacheTTL = config.getLong("cacheTTL", 60000L);
+    this.negativeCacheTTL = config.getLong("negativeCacheTTL", 10000L);
+    this.cacheSize = Math.max(1, config.getInteger("cacheSize", 10000));
+    JsonArray claims = config.getJsonArray("claims");
+    this.claimNames = new HashSet<>();
+    for (Object claim : claims != null ? claims.getList() : STANDARD_CLAIMS) {
+      claimNames.add(claim.toString());
+    }
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this.credentialKey = new SecretKeySpec(key, CREDENTIAL_MAC);
+
+    String requested = config.getString("executor", "auto");
+    ExecutorService virtualThreads = requested.equals("pool") ? null : newVirtualThreadExecutor();
+    if (virtualThreads != null) {
+      this.executor = virtualThreads;
+      this.executorKind = "virtual";
+    } else {
+      if (requested.equals("virtual")) {
+        LOG.warn("virtual threads aren't available on this JVM. using a pool of {} threads", maxConcurrency);
+      }
+      this.executor = newThreadPool(maxConcurrency);
+      this.executorKind = "pool";
+    }
+    LOG.info("looking up users in {} on {} threads, at most {} at a time", directory.getClass().getSimpleName(),
+      executorKind, maxConcurrency);
+  }
+
+  @Override
+  public void authenticate(JsonObject authInfo, Handler<AsyncResult<User>> resultHandler) {
+    String username = authInfo.getString("username");
+    String password = authInfo.getString("password", "");
+    if (username == null) {
+      resultHandler.handle(Future.failedFuture("no username"));
+      return;
+    }
+    byte[] credential = credential(username, password);
+    CachedUser cached = cache.get(username);
+    if (cached != null && cached.expiresAt > System.currentTimeMillis() && cached.isFor(credential)) {
+      (cached.isFound() ? hits : negativeHits).increment();
+      resultHandler.handle(check(cached));
+      return;
+    }
+    misses.increment();
+    CompletableFuture<CachedUser> lookup = lookup(username, password, credential);
+    if (lookup == null) {
+      rejected.increment();
+      resultHandler.handle(Future.failedFuture("user directory is busy"));
+      return;
+    }
+    Context context = vertx.getOrCreateContext();
+    AtomicBoolean done = new AtomicBoolean();
+    long timer = vertx.setTimer(timeout, id -> {
+      if (done.compareAndSet(false, true)) {
+        timeouts.increment();
+        LOG.warn("timed out after {}ms looking up user {}", timeout, username);
+        context.runOnContext(v -> resultHandler.handle(Future.failedFuture("user directory timed out")));
+      }
+    });
+    lookup.whenComplete((found, error) -> {
+      if (done.compareAndSet(false, true)) {
+        vertx.cancelTimer(timer);
+        context.runOnContext(v -> resultHandler.handle(error != null
+          ? Future.failedFuture(error)
+          : check(found)));
+      }
+    });
+  }
+
+  @Override
+  public JsonObject getClaims(String username) {
+    CachedUser cached = cache.get(username);
+    return cached == null ? null : cached.claims;
+  }
+
+  /**
+   * Forget what the directory said about <code>username</code>, so that their next login looks them up again
+   *
+   * @return the number of cache entries removed
+   */
+  public int invalidate(String username) {
+    return cache.remove(username) != null ? 1 : 0;
+  }
+
+  public JsonObject toJson() {
+    return new JsonObject()
+      .put("directory", directory.getClass().getSimpleName())
+      .put("executor", executorKind)
+      .put("maxConcurrency", maxConcurrency)
+      .put("pending", pending.get())
+      .put("cached", cache.size())
+      .put("hits", hits.sum())
+      .put("negativeHits", negativeHits.sum())
+      .put("misses", misses.sum())
+      .put("rejected", rejected.sum())
+      .put("timeouts", timeouts.sum())
+      .put("failures", failures.sum());
+  }
+
+  /**
+   * Stop looking users up. Lookups in progress are interrupted, and logins waiting on them time out.
+   */
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return the lookup in progress for this username and password, starting one if need be, or null if there are
+   * already as many lookups pending as allowed
+   */
+  private CompletableFuture<CachedUser> lookup(String username, String password, byte[] credential) {
+    String key = username + '\n' + Base64.getEncoder().encodeToString(credential);
+    CompletableFuture<CachedUser> existing = lookups.get(key);
+    if (existing != null) {
+      return existing;
+    }
+    if (pending.incrementAndGet() > maxPending) {
+      pending.decrementAndGet();
+      return null;
+    }
+    CompletableFuture<CachedUser> lookup = new CompletableFuture<>();
+    existing = lookups.putIfAbsent(key, lookup);
+    if (existing != null) {
+      pending.decrementAndGet();
+      return existing;
+    }
+    try {
+      executor.execute(() -> find(username, password, credential, key, lookup));
+    } catch (RejectedExecutionException e) {
+      // closed
+      lookups.remove(key, lookup);
+      pending.decrementAndGet();
+      lookup.completeExceptionally(e);
+    }
+    return lookup;
+  }
+
+  private void find(String username, String password, byte[] credential, String key,
+                    CompletableFuture<CachedUser> lookup) {
+    try {
+      permits.acquire();
+      try {
+        JsonObject entry = directory.authenticate(username, password);
+        long now = System.currentTimeMillis();
+        CachedUser found = new CachedUser(username, entry, claimNames, credential,
+          now + (entry != null ? cacheTTL : negativeCacheTTL));
+        cache(username, found, now);
+        lookup.complete(found);
+      } finally {
+        permits.release();
+      }
+    } catch (Throwable e) {
+      failures.increment();
+      LOG.warn("failed to look up user {}", username, e);
+      lookup.completeExceptionally(e);
+    } finally {
+      lookups.remove(key, lookup);
+      pending.decrementAndGet();
+    }
+  }
+
+  private void cache(String username, CachedUser found, long now) {
+    CachedUser previous = cache.get(username);
+    if (!found.isFound() && previous != null && previous.isFound() && previous.expiresAt > now) {
+      // a wrong guess mustn't log the user out of the cache, nor lose the claims their tokens are issued with
+      return;
+    }
+    cache.put(username, found);
+    if (cache.size() > cacheSize) {
+      // drop expired entries, and then whichever come first, down to three quarters full so this doesn't run again
+      // for a while
+      int target = cacheSize * 3 / 4;
+      cache.values().removeIf(cached -> cached.expiresAt <= now);
+      for (Iterator<CachedUser> i = cache.values().iterator(); i.hasNext() && cache.size() > target; ) {
+        i.next();
+        i.remove();
+      }
+    }
+  }
+
+  private static AsyncResult<User> check(CachedUser cached) {
+    // the directory gives the same answer for a user it doesn't have, so a login says nothing about who exists
+    if (!cached.isFound()) {
+      return Future.failedFuture("incorrect username or password");
+    }
+    return Future.succeededFuture(new InMemoryAuthenticationProvider.InMemoryUser(cached.principal.copy()));
+  }
+
+  private byte[] credential(String username, String password) {
+    try {
+      Mac mac = Mac.getInstance(CREDENTIAL_MAC);
+      mac.init(credentialKey);
+      mac.update(username.getBytes(StandardCharsets.UTF_8));
+      mac.update((byte) 0);
+      return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(CREDENTIAL_MAC + " is not available", e);
+    }
+  }
+
+  private static UserDirectory createDirectory(JsonObject config) {
+    String className = config.getString("class", JdbcUserDirectory.class.getName());
+    try {
+      return Class.forName(className).asSubclass(UserDirectory.class).getConstructor(JsonObject.class)
+        .newInstance(config);
+    } catch (InvocationTargetException e) {
+      throw new IllegalArgumentException("could not create user directory " + className, e.getCause());
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      throw new IllegalArgumentException("could not create user directory " + className, e);
+    }
+  }
+
+  /**
+   * @return an executor that starts a virtual thread per task, or null if the JVM doesn't have virtual threads. Found
+   * reflectively, as the source level predates them.
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+      return null;
+    }
+  }
+
+  private static ExecutorService newThreadPool(int threads) {
+    AtomicInteger created = new AtomicInteger();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>(), task -> {
+      Thread thread = new Thread(task, "oauth2-user-directory-" + created.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * What the directory said about a login: the user's entry split into principal and claims, or nothing if it refused
+   * it, and the credential it was for. The principal has the same fields as the claims, and the user's roles.
+   */
+  private static final class CachedUser {
+    final JsonObject principal;
+    final JsonObject claims;
+    final byte[] credential;
+    final long expiresAt;
+
+    CachedUser(String username, JsonObject entry, Set<String> claimNames, byte[] credential, long expiresAt) {
+      this.credential = credential;
+      this.expiresAt = expiresAt;
+      if (entry == null) {
+        this.principal = null;
+        this.claims = null;
+        return;
+      }
+      this.claims = new JsonObject();
+      for (String name : entry.fieldNames()) {
+        if (claimNames.contains(name)) {
+          claims.put(name, entry.getValue(name));
+        }
+      }
+      Object roles = entry.getValue("roles");
+      this.principal = claims.copy().put("username", username);
+      if (roles != null) {
+        principal.put("roles", roles);
+      }
+    }
+
+    boolean isFound() {
+      return principal != null;
+    }
+
+    /**
+     * @return whether this is what the directory said about the same username and password. Constant time, so how
+     * long a check takes says nothing about the password.
+     */
+    boolean isFor(byte[] credential) {
+      return MessageDigest.isEqual(this.credential, credential);
+    }
+  }
+}
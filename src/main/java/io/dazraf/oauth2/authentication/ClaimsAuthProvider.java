@@ -0,0 +1,17 @@
+package io.dazraf.oauth2.authentication;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.auth.AuthProvider;
+
+/**
+ * An {@link AuthProvider} that can also say who a user is, for the claims in an id_token
+ */
+public interface ClaimsAuthProvider extends AuthProvider {
+  /**
+   * Called on an event loop, so must not block
+   *
+   * @return the user's principal, less their username and password, to assert as claims about them, or null if
+   * there is no such user or they aren't known right now
+   */
+  JsonObject getClaims(String username);
+}
@@ -3,6 +3,7 @@ package io.dazraf.oauth2.authentication;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.auth.AbstractUser;
 import io.vertx.ext.auth.AuthProvider;
@@ -11,14 +12,25 @@ import io.vertx.ext.auth.User;
 import java.util.HashMap;
 import java.util.Map;
 
-public class InMemoryAuthenticationProvider implements AuthProvider {
+public class InMemoryAuthenticationProvider implements ClaimsAuthProvider {
+  /**
+   * The role that the administrative end points require
+   */
+  public static final String ADMIN = "admin";
+
   private final Map<String, User> users = new HashMap<>();
+  private final Map<String, JsonObject> claims = new HashMap<>();
 
   public InMemoryAuthenticationProvider(JsonObject users) {
     users.fieldNames().forEach(username -> {
       final JsonObject user = users.getJsonObject(username);
       user.put("username", username);
       this.users.put(username, new InMemoryUser(user));
+      JsonObject userClaims = user.copy();
+      userClaims.remove("username");
+      userClaims.remove("password");
+      userClaims.remove("roles");
+      this.claims.put(username, userClaims);
     });
   }
 
@@ -27,6 +39,11 @@ public class InMemoryAuthenticationProvider implements AuthProvider {
     return new InMemoryAuthenticationProvider(users);
   }
 
+  @Override
+  public JsonObject getClaims(String username) {
+    return claims.get(username);
+  }
+
   @Override
   public void authenticate(JsonObject authInfo, Handler<AsyncResult<User>> resultHandler) {
     String username = authInfo.getString("username");
@@ -35,14 +52,19 @@ public class InMemoryAuthenticationProvider implements AuthProvider {
       resultHandler.handle(Future.failedFuture("couldn't find username: " + username));
       return;
     }
-    String password = user.principal().getString("password", "");
-    if (!authInfo.getString("password", "").equals(password)) {
+    // a user without a password can't log in
+    String password = user.principal().getString("password");
+    if (password == null || !password.equals(authInfo.getString("password", ""))) {
       resultHandler.handle(Future.failedFuture("incorrect password"));
     } else {
       resultHandler.handle(Future.succeededFuture(user));
     }
   }
 
+  /**
+   * A user who is permitted exactly the roles in their <code>roles</code>: a JSON array, or a comma separated string
+   * as a directory column would hold them
+   */
   public static class InMemoryUser extends AbstractUser {
     private final JsonObject user;
 
@@ -52,7 +74,22 @@ public class InMemoryAuthenticationProvider implements AuthProvider {
 
     @Override
     protected void doIsPermitted(String permission, Handler<AsyncResult<Boolean>> resultHandler) {
-      resultHandler.handle(Future.succeededFuture(true));
+      resultHandler.handle(Future.succeededFuture(hasRole(permission)));
+    }
+
+    private boolean hasRole(String role) {
+      Object roles = user.getValue("roles");
+      if (roles instanceof JsonArray) {
+        return ((JsonArray) roles).contains(role);
+      }
+      if (roles instanceof String) {
+        for (String granted : ((String) roles).split(",")) {
+          if (granted.trim().equals(role)) {
+            return true;
+          }
+        }
+      }
+      return false;
     }
 
     @Override
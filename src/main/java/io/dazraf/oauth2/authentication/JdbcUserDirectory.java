@@ -0,0 +1,117 @@
+package io.dazraf.oauth2.authentication;
+
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A {@link UserDirectory} over a table in any JDBC database, the driver for which must be on the classpath.
+ * <p>
+ * Each user is one row, found by a query taking the username as its only parameter. The <code>passwordColumn</code>
+ * holds a {@link PasswordHash}, which the password must match, and which never leaves the directory. Every other non
+ * null column becomes a field of the user's entry, named by its lower cased label. Connections are opened as they are
+ * needed, and up to <code>maxIdleConnections</code> of them are kept for reuse; a connection that fails a query is
+ * closed rather than reused.
+ */
+public class JdbcUserDirectory implements UserDirectory {
+  private static final Logger LOG = LoggerFactory.getLogger(JdbcUserDirectory.class);
+  private static final String DEFAULT_QUERY = "SELECT * FROM users WHERE username = ?";
+
+  private final String url;
+  private final String user;
+  private final String databasePassword;
+  private final String query;
+  private final String passwordColumn;
+  private final int queryTimeoutSeconds;
+  private final BlockingQueue<Connection> idle;
+
+  /**
+   * @param config the JDBC <code>url</code>, the database <code>user</code> and <code>password</code>, the
+   *               <code>query</code> and <code>passwordColumn</code>, <code>maxIdleConnections</code>, and the
+   *               <code>queryTimeout</code> in millis
+   */
+  public JdbcUserDirectory(JsonObject config) {
+    this.url = config.getString("url");
+    if (url == null) {
+      throw new IllegalArgumentException("userDirectory needs a JDBC url");
+    }
+    this.user = config.getString("user");
+    this.databasePassword = config.getString("password");
+    this.query = config.getString("query", DEFAULT_QUERY);
+    this.passwordColumn = config.getString("passwordColumn", "password").toLowerCase(Locale.ROOT);
+    this.queryTimeoutSeconds = (int) ((config.getLong("queryTimeout", 2000L) + 999) / 1000);
+    this.idle = new ArrayBlockingQueue<>(Math.max(1, config.getInteger("maxIdleConnections", 8)));
+  }
+
+  @Override
+  public JsonObject authenticate(String username, String password) throws SQLException {
+    Connection connection = idle.poll();
+    if (connection == null) {
+      connection = DriverManager.getConnection(url, user, databasePassword);
+    }
+    String[] hash = {null};
+    JsonObject entry;
+    try {
+      entry = query(connection, username, hash);
+      if (!idle.offer(connection)) {
+        connection.close();
+      }
+    } catch (SQLException e) {
+      close(connection);
+      throw e;
+    }
+    // hashing is slow by design, so it is done once the connection is free for another lookup
+    return entry != null && PasswordHash.verify(hash[0], password) ? entry : null;
+  }
+
+  /**
+   * @param hash set to the user's password hash, if they have one
+   */
+  private JsonObject query(Connection connection, String username, String[] hash) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement(query)) {
+      statement.setQueryTimeout(queryTimeoutSeconds);
+      statement.setString(1, username);
+      try (ResultSet row = statement.executeQuery()) {
+        if (!row.next()) {
+          return null;
+        }
+        ResultSetMetaData columns = row.getMetaData();
+        JsonObject entry = new JsonObject();
+        for (int i = 1; i <= columns.getColumnCount(); i++) {
+          Object value = row.getObject(i);
+          if (value == null) {
+            continue;
+          }
+          String name = columns.getColumnLabel(i).toLowerCase(Locale.ROOT);
+          if (name.equals(passwordColumn)) {
+            hash[0] = value.toString();
+          } else if (value instanceof String || value instanceof Boolean || value instanceof Integer
+            || value instanceof Long || value instanceof Double || value instanceof Float) {
+            entry.put(name, value);
+          } else {
+            entry.put(name, value.toString());
+          }
+        }
+        return entry;
+      }
+    }
+  }
+
+  private static void close(Connection connection) {
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      LOG.debug("failed to close a broken connection", e);
+    }
+  }
+}
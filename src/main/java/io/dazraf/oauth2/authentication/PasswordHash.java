@@ -0,0 +1,89 @@
+package io.dazraf.oauth2.authentication;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * PBKDF2 password hashes, as a {@link UserDirectory} stores them, in the form
+ * <code>pbkdf2-sha256$iterations$salt$hash</code> with the salt and hash base64 encoded. The iterations are part of
+ * the hash, so they can be raised for new passwords without invalidating old ones.
+ * <p>
+ * To hash a password for a directory, run this class and type the password on its standard input.
+ */
+public final class PasswordHash {
+  public static final int DEFAULT_ITERATIONS = 600_000;
+  private static final String SCHEME = "pbkdf2-sha256";
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+  private static final int SALT_BYTES = 16;
+  private static final int HASH_BITS = 256;
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private PasswordHash() {
+  }
+
+  public static String create(String password) {
+    return create(password, DEFAULT_ITERATIONS);
+  }
+
+  public static String create(String password, int iterations) {
+    byte[] salt = new byte[SALT_BYTES];
+    RANDOM.nextBytes(salt);
+    Base64.Encoder base64 = Base64.getEncoder();
+    return SCHEME + "$" + iterations + "$" + base64.encodeToString(salt) + "$"
+      + base64.encodeToString(derive(password, salt, iterations, HASH_BITS));
+  }
+
+  /**
+   * @return whether <code>password</code> is the one <code>hash</code> was created from. False for a null or
+   * malformed hash, so a user without one can't log in.
+   */
+  public static boolean verify(String hash, String password) {
+    if (hash == null) {
+      return false;
+    }
+    String[] parts = hash.split("\\$");
+    if (parts.length != 4 || !parts[0].equals(SCHEME)) {
+      return false;
+    }
+    try {
+      int iterations = Integer.parseInt(parts[1]);
+      byte[] salt = Base64.getDecoder().decode(parts[2]);
+      byte[] expected = Base64.getDecoder().decode(parts[3]);
+      if (iterations < 1 || salt.length == 0 || expected.length == 0) {
+        return false;
+      }
+      // constant time, so how long a check takes says nothing about the password
+      return MessageDigest.isEqual(expected, derive(password, salt, iterations, expected.length * 8));
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private static byte[] derive(String password, byte[] salt, int iterations, int bits) {
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+    try {
+      return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(ALGORITHM + " is not available", e);
+    } finally {
+      spec.clearPassword();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    String password = in.readLine();
+    if (password == null || password.isEmpty()) {
+      System.err.println("usage: type the password to hash on standard input");
+      System.exit(1);
+    }
+    System.out.println(create(password));
+  }
+}
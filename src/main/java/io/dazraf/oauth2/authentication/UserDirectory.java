@@ -0,0 +1,22 @@
+package io.dazraf.oauth2.authentication;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * A store of users that can only be queried by blocking, such as a database or an LDAP directory. Adapted for logins
+ * by {@link BlockingAuthProvider}, which calls it from its own threads, never an event loop.
+ * <p>
+ * Implementations are named by the <code>class</code> field of the <code>userDirectory</code> config, and need a
+ * public constructor that takes that config as a {@link JsonObject}. They must be thread safe.
+ */
+public interface UserDirectory {
+  /**
+   * Check a user's password and look them up. Blocking. How the password is checked is up to the directory, such as
+   * against a stored hash, see {@link PasswordHash}, or by binding as the user, so no credential ever leaves it.
+   *
+   * @return the user's entry, the claims to assert about them and their <code>roles</code>, or null if there is no
+   * such user, they have no password, or it isn't <code>password</code>
+   * @throws Exception if the directory couldn't be queried. Failures aren't cached.
+   */
+  JsonObject authenticate(String username, String password) throws Exception;
+}
@@ -0,0 +1,120 @@
+package io.dazraf.oauth2.authentication;
+
+import io.vertx.core.Handler;
+import io.vertx.ext.auth.User;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.Session;
+import io.vertx.ext.web.sstore.SessionStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the sessions each user has logged in to, so that all of a user's sessions can be ended at once.
+ * <p>
+ * Sessions are recorded when a login succeeds and dropped on logout. Sessions that simply time out are left in the
+ * index until the user has more than a handful, when the ones the store no longer has are pruned. Each verticle
+ * instance indexes the logins it handled, and must only be used from its own event loop.
+ */
+public class UserSessions {
+  private static final Logger LOG = LoggerFactory.getLogger(UserSessions.class);
+  private static final int PRUNE_THRESHOLD = 16;
+
+  private final SessionStore sessionStore;
+  private final Map<String, Set<String>> sessionsByUser = new HashMap<>();
+
+  public static UserSessions create(SessionStore sessionStore) {
+    return new UserSessions(sessionStore);
+  }
+
+  private UserSessions(SessionStore sessionStore) {
+    this.sessionStore = sessionStore;
+  }
+
+  /**
+   * Handler to install ahead of the login handler, which records the session once the login has succeeded
+   */
+  public Handler<RoutingContext> recordLogin() {
+    return context -> {
+      context.addBodyEndHandler(v -> {
+        String username = usernameOf(context.user());
+        Session session = context.session();
+        if (username != null && session != null && !session.isDestroyed()) {
+          record(username, session.id());
+        }
+      });
+      context.next();
+    };
+  }
+
+  /**
+   * Handler that ends the current session, rather than just clearing its user, and then redirects to
+   * <code>location</code>
+   */
+  public Handler<RoutingContext> logout(String location) {
+    return context -> {
+      String username = usernameOf(context.user());
+      Session session = context.session();
+      if (session != null) {
+        if (username != null) {
+          forget(username, session.id());
+        }
+        session.destroy();
+      }
+      context.clearUser();
+      context.response().putHeader("location", location).setStatusCode(302).end();
+    };
+  }
+
+  /**
+   * End every session the user logged in to through this instance
+   *
+   * @return the number of sessions ended
+   */
+  public int destroy(String username) {
+    Set<String> sessionIDs = sessionsByUser.remove(username);
+    if (sessionIDs == null) {
+      return 0;
+    }
+    sessionIDs.forEach(sessionID -> sessionStore.delete(sessionID, deleted -> {
+      if (deleted.failed()) {
+        LOG.warn("failed to delete session for {}: {}", username, deleted.cause().getMessage());
+      }
+    }));
+    LOG.info("ended {} sessions for {}", sessionIDs.size(), username);
+    return sessionIDs.size();
+  }
+
+  private void record(String username, String sessionID) {
+    Set<String> sessionIDs = sessionsByUser.computeIfAbsent(username, name -> new LinkedHashSet<>());
+    if (sessionIDs.add(sessionID) && sessionIDs.size() > PRUNE_THRESHOLD) {
+      prune(username, sessionIDs);
+    }
+  }
+
+  private void forget(String username, String sessionID) {
+    Set<String> sessionIDs = sessionsByUser.get(username);
+    if (sessionIDs != null && sessionIDs.remove(sessionID) && sessionIDs.isEmpty()) {
+      sessionsByUser.remove(username);
+    }
+  }
+
+  private void prune(String username, Set<String> sessionIDs) {
+    for (String sessionID : new ArrayList<>(sessionIDs)) {
+      sessionStore.get(sessionID, found -> {
+        if (found.succeeded() && found.result() == null) {
+          forget(username, sessionID);
+        }
+      });
+    }
+  }
+
+  private static String usernameOf(User user) {
+    return user == null ? null : user.principal().getString("username");
+  }
+}
@@ -6,23 +6,92 @@ import static io.dazraf.oauth2.util.HttpUtils.mustGetRequestParam;
 import static io.dazraf.oauth2.util.HttpUtils.mustGetRequestParamAndEquals;
 
 public class AccessRequest {
+  public static final String AUTHORIZATION_CODE = "authorization_code";
+  // RFC 8628
+  public static final String DEVICE_CODE = "urn:ietf:params:oauth:grant-type:device_code";
+  // RFC 8693
+  public static final String TOKEN_EXCHANGE = "urn:ietf:params:oauth:grant-type:token-exchange";
+  public static final String ACCESS_TOKEN_TYPE = "urn:ietf:params:oauth:token-type:access_token";
 
   private final String clientID;
   private final String grantType;
   private final String redirectedURI;
   private final String code;
+  private final String scope;
+  private final String audience;
 
   public static AccessRequest create(RoutingContext context) throws Exception {
     return new AccessRequest(context);
   }
 
+  public static AccessRequest create(String clientID, String grantType, String redirectedURI, String code) {
+    return new AccessRequest(clientID, grantType, redirectedURI, code, null, null);
+  }
+
+  /**
+   * @param subjectToken the access token to exchange
+   * @param scope the scopes wanted, or null for all of the subject token's
+   * @param audience the client the new token is for, or null for <code>clientID</code>
+   */
+  public static AccessRequest exchange(String clientID, String subjectToken, String scope, String audience) {
+    return new AccessRequest(clientID, TOKEN_EXCHANGE, null, subjectToken, scope, audience);
+  }
+
+  /**
+   * @return the request carried by an {@link TokenMessage.Op#ISSUE} message
+   * @see #toMessage()
+   */
+  static AccessRequest create(TokenMessage message) {
+    if (TOKEN_EXCHANGE.equals(message.getGrantType())) {
+      return exchange(message.getClientID(), message.getCode(), message.getScope(), message.getAudience());
+    }
+    return create(message.getClientID(), message.getGrantType(), message.getRedirectURI(), message.getCode());
+  }
+
+  private AccessRequest(String clientID, String grantType, String redirectedURI, String code, String scope,
+                        String audience) {
+    this.clientID = clientID;
+    this.grantType = grantType;
+    this.redirectedURI = redirectedURI;
+    this.code = code;
+    this.scope = scope;
+    this.audience = audience;
+  }
+
   public AccessRequest(RoutingContext context) throws Exception {
     this.clientID = mustGetRequestParam(context, "client_id");
-    this.redirectedURI = mustGetRequestParam(context, "redirect_uri");
-    this.code = mustGetRequestParam(context, "code");
-
-    // we only support access using code grants
+    // we support access using code grants, device codes, and exchanging one access token for another
     this.grantType = mustGetRequestParam(context, "grant_type");
+    if (DEVICE_CODE.equals(grantType)) {
+      this.redirectedURI = null;
+      this.code = mustGetRequestParam(context, "device_code");
+      this.scope = null;
+      this.audience = null;
+    } else if (TOKEN_EXCHANGE.equals(grantType)) {
+      this.redirectedURI = null;
+      this.code = mustGetRequestParam(context, "subject_token");
+      mustGetRequestParamAndEquals(context, "subject_token_type", ACCESS_TOKEN_TYPE);
+      if (context.request().getParam("requested_token_type") != null) {
+        mustGetRequestParamAndEquals(context, "requested_token_type", ACCESS_TOKEN_TYPE);
+      }
+      this.scope = context.request().getParam("scope");
+      this.audience = context.request().getParam("audience");
+    } else {
+      this.redirectedURI = mustGetRequestParam(context, "redirect_uri");
+      this.code = mustGetRequestParam(context, "code");
+      this.scope = null;
+      this.audience = null;
+    }
+  }
+
+  /**
+   * @return the request as an {@link TokenMessage.Op#ISSUE} message, to forward to another shard
+   */
+  TokenMessage toMessage() {
+    if (isTokenExchange()) {
+      return TokenMessage.exchange(clientID, code, scope, audience);
+    }
+    return TokenMessage.issue(clientID, redirectedURI, code, grantType);
   }
 
   public String getClientID() {
@@ -37,7 +106,33 @@ public class AccessRequest {
     return redirectedURI;
   }
 
+  /**
+   * @return the grant code, the device code for the device code grant type, or the subject token for a token
+   * exchange
+   */
   public String getCode() {
     return code;
   }
+
+  /**
+   * @return for a token exchange, the scopes wanted, or null for all of the subject token's
+   */
+  public String getScope() {
+    return scope;
+  }
+
+  /**
+   * @return for a token exchange, the client the new token is for, or null for the requesting client
+   */
+  public String getAudience() {
+    return audience;
+  }
+
+  public boolean isDeviceCode() {
+    return DEVICE_CODE.equals(grantType);
+  }
+
+  public boolean isTokenExchange() {
+    return TOKEN_EXCHANGE.equals(grantType);
+  }
 }
@@ -0,0 +1,303 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static io.dazraf.oauth2.util.HttpUtils.httpServiceUnavailable;
+
+/**
+ * RFC 7591 dynamic client registration, and reading and updating a registration as in RFC 7592, so that a client can
+ * be onboarded without editing the config and restarting.
+ * <p>
+ * A client <code>POST</code>s its metadata as JSON to the registration end point, with the realm's initial access
+ * token as a bearer token if one is configured, and gets back its <code>client_id</code> and a
+ * <code>registration_access_token</code>. With that token it can <code>GET</code> or <code>PUT</code> its
+ * registration at <code>registration_client_uri</code>. Only the hash of the token is kept.
+ * <p>
+ * Redirect URIs must be absolute, without a fragment or wildcard, and either https, http to a loopback address, or a
+ * private-use scheme for native apps. The token end point identifies clients by id alone, so the
+ * <code>token_endpoint_auth_method</code> is always <code>none</code> and no secret is issued. Registered clients get
+ * the configured <code>maxTokens</code> and <code>maxGrants</code>, and may not set <code>exchangeAudiences</code>.
+ */
+public class ClientRegistration {
+  private static final Logger LOG = LoggerFactory.getLogger(ClientRegistration.class);
+  private static final Set<String> GRANT_TYPES = new HashSet<>(Arrays.asList(
+    AccessRequest.AUTHORIZATION_CODE, AccessRequest.DEVICE_CODE, AccessRequest.TOKEN_EXCHANGE));
+  private static final int MAX_REDIRECT_URIS = 16;
+  private static final int MAX_NAME_LENGTH = 255;
+  private static final int DEFAULT_MAX_TOKENS = 10_000;
+  private static final int DEFAULT_MAX_GRANTS = 1_000;
+  private static final SecureRandom RANDOM = new SecureRandom();
+  private static final Base64.Encoder BASE64URL = Base64.getUrlEncoder().withoutPadding();
+
+  private final ClientRegistry registry;
+  private final String registrationURI;
+  private final byte[] initialAccessTokenHash;
+  private final int maxTokens;
+  private final int maxGrants;
+
+  /**
+   * @param registrationURI the URL of the registration end point, under which each client's registration is served
+   * @param config the <code>initialAccessToken</code> needed to register, if any, and the <code>maxTokens</code> and
+   *               <code>maxGrants</code> of registered clients
+   */
+  public static ClientRegistration create(ClientRegistry registry, String registrationURI, JsonObject config) {
+    return new ClientRegistration(registry, registrationURI, config);
+  }
+
+  private ClientRegistration(ClientRegistry registry, String registrationURI, JsonObject config) {
+    this.registry = registry;
+    this.registrationURI = registrationURI;
+    String initialAccessToken = config.getString("initialAccessToken");
+    this.initialAccessTokenHash = initialAccessToken == null ? null : hash(initialAccessToken);
+    this.maxTokens = config.getInteger("maxTokens", DEFAULT_MAX_TOKENS);
+    this.maxGrants = config.getInteger("maxGrants", DEFAULT_MAX_GRANTS);
+  }
+
+  public void register(RoutingContext context) {
+    if (initialAccessTokenHash != null && !MessageDigest.isEqual(initialAccessTokenHash, bearerTokenHash(context))) {
+      respondUnauthorized(context);
+      return;
+    }
+    JsonObject config = parseMetadata(context);
+    if (config == null) {
+      return;
+    }
+    String clientID = randomToken(16);
+    String registrationToken = randomToken(32);
+    config.put("issuedAt", System.currentTimeMillis() / 1000)
+      .put("registrationToken", BASE64URL.encodeToString(hash(registrationToken)))
+      .put("maxTokens", maxTokens)
+      .put("maxGrants", maxGrants);
+    store(context, RegisteredClient.create(clientID, config), 201, registrationToken);
+  }
+
+  public void read(RoutingContext context) {
+    RegisteredClient client = authorizedClient(context);
+    if (client != null) {
+      respondWithClient(context, client, 200, null);
+    }
+  }
+
+  /**
+   * Replace the client's metadata with what was sent, which must name the same client
+   */
+  public void update(RoutingContext context) {
+    RegisteredClient client = authorizedClient(context);
+    if (client == null) {
+      return;
+    }
+    JsonObject config = parseMetadata(context);
+    if (config == null) {
+      return;
+    }
+    if (!client.getClientID().equals(context.getBodyAsJson().getValue("client_id"))) {
+      respondError(context, "invalid_client_metadata", "client_id must be the client's id");
+      return;
+    }
+    JsonObject registered = client.getConfig();
+    config.put("issuedAt", registered.getLong("issuedAt"))
+      .put("registrationToken", registered.getString("registrationToken"))
+      .put("maxTokens", registered.getInteger("maxTokens"))
+      .put("maxGrants", registered.getInteger("maxGrants"));
+    store(context, RegisteredClient.create(client.getClientID(), config), 200, null);
+  }
+
+  /**
+   * @return the registered client named in the path, if the request carries its registration access token;
+   * otherwise null, having responded 401 so as not to reveal whether the client exists
+   */
+  private RegisteredClient authorizedClient(RoutingContext context) {
+    RegisteredClient client = registry.get(context.request().getParam("clientID"));
+    if (client == null || !client.isRegistered() || !MessageDigest.isEqual(bearerTokenHash(context),
+      Base64.getUrlDecoder().decode(client.getConfig().getString("registrationToken")))) {
+      respondUnauthorized(context);
+      return null;
+    }
+    return client;
+  }
+
+  /**
+   * @return the client's config from the metadata in the request body, or null, having responded with the error
+   */
+  private JsonObject parseMetadata(RoutingContext context) {
+    JsonObject metadata;
+    try {
+      metadata = context.getBodyAsJson();
+    } catch (RuntimeException e) {
+      respondError(context, "invalid_client_metadata", "the request body must be a JSON object");
+      return null;
+    }
+    try {
+      JsonArray grantTypes = metadata.getJsonArray("grant_types", new JsonArray().add(AccessRequest.AUTHORIZATION_CODE));
+      for (Object grantType : grantTypes) {
+        if (!GRANT_TYPES.contains(grantType)) {
+          respondError(context, "invalid_client_metadata", "unsupported grant type: " + grantType);
+          return null;
+        }
+      }
+      for (Object responseType : metadata.getJsonArray("response_types", new JsonArray().add("code"))) {
+        if (!"code".equals(responseType)) {
+          respondError(context, "invalid_client_metadata", "unsupported response type: " + responseType);
+          return null;
+        }
+      }
+      JsonArray redirectURIs = metadata.getJsonArray("redirect_uris", new JsonArray());
+      if (redirectURIs.isEmpty() && grantTypes.contains(AccessRequest.AUTHORIZATION_CODE)) {
+        respondError(context, "invalid_redirect_uri", "redirect_uris are required for the authorization_code grant");
+        return null;
+      }
+      if (redirectURIs.size() > MAX_REDIRECT_URIS) {
+        respondError(context, "invalid_redirect_uri", "no more than " + MAX_REDIRECT_URIS + " redirect_uris");
+        return null;
+      }
+      for (Object redirectURI : redirectURIs) {
+        String problem = checkRedirectURI((String) redirectURI);
+        if (problem != null) {
+          respondError(context, "invalid_redirect_uri", redirectURI + " " + problem);
+          return null;
+        }
+      }
+      String name = metadata.getString("client_name");
+      if (name != null && name.length() > MAX_NAME_LENGTH) {
+        respondError(context, "invalid_client_metadata", "client_name is longer than " + MAX_NAME_LENGTH);
+        return null;
+      }
+      JsonObject config = new JsonObject()
+        .put("redirectURIs", redirectURIs)
+        .put("grantTypes", grantTypes);
+      if (name != null) {
+        config.put("name", name);
+      }
+      return config;
+    } catch (ClassCastException e) {
+      respondError(context, "invalid_client_metadata", "malformed client metadata");
+      return null;
+    }
+  }
+
+  /**
+   * @return what is wrong with the redirect URI, or null if it can be registered
+   */
+  private static String checkRedirectURI(String redirectURI) {
+    if (redirectURI.length() > RedirectURIMatcher.MAX_URI_LENGTH || redirectURI.indexOf('*') >= 0) {
+      return "must be an exact URI of no more than " + RedirectURIMatcher.MAX_URI_LENGTH + " characters";
+    }
+    URI uri;
+    try {
+      uri = new URI(redirectURI);
+    } catch (URISyntaxException e) {
+      return "is not a valid URI";
+    }
+    if (!uri.isAbsolute() || uri.getFragment() != null) {
+      return "must be absolute, without a fragment";
+    }
+    String scheme = uri.getScheme().toLowerCase();
+    if (scheme.equals("https")) {
+      return uri.getHost() == null ? "has no host" : null;
+    }
+    if (scheme.equals("http")) {
+      List<String> loopback = Arrays.asList("localhost", "127.0.0.1", "[::1]");
+      return loopback.contains(uri.getHost()) ? null : "must be https, unless it is to a loopback address";
+    }
+    // a native app's private-use scheme, which RFC 8252 has be a reverse domain name
+    return scheme.indexOf('.') > 0 ? null : "must be https, http to a loopback address, or a reverse domain scheme";
+  }
+
+  /**
+   * Write the client to the registry on a worker, then respond with its registration
+   *
+   * @param registrationToken the newly issued registration access token, or null if the client already has one
+   */
+  private void store(RoutingContext context, RegisteredClient client, int status, String registrationToken) {
+    context.vertx().<Void>executeBlocking(future -> {
+      try {
+        registry.put(client);
+        future.complete();
+      } catch (Exception e) {
+        future.fail(e);
+      }
+    }, false, stored -> {
+      if (stored.failed()) {
+        LOG.error("failed to register client {}", client.getClientID(), stored.cause());
+        if (stored.cause() instanceof IllegalStateException) {
+          httpServiceUnavailable(context);
+        } else {
+          context.fail(stored.cause());
+        }
+        return;
+      }
+      LOG.info("{} client {} ({})", status == 201 ? "registered" : "updated", client.getClientID(), client.getName());
+      respondWithClient(context, client, status, registrationToken);
+    });
+  }
+
+  private void respondWithClient(RoutingContext context, RegisteredClient client, int status,
+                                 String registrationToken) {
+    JsonObject config = client.getConfig();
+    JsonObject response = new JsonObject()
+      .put("client_id", client.getClientID())
+      .put("client_id_issued_at", config.getLong("issuedAt"))
+      .put("client_name", client.getName())
+      .put("redirect_uris", config.getJsonArray("redirectURIs"))
+      .put("grant_types", config.getJsonArray("grantTypes"))
+      .put("response_types", new JsonArray().add("code"))
+      .put("token_endpoint_auth_method", "none")
+      .put("registration_client_uri", registrationURI + "/" + client.getClientID());
+    if (registrationToken != null) {
+      response.put("registration_access_token", registrationToken);
+    }
+    context.response().setStatusCode(status)
+      .putHeader("Cache-Control", "no-store").putHeader("Pragma", "no-cache")
+      .putHeader("Content-Type", "application/json")
+      .end(response.encodePrettily());
+  }
+
+  private static void respondError(RoutingContext context, String error, String description) {
+    context.response().setStatusCode(400).putHeader("Content-Type", "application/json")
+      .end(new JsonObject().put("error", error).put("error_description", description).encodePrettily());
+  }
+
+  private static void respondUnauthorized(RoutingContext context) {
+    context.response().setStatusCode(401).putHeader("WWW-Authenticate", "Bearer error=\"invalid_token\"").end();
+  }
+
+  /**
+   * @return the hash of the request's bearer token, or of nothing if it doesn't have one, so that the comparison
+   * takes as long either way
+   */
+  private static byte[] bearerTokenHash(RoutingContext context) {
+    String authorization = context.request().getHeader("Authorization");
+    boolean bearer = authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7);
+    return hash(bearer ? authorization.substring(7).trim() : "");
+  }
+
+  private static byte[] hash(String token) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String randomToken(int bytes) {
+    byte[] random = new byte[bytes];
+    RANDOM.nextBytes(random);
+    return BASE64URL.encodeToString(random);
+  }
+}
@@ -0,0 +1,253 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The clients of a realm: those listed in its config, and those registered at run time.
+ * <p>
+ * Each client is an immutable {@link RegisteredClient} in a concurrent map, so the authorize and token end points
+ * look clients up with a lock-free read on whichever event loop they run on. A registration or update replaces the
+ * client in the map, where every event loop sees it straight away.
+ * <p>
+ * Registrations are appended to a log file, one JSON record per line, and forced to disk before they are made
+ * visible. On {@link #load} the log is replayed over the configured clients, keeping the last record for each client,
+ * and rewritten without the superseded records if they outnumber the live ones. Without a file, registrations only
+ * last as long as the process.
+ * <p>
+ * One registry is shared by the instances of a deployment. Loading and registering write the file, so they must be
+ * called on a worker; lookups are safe on any thread.
+ */
+public class ClientRegistry implements Shareable {
+  private static final Logger LOG = LoggerFactory.getLogger(ClientRegistry.class);
+  private static final int DEFAULT_MAX_CLIENTS = 100_000;
+  // superseded records the log may hold before it is compacted on load
+  private static final int COMPACTION_SLACK = 1024;
+
+  private final Map<String, RegisteredClient> clients = new ConcurrentHashMap<>();
+  private final List<String> configured = new ArrayList<>();
+  private final Path path;
+  private final int maxClients;
+  // guarded by this
+  private FileChannel log;
+  private int logRecords = 0;
+  private int registered = 0;
+  // without a log there is nothing to load
+  private boolean loaded;
+  // instances using the shared registry. Guarded by the class
+  private int references = 0;
+
+  /**
+   * @param key what the instances sharing the registry have in common, such as their deployment and realm
+   * @return the registry shared under <code>key</code>, creating it if need be. Each call must be matched by a
+   * {@link #release}.
+   * @see #create(JsonObject, JsonObject)
+   */
+  public static synchronized ClientRegistry shared(Vertx vertx, String key, JsonObject clients, JsonObject config) {
+    LocalMap<String, ClientRegistry> registries = vertx.sharedData().getLocalMap("oauth2.clients");
+    ClientRegistry registry = registries.get(key);
+    if (registry == null) {
+      registry = create(clients, config);
+      registries.put(key, registry);
+    }
+    registry.references++;
+    return registry;
+  }
+
+  /**
+   * Stop using the registry shared under <code>key</code>. When the last instance has released it, its log is closed.
+   */
+  public static synchronized void release(Vertx vertx, String key) {
+    LocalMap<String, ClientRegistry> registries = vertx.sharedData().getLocalMap("oauth2.clients");
+    ClientRegistry registry = registries.get(key);
+    if (registry != null && --registry.references == 0) {
+      registries.remove(key);
+      registry.close();
+    }
+  }
+
+  /**
+   * @param clients the configured clients, by client id
+   * @param config <code>file</code>, the log to keep registrations in, and <code>maxClients</code>, how many may
+   *               be registered
+   */
+  public static ClientRegistry create(JsonObject clients, JsonObject config) {
+    return new ClientRegistry(clients, config);
+  }
+
+  private ClientRegistry(JsonObject clients, JsonObject config) {
+    String file = config.getString("file");
+    this.path = file == null ? null : Paths.get(file);
+    this.maxClients = config.getInteger("maxClients", DEFAULT_MAX_CLIENTS);
+    this.loaded = path == null;
+    for (String clientID : clients.fieldNames()) {
+      RegisteredClient client = RegisteredClient.create(clientID, clients.getJsonObject(clientID));
+      if (client.getRedirectURIs().isEmpty()) {
+        LOG.warn("client {} has no redirectURIs registered, so it can't be authorized", clientID);
+      }
+      this.clients.put(clientID, client);
+      configured.add(clientID);
+    }
+  }
+
+  /**
+   * @return the ids of the clients listed in the config
+   */
+  List<String> getConfiguredClientIDs() {
+    return configured;
+  }
+
+  /**
+   * @return the client, or null if there isn't one with that id
+   */
+  RegisteredClient get(String clientID) {
+    return clientID == null ? null : clients.get(clientID);
+  }
+
+  boolean contains(String clientID) {
+    return get(clientID) != null;
+  }
+
+  /**
+   * Replay the log over the configured clients and open it for appending. Does nothing if already loaded. Blocking.
+   */
+  public synchronized void load() throws IOException {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    Map<String, JsonObject> records = new LinkedHashMap<>();
+    if (Files.exists(path)) {
+      try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          if (line.isEmpty()) {
+            continue;
+          }
+          logRecords++;
+          try {
+            JsonObject record = new JsonObject(line);
+            records.put(record.getString("clientID"), record);
+          } catch (DecodeException | ClassCastException e) {
+            // only the last line can have been cut short, by a crash part way through appending it
+            LOG.warn("skipping malformed client record in {}: {}", path, e.getMessage());
+          }
+        }
+      }
+    }
+    records.forEach((clientID, record) -> {
+      if (clientID == null || clients.containsKey(clientID)) {
+        LOG.warn("skipping registered client {}, which clashes with a configured client", clientID);
+        return;
+      }
+      record.remove("clientID");
+      try {
+        clients.put(clientID, RegisteredClient.create(clientID, record));
+        registered++;
+      } catch (IllegalArgumentException e) {
+        LOG.warn("skipping registered client {}: {}", clientID, e.getMessage());
+      }
+    });
+    if (logRecords > registered * 2 + COMPACTION_SLACK) {
+      compact();
+    }
+    // only this registry writes the log, so records are appended by writing from its end
+    log = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    log.position(log.size());
+    ByteBuffer last = ByteBuffer.allocate(1);
+    if (log.size() > 0 && log.read(last, log.size() - 1) == 1 && last.get(0) != '\n') {
+      // end the cut short record, so that the next one starts on a line of its own
+      log.write(ByteBuffer.wrap(new byte[]{'\n'}));
+    }
+    LOG.info("loaded {} registered clients from {}", registered, path);
+  }
+
+  /**
+   * Add or replace a registered client, once its record is on disk. Blocking.
+   *
+   * @throws IllegalStateException if the registry isn't loaded, or the client is new and the registry is full
+   */
+  synchronized void put(RegisteredClient client) throws IOException {
+    if (!loaded) {
+      throw new IllegalStateException("the client registry has not been loaded");
+    }
+    boolean added = !clients.containsKey(client.getClientID());
+    if (added && registered >= maxClients) {
+      throw new IllegalStateException("no more than " + maxClients + " clients may be registered");
+    }
+    if (log != null) {
+      ByteBuffer record = ByteBuffer.wrap((toRecord(client) + "\n").getBytes(StandardCharsets.UTF_8));
+      while (record.hasRemaining()) {
+        log.write(record);
+      }
+      log.force(false);
+      logRecords++;
+    }
+    clients.put(client.getClientID(), client);
+    if (added) {
+      registered++;
+    }
+  }
+
+  public synchronized JsonObject toJson() {
+    return new JsonObject()
+      .put("clients", clients.size())
+      .put("registered", registered)
+      .put("maxClients", maxClients)
+      .put("logRecords", logRecords);
+  }
+
+  synchronized void close() {
+    if (log != null) {
+      try {
+        log.close();
+      } catch (IOException e) {
+        LOG.warn("failed to close client registry log {}", path, e);
+      }
+      log = null;
+    }
+  }
+
+  /**
+   * Rewrite the log with only the current record of each registered client
+   */
+  private void compact() throws IOException {
+    Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+      for (RegisteredClient client : clients.values()) {
+        if (client.isRegistered()) {
+          writer.write(toRecord(client));
+          writer.write('\n');
+        }
+      }
+    }
+    Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    LOG.info("compacted {} client records in {} to {}", logRecords, path, registered);
+    logRecords = registered;
+  }
+
+  private static String toRecord(RegisteredClient client) {
+    return client.getConfig().copy().put("clientID", client.getClientID()).encode();
+  }
+}
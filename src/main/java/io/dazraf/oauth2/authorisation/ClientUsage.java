@@ -0,0 +1,161 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.List;
+import java.util.function.LongPredicate;
+
+/**
+ * Live grant and access token accounting for one client.
+ * <p>
+ * Counters are maintained as entries are added and removed, so reading them never scans the stores. Keys are also
+ * queued in issue order so the oldest can be evicted when a cap is reached. The queues are allowed to hold keys
+ * that have since been removed; these are skipped on eviction, popped when they reach the head, and compacted away
+ * if they ever outnumber the live keys.
+ * <p>
+ * When the authorizer is sharded each shard keeps its own usage, and enforces an equal share of the client's caps.
+ */
+class ClientUsage {
+  private final String clientID;
+  private final int maxTokens;
+  private final int maxGrants;
+  private final int shardMaxTokens;
+  private final int shardMaxGrants;
+  private final KeyQueue tokenOrder = new KeyQueue();
+  private final KeyQueue grantOrder = new KeyQueue();
+  private int liveTokens = 0;
+  private int liveGrants = 0;
+  private long issuedTokens = 0;
+  private long issuedGrants = 0;
+  private long evictedTokens = 0;
+  private long evictedGrants = 0;
+
+  /**
+   * @param client the client's config, which may set <code>maxTokens</code> and <code>maxGrants</code>
+   */
+  static ClientUsage create(String clientID, JsonObject client, int shardCount) {
+    JsonObject config = client != null ? client : new JsonObject();
+    return new ClientUsage(clientID,
+      config.getInteger("maxTokens", Integer.MAX_VALUE),
+      config.getInteger("maxGrants", Integer.MAX_VALUE),
+      shardCount);
+  }
+
+  private ClientUsage(String clientID, int maxTokens, int maxGrants, int shardCount) {
+    this.clientID = clientID;
+    this.maxTokens = maxTokens;
+    this.maxGrants = maxGrants;
+    this.shardMaxTokens = shareOf(maxTokens, shardCount);
+    this.shardMaxGrants = shareOf(maxGrants, shardCount);
+  }
+
+  boolean isAtTokenCap() {
+    return liveTokens >= shardMaxTokens;
+  }
+
+  boolean isAtGrantCap() {
+    return liveGrants >= shardMaxGrants;
+  }
+
+  /**
+   * @return the share of this shard's token cap left, from 1 when it holds none to 0 when it is at the cap
+   */
+  double tokenHeadroom() {
+    return Math.max(0, 1 - (double) liveTokens / shardMaxTokens);
+  }
+
+  /**
+   * @return the oldest queued token, which may no longer be live, or 0 if there are none
+   */
+  long pollOldestToken() {
+    return tokenOrder.pollFirst();
+  }
+
+  /**
+   * @return the oldest queued grant code, which may no longer be live, or 0 if there are none
+   */
+  long pollOldestGrant() {
+    return grantOrder.pollFirst();
+  }
+
+  void tokenAdded(long token) {
+    tokenOrder.addLast(token);
+    liveTokens++;
+    issuedTokens++;
+  }
+
+  void grantAdded(long code) {
+    grantOrder.addLast(code);
+    liveGrants++;
+    issuedGrants++;
+  }
+
+  void tokenRemoved(long token, LongPredicate isLive) {
+    liveTokens--;
+    tokenOrder.removed(token, liveTokens, isLive);
+  }
+
+  void grantRemoved(long code, LongPredicate isLive) {
+    liveGrants--;
+    grantOrder.removed(code, liveGrants, isLive);
+  }
+
+  void tokenEvicted() {
+    liveTokens--;
+    evictedTokens++;
+  }
+
+  void grantEvicted() {
+    liveGrants--;
+    evictedGrants++;
+  }
+
+  void grantsCleared() {
+    grantOrder.clear();
+    liveGrants = 0;
+  }
+
+  /**
+   * @return the keys queued for eviction, including any that have since been removed but not yet popped or compacted
+   */
+  int queuedKeys() {
+    return tokenOrder.size() + grantOrder.size();
+  }
+
+  JsonObject toJson() {
+    return new JsonObject()
+      .put("liveTokens", liveTokens)
+      .put("maxTokens", maxTokens)
+      .put("issuedTokens", issuedTokens)
+      .put("evictedTokens", evictedTokens)
+      .put("liveGrants", liveGrants)
+      .put("maxGrants", maxGrants)
+      .put("issuedGrants", issuedGrants)
+      .put("evictedGrants", evictedGrants);
+  }
+
+  String getClientID() {
+    return clientID;
+  }
+
+  /**
+   * Combine the {@link #toJson()} reports of every shard for one client
+   */
+  static JsonObject merge(List<JsonObject> shardUsages) {
+    JsonObject merged = new JsonObject();
+    for (JsonObject shardUsage : shardUsages) {
+      for (String field : shardUsage.fieldNames()) {
+        if (field.startsWith("max")) {
+          merged.put(field, shardUsage.getInteger(field));
+        } else {
+          merged.put(field, merged.getLong(field, 0L) + shardUsage.getLong(field));
+        }
+      }
+    }
+    return merged;
+  }
+
+  private static int shareOf(int max, int shardCount) {
+    return max == Integer.MAX_VALUE ? max : (max + shardCount - 1) / shardCount;
+  }
+}
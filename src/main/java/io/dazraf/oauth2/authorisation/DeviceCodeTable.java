@@ -0,0 +1,273 @@
+package io.dazraf.oauth2.authorisation;
+
+/**
+ * Open-addressing hash table of pending device authorization requests, keyed by user code, with the values held
+ * column-wise in primitive arrays like {@link KeyTable}: the device code's secret, the client's index, the scope
+ * bitset, the expiry, when the device last polled, and whether the resource owner has decided yet and who they are.
+ * <p>
+ * A device code carries its user code, so a poll and a user entering their code both cost a single lookup. Requests
+ * only live for a few minutes, so the table stays small; entries are removed once the device has collected the
+ * outcome, or by {@link #sweep} once they expire. Not thread safe: each table belongs to one shard's event loop.
+ */
+class DeviceCodeTable {
+  static final byte PENDING = 0;
+  static final byte APPROVED = 1;
+  static final byte DENIED = 2;
+
+  private static final int MIN_CAPACITY = 16;
+  // golden ratio multiplier: keys are congruent modulo the shard count, so their low bits can't be used directly
+  private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private long[] keys;
+  private long[] secrets;
+  private int[] clients;
+  private int[] users;
+  private long[] scopes;
+  private long[] expiries;
+  private long[] polledAt;
+  private byte[] states;
+  private int mask;
+  private int shift;
+  private int size = 0;
+  private int sweepCursor = 0;
+
+  static DeviceCodeTable create() {
+    return new DeviceCodeTable();
+  }
+
+  private DeviceCodeTable() {
+    allocate(MIN_CAPACITY);
+  }
+
+  int size() {
+    return size;
+  }
+
+  int capacity() {
+    return keys.length;
+  }
+
+  /**
+   * @return the slot holding <code>userCode</code>, or -1 if there is no live entry for it. An expired entry is
+   * removed.
+   */
+  int find(long userCode, long now) {
+    int slot = indexOf(userCode);
+    if (slot >= 0 && expiries[slot] <= now) {
+      removeAt(slot);
+      return -1;
+    }
+    return slot;
+  }
+
+  /**
+   * @return the slot holding <code>userCode</code>, regardless of expiry, or -1
+   */
+  int indexOf(long userCode) {
+    if (userCode == 0) {
+      return -1;
+    }
+    for (int slot = slotOf(userCode); ; slot = (slot + 1) & mask) {
+      long candidate = keys[slot];
+      if (candidate == userCode) {
+        return slot;
+      }
+      if (candidate == 0) {
+        return -1;
+      }
+    }
+  }
+
+  boolean contains(long userCode) {
+    return indexOf(userCode) >= 0;
+  }
+
+  long secretAt(int slot) {
+    return secrets[slot];
+  }
+
+  int clientAt(int slot) {
+    return clients[slot];
+  }
+
+  /**
+   * @return the resource owner who decided, or {@link UserIndex#NO_USER} while the request is pending
+   */
+  int userAt(int slot) {
+    return users[slot];
+  }
+
+  long scopesAt(int slot) {
+    return scopes[slot];
+  }
+
+  long expiresAt(int slot) {
+    return expiries[slot];
+  }
+
+  long polledAt(int slot) {
+    return polledAt[slot];
+  }
+
+  /**
+   * @return {@link #PENDING}, {@link #APPROVED} or {@link #DENIED}
+   */
+  byte stateAt(int slot) {
+    return states[slot];
+  }
+
+  /**
+   * Add a pending request for <code>userCode</code>, which must not already have one
+   */
+  void put(long userCode, long secret, int client, long scopeBits, long expiresAt) {
+    if (userCode == 0) {
+      throw new IllegalArgumentException("0 is not a valid user code");
+    }
+    if ((size + 1) * 4L > keys.length * 3L) {
+      resize(keys.length * 2);
+    }
+    int slot = slotOf(userCode);
+    while (keys[slot] != 0) {
+      if (keys[slot] == userCode) {
+        throw new IllegalArgumentException("user code is already pending");
+      }
+      slot = (slot + 1) & mask;
+    }
+    size++;
+    set(slot, userCode, secret, client, UserIndex.NO_USER, scopeBits, expiresAt, 0, PENDING);
+  }
+
+  void polled(int slot, long now) {
+    polledAt[slot] = now;
+  }
+
+  /**
+   * Record the resource owner's decision
+   */
+  void decide(int slot, int user, boolean approved) {
+    users[slot] = user;
+    states[slot] = approved ? APPROVED : DENIED;
+  }
+
+  /**
+   * @return true if there was an entry for <code>userCode</code>
+   */
+  boolean remove(long userCode) {
+    int slot = indexOf(userCode);
+    if (slot < 0) {
+      return false;
+    }
+    removeAt(slot);
+    return true;
+  }
+
+  /**
+   * Remove every request that <code>user</code> has decided but whose device hasn't collected the outcome yet
+   *
+   * @return the number removed
+   */
+  int removeUser(int user) {
+    int removed = 0;
+    for (int slot = 0; slot < keys.length; ) {
+      if (keys[slot] != 0 && states[slot] != PENDING && users[slot] == user) {
+        // backward shift may move another entry into this slot, so look at it again before moving on
+        removeAt(slot);
+        removed++;
+      } else {
+        slot++;
+      }
+    }
+    return removed;
+  }
+
+  void clear() {
+    allocate(MIN_CAPACITY);
+    size = 0;
+  }
+
+  /**
+   * Examine up to <code>maxSlots</code> slots, continuing from where the last sweep stopped, and remove any entries
+   * that have expired
+   *
+   * @return the number of entries removed
+   */
+  int sweep(long now, int maxSlots) {
+    int removed = 0;
+    for (int examined = 0; examined < maxSlots && size > 0; examined++) {
+      int slot = sweepCursor;
+      if (keys[slot] != 0 && expiries[slot] <= now) {
+        removeAt(slot);
+        removed++;
+      } else {
+        sweepCursor = (slot + 1) & mask;
+      }
+    }
+    return removed;
+  }
+
+  private void removeAt(int slot) {
+    int hole = slot;
+    for (int next = (slot + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+      // shift back any entry whose home slot is at or before the hole in its probe sequence
+      if (((next - slotOf(keys[next])) & mask) >= ((next - hole) & mask)) {
+        set(hole, keys[next], secrets[next], clients[next], users[next], scopes[next], expiries[next], polledAt[next],
+          states[next]);
+        hole = next;
+      }
+    }
+    keys[hole] = 0;
+    size--;
+  }
+
+  private void set(int slot, long userCode, long secret, int client, int user, long scopeBits, long expiresAt,
+                   long lastPolled, byte state) {
+    keys[slot] = userCode;
+    secrets[slot] = secret;
+    clients[slot] = client;
+    users[slot] = user;
+    scopes[slot] = scopeBits;
+    expiries[slot] = expiresAt;
+    polledAt[slot] = lastPolled;
+    states[slot] = state;
+  }
+
+  private int slotOf(long userCode) {
+    return (int) ((userCode * HASH_MULTIPLIER) >>> shift);
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = keys;
+    long[] oldSecrets = secrets;
+    int[] oldClients = clients;
+    int[] oldUsers = users;
+    long[] oldScopes = scopes;
+    long[] oldExpiries = expiries;
+    long[] oldPolledAt = polledAt;
+    byte[] oldStates = states;
+    allocate(capacity);
+    for (int old = 0; old < oldKeys.length; old++) {
+      if (oldKeys[old] != 0) {
+        int slot = slotOf(oldKeys[old]);
+        while (keys[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        set(slot, oldKeys[old], oldSecrets[old], oldClients[old], oldUsers[old], oldScopes[old], oldExpiries[old],
+          oldPolledAt[old], oldStates[old]);
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    secrets = new long[capacity];
+    clients = new int[capacity];
+    users = new int[capacity];
+    scopes = new long[capacity];
+    expiries = new long[capacity];
+    polledAt = new long[capacity];
+    states = new byte[capacity];
+    mask = capacity - 1;
+    shift = Long.SIZE - Integer.numberOfTrailingZeros(capacity);
+    sweepCursor = 0;
+  }
+}
@@ -12,11 +12,28 @@ class GrantRequest {
   private final String[] scopes;
   private final String responseType;
   private final String scope;
+  private final String nonce;
 
   public static GrantRequest create(RoutingContext context) throws Exception {
     return new GrantRequest(context);
   }
 
+  /**
+   * @return a code grant request for <code>scope</code>, which is space separated
+   */
+  static GrantRequest create(String clientID, String redirectURI, String scope, String nonce) {
+    return new GrantRequest(clientID, redirectURI, scope, nonce);
+  }
+
+  private GrantRequest(String clientID, String redirectURI, String scope, String nonce) {
+    this.clientID = clientID;
+    this.redirectURI = redirectURI;
+    this.scope = scope;
+    this.scopes = scope.split("\\s+");
+    this.responseType = "code";
+    this.nonce = nonce;
+  }
+
   private GrantRequest(RoutingContext context) throws Exception {
     this.clientID = mustGetRequestParam(context, "client_id");
     this.redirectURI = mustGetRequestParam(context, "redirect_uri");
@@ -25,6 +42,9 @@ class GrantRequest {
     // we currently on support code auth grant response_type requests
     // this means the application (the merchant etc) has to swap the grant out for the access code ...
     this.responseType = mustGetRequestParamAndEquals(context, "response_type", "code");
+    // OpenID Connect: echoed back in the id_token, to tie it to the client's session
+    String nonce = context.request().getParam("nonce");
+    this.nonce = nonce == null || nonce.isEmpty() ? null : nonce;
   }
 
   public String getClientID() {
@@ -47,4 +67,11 @@ class GrantRequest {
   public String getResponseType() {
     return responseType;
   }
+
+  /**
+   * @return the nonce, or null if there wasn't one
+   */
+  public String getNonce() {
+    return nonce;
+  }
 }
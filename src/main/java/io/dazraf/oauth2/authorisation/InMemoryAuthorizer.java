@@ -2,6 +2,14 @@ package io.dazraf.oauth2.authorisation;
 
 import com.github.jknack.handlebars.Handlebars;
 import com.github.jknack.handlebars.Template;
+import io.dazraf.oauth2.oidc.OpenIDProvider;
+import io.dazraf.oauth2.tracing.Tracer;
+import io.dazraf.oauth2.util.FutureChain;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
@@ -9,52 +17,351 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import java.util.stream.Stream;
 
 import static io.dazraf.oauth2.util.HandlebarUtils.handlebarWithJson;
 import static io.dazraf.oauth2.util.HandlebarUtils.renderJsonWithTemplate;
 import static io.dazraf.oauth2.util.HttpUtils.buildPathParams;
 import static io.dazraf.oauth2.util.HttpUtils.httpBadRequest;
+import static io.dazraf.oauth2.util.HttpUtils.httpForbidden;
 import static io.dazraf.oauth2.util.HttpUtils.httpRedirectTemporary;
+import static io.dazraf.oauth2.util.HttpUtils.httpServiceUnavailable;
 import static io.dazraf.oauth2.util.MapUtils.toJsonObject;
 import static java.util.stream.Collectors.toList;
 
 public class InMemoryAuthorizer {
   private static final Logger LOG = LoggerFactory.getLogger(InMemoryAuthorizer.class);
+  private static final long GRANT_TTL_MILLIS = 3600 * 1000;
+  private static final long ACCESS_TOKEN_TTL_MILLIS = 3600 * 1000;
+  private static final int HYDRATION_BATCH_SIZE = 1000;
+  private static final long HYDRATION_INTERVAL_MILLIS = 10;
+  private static final long SWEEP_INTERVAL_MILLIS = 1000;
+  private static final int SWEEP_SLOTS = 1 << 16;
+  private static final int SCOPE_PREDICATE_CACHE_SIZE = 256;
+  private static final int REVOCATION_BATCH_SIZE = 1000;
+  private static final int EXPORT_PAGE_SIZE = 1000;
+  // grants keep the nonce, and snapshots write it with a short length
+  static final int MAX_NONCE_LENGTH = 255;
+  private static final long DEVICE_CODE_TTL_MILLIS = 600 * 1000;
+  private static final int DEVICE_POLL_INTERVAL_SECONDS = 5;
+  // how long a poll for a pending device code is held open for the resource owner to decide
+  private static final long DEVICE_POLL_WAIT_MILLIS = 20 * 1000;
+  private static final int MAX_PENDING_DEVICE_CODES = 10_000;
+  private static final String AUTHORIZATION_PENDING = "authorization_pending";
+  // the session's pending device approval: the user code of the consent page last shown, and its approval token
+  private static final String DEVICE_APPROVAL = "oauth2.deviceApproval";
+  private static final SecureRandom RANDOM = new SecureRandom();
 
-  private final Handlebars handlebars = handlebarWithJson();
-  private final Template authTemplate;
+  // compiled templates are immutable, so every authorizer in the process shares them, whatever its realm or shard
+  private static final Handlebars HANDLEBARS = handlebarWithJson();
+  private static final Map<String, Template> COMPILED_TEMPLATES = new ConcurrentHashMap<>();
+  // compiled on a worker, as loading Handlebars and its helpers is a large part of startup
+  private final FutureChain<Template> authTemplate;
 
-  private final TokenFountain tokenFountain = new TokenFountain();
+  private final TokenFountain tokenFountain;
 
-  private final JsonObject registeredClients;
+  private final int shardCount;
+
+  private final ShardRouter shards;
+
+  private final StateTransfer stateTransfer;
+
+  private final ClientRegistry clientRegistry;
 
   private final JsonObject scopes;
 
+  private final ScopeRegistry scopeRegistry;
+
+  private final ScopePredicate.Cache scopePredicates;
+
+  // the bit for the openid scope, or 0 if it isn't configured
+  private final long openIDScopeBit;
+
+  private OpenIDProvider openID;
+
   private final Set<Authorisation> authorisations = new HashSet<>();
 
-  private final Map<String, GrantRequest> grants = new HashMap<>();
+  // tables hold each client as an index into clientUsage
+  private final Map<String, Integer> clientIndexes = new HashMap<>();
+
+  private final List<ClientUsage> clientUsage = new ArrayList<>();
+
+  private final KeyTable grants = KeyTable.create(0, true, this::grantExpired);
+
+  private final KeyTable accessTokens = KeyTable.create(0, false, this::accessTokenExpired);
 
-  private final Map<String, AccessRequest> accessTokens = new HashMap<>();
+  // device authorization requests, from issue until the device collects the outcome
+  private final DeviceCodeTable deviceCodes = DeviceCodeTable.create();
+
+  // polls held open on this shard for a pending device code, by user code
+  private final Map<Long, List<DevicePoll>> devicePolls = new HashMap<>();
+  private int heldDevicePolls = 0;
+
+  private String deviceVerificationURI;
+
+  // tables hold each resource owner as an index into the user index
+  private final UserIndex users = UserIndex.create();
+
+  // revokers of per-user state held outside the authorizer, such as login sessions
+  private final Map<String, ToIntFunction<String>> userRevokers = new LinkedHashMap<>();
+
+  // reports from outside the authorizer to include in this shard's stats
+  private final Map<String, Supplier<JsonObject>> statsSources = new LinkedHashMap<>();
+
+  private final Vertx vertx;
   private final String basePath;
+  private final long sweepTimer;
+
+  // what expiry is measured against, so that tests can move time on rather than wait for it
+  private Clock clock = Clock.systemUTC();
+
+  // state from the previous process, consulted on lookup misses until it has been fully hydrated
+  private StateSnapshot snapshot;
+
+  public static InMemoryAuthorizer create(Vertx vertx, String basePath, JsonObject clients, JsonObject scopes) {
+    return create(vertx, basePath, clients, scopes, "oauth2.shard.", 0, 1);
+  }
 
-  public static InMemoryAuthorizer create(String basePath, JsonObject clients, JsonObject scopes) throws IOException {
-    return new InMemoryAuthorizer(basePath, clients, scopes);
+  /**
+   * Create the authorizer for one shard of a sharded deployment. Each shard should be created on its own event loop.
+   *
+   * @param addressPrefix event bus address prefix the shards of this deployment use to reach each other
+   * @param shard this shard's id, from 0 to shardCount - 1
+   */
+  public static InMemoryAuthorizer create(Vertx vertx, String basePath, JsonObject clients, JsonObject scopes,
+                                          String addressPrefix, int shard, int shardCount) {
+    return create(vertx, basePath, ClientRegistry.create(clients, new JsonObject()), scopes, addressPrefix, shard,
+      shardCount);
   }
 
-  private InMemoryAuthorizer(String basePath, JsonObject clients, JsonObject scopes) throws IOException {
-    this.registeredClients = clients;
+  /**
+   * As {@link #create(Vertx, String, JsonObject, JsonObject, String, int, int)}, with clients that may be registered
+   * at run time
+   */
+  public static InMemoryAuthorizer create(Vertx vertx, String basePath, ClientRegistry clients, JsonObject scopes,
+                                          String addressPrefix, int shard, int shardCount) {
+    return new InMemoryAuthorizer(vertx, basePath, clients, scopes, addressPrefix, shard, shardCount);
+  }
+
+  private InMemoryAuthorizer(Vertx vertx, String basePath, ClientRegistry clients, JsonObject scopes,
+                             String addressPrefix, int shard, int shardCount) {
+    this.vertx = vertx;
+    this.clientRegistry = clients;
     this.scopes = scopes;
+    this.scopeRegistry = ScopeRegistry.create(scopes);
+    this.scopePredicates = ScopePredicate.cache(scopeRegistry, SCOPE_PREDICATE_CACHE_SIZE);
+    int openIDBit = scopeRegistry.bitOf(OpenIDProvider.SCOPE);
+    this.openIDScopeBit = openIDBit < 0 ? 0 : 1L << openIDBit;
     this.basePath = basePath;
-    authTemplate = handlebars.compile("oauth2-server-web/templates/authorise");
+    this.deviceVerificationURI = basePath + "/device.html";
+    this.shardCount = shardCount;
+    this.tokenFountain = TokenFountain.create(shard, shardCount);
+    clients.getConfiguredClientIDs().forEach(this::clientIndexOf);
+    authTemplate = compileTemplate("oauth2-server-web/templates/authorise");
+    shards = ShardRouter.bind(vertx, addressPrefix, this, shard, shardCount);
+    stateTransfer = StateTransfer.create(vertx, shards, authorisations);
+    // expired entries are also dropped when looked up, so the sweep only has to reclaim the space eventually
+    sweepTimer = vertx.setPeriodic(SWEEP_INTERVAL_MILLIS, id -> sweep());
+  }
+
+  /**
+   * Use <code>clock</code> for issue and expiry times instead of the system clock
+   */
+  void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Reclaim the space of a bounded number of expired entries, as the sweep timer does every second
+   */
+  void sweep() {
+    long now = clock.millis();
+    grants.sweep(now, SWEEP_SLOTS);
+    accessTokens.sweep(now, SWEEP_SLOTS);
+    deviceCodes.sweep(now, SWEEP_SLOTS);
+  }
+
+  /**
+   * Call <code>handler</code> once the templates have been compiled. Requests that need a template before then are
+   * answered once it is ready.
+   */
+  public void whenReady(Handler<AsyncResult<Void>> handler) {
+    authTemplate.peek(compiled -> handler.handle(compiled.succeeded()
+      ? Future.succeededFuture() : Future.failedFuture(compiled.cause())));
+  }
+
+  private FutureChain<Template> compileTemplate(String location) {
+    Template compiled = COMPILED_TEMPLATES.get(location);
+    if (compiled != null) {
+      return FutureChain.when(Future.succeededFuture(compiled));
+    }
+    Future<Template> template = Future.future();
+    vertx.<Template>executeBlocking(future -> {
+      try {
+        Template fresh = HANDLEBARS.compile(location);
+        Template existing = COMPILED_TEMPLATES.putIfAbsent(location, fresh);
+        future.complete(existing != null ? existing : fresh);
+      } catch (IOException e) {
+        future.fail(e);
+      }
+    }, false, template.completer());
+    return FutureChain.when(template);
+  }
+
+  /**
+   * Issue id_tokens with <code>provider</code> for grants that include the openid scope. Without one, the openid
+   * scope is treated like any other.
+   */
+  public void setOpenIDProvider(OpenIDProvider provider) {
+    this.openID = provider;
+  }
+
+  /**
+   * @param uri the absolute URL of the page where resource owners enter the user code shown on their device
+   */
+  public void setDeviceVerificationURI(String uri) {
+    this.deviceVerificationURI = uri;
+  }
+
+  /**
+   * Stop taking requests forwarded from other shards, and stop expiring entries
+   */
+  public void close() {
+    vertx.cancelTimer(sweepTimer);
+    shards.close();
+    releaseDevicePolls();
+  }
+
+  /**
+   * Answer every poll being held open for a device code straight away, e.g. before shutting down, so that the devices
+   * poll again elsewhere rather than wait
+   */
+  public void releaseDevicePolls() {
+    devicePolls.values().forEach(held -> held.forEach(poll -> {
+      vertx.cancelTimer(poll.timerID);
+      respondWithToken(poll.context, authorizationPending());
+    }));
+    devicePolls.clear();
+    heldDevicePolls = 0;
+  }
+
+  /**
+   * @return the number of polls being held open for pending device codes: in flight, but idle until a decision
+   */
+  public int getHeldDevicePollCount() {
+    return heldDevicePolls;
   }
 
   public void reset(RoutingContext context) {
+    clearState();
+    shards.reset();
+    httpRedirectTemporary(context, basePath);
+  }
+
+  void clearState() {
     authorisations.clear();
     grants.clear();
-    httpRedirectTemporary(context, basePath);
+    deviceCodes.clear();
+    clientUsage.forEach(ClientUsage::grantsCleared);
+    users.grantsCleared();
+    snapshot = null;
+  }
+
+  /**
+   * Stream the state of all shards out as NDJSON
+   *
+   * @see StateTransfer
+   */
+  public void exportState(RoutingContext context) {
+    stateTransfer.export(context);
+  }
+
+  /**
+   * Import NDJSON written by {@link #exportState}, streamed from the request body, which must not have been read
+   *
+   * @see StateTransfer
+   */
+  public void importState(RoutingContext context) {
+    stateTransfer.importState(context);
+  }
+
+  /**
+   * Restore the state saved by {@link #writeSnapshot(Path)}. Only the consents are read straight away; grants and
+   * tokens are served from the mapped snapshot on demand while a periodic task moves the rest across in batches.
+   *
+   * @return true if there was a snapshot to restore from
+   */
+  public boolean restoreSnapshot(Path path) throws IOException {
+    StateSnapshot restored = StateSnapshot.open(path, scopeRegistry);
+    if (restored == null) {
+      return false;
+    }
+    authorisations.addAll(restored.getAuthorisations());
+    snapshot = restored;
+    LOG.info("restoring {} grants and access tokens from {}", restored.size(), path);
+    vertx.setPeriodic(HYDRATION_INTERVAL_MILLIS, timerID -> {
+      if (!hydrateBatch()) {
+        vertx.cancelTimer(timerID);
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Move whatever is left of the snapshot into the tables in one go
+   */
+  private void restoreRemaining(long now) {
+    if (snapshot != null) {
+      snapshot.hydrate(Integer.MAX_VALUE, now, this::restoreGrant, this::restoreAccessToken);
+      snapshot = null;
+    }
+  }
+
+  /**
+   * Move the next batch of the snapshot into the tables
+   *
+   * @return true if there is more to restore
+   */
+  private boolean hydrateBatch() {
+    StateSnapshot current = snapshot;
+    if (current == null) {
+      return false;
+    }
+    current.hydrate(HYDRATION_BATCH_SIZE, clock.millis(), this::restoreGrant, this::restoreAccessToken);
+    if (!current.isExhausted()) {
+      return true;
+    }
+    LOG.info("finished restoring state");
+    snapshot = null;
+    return false;
+  }
+
+  /**
+   * @return true while state from a previous process is still being restored
+   */
+  public boolean isRestoring() {
+    return snapshot != null;
+  }
+
+  /**
+   * Write the current state, including anything not yet restored from a previous snapshot, to <code>path</code>
+   */
+  public void writeSnapshot(Path path) throws IOException {
+    final long now = clock.millis();
+    restoreRemaining(now);
+    List<String> clientIDs = clientUsage.stream().map(ClientUsage::getClientID).collect(toList());
+    StateSnapshot.write(path, authorisations, clientIDs, scopeRegistry.getNames(), users.getNames(), grants,
+      accessTokens, now);
   }
 
   public void authorize(RoutingContext context) {
@@ -62,9 +369,11 @@ public class InMemoryAuthorizer {
     try {
       final GrantRequest grantRequest = GrantRequest.create(context);
 
-      // check that we know this client
-      if (!registeredClients.containsKey(grantRequest.getClientID())) {
-        httpBadRequest(context, "unknown client id: " + grantRequest.getClientID());
+      if (!checkClient(context, grantRequest)) {
+        return;
+      }
+
+      if (!checkScopes(context, grantRequest) || !checkNonce(context, grantRequest)) {
         return;
       }
 
@@ -72,7 +381,7 @@ public class InMemoryAuthorizer {
 
       if (notAuthorisedScopes.size() > 0) {
         // we have to request authorisation for these ..
-        requestResourceOwnerAuth(context, grantRequest, notAuthorisedScopes);
+        requestResourceOwnerAuth(context, grantRequest.getClientID(), notAuthorisedScopes, null);
       } else {
         respondWithGrant(context, grantRequest);
       }
@@ -86,13 +395,25 @@ public class InMemoryAuthorizer {
     // we've just received an approval ... awesome
     try {
 
+      if (context.request().getParam("user_code") != null) {
+        approveDevice(context);
+        return;
+      }
       String approved = context.request().getParam("approved");
       GrantRequest grantRequest = GrantRequest.create(context);
+      // before anything is sent back to the redirect URI, even a refusal
+      if (!checkClient(context, grantRequest)) {
+        return;
+      }
       if (approved == null || !approved.equals("Yes")) {
         respondWithAccessDeniedError(context, grantRequest);
         return;
       }
 
+      if (!checkScopes(context, grantRequest) || !checkNonce(context, grantRequest)) {
+        return;
+      }
+
       addAuthorisedScopes(grantRequest);
 
       respondWithGrant(context, grantRequest);
@@ -106,61 +427,482 @@ public class InMemoryAuthorizer {
   public void token(RoutingContext context) {
     try {
       final AccessRequest accessRequest = AccessRequest.create(context);
-      GrantRequest grant = grants.get(accessRequest.getCode());
-      if (grant == null) {
-        String err = "could not find the access code " + accessRequest.getCode();
+      issueToken(accessRequest, reply -> {
+        if (reply.failed()) {
+          httpServiceUnavailable(context);
+        } else if (accessRequest.isDeviceCode() && isAuthorizationPending(reply.result())) {
+          holdDevicePoll(context, accessRequest);
+        } else {
+          respondWithToken(context, reply.result(),
+            accessRequest.isTokenExchange() ? AccessRequest.ACCESS_TOKEN_TYPE : null);
+        }
+      });
+    } catch (Throwable e) {
+      String err = e.getMessage();
+      LOG.error(e.getMessage(), e);
+      respondAccessTokenError(context, createAccessTokenErrorPayload("invalid_request", err));
+    }
+  }
+
+  private void respondWithToken(RoutingContext context, TokenMessage result) {
+    respondWithToken(context, result, null);
+  }
+
+  /**
+   * @param issuedTokenType the type of token issued, for a token exchange, otherwise null
+   */
+  private void respondWithToken(RoutingContext context, TokenMessage result, String issuedTokenType) {
+    if (result.isError()) {
+      respondAccessTokenError(context, createAccessTokenErrorPayload(result.getError(), result.getErrorDescription()));
+      return;
+    }
+    JsonObject response = new JsonObject();
+    response.put("access_token", result.getAccessToken())
+      .put("token_type", "bearer")
+      .put("expires_in", result.getExpiresIn())
+      .put("scope", result.getScope());
+    if (result.getIdToken() != null) {
+      response.put("id_token", result.getIdToken());
+    }
+    if (issuedTokenType != null) {
+      response.put("issued_token_type", issuedTokenType);
+    }
+
+    context.response().putHeader("Cache-Control", "no-store").putHeader("Pragma", "no-cache")
+      .putHeader("Content-Type", "application/json")
+      .end(response.encodePrettily());
+  }
+
+  /**
+   * Exchange a grant code for an access token on whichever shard issued the code
+   */
+  void issueToken(AccessRequest accessRequest, Handler<AsyncResult<TokenMessage>> handler) {
+    shards.issue(accessRequest, handler);
+  }
+
+  /**
+   * Look up an access token on whichever shard issued it
+   */
+  void validateToken(String accessToken, Handler<AsyncResult<TokenMessage>> handler) {
+    shards.validate(accessToken, handler);
+  }
+
+  /**
+   * Exchange a grant code for an access token. The code must belong to this shard
+   *
+   * @return either an {@link TokenMessage.Op#ISSUED} or an {@link TokenMessage.Op#ERROR} message
+   */
+  TokenMessage issueToken(AccessRequest accessRequest) {
+    final long now = clock.millis();
+    if (accessRequest.isDeviceCode()) {
+      return pollDeviceCode(accessRequest, now);
+    }
+    if (accessRequest.isTokenExchange()) {
+      return exchangeToken(accessRequest, now);
+    }
+    final long code = TokenFountain.parseGrantCode(accessRequest.getCode());
+    final int slot = findGrant(code, now);
+    if (slot < 0) {
+      String err = "could not find the access code " + accessRequest.getCode();
+      LOG.error(err);
+      return TokenMessage.error("invalid_grant", err);
+    }
+
+    final int client = grants.clientAt(slot);
+    if (!accessRequest.getClientID().equals(clientIDAt(client))) {
+      String err = "client id " + accessRequest.getClientID() + " does not match original auth client id " + clientIDAt(client);
+      LOG.error(err);
+      return TokenMessage.error("invalid_client", err);
+    }
+
+    if (!accessRequest.getRedirectedURI().equals(grants.redirectURIAt(slot))) {
+      String err = "redirect_uri " + accessRequest.getRedirectedURI() + " does not match original auth redirect_uri " + grants.redirectURIAt(slot);
+      LOG.error(err);
+      return TokenMessage.error("invalid_grant", err);
+    }
+
+    if (!accessRequest.getGrantType().equals(AccessRequest.AUTHORIZATION_CODE)) {
+      String err = "grant_type " + accessRequest.getGrantType() + " must be " + AccessRequest.AUTHORIZATION_CODE;
+      LOG.error(err);
+      return TokenMessage.error("unsupported_grant_type", err);
+    }
+
+    final int user = grants.userAt(slot);
+    final long scopeBits = grants.scopesAt(slot);
+    String idToken = null;
+    if (openID != null && (scopeBits & openIDScopeBit) != 0) {
+      // before the grant is expended, so that it can be retried if this fails
+      if (user == UserIndex.NO_USER) {
+        String err = "the access code " + accessRequest.getCode() + " has no resource owner to identify";
         LOG.error(err);
-        respondAccessTokenError(context, createAccessTokenErrorPayload("invalid_grant", err));
-        return;
+        return TokenMessage.error("invalid_grant", err);
+      }
+      try {
+        idToken = openID.issueIdToken(users.nameOf(user), accessRequest.getClientID(), grants.nonceAt(slot), now);
+      } catch (Exception e) {
+        LOG.error("failed to issue an id_token", e);
+        return TokenMessage.error("temporarily_unavailable", "could not issue an id_token");
       }
+    }
 
-      if (!accessRequest.getClientID().equals(grant.getClientID())) {
-        String err = "client id " + accessRequest.getClientID() + " does not match original auth client id " + grant.getClientID();
-        LOG.error(err);
-        respondAccessTokenError(context, createAccessTokenErrorPayload("invalid_client", err));
-        return;
+    // we've now expended this grant
+    removeGrant(code, client, user);
+
+    return issueAccessToken(client, user, scopeBits, idToken, now);
+  }
+
+  /**
+   * Collect the outcome of a device authorization request: an access token once the resource owner has approved it,
+   * otherwise an error saying why not. The device code must belong to this shard
+   *
+   * @return either an {@link TokenMessage.Op#ISSUED} or an {@link TokenMessage.Op#ERROR} message
+   */
+  private TokenMessage pollDeviceCode(AccessRequest accessRequest, long now) {
+    final long userCode = TokenFountain.parseDeviceUserCode(accessRequest.getCode());
+    final int slot = deviceCodes.indexOf(userCode);
+    if (slot < 0 || deviceCodes.secretAt(slot) != TokenFountain.parseDeviceSecret(accessRequest.getCode())) {
+      String err = "could not find the device code " + accessRequest.getCode();
+      LOG.error(err);
+      return TokenMessage.error("invalid_grant", err);
+    }
+
+    final int client = deviceCodes.clientAt(slot);
+    if (!accessRequest.getClientID().equals(clientIDAt(client))) {
+      String err = "client id " + accessRequest.getClientID() + " does not match device client id "
+        + clientIDAt(client);
+      LOG.error(err);
+      return TokenMessage.error("invalid_client", err);
+    }
+
+    if (deviceCodes.expiresAt(slot) <= now) {
+      deviceCodes.remove(userCode);
+      return TokenMessage.error("expired_token", "the device code has expired");
+    }
+
+    switch (deviceCodes.stateAt(slot)) {
+      case DeviceCodeTable.PENDING:
+        long sinceLastPoll = now - deviceCodes.polledAt(slot);
+        deviceCodes.polled(slot, now);
+        if (sinceLastPoll < DEVICE_POLL_INTERVAL_SECONDS * 1000L) {
+          return TokenMessage.error("slow_down", "poll at most every " + DEVICE_POLL_INTERVAL_SECONDS + " seconds");
+        }
+        return authorizationPending();
+      case DeviceCodeTable.DENIED:
+        deviceCodes.remove(userCode);
+        return TokenMessage.error("access_denied", "the resource owner denied the request");
+      default:
+        break;
+    }
+
+    final int user = deviceCodes.userAt(slot);
+    final long scopeBits = deviceCodes.scopesAt(slot);
+    String idToken = null;
+    if (openID != null && (scopeBits & openIDScopeBit) != 0) {
+      try {
+        idToken = openID.issueIdToken(users.nameOf(user), accessRequest.getClientID(), null, now);
+      } catch (Exception e) {
+        LOG.error("failed to issue an id_token", e);
+        return TokenMessage.error("temporarily_unavailable", "could not issue an id_token");
       }
+    }
 
-      if (!accessRequest.getRedirectedURI().equals(grant.getRedirectURI())) {
-        String err = "redirect_uri " + accessRequest.getRedirectedURI() + " does not match original auth redirect_uri " + grant.getRedirectURI();
-        LOG.error(err);
-        respondAccessTokenError(context, createAccessTokenErrorPayload("invalid_grant", err));
-        return;
+    // the device has now collected its token
+    deviceCodes.remove(userCode);
+
+    return issueAccessToken(client, user, scopeBits, idToken, now);
+  }
+
+  /**
+   * RFC 8693 token exchange: issue a token for some or all of the scopes of an access token that the client already
+   * holds, optionally for another client, without the resource owner having to consent again. The subject token must
+   * belong to this shard, and the new token is issued here too.
+   * <p>
+   * Only ever narrows what the subject token allows: the scopes must be a subset of its scopes, it expires no later,
+   * and it is for the same resource owner, so revoking them revokes both. The audience must be a registered client
+   * that the requesting client lists in its <code>exchangeAudiences</code>.
+   *
+   * @return either an {@link TokenMessage.Op#ISSUED} or an {@link TokenMessage.Op#ERROR} message
+   */
+  private TokenMessage exchangeToken(AccessRequest accessRequest, long now) {
+    final int slot = findAccessToken(TokenFountain.parseAccessToken(accessRequest.getCode()), now);
+    if (slot < 0) {
+      String err = "the subject_token is not an active access token";
+      LOG.error(err);
+      return TokenMessage.error("invalid_grant", err);
+    }
+
+    final int client = accessTokens.clientAt(slot);
+    if (!accessRequest.getClientID().equals(clientIDAt(client))) {
+      String err = "client id " + accessRequest.getClientID() + " does not match the subject_token's client id "
+        + clientIDAt(client);
+      LOG.error(err);
+      return TokenMessage.error("invalid_client", err);
+    }
+
+    final long subjectScopeBits = accessTokens.scopesAt(slot);
+    long scopeBits = subjectScopeBits;
+    if (accessRequest.getScope() != null) {
+      String[] requestedScopes = accessRequest.getScope().trim().split("\\s+");
+      String unknownScope = scopeRegistry.findUnknown(requestedScopes);
+      if (unknownScope != null) {
+        return TokenMessage.error("invalid_scope", "unknown scope: " + unknownScope);
+      }
+      scopeBits = scopeRegistry.toBits(requestedScopes);
+      if (scopeBits == 0 || (scopeBits & ~subjectScopeBits) != 0) {
+        return TokenMessage.error("invalid_scope", "scope " + accessRequest.getScope()
+          + " is not a subset of the subject_token's scope " + scopeRegistry.toScope(subjectScopeBits));
       }
+    }
 
-      if (!accessRequest.getGrantType().equals("authorization_code")) {
-        String err = "grant_type " + accessRequest.getGrantType() + " must be authorization_code";
-        LOG.error(err);
-        respondAccessTokenError(context, createAccessTokenErrorPayload("unsupported_grant_type", err));
-        return;
+    int audience = client;
+    String audienceID = accessRequest.getAudience();
+    if (audienceID != null && !audienceID.equals(accessRequest.getClientID())) {
+      RegisteredClient requester = clientRegistry.get(accessRequest.getClientID());
+      if (!clientRegistry.contains(audienceID) || requester == null || !requester.mayExchangeFor(audienceID)) {
+        return TokenMessage.error("invalid_target", "client " + accessRequest.getClientID()
+          + " may not exchange tokens for audience " + audienceID);
       }
+      audience = clientIndexOf(audienceID);
+    }
 
-      final String accessToken = tokenFountain.nextAccessToken();
-      JsonObject response = new JsonObject();
-      response.put("access_token", accessToken)
-        .put("token_type", "bearer")
-        .put("expires_in", 3600)
-        .put("scope", grant.getScope());
+    return issueAccessToken(audience, accessTokens.userAt(slot), scopeBits, null,
+      Math.min(now + ACCESS_TOKEN_TTL_MILLIS, accessTokens.expiresAt(slot)), now);
+  }
 
-      accessTokens.put(accessToken, accessRequest);
-      context.response().putHeader("Cache-Control", "no-store").putHeader("Pragma", "no-cache")
-        .putHeader("Content-Type", "application/json")
-      .end(response.encodePrettily());
+  private TokenMessage issueAccessToken(int client, int user, long scopeBits, String idToken, long now) {
+    return issueAccessToken(client, user, scopeBits, idToken, now + ACCESS_TOKEN_TTL_MILLIS, now);
+  }
 
-      // we've now expended this grant
-      grants.remove(accessRequest.getCode());
+  private TokenMessage issueAccessToken(int client, int user, long scopeBits, String idToken, long expiresAt,
+                                        long now) {
+    long accessToken;
+    do {
+      accessToken = tokenFountain.nextAccessToken();
+    } while (accessTokens.contains(accessToken));
+    putAccessToken(accessToken, client, user, scopeBits, expiresAt);
 
-      context.vertx().setTimer(3600 * 1000, id -> {
-        LOG.info("access token {} expired for client {}", accessToken, accessRequest.getClientID());
-        accessTokens.remove(accessToken);
+    return TokenMessage.issued(TokenFountain.formatAccessToken(accessToken), scopeRegistry.toScope(scopeBits),
+      (int) ((expiresAt - now) / 1000), idToken);
+  }
+
+  private static TokenMessage authorizationPending() {
+    return TokenMessage.error(AUTHORIZATION_PENDING, "the resource owner has not decided yet");
+  }
+
+  private static boolean isAuthorizationPending(TokenMessage message) {
+    return message.isError() && AUTHORIZATION_PENDING.equals(message.getError());
+  }
+
+  /**
+   * Hold a poll for a pending device code open until the resource owner decides, or for
+   * {@link #DEVICE_POLL_WAIT_MILLIS}, rather than have the device keep polling. The shard that owns the code
+   * publishes the decision after its pending reply to this poll, so the poll is held by the time the decision arrives.
+   */
+  private void holdDevicePoll(RoutingContext context, AccessRequest accessRequest) {
+    long userCode = TokenFountain.parseDeviceUserCode(accessRequest.getCode());
+    DevicePoll poll = new DevicePoll(context, accessRequest);
+    devicePolls.computeIfAbsent(userCode, code -> new ArrayList<>(1)).add(poll);
+    heldDevicePolls++;
+    poll.timerID = vertx.setTimer(DEVICE_POLL_WAIT_MILLIS, timerID -> {
+      List<DevicePoll> held = devicePolls.get(userCode);
+      if (held != null && held.remove(poll) && held.isEmpty()) {
+        devicePolls.remove(userCode);
+      }
+      heldDevicePolls--;
+      respondWithToken(context, authorizationPending());
+    });
+  }
+
+  /**
+   * The resource owner has decided on the device request for <code>userCode</code>: poll again for any polls held
+   * open for it, and answer them with the outcome
+   */
+  void deviceDecided(long userCode) {
+    List<DevicePoll> held = devicePolls.remove(userCode);
+    if (held == null) {
+      return;
+    }
+    heldDevicePolls -= held.size();
+    for (DevicePoll poll : held) {
+      vertx.cancelTimer(poll.timerID);
+      issueToken(poll.request, reply -> {
+        if (reply.failed()) {
+          httpServiceUnavailable(poll.context);
+        } else {
+          respondWithToken(poll.context, reply.result());
+        }
       });
+    }
+  }
 
+  /**
+   * RFC 8628 device authorization: issue a device code for the device to poll the token end point with, and the user
+   * code for its user to enter at the verification URI
+   */
+  public void deviceAuthorization(RoutingContext context) {
+    String clientID = context.request().getParam("client_id");
+    if (!clientRegistry.contains(clientID)) {
+      respondAccessTokenError(context,
+        createAccessTokenErrorPayload("invalid_client", "unknown client id: " + clientID));
+      return;
+    }
+    String scope = context.request().getParam("scope");
+    if (scope == null) {
+      respondAccessTokenError(context, createAccessTokenErrorPayload("invalid_scope", "the request is missing scope"));
+      return;
+    }
+    String[] requestedScopes = scope.split("\\s+");
+    String unknownScope = scopeRegistry.findUnknown(requestedScopes);
+    if (unknownScope != null) {
+      respondAccessTokenError(context,
+        createAccessTokenErrorPayload("invalid_scope", "unknown scope: " + unknownScope));
+      return;
+    }
+    if (deviceCodes.size() >= MAX_PENDING_DEVICE_CODES) {
+      LOG.warn("{} device codes already pending. refusing another", deviceCodes.size());
+      httpServiceUnavailable(context);
+      return;
+    }
 
-    } catch (Throwable e) {
-      String err = e.getMessage();
-      LOG.error(e.getMessage(), e);
-      respondAccessTokenError(context, createAccessTokenErrorPayload("invalid_request", err));
+    long userCode;
+    do {
+      userCode = tokenFountain.nextUserCode();
+    } while (deviceCodes.contains(userCode));
+    long secret = tokenFountain.nextDeviceSecret();
+    deviceCodes.put(userCode, secret, clientIndexOf(clientID), scopeRegistry.toBits(requestedScopes),
+      clock.millis() + DEVICE_CODE_TTL_MILLIS);
+
+    String formattedUserCode = TokenFountain.formatUserCode(userCode);
+    JsonObject response = new JsonObject()
+      .put("device_code", TokenFountain.formatDeviceCode(secret, userCode))
+      .put("user_code", formattedUserCode)
+      .put("verification_uri", deviceVerificationURI)
+      .put("verification_uri_complete", deviceVerificationURI + "?user_code=" + formattedUserCode)
+      .put("expires_in", DEVICE_CODE_TTL_MILLIS / 1000)
+      .put("interval", DEVICE_POLL_INTERVAL_SECONDS);
+    context.response().putHeader("Cache-Control", "no-store").putHeader("Pragma", "no-cache")
+      .putHeader("Content-Type", "application/json")
+      .end(response.encodePrettily());
+  }
+
+  /**
+   * Show the resource owner the consent page for the device request whose <code>user_code</code> they entered. The
+   * page submits to {@link #approveAuth}, as for the authorization code flow, but by POST and with an approval token
+   * kept in the session. A device's token goes to whoever holds its device code rather than to a registered redirect
+   * URI, so the approval must have come from this page: a link elsewhere can't approve an attacker's device.
+   */
+  public void verifyDevice(RoutingContext context) {
+    long userCode = TokenFountain.parseUserCode(context.request().getParam("user_code"));
+    if (userCode == 0) {
+      respondWithDeviceResult(context, "invalid");
+      return;
+    }
+    shards.deviceRequest(userCode, new JsonObject().put("user_code", userCode), reply -> {
+      if (reply.failed()) {
+        httpServiceUnavailable(context);
+      } else if (reply.result().isEmpty()) {
+        respondWithDeviceResult(context, "invalid");
+      } else {
+        String approvalToken = newApprovalToken();
+        context.session().put(DEVICE_APPROVAL, TokenFountain.formatUserCode(userCode) + " " + approvalToken);
+        // every scope, even those already consented to: the resource owner is also confirming which device to let in
+        requestResourceOwnerAuth(context, reply.result().getString("client_id"),
+          Arrays.asList(reply.result().getString("scope").split(" ")), approvalToken);
+      }
+    });
+  }
+
+  private void approveDevice(RoutingContext context) {
+    if (context.request().method() != HttpMethod.POST) {
+      httpBadRequest(context, "device requests must be approved from the consent page");
+      return;
+    }
+    long userCode = TokenFountain.parseUserCode(context.request().getParam("user_code"));
+    if (userCode == 0) {
+      respondWithDeviceResult(context, "invalid");
+      return;
+    }
+    // one use: the page has to be shown again to decide again
+    String expected = context.session().remove(DEVICE_APPROVAL);
+    String offered = TokenFountain.formatUserCode(userCode) + " " + context.request().getParam("approval_token");
+    if (expected == null
+      || !MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), offered.getBytes(StandardCharsets.UTF_8))) {
+      LOG.warn("device request {} decided without its consent page", TokenFountain.formatUserCode(userCode));
+      httpForbidden(context, "device requests must be approved from the consent page");
+      return;
+    }
+    boolean approved = "Yes".equals(context.request().getParam("approved"));
+    JsonObject decision = new JsonObject()
+      .put("user_code", userCode)
+      .put("username", context.user().principal().getString("username"))
+      .put("approved", approved);
+    shards.deviceRequest(userCode, decision, reply -> {
+      if (reply.failed()) {
+        httpServiceUnavailable(context);
+      } else if (reply.result().isEmpty()) {
+        respondWithDeviceResult(context, "invalid");
+      } else {
+        respondWithDeviceResult(context, approved ? "approved" : "denied");
+      }
+    });
+  }
+
+  private static String newApprovalToken() {
+    byte[] bytes = new byte[16];
+    RANDOM.nextBytes(bytes);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+  }
+
+  private void respondWithDeviceResult(RoutingContext context, String result) {
+    Tracer.endFlow(context);
+    httpRedirectTemporary(context, basePath + "/device.html?result=" + result);
+  }
+
+  /**
+   * Look up, or decide, the pending device request for a user code. The user code must belong to this shard
+   *
+   * @param request the <code>user_code</code>'s value and, to decide, whether the resource owner
+   *                <code>approved</code> and their <code>username</code>
+   * @return the request's <code>client_id</code> and <code>scope</code>, or an empty object if there is no request
+   * pending for the user code
+   */
+  JsonObject deviceRequest(JsonObject request) {
+    final long userCode = request.getLong("user_code");
+    final int slot = deviceCodes.find(userCode, clock.millis());
+    if (slot < 0 || deviceCodes.stateAt(slot) != DeviceCodeTable.PENDING) {
+      return new JsonObject();
     }
+    String clientID = clientIDAt(deviceCodes.clientAt(slot));
+    String scope = scopeRegistry.toScope(deviceCodes.scopesAt(slot));
+    if (request.containsKey("approved")) {
+      boolean approved = request.getBoolean("approved");
+      String username = request.getString("username");
+      deviceCodes.decide(slot, users.indexOf(username), approved);
+      if (approved) {
+        addAuthorisedScopes(clientID, scope.split(" "));
+      }
+      LOG.info("device request {} for client {} {} by {}", TokenFountain.formatUserCode(userCode), clientID,
+        approved ? "approved" : "denied", username);
+      shards.deviceDecided(userCode);
+    }
+    return new JsonObject().put("client_id", clientID).put("scope", scope);
+  }
+
+  /**
+   * Look up an access token. The token must belong to this shard
+   *
+   * @return an {@link TokenMessage.Op#ACTIVE} message with the token's details, or {@link TokenMessage.Op#INACTIVE}
+   */
+  TokenMessage validateToken(String accessToken) {
+    final long now = clock.millis();
+    final int slot = findAccessToken(TokenFountain.parseAccessToken(accessToken), now);
+    if (slot < 0) {
+      return TokenMessage.inactive();
+    }
+    int expiresIn = (int) Math.max(0, (accessTokens.expiresAt(slot) - now) / 1000);
+    long scopeBits = accessTokens.scopesAt(slot);
+    return TokenMessage.active(clientIDAt(accessTokens.clientAt(slot)), scopeRegistry.toScope(scopeBits), scopeBits,
+      expiresIn);
   }
 
   private JsonObject createAccessTokenErrorPayload(String errorCode, String description) {
@@ -180,7 +922,11 @@ public class InMemoryAuthorizer {
       .collect(toList());
   }
 
-  private void requestResourceOwnerAuth(RoutingContext context, GrantRequest request, List<String> notAuthorisedScopes) {
+  /**
+   * @param approvalToken the token the page must submit, by POST, or null for a page that submits by GET
+   */
+  private void requestResourceOwnerAuth(RoutingContext context, String clientID, List<String> notAuthorisedScopes,
+                                        String approvalToken) {
     // get a list of descriptions for the scopes being requested
 
     try {
@@ -189,11 +935,25 @@ public class InMemoryAuthorizer {
         .collect(toList());
 
       JsonObject result = new JsonObject()
-        .put("client", registeredClients.getJsonObject(request.getClientID()).getString("name"))
+        .put("client", clientRegistry.get(clientID).getName())
         .put("scope-descriptions", new JsonArray(scopeDescriptions))
-        .put("query", toJsonObject(context.request().params()));
+        .put("query", toJsonObject(context.request().params()))
+        .put("method", approvalToken == null ? "get" : "post");
+      if (approvalToken != null) {
+        result.put("approval_token", approvalToken);
+      }
 
-      renderJsonWithTemplate(context, authTemplate, result);
+      authTemplate.peek(template -> {
+        try {
+          if (template.failed()) {
+            throw template.cause();
+          }
+          renderJsonWithTemplate(context, template.result(), result);
+        } catch (Throwable e) {
+          LOG.error("failed to render auth request page", e);
+          httpBadRequest(context, "failed to render auth request page");
+        }
+      });
     } catch (Throwable e) {
       LOG.error("failed to render auth request page", e);
       httpBadRequest(context, "failed to render auth request page");
@@ -202,48 +962,599 @@ public class InMemoryAuthorizer {
   }
 
 
+  /**
+   * Check the client is known and that the redirect URI is one it registered. Neither error is redirected, as the
+   * redirect URI can't be trusted.
+   */
+  private boolean checkClient(RoutingContext context, GrantRequest grantRequest) {
+    RegisteredClient client = clientRegistry.get(grantRequest.getClientID());
+    if (client == null) {
+      httpBadRequest(context, "unknown client id: " + grantRequest.getClientID());
+      return false;
+    }
+    if (!client.getRedirectURIs().matches(grantRequest.getRedirectURI())) {
+      httpBadRequest(context, "redirect_uri is not registered for client id: " + grantRequest.getClientID());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return false, having responded with a bad request, if any of the requested scopes are not configured
+   */
+  private boolean checkScopes(RoutingContext context, GrantRequest grantRequest) {
+    String unknownScope = scopeRegistry.findUnknown(grantRequest.getScopes());
+    if (unknownScope != null) {
+      httpBadRequest(context, "unknown scope: " + unknownScope);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return false, having responded with a bad request, if the nonce is too long to keep
+   */
+  private boolean checkNonce(RoutingContext context, GrantRequest grantRequest) {
+    if (grantRequest.getNonce() != null && grantRequest.getNonce().length() > MAX_NONCE_LENGTH) {
+      httpBadRequest(context, "nonce is longer than " + MAX_NONCE_LENGTH + " characters");
+      return false;
+    }
+    return true;
+  }
+
   private void respondWithGrant(RoutingContext context, GrantRequest grantRequest) {
-    String code = tokenFountain.nextGrantCode();
-    grants.put(code, grantRequest);
-    context.vertx().setTimer(3600 * 1000, id -> removeGrant(code));
+    // the resource owner who approved the grant, so that everything issued on their behalf can be revoked
+    String username = context.user() == null ? null : context.user().principal().getString("username");
+    String code = issueGrant(grantRequest, username);
 
     final String state = context.request().getParam("state");
     Map<String, String> params = new HashMap<>();
     params.put("code", code);
     if (state != null)
       params.put("state", state);
+    Tracer.endFlow(context);
     httpRedirectTemporary(context, grantRequest.getRedirectURI() + buildPathParams(params));
   }
 
 
+  /**
+   * Issue a grant code for an approved, validated request, on this shard
+   *
+   * @param username the resource owner who approved it, or null
+   * @return the code
+   */
+  String issueGrant(GrantRequest grantRequest, String username) {
+    long code;
+    do {
+      code = tokenFountain.nextGrantCode();
+    } while (grants.contains(code));
+    putGrant(code, clientIndexOf(grantRequest.getClientID()), users.indexOf(username),
+      scopeRegistry.toBits(grantRequest.getScopes()), clock.millis() + GRANT_TTL_MILLIS,
+      grantRequest.getRedirectURI(), grantRequest.getNonce());
+    return TokenFountain.formatGrantCode(code);
+  }
+
   private void respondWithAccessDeniedError(RoutingContext context, GrantRequest grantRequest) {
+    Tracer.endFlow(context);
     httpRedirectTemporary(context, grantRequest.getRedirectURI() + "?error=access_denied");
   }
 
   private void addAuthorisedScopes(GrantRequest grantRequest) {
-    retrieveUnauthorisedScopes(grantRequest).stream()
-      .forEach(scope -> {
-        Authorisation authorisation = Authorisation.create(grantRequest.getClientID(), scope);
-        authorisations.add(authorisation);
-      });
+    addAuthorisedScopes(grantRequest.getClientID(), grantRequest.getScopes());
+  }
+
+  private void addAuthorisedScopes(String clientID, String[] scopes) {
+    for (String scope : scopes) {
+      Authorisation authorisation = Authorisation.create(clientID, scope);
+      if (authorisations.add(authorisation)) {
+        shards.consentAdded(authorisation);
+      }
+    }
+  }
+
+  void addAuthorisation(Authorisation authorisation) {
+    authorisations.add(authorisation);
+  }
+
+  private void putGrant(long code, int client, int user, long scopeBits, long expiresAt, String redirectURI,
+                        String nonce) {
+    final ClientUsage usage = clientUsage.get(client);
+    while (usage.isAtGrantCap()) {
+      long oldest = usage.pollOldestGrant();
+      if (oldest == 0) {
+        break;
+      }
+      int slot = grants.indexOf(oldest);
+      if (slot >= 0 && grants.clientAt(slot) == client) {
+        LOG.info("grant {} for client {} evicted: client is at its grant cap", TokenFountain.formatGrantCode(oldest),
+          usage.getClientID());
+        int evictedUser = grants.userAt(slot);
+        grants.remove(oldest);
+        usage.grantEvicted();
+        users.grantRemoved(evictedUser, oldest, ownedBy(grants, evictedUser));
+      }
+    }
+    grants.put(code, client, user, scopeBits, expiresAt, redirectURI, nonce);
+    usage.grantAdded(code);
+    users.grantAdded(user, code);
+  }
+
+  private void putAccessToken(long accessToken, int client, int user, long scopeBits, long expiresAt) {
+    final ClientUsage usage = clientUsage.get(client);
+    while (usage.isAtTokenCap()) {
+      long oldest = usage.pollOldestToken();
+      if (oldest == 0) {
+        break;
+      }
+      int slot = accessTokens.indexOf(oldest);
+      if (slot >= 0 && accessTokens.clientAt(slot) == client) {
+        LOG.info("access token {} for client {} evicted: client is at its token cap",
+          TokenFountain.formatAccessToken(oldest), usage.getClientID());
+        int evictedUser = accessTokens.userAt(slot);
+        accessTokens.remove(oldest);
+        usage.tokenEvicted();
+        users.tokenRemoved(evictedUser, oldest, ownedBy(accessTokens, evictedUser));
+      }
+    }
+    accessTokens.put(accessToken, client, user, scopeBits, expiresAt, null, null);
+    usage.tokenAdded(accessToken);
+    users.tokenAdded(user, accessToken);
+  }
+
+  private void removeGrant(long code, int client, int user) {
+    if (grants.remove(code)) {
+      clientUsage.get(client).grantRemoved(code, grants::contains);
+      users.grantRemoved(user, code, ownedBy(grants, user));
+    }
+  }
+
+  private void removeAccessToken(long accessToken, int client, int user) {
+    if (accessTokens.remove(accessToken)) {
+      clientUsage.get(client).tokenRemoved(accessToken, accessTokens::contains);
+      users.tokenRemoved(user, accessToken, ownedBy(accessTokens, user));
+    }
+  }
+
+  private void grantExpired(long code, int client, int user) {
+    LOG.debug("grant {} for client {} expired", TokenFountain.formatGrantCode(code), clientIDAt(client));
+    clientUsage.get(client).grantRemoved(code, grants::contains);
+    users.grantRemoved(user, code, ownedBy(grants, user));
+  }
+
+  private void accessTokenExpired(long accessToken, int client, int user) {
+    LOG.debug("access token {} expired for client {}", TokenFountain.formatAccessToken(accessToken), clientIDAt(client));
+    clientUsage.get(client).tokenRemoved(accessToken, accessTokens::contains);
+    users.tokenRemoved(user, accessToken, ownedBy(accessTokens, user));
+  }
+
+  /**
+   * @return whether a key is in the table and was issued on behalf of <code>user</code>
+   */
+  private static LongPredicate ownedBy(KeyTable table, int user) {
+    return key -> {
+      int slot = table.indexOf(key);
+      return slot >= 0 && table.userAt(slot) == user;
+    };
+  }
+
+  private void restoreGrant(long code, String clientID, String username, long scopeBits, long expiresAt,
+                            String redirectURI, String nonce) {
+    putGrant(code, clientIndexOf(clientID), users.indexOf(username), scopeBits, expiresAt, redirectURI, nonce);
+  }
+
+  private void restoreAccessToken(long accessToken, String clientID, String username, long scopeBits, long expiresAt,
+                                  String unusedRedirectURI, String unusedNonce) {
+    putAccessToken(accessToken, clientIndexOf(clientID), users.indexOf(username), scopeBits, expiresAt);
+  }
+
+  private int clientIndexOf(String clientID) {
+    Integer index = clientIndexes.get(clientID);
+    if (index == null) {
+      index = clientUsage.size();
+      clientIndexes.put(clientID, index);
+      RegisteredClient client = clientRegistry.get(clientID);
+      clientUsage.add(ClientUsage.create(clientID, client == null ? null : client.getConfig(), shardCount));
+    }
+    return index;
+  }
+
+  private String clientIDAt(int client) {
+    return clientUsage.get(client).getClientID();
+  }
+
+  /**
+   * Report live grants and tokens against each client's caps, along with issue and eviction totals, across all shards
+   */
+  public void usage(RoutingContext context) {
+    shards.gather("usage", reply -> {
+      if (reply.failed()) {
+        httpServiceUnavailable(context);
+        return;
+      }
+      Map<String, List<JsonObject>> byClient = new HashMap<>();
+      reply.result().forEach(shardUsage -> shardUsage.forEach(entry ->
+        byClient.computeIfAbsent(entry.getKey(), id -> new ArrayList<>()).add((JsonObject) entry.getValue())));
+      JsonObject usage = new JsonObject();
+      byClient.forEach((clientID, shardUsages) -> usage.put(clientID, ClientUsage.merge(shardUsages)));
+      context.response().putHeader("Content-Type", "application/json").end(usage.encodePrettily());
+    });
+  }
+
+  /**
+   * Report each shard's store sizes and how many of its requests were forwarded to, or from, other shards
+   */
+  public void shardStats(RoutingContext context) {
+    shards.gather("stats", reply -> {
+      if (reply.failed()) {
+        httpServiceUnavailable(context);
+      } else {
+        context.response().putHeader("Content-Type", "application/json")
+          .end(new JsonArray(reply.result()).encodePrettily());
+      }
+    });
+  }
+
+  /**
+   * @return this shard's usage for each client
+   */
+  public JsonObject getUsage() {
+    JsonObject usage = new JsonObject();
+    clientUsage.forEach(clientUsage -> usage.put(clientUsage.getClientID(), clientUsage.toJson()));
+    return usage;
+  }
+
+  /**
+   * @return the least share of its token cap that any client has left on this shard, with the client, and how many
+   * tokens the shard holds
+   */
+  public JsonObject getTokenHeadroom() {
+    ClientUsage fullest = null;
+    for (ClientUsage usage : clientUsage) {
+      if (fullest == null || usage.tokenHeadroom() < fullest.tokenHeadroom()) {
+        fullest = usage;
+      }
+    }
+    return new JsonObject()
+      .put("liveTokens", accessTokens.size())
+      .put("headroom", fullest == null ? 1.0 : fullest.tokenHeadroom())
+      .put("fullestClient", fullest == null ? null : fullest.getClientID());
+  }
+
+  /**
+   * Include <code>stats</code> under <code>name</code> in this shard's entry of {@link #shardStats}
+   */
+  public void addShardStats(String name, Supplier<JsonObject> stats) {
+    statsSources.put(name, stats);
+  }
+
+  void appendShardStats(JsonObject stats) {
+    statsSources.forEach((name, source) -> stats.put(name, source.get()));
+  }
+
+  /**
+   * Include <code>revoker</code> when revoking a user: it is given the username, and returns how many entries it
+   * revoked, which are reported under <code>name</code>
+   */
+  public void addUserRevoker(String name, ToIntFunction<String> revoker) {
+    userRevokers.put(name, revoker);
+  }
+
+  /**
+   * Revoke every grant and access token issued on behalf of the <code>username</code> parameter, and anything else
+   * held for them such as their login sessions, across all shards. Consents are per client, so they are kept.
+   */
+  public void revokeUser(RoutingContext context) {
+    String username = context.request().getParam("username");
+    if (username == null) {
+      httpBadRequest(context, "expected username url parameter");
+      return;
+    }
+    shards.revokeUser(username, reply -> {
+      if (reply.failed()) {
+        httpServiceUnavailable(context);
+        return;
+      }
+      JsonObject revoked = new JsonObject();
+      reply.result().forEach(shardRevoked -> shardRevoked.forEach(entry ->
+        revoked.put(entry.getKey(), revoked.getInteger(entry.getKey(), 0) + (Integer) entry.getValue())));
+      context.response().putHeader("Content-Type", "application/json").end(revoked.encodePrettily());
+    });
+  }
+
+  /**
+   * Revoke everything this shard holds for <code>username</code>. Work is done a batch at a time, so that a user
+   * with many entries doesn't hold up the event loop, and is proportional to the user's entries rather than the
+   * size of the tables.
+   *
+   * @param handler given the number of entries revoked, by kind
+   */
+  void revokeLocalUser(String username, Handler<JsonObject> handler) {
+    // some of the user's entries may not have been restored yet
+    if (hydrateBatch()) {
+      vertx.runOnContext(v -> revokeLocalUser(username, handler));
+      return;
+    }
+    // end their sessions first, so nothing new is issued to them while the rest is revoked
+    JsonObject revoked = new JsonObject();
+    userRevokers.forEach((name, revoker) -> revoked.put(name, revoker.applyAsInt(username)));
+    int user = users.find(username);
+    // device requests they approved, which the device hasn't collected its token for yet
+    revoked.put("deviceCodes", user == UserIndex.NO_USER ? 0 : deviceCodes.removeUser(user));
+    int[] counts = new int[2];
+    revokeBatch(user, users.grantsOf(user), users.tokensOf(user), 0, counts, () -> {
+      LOG.info("revoked {} grants and {} access tokens for {}", counts[0], counts[1], username);
+      handler.handle(revoked.put("grants", counts[0]).put("accessTokens", counts[1]));
+    });
+  }
+
+  /**
+   * Revoke the next batch of <code>codes</code> followed by <code>tokens</code>, from <code>position</code>, skipping
+   * any that have already gone
+   */
+  private void revokeBatch(int user, long[] codes, long[] tokens, int position, int[] counts, Runnable done) {
+    int end = Math.min(position + REVOCATION_BATCH_SIZE, codes.length + tokens.length);
+    for (int i = position; i < end; i++) {
+      if (i < codes.length) {
+        int slot = grants.indexOf(codes[i]);
+        if (slot >= 0 && grants.userAt(slot) == user) {
+          removeGrant(codes[i], grants.clientAt(slot), user);
+          counts[0]++;
+        }
+      } else {
+        long accessToken = tokens[i - codes.length];
+        int slot = accessTokens.indexOf(accessToken);
+        if (slot >= 0 && accessTokens.userAt(slot) == user) {
+          removeAccessToken(accessToken, accessTokens.clientAt(slot), user);
+          counts[1]++;
+        }
+      }
+    }
+    if (end < codes.length + tokens.length) {
+      vertx.runOnContext(v -> revokeBatch(user, codes, tokens, end, counts, done));
+    } else {
+      done.run();
+    }
+  }
+
+  /**
+   * Export the next page of this shard's grants or access tokens as NDJSON, continuing the scan described by
+   * <code>cursor</code>. A cursor without a <code>start</code> begins a new scan. If the table has been resized
+   * since the last page the scan begins again, so some records may be exported twice.
+   *
+   * @param cursor <code>table</code>, either <code>grants</code> or <code>accessTokens</code>, and the position
+   *               returned with the previous page
+   * @return the cursor for the next page, with <code>records</code> holding this page and an <code>offset</code> of
+   * -1 once the table is done
+   */
+  JsonObject exportPage(JsonObject cursor) {
+    final long now = clock.millis();
+    restoreRemaining(now);
+    final boolean isGrants = "grants".equals(cursor.getString("table"));
+    final KeyTable table = isGrants ? grants : accessTokens;
+    int start = cursor.getInteger("start", -1);
+    int offset = cursor.getInteger("offset", 0);
+    if (start < 0 || cursor.getInteger("layout") != table.getLayout()) {
+      if (start >= 0) {
+        LOG.info("{} were resized during export. exporting them again", cursor.getString("table"));
+      }
+      start = table.scanStart();
+      offset = 0;
+    }
+    StringBuilder records = new StringBuilder();
+    int next = table.scan(start, offset, EXPORT_PAGE_SIZE, slot -> {
+      if (table.expiresAt(slot) > now) {
+        records.append(toRecord(table, isGrants, slot).encode()).append('\n');
+      }
+    });
+    return cursor.copy()
+      .put("layout", table.getLayout())
+      .put("start", start)
+      .put("offset", next)
+      .put("records", records.toString());
+  }
+
+  private JsonObject toRecord(KeyTable table, boolean isGrant, int slot) {
+    JsonObject record = isGrant
+      ? new JsonObject().put("type", "grant").put("code", TokenFountain.formatGrantCode(table.keyAt(slot)))
+      : new JsonObject().put("type", "access_token").put("access_token", TokenFountain.formatAccessToken(table.keyAt(slot)));
+    record
+      .put("client_id", clientIDAt(table.clientAt(slot)))
+      .put("scope", scopeRegistry.toScope(table.scopesAt(slot)))
+      .put("expires_at", table.expiresAt(slot));
+    String username = users.nameOf(table.userAt(slot));
+    if (username != null) {
+      record.put("username", username);
+    }
+    if (isGrant) {
+      record.put("redirect_uri", table.redirectURIAt(slot));
+      if (table.nonceAt(slot) != null) {
+        record.put("nonce", table.nonceAt(slot));
+      }
+    }
+    return record;
+  }
+
+  /**
+   * Import records, already validated, that belong to this shard: grants and access tokens it owns, and consents.
+   * Records replace any existing entry for the same key, so importing the same records twice is harmless. Expired
+   * records and scopes that aren't configured are dropped.
+   *
+   * @return the number of records that had expired
+   */
+  JsonObject importRecords(JsonArray records) {
+    final long now = clock.millis();
+    restoreRemaining(now);
+    int expired = 0;
+    for (int i = 0; i < records.size(); i++) {
+      JsonObject record = records.getJsonObject(i);
+      String type = record.getString("type");
+      if ("consent".equals(type)) {
+        authorisations.add(Authorisation.create(record.getString("client_id"), record.getString("scope")));
+        continue;
+      }
+      long expiresAt = record.getLong("expires_at");
+      if (expiresAt <= now) {
+        expired++;
+        continue;
+      }
+      int client = clientIndexOf(record.getString("client_id"));
+      int user = users.indexOf(record.getString("username"));
+      long scopeBits = toKnownBits(record.getString("scope", ""));
+      if ("grant".equals(type)) {
+        long code = TokenFountain.parseGrantCode(record.getString("code"));
+        int slot = grants.indexOf(code);
+        if (slot >= 0) {
+          removeGrant(code, grants.clientAt(slot), grants.userAt(slot));
+        }
+        putGrant(code, client, user, scopeBits, expiresAt, record.getString("redirect_uri"), record.getString("nonce"));
+      } else {
+        long accessToken = TokenFountain.parseAccessToken(record.getString("access_token"));
+        int slot = accessTokens.indexOf(accessToken);
+        if (slot >= 0) {
+          removeAccessToken(accessToken, accessTokens.clientAt(slot), accessTokens.userAt(slot));
+        }
+        putAccessToken(accessToken, client, user, scopeBits, expiresAt);
+      }
+    }
+    return new JsonObject().put("expired", expired);
+  }
+
+  private long toKnownBits(String scope) {
+    long scopeBits = 0;
+    for (String name : scope.split(" ")) {
+      int bit = scopeRegistry.bitOf(name);
+      if (bit >= 0) {
+        scopeBits |= 1L << bit;
+      }
+    }
+    return scopeBits;
+  }
+
+  int getGrantCount() {
+    return grants.size();
+  }
+
+  int getAccessTokenCount() {
+    return accessTokens.size();
+  }
+
+  int getDeviceCodeCount() {
+    return deviceCodes.size();
+  }
+
+  /**
+   * @return what this shard holds on to beyond the live entries themselves: the slots allocated for each table, the
+   * keys queued for eviction and revocation, and the users, clients and consents interned. Under steady load these
+   * should level off; if any keeps growing, something is leaking.
+   */
+  JsonObject getFootprint() {
+    int clientQueuedKeys = 0;
+    for (ClientUsage usage : clientUsage) {
+      clientQueuedKeys += usage.queuedKeys();
+    }
+    return new JsonObject()
+      .put("grantSlots", grants.capacity())
+      .put("accessTokenSlots", accessTokens.capacity())
+      .put("deviceCodeSlots", deviceCodes.capacity())
+      .put("clientQueuedKeys", clientQueuedKeys)
+      .put("userQueuedKeys", users.queuedKeys())
+      .put("users", users.size())
+      .put("clients", clientUsage.size())
+      .put("authorisations", authorisations.size())
+      .put("heldDevicePolls", heldDevicePolls)
+      .put("devicePollCodes", devicePolls.size());
+  }
+
+  /**
+   * @return the grant's slot in the grants table, or -1
+   */
+  private int findGrant(long code, long now) {
+    int slot = grants.find(code, now);
+    if (slot < 0 && snapshot != null && snapshot.takeGrant(code, now, this::restoreGrant)) {
+      slot = grants.find(code, now);
+    }
+    return slot;
   }
 
-  private void removeGrant(String code) {
-    final GrantRequest request = grants.get(code);
-    LOG.info("grant {} for client {} expired", code, request != null ? request.getClientID() : "unknown client!");
-    grants.remove(code);
+  /**
+   * @return the token's slot in the access tokens table, or -1
+   */
+  private int findAccessToken(long accessToken, long now) {
+    int slot = accessTokens.find(accessToken, now);
+    if (slot < 0 && snapshot != null && snapshot.takeAccessToken(accessToken, now, this::restoreAccessToken)) {
+      slot = accessTokens.find(accessToken, now);
+    }
+    return slot;
   }
 
+  /**
+   * Without a <code>require</code> parameter, answer "OK" or "FAIL". With one, check the token's scopes against it
+   * as a {@link ScopePredicate} and answer with the token's details as JSON: 200 if it is satisfied, 403 if it isn't
+   * and 400 if the token isn't active.
+   */
   public void tokenInfo(RoutingContext context) {
     String access_token = context.request().getParam("access_token");
     if (access_token == null) {
       httpBadRequest(context, "expected access_token url parameter");
+      return;
+    }
+    String require = context.request().getParam("require");
+    if (require != null) {
+      introspect(context, access_token, require);
+      return;
     }
     // simple check
-    if (accessTokens.containsKey(access_token)) {
-      context.response().setStatusCode(200).end("OK");
-    } else {
-      context.response().setStatusCode(400).end("FAIL");
+    validateToken(access_token, reply -> {
+      if (reply.failed()) {
+        httpServiceUnavailable(context);
+      } else if (reply.result().isActive()) {
+        context.response().setStatusCode(200).end("OK");
+      } else {
+        context.response().setStatusCode(400).end("FAIL");
+      }
+    });
+  }
+
+  private void introspect(RoutingContext context, String accessToken, String require) {
+    ScopePredicate predicate;
+    try {
+      predicate = scopePredicates.get(require);
+    } catch (IllegalArgumentException e) {
+      respondAccessTokenError(context, createAccessTokenErrorPayload("invalid_request", e.getMessage()));
+      return;
+    }
+    validateToken(accessToken, reply -> {
+      if (reply.failed()) {
+        httpServiceUnavailable(context);
+        return;
+      }
+      TokenMessage token = reply.result();
+      JsonObject result = new JsonObject().put("active", token.isActive());
+      int status = 400;
+      if (token.isActive()) {
+        boolean satisfied = predicate.test(token.getScopeBits());
+        result
+          .put("client_id", token.getClientID())
+          .put("scope", token.getScope())
+          .put("expires_in", token.getExpiresIn())
+          .put("satisfied", satisfied);
+        status = satisfied ? 200 : 403;
+      }
+      context.response().putHeader("Content-Type", "application/json").setStatusCode(status).end(result.encode());
+    });
+  }
+
+  /**
+   * A token request for a pending device code, held open until the resource owner decides
+   */
+  private static final class DevicePoll {
+    final RoutingContext context;
+    final AccessRequest request;
+    long timerID;
+
+    DevicePoll(RoutingContext context, AccessRequest request) {
+      this.context = context;
+      this.request = request;
     }
   }
 }
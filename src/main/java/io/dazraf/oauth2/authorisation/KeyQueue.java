@@ -0,0 +1,86 @@
+package io.dazraf.oauth2.authorisation;
+
+import java.util.function.LongPredicate;
+
+/**
+ * FIFO of keys in a growable ring of longs, using 0, which is never issued, for empty
+ */
+class KeyQueue {
+  private static final int COMPACTION_SLACK = 32;
+
+  private long[] ring = new long[16];
+  private int head = 0;
+  private int size = 0;
+
+  int size() {
+    return size;
+  }
+
+  long peekFirst() {
+    return size == 0 ? 0 : ring[head];
+  }
+
+  long pollFirst() {
+    if (size == 0) {
+      return 0;
+    }
+    long key = ring[head];
+    head = (head + 1) & (ring.length - 1);
+    size--;
+    return key;
+  }
+
+  void addLast(long key) {
+    if (size == ring.length) {
+      long[] grown = new long[ring.length * 2];
+      for (int i = 0; i < size; i++) {
+        grown[i] = ring[(head + i) & (ring.length - 1)];
+      }
+      ring = grown;
+      head = 0;
+    }
+    ring[(head + size) & (ring.length - 1)] = key;
+    size++;
+  }
+
+  void retainIf(LongPredicate keep) {
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      long key = ring[(head + i) & (ring.length - 1)];
+      if (keep.test(key)) {
+        ring[(head + kept) & (ring.length - 1)] = key;
+        kept++;
+      }
+    }
+    size = kept;
+  }
+
+  /**
+   * Account for <code>key</code> having been removed from its store, given that <code>live</code> keys remain.
+   * Entries share a TTL, so whatever is removed is nearly always at the head and popped; anything else stays queued
+   * until the queue holds more than twice as many keys as are live, when it is compacted.
+   */
+  void removed(long key, int live, LongPredicate isLive) {
+    if (peekFirst() == key) {
+      pollFirst();
+    } else if (size > 2 * live + COMPACTION_SLACK) {
+      retainIf(isLive);
+    }
+  }
+
+  /**
+   * @return a copy of the queued keys, oldest first
+   */
+  long[] toArray() {
+    long[] keys = new long[size];
+    for (int i = 0; i < size; i++) {
+      keys[i] = ring[(head + i) & (ring.length - 1)];
+    }
+    return keys;
+  }
+
+  void clear() {
+    head = 0;
+    size = 0;
+  }
+}
@@ -0,0 +1,339 @@
+package io.dazraf.oauth2.authorisation;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Open-addressing hash table of grants or access tokens, keyed by their binary value, with the values held
+ * column-wise in primitive arrays: the client's and resource owner's indexes, a scope bitset, the expiry and, for
+ * grants, the redirect URI and OpenID Connect nonce.
+ * <p>
+ * A live entry costs around 34 bytes plus load-factor slack, with no per-entry objects. Key 0 marks an empty slot, so
+ * it is never issued. Linear probing with backward-shift deletion keeps probe sequences short without tombstones.
+ * <p>
+ * Entries past their expiry are treated as absent by {@link #find}, and are removed either then or by
+ * {@link #sweep}, which walks a bounded number of slots per call. Either way the {@link ExpiryListener} is told.
+ * Not thread safe: each table belongs to one shard's event loop.
+ */
+class KeyTable {
+  private static final int MIN_CAPACITY = 16;
+  // golden ratio multiplier: keys are congruent modulo the shard count, so their low bits can't be used directly
+  private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  interface ExpiryListener {
+    void expired(long key, int client, int user);
+  }
+
+  private final boolean forGrants;
+  private final ExpiryListener expiryListener;
+  private long[] keys;
+  private int[] clients;
+  private int[] users;
+  private long[] scopes;
+  private long[] expiries;
+  private String[] redirectURIs;
+  private String[] nonces;
+  private int mask;
+  private int shift;
+  private int size = 0;
+  private int sweepCursor = 0;
+  // incremented whenever entries are moved to new slots, which invalidates any scan in progress
+  private int layout = 0;
+
+  /**
+   * @param forGrants whether to keep the redirect URI and nonce columns, which only grants need
+   */
+  static KeyTable create(int expectedSize, boolean forGrants, ExpiryListener expiryListener) {
+    return new KeyTable(expectedSize, forGrants, expiryListener);
+  }
+
+  private KeyTable(int expectedSize, boolean forGrants, ExpiryListener expiryListener) {
+    this.forGrants = forGrants;
+    this.expiryListener = expiryListener;
+    allocate(capacityFor(expectedSize));
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of slots allocated, which only ever grows
+   */
+  int capacity() {
+    return keys.length;
+  }
+
+  /**
+   * @return the slot holding <code>key</code>, or -1 if there is no live entry for it. An expired entry is removed.
+   */
+  int find(long key, long now) {
+    if (key == 0) {
+      return -1;
+    }
+    for (int slot = slotOf(key); ; slot = (slot + 1) & mask) {
+      long candidate = keys[slot];
+      if (candidate == 0) {
+        return -1;
+      }
+      if (candidate == key) {
+        if (expiries[slot] > now) {
+          return slot;
+        }
+        expire(slot);
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * @return true if <code>key</code> has an entry, regardless of expiry
+   */
+  boolean contains(long key) {
+    return indexOf(key) >= 0;
+  }
+
+  long keyAt(int slot) {
+    return keys[slot];
+  }
+
+  int clientAt(int slot) {
+    return clients[slot];
+  }
+
+  int userAt(int slot) {
+    return users[slot];
+  }
+
+  long scopesAt(int slot) {
+    return scopes[slot];
+  }
+
+  long expiresAt(int slot) {
+    return expiries[slot];
+  }
+
+  String redirectURIAt(int slot) {
+    return forGrants ? redirectURIs[slot] : null;
+  }
+
+  String nonceAt(int slot) {
+    return forGrants ? nonces[slot] : null;
+  }
+
+  /**
+   * Add or replace the entry for <code>key</code>
+   */
+  void put(long key, int client, int user, long scopeBits, long expiresAt, String redirectURI, String nonce) {
+    if (key == 0) {
+      throw new IllegalArgumentException("0 is not a valid key");
+    }
+    int slot = slotOf(key);
+    while (keys[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    if (keys[slot] == 0) {
+      if ((size + 1) * 4L > keys.length * 3L) {
+        resize(keys.length * 2);
+        put(key, client, user, scopeBits, expiresAt, redirectURI, nonce);
+        return;
+      }
+      size++;
+    }
+    keys[slot] = key;
+    clients[slot] = client;
+    users[slot] = user;
+    scopes[slot] = scopeBits;
+    expiries[slot] = expiresAt;
+    if (forGrants) {
+      redirectURIs[slot] = redirectURI;
+      nonces[slot] = nonce;
+    }
+  }
+
+  /**
+   * @return true if there was an entry for <code>key</code>
+   */
+  boolean remove(long key) {
+    int slot = indexOf(key);
+    if (slot < 0) {
+      return false;
+    }
+    removeAt(slot);
+    return true;
+  }
+
+  void clear() {
+    allocate(MIN_CAPACITY);
+    size = 0;
+    layout++;
+  }
+
+  /**
+   * Examine up to <code>maxSlots</code> slots, continuing from where the last sweep stopped, and remove any entries
+   * that have expired
+   *
+   * @return the number of entries removed
+   */
+  int sweep(long now, int maxSlots) {
+    int removed = 0;
+    for (int examined = 0; examined < maxSlots && size > 0; examined++) {
+      int slot = sweepCursor;
+      if (keys[slot] != 0 && expiries[slot] <= now) {
+        // backward shift may move another entry into this slot, so look at it again before moving on
+        expire(slot);
+        removed++;
+      } else {
+        sweepCursor = (slot + 1) & mask;
+      }
+    }
+    return removed;
+  }
+
+  int getLayout() {
+    return layout;
+  }
+
+  /**
+   * @return the slot to start a {@link #scan} of the whole table from: an empty one, so that no run of entries
+   * straddles it
+   */
+  int scanStart() {
+    int slot = 0;
+    while (keys[slot] != 0) {
+      slot++;
+    }
+    return slot;
+  }
+
+  /**
+   * Visit entries in slot order, from <code>offset</code> slots after <code>start</code>, wrapping around, until at
+   * least <code>max</code> have been visited and the next slot is empty. Stopping only at an empty slot means that
+   * backward shift deletion between calls can't move an unvisited entry behind the scan, so every entry present
+   * throughout a scan is visited exactly once, provided the {@link #getLayout layout} doesn't change. Entries added
+   * during a scan may or may not be visited.
+   *
+   * @return the offset to continue from, or -1 once the whole table has been scanned
+   */
+  int scan(int start, int offset, int max, IntConsumer visitor) {
+    int visited = 0;
+    for (; offset < keys.length; offset++) {
+      int slot = (start + offset) & mask;
+      if (keys[slot] != 0) {
+        visitor.accept(slot);
+        visited++;
+      } else if (visited >= max) {
+        return offset;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the keys of all entries, in no particular order
+   */
+  long[] keys() {
+    long[] result = new long[size];
+    int i = 0;
+    for (long key : keys) {
+      if (key != 0) {
+        result[i++] = key;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the slot holding <code>key</code>, regardless of expiry, or -1
+   */
+  int indexOf(long key) {
+    if (key == 0) {
+      return -1;
+    }
+    for (int slot = slotOf(key); ; slot = (slot + 1) & mask) {
+      long candidate = keys[slot];
+      if (candidate == key) {
+        return slot;
+      }
+      if (candidate == 0) {
+        return -1;
+      }
+    }
+  }
+
+  private void expire(int slot) {
+    long key = keys[slot];
+    int client = clients[slot];
+    int user = users[slot];
+    removeAt(slot);
+    expiryListener.expired(key, client, user);
+  }
+
+  private void removeAt(int slot) {
+    int hole = slot;
+    for (int next = (slot + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+      // shift back any entry whose home slot is at or before the hole in its probe sequence
+      if (((next - slotOf(keys[next])) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        clients[hole] = clients[next];
+        users[hole] = users[next];
+        scopes[hole] = scopes[next];
+        expiries[hole] = expiries[next];
+        if (forGrants) {
+          redirectURIs[hole] = redirectURIs[next];
+          nonces[hole] = nonces[next];
+        }
+        hole = next;
+      }
+    }
+    keys[hole] = 0;
+    if (forGrants) {
+      redirectURIs[hole] = null;
+      nonces[hole] = null;
+    }
+    size--;
+  }
+
+  private int slotOf(long key) {
+    return (int) ((key * HASH_MULTIPLIER) >>> shift);
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldClients = clients;
+    int[] oldUsers = users;
+    long[] oldScopes = scopes;
+    long[] oldExpiries = expiries;
+    String[] oldRedirectURIs = redirectURIs;
+    String[] oldNonces = nonces;
+    allocate(capacity);
+    size = 0;
+    layout++;
+    for (int slot = 0; slot < oldKeys.length; slot++) {
+      if (oldKeys[slot] != 0) {
+        put(oldKeys[slot], oldClients[slot], oldUsers[slot], oldScopes[slot], oldExpiries[slot],
+          forGrants ? oldRedirectURIs[slot] : null, forGrants ? oldNonces[slot] : null);
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    clients = new int[capacity];
+    users = new int[capacity];
+    scopes = new long[capacity];
+    expiries = new long[capacity];
+    redirectURIs = forGrants ? new String[capacity] : null;
+    nonces = forGrants ? new String[capacity] : null;
+    mask = capacity - 1;
+    shift = Long.SIZE - Integer.numberOfTrailingZeros(capacity);
+    sweepCursor = 0;
+  }
+
+  private static int capacityFor(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity * 3L < expectedSize * 4L) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+}
@@ -0,0 +1,176 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.json.JsonArray;
+
+import java.util.Arrays;
+
+/**
+ * Matches a requested redirect_uri against a client's registered URIs, compiled into one character trie so that a
+ * check is a single walk along the URI with no regex and no allocation. A registered URI is one of:
+ * <ul>
+ * <li>exact, e.g. <code>https://acme.example/callback</code></li>
+ * <li>a prefix, ending in <code>/*</code>, e.g. <code>https://acme.example/app/*</code>, which matches anything
+ * beneath that path except a <code>..</code> segment, with either dot percent encoded or not, or a <code>\</code>,
+ * which browsers treat as a <code>/</code></li>
+ * <li>a wildcard host, whose leftmost host label is <code>*</code>, e.g. <code>https://*.acme.example/callback</code>,
+ * which matches exactly one label. It may also be a prefix.</li>
+ * </ul>
+ * URIs with a fragment, which the spec forbids, never match.
+ */
+class RedirectURIMatcher {
+  static final int MAX_URI_LENGTH = 2048;
+
+  private static final RedirectURIMatcher NONE = new RedirectURIMatcher(new Node(), 0);
+
+  private final Node root;
+  private final int patternCount;
+
+  /**
+   * @param patterns the registered URIs, or null if there are none, in which case nothing matches
+   * @throws IllegalArgumentException if a pattern uses <code>*</code> anywhere other than the places above
+   */
+  static RedirectURIMatcher compile(JsonArray patterns) {
+    if (patterns == null || patterns.isEmpty()) {
+      return NONE;
+    }
+    Node root = new Node();
+    for (Object pattern : patterns) {
+      insert(root, (String) pattern);
+    }
+    return new RedirectURIMatcher(root, patterns.size());
+  }
+
+  private RedirectURIMatcher(Node root, int patternCount) {
+    this.root = root;
+    this.patternCount = patternCount;
+  }
+
+  boolean matches(String uri) {
+    return uri != null && uri.length() <= MAX_URI_LENGTH && uri.indexOf('#') < 0 && matches(root, uri, 0);
+  }
+
+  boolean isEmpty() {
+    return patternCount == 0;
+  }
+
+  private static boolean matches(Node node, String uri, int position) {
+    if (node.prefix && isSafeRemainder(uri, position)) {
+      return true;
+    }
+    if (position == uri.length()) {
+      return node.exact;
+    }
+    Node next = node.child(uri.charAt(position));
+    if (next != null && matches(next, uri, position + 1)) {
+      return true;
+    }
+    if (node.wildcard != null) {
+      int end = position;
+      while (end < uri.length() && isLabelChar(uri.charAt(end))) {
+        end++;
+      }
+      return end > position && matches(node.wildcard, uri, end);
+    }
+    return false;
+  }
+
+  /**
+   * A prefix match mustn't climb back out of the registered path once a browser has normalised it
+   */
+  private static boolean isSafeRemainder(String uri, int position) {
+    int segmentStart = position;
+    for (int i = position; ; i++) {
+      char c = i < uri.length() ? uri.charAt(i) : '?';
+      if (c == '\\') {
+        return false;
+      }
+      if (c == '/' || c == '?') {
+        if (isDotDot(uri, segmentStart, i)) {
+          return false;
+        }
+        if (c == '?') {
+          return true;
+        }
+        segmentStart = i + 1;
+      }
+    }
+  }
+
+  /**
+   * @return true if the segment from <code>start</code> to <code>end</code> is two dots, each either literal or
+   * percent encoded
+   */
+  private static boolean isDotDot(String uri, int start, int end) {
+    int dots = 0;
+    for (int i = start; i < end; dots++) {
+      if (uri.charAt(i) == '.') {
+        i++;
+      } else if (i + 3 <= end && uri.regionMatches(true, i, "%2e", 0, 3)) {
+        i += 3;
+      } else {
+        return false;
+      }
+    }
+    return dots == 2;
+  }
+
+  private static boolean isLabelChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-';
+  }
+
+  private static void insert(Node root, String pattern) {
+    int authority = pattern.indexOf("://");
+    int wildcard = authority >= 0 && pattern.startsWith("*.", authority + 3) ? authority + 3 : -1;
+    boolean prefix = pattern.endsWith("/*");
+    int end = prefix ? pattern.length() - 1 : pattern.length();
+    Node node = root;
+    for (int i = 0; i < end; i++) {
+      char c = pattern.charAt(i);
+      if ((c == '*' && i != wildcard) || c == '#') {
+        throw new IllegalArgumentException("invalid redirect URI pattern: " + pattern);
+      }
+      node = i == wildcard ? node.wildcard() : node.addChild(c);
+    }
+    if (prefix) {
+      node.prefix = true;
+    } else {
+      node.exact = true;
+    }
+  }
+
+  private static class Node {
+    private char[] labels = new char[0];
+    private Node[] children = new Node[0];
+    private Node wildcard;
+    private boolean exact;
+    private boolean prefix;
+
+    Node child(char c) {
+      for (int i = 0; i < labels.length; i++) {
+        if (labels[i] == c) {
+          return children[i];
+        }
+      }
+      return null;
+    }
+
+    Node addChild(char c) {
+      Node child = child(c);
+      if (child == null) {
+        child = new Node();
+        labels = Arrays.copyOf(labels, labels.length + 1);
+        children = Arrays.copyOf(children, children.length + 1);
+        labels[labels.length - 1] = c;
+        children[children.length - 1] = child;
+      }
+      return child;
+    }
+
+    Node wildcard() {
+      if (wildcard == null) {
+        wildcard = new Node();
+      }
+      return wildcard;
+    }
+  }
+}
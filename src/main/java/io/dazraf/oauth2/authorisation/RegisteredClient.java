@@ -0,0 +1,67 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * A client of the realm, as listed under <code>clients</code> in the config or registered at run time. Immutable, so
+ * that it can be read from any event loop without locking: an update replaces it in the {@link ClientRegistry}.
+ * <p>
+ * Its config has the same fields either way: <code>name</code>, <code>redirectURIs</code>, <code>maxTokens</code>,
+ * <code>maxGrants</code> and <code>exchangeAudiences</code>. A registered client's also has the
+ * <code>grantTypes</code> it registered, when it was <code>issuedAt</code>, and the hash of its
+ * <code>registrationToken</code>.
+ */
+final class RegisteredClient {
+  private final String clientID;
+  private final JsonObject config;
+  private final RedirectURIMatcher redirectURIs;
+
+  /**
+   * @param config the client's config, which is copied
+   * @throws IllegalArgumentException if a redirect URI isn't a valid pattern
+   */
+  static RegisteredClient create(String clientID, JsonObject config) {
+    return new RegisteredClient(clientID, config.copy());
+  }
+
+  private RegisteredClient(String clientID, JsonObject config) {
+    this.clientID = clientID;
+    this.config = config;
+    this.redirectURIs = RedirectURIMatcher.compile(config.getJsonArray("redirectURIs"));
+  }
+
+  String getClientID() {
+    return clientID;
+  }
+
+  String getName() {
+    return config.getString("name", clientID);
+  }
+
+  RedirectURIMatcher getRedirectURIs() {
+    return redirectURIs;
+  }
+
+  /**
+   * @return whether the client may exchange its tokens for ones issued to <code>audience</code>
+   */
+  boolean mayExchangeFor(String audience) {
+    JsonArray allowed = config.getJsonArray("exchangeAudiences");
+    return allowed != null && allowed.contains(audience);
+  }
+
+  /**
+   * @return whether the client was registered at run time, rather than listed in the config
+   */
+  boolean isRegistered() {
+    return config.containsKey("registrationToken");
+  }
+
+  /**
+   * @return the client's config, which must not be modified
+   */
+  JsonObject getConfig() {
+    return config;
+  }
+}
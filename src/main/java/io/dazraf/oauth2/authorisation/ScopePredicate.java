@@ -0,0 +1,246 @@
+package io.dazraf.oauth2.authorisation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongPredicate;
+
+/**
+ * A boolean expression over scopes, such as <code>fp AND (loyalty-read OR loyalty-write)</code>, compiled to a test
+ * of a token's scope bitset. <code>AND</code>, <code>OR</code> and <code>NOT</code> are upper case, and adjacent
+ * scopes are ANDed, so a plain space separated scope list requires all of them. Runs of AND or OR over bare scopes
+ * compile to a single mask test.
+ */
+class ScopePredicate {
+  static final int MAX_EXPRESSION_LENGTH = 1024;
+
+  private final String expression;
+  private final LongPredicate test;
+
+  /**
+   * @throws IllegalArgumentException if the expression is malformed or names a scope that isn't configured
+   */
+  static ScopePredicate compile(String expression, ScopeRegistry scopes) {
+    if (expression.length() > MAX_EXPRESSION_LENGTH) {
+      throw new IllegalArgumentException("scope expression longer than " + MAX_EXPRESSION_LENGTH + " characters");
+    }
+    return new ScopePredicate(expression, new Parser(expression, scopes).parse());
+  }
+
+  /**
+   * Compiled predicates, most recently used first, keyed by expression. Not thread safe: each shard keeps its own.
+   */
+  static Cache cache(ScopeRegistry scopes, int maxSize) {
+    return new Cache(scopes, maxSize);
+  }
+
+  private ScopePredicate(String expression, LongPredicate test) {
+    this.expression = expression;
+    this.test = test;
+  }
+
+  boolean test(long scopeBits) {
+    return test.test(scopeBits);
+  }
+
+  @Override
+  public String toString() {
+    return expression;
+  }
+
+  static class Cache {
+    private final ScopeRegistry scopes;
+    private final Map<String, ScopePredicate> predicates;
+
+    private Cache(ScopeRegistry scopes, int maxSize) {
+      this.scopes = scopes;
+      this.predicates = new LinkedHashMap<String, ScopePredicate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ScopePredicate> eldest) {
+          return size() > maxSize;
+        }
+      };
+    }
+
+    /**
+     * @throws IllegalArgumentException as for {@link #compile}. Failures are not cached.
+     */
+    ScopePredicate get(String expression) {
+      ScopePredicate predicate = predicates.get(expression);
+      if (predicate == null) {
+        predicate = compile(expression, scopes);
+        predicates.put(expression, predicate);
+      }
+      return predicate;
+    }
+
+    int size() {
+      return predicates.size();
+    }
+  }
+
+  /**
+   * Recursive descent over: or := and ("OR" and)*; and := unary ("AND"? unary)*; unary := "NOT" unary | "(" or ")" | scope
+   */
+  private static class Parser {
+    private final String expression;
+    private final ScopeRegistry scopes;
+    private final List<String> tokens = new ArrayList<>();
+    private int position = 0;
+
+    Parser(String expression, ScopeRegistry scopes) {
+      this.expression = expression;
+      this.scopes = scopes;
+      tokenize();
+    }
+
+    LongPredicate parse() {
+      if (tokens.isEmpty()) {
+        throw new IllegalArgumentException("empty scope expression");
+      }
+      Term term = parseOr();
+      if (position < tokens.size()) {
+        throw error("unexpected '" + tokens.get(position) + "'");
+      }
+      return term.compile();
+    }
+
+    private Term parseOr() {
+      List<Term> terms = new ArrayList<>();
+      terms.add(parseAnd());
+      while (accept("OR")) {
+        terms.add(parseAnd());
+      }
+      return terms.size() == 1 ? terms.get(0) : new Term(false, terms);
+    }
+
+    private Term parseAnd() {
+      List<Term> terms = new ArrayList<>();
+      terms.add(parseUnary());
+      while (position < tokens.size() && !peek("OR") && !peek(")")) {
+        accept("AND");
+        terms.add(parseUnary());
+      }
+      return terms.size() == 1 ? terms.get(0) : new Term(true, terms);
+    }
+
+    private Term parseUnary() {
+      if (position >= tokens.size()) {
+        throw error("unexpected end");
+      }
+      if (accept("NOT")) {
+        return parseUnary().negate();
+      }
+      if (accept("(")) {
+        Term term = parseOr();
+        if (!accept(")")) {
+          throw error("missing ')'");
+        }
+        return term;
+      }
+      String scope = tokens.get(position++);
+      if (scope.equals(")") || scope.equals("AND") || scope.equals("OR")) {
+        throw error("unexpected '" + scope + "'");
+      }
+      int bit = scopes.bitOf(scope);
+      if (bit < 0) {
+        throw new IllegalArgumentException("unknown scope: " + scope);
+      }
+      return new Term(1L << bit);
+    }
+
+    private boolean peek(String token) {
+      return position < tokens.size() && tokens.get(position).equals(token);
+    }
+
+    private boolean accept(String token) {
+      if (peek(token)) {
+        position++;
+        return true;
+      }
+      return false;
+    }
+
+    private void tokenize() {
+      int start = -1;
+      for (int i = 0; i <= expression.length(); i++) {
+        char c = i < expression.length() ? expression.charAt(i) : ' ';
+        if (Character.isWhitespace(c) || c == '(' || c == ')') {
+          if (start >= 0) {
+            tokens.add(expression.substring(start, i));
+            start = -1;
+          }
+          if (c == '(' || c == ')') {
+            tokens.add(String.valueOf(c));
+          }
+        } else if (start < 0) {
+          start = i;
+        }
+      }
+    }
+
+    private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " in scope expression: " + expression);
+    }
+  }
+
+  /**
+   * A parsed sub-expression: a single scope, or the AND or OR of others, possibly negated
+   */
+  private static class Term {
+    private final long bit;
+    private final boolean and;
+    private final List<Term> terms;
+    private final boolean negated;
+
+    Term(long bit) {
+      this(bit, false, null, false);
+    }
+
+    Term(boolean and, List<Term> terms) {
+      this(0, and, terms, false);
+    }
+
+    private Term(long bit, boolean and, List<Term> terms, boolean negated) {
+      this.bit = bit;
+      this.and = and;
+      this.terms = terms;
+      this.negated = negated;
+    }
+
+    Term negate() {
+      return new Term(bit, and, terms, !negated);
+    }
+
+    LongPredicate compile() {
+      return negated ? compilePositive().negate() : compilePositive();
+    }
+
+    private LongPredicate compilePositive() {
+      if (terms == null) {
+        long mask = bit;
+        return scopes -> (scopes & mask) != 0;
+      }
+      // fold the bare scopes into one mask and combine it with whatever else is left
+      long mask = 0;
+      List<LongPredicate> rest = new ArrayList<>();
+      for (Term term : terms) {
+        if (term.terms == null && !term.negated) {
+          mask |= term.bit;
+        } else {
+          rest.add(term.compile());
+        }
+      }
+      final long scopeMask = mask;
+      LongPredicate test = null;
+      if (scopeMask != 0) {
+        test = and ? scopes -> (scopes & scopeMask) == scopeMask : scopes -> (scopes & scopeMask) != 0;
+      }
+      for (LongPredicate next : rest) {
+        test = test == null ? next : and ? test.and(next) : test.or(next);
+      }
+      return test;
+    }
+  }
+}
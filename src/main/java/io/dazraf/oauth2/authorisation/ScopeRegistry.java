@@ -0,0 +1,88 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns each configured scope a bit, so that the scopes of a grant or token are stored as a single long
+ */
+class ScopeRegistry {
+  static final int MAX_SCOPES = Long.SIZE;
+
+  private final List<String> names = new ArrayList<>();
+  private final Map<String, Integer> bits = new HashMap<>();
+
+  static ScopeRegistry create(JsonObject scopes) {
+    return new ScopeRegistry(scopes);
+  }
+
+  private ScopeRegistry(JsonObject scopes) {
+    if (scopes.size() > MAX_SCOPES) {
+      throw new IllegalArgumentException("at most " + MAX_SCOPES + " scopes can be configured, not " + scopes.size());
+    }
+    for (String name : scopes.fieldNames()) {
+      bits.put(name, names.size());
+      names.add(name);
+    }
+  }
+
+  /**
+   * @return the bit for this scope, or -1 if it is not configured
+   */
+  int bitOf(String scope) {
+    Integer bit = bits.get(scope);
+    return bit == null ? -1 : bit;
+  }
+
+  /**
+   * @return the first of <code>scopes</code> that is not configured, or null if they all are
+   */
+  String findUnknown(String[] scopes) {
+    for (String scope : scopes) {
+      if (!bits.containsKey(scope)) {
+        return scope;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @throws IllegalArgumentException if any of the scopes is not configured
+   */
+  long toBits(String[] scopes) {
+    long result = 0;
+    for (String scope : scopes) {
+      int bit = bitOf(scope);
+      if (bit < 0) {
+        throw new IllegalArgumentException("unknown scope: " + scope);
+      }
+      result |= 1L << bit;
+    }
+    return result;
+  }
+
+  /**
+   * @return the scopes as a space separated string, in configured order
+   */
+  String toScope(long scopeBits) {
+    StringBuilder scope = new StringBuilder();
+    for (long remaining = scopeBits; remaining != 0; remaining &= remaining - 1) {
+      if (scope.length() > 0) {
+        scope.append(' ');
+      }
+      scope.append(names.get(Long.numberOfTrailingZeros(remaining)));
+    }
+    return scope.toString();
+  }
+
+  /**
+   * @return the scope names, indexed by bit
+   */
+  List<String> getNames() {
+    return names;
+  }
+}
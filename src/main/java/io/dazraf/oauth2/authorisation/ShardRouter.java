@@ -0,0 +1,303 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.dazraf.oauth2.util.FutureChain;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared-nothing partitioning of grants and access tokens across the instances of a deployment.
+ * <p>
+ * Each instance owns one shard, and every code and token it issues encodes that shard (see {@link TokenFountain}).
+ * Requests for a key owned by another shard are forwarded to it over the local event bus, so each shard's state is
+ * only ever touched from its own event loop and needs no locking. Consents are small and read on every authorize, so
+ * they are replicated to all shards instead.
+ */
+class ShardRouter {
+  private static final Logger LOG = LoggerFactory.getLogger(ShardRouter.class);
+
+  private final Vertx vertx;
+  private final InMemoryAuthorizer authorizer;
+  private final String addressPrefix;
+  private final int shard;
+  private final int shardCount;
+  private final List<MessageConsumer<?>> consumers = new ArrayList<>();
+
+  private long localRequests = 0;
+  private long forwardedRequests = 0;
+  private long receivedRequests = 0;
+
+  /**
+   * @param addressPrefix prefix for this deployment's shard addresses on the event bus
+   */
+  static ShardRouter bind(Vertx vertx, String addressPrefix, InMemoryAuthorizer authorizer, int shard, int shardCount) {
+    return new ShardRouter(vertx, addressPrefix, authorizer, shard, shardCount);
+  }
+
+  private ShardRouter(Vertx vertx, String addressPrefix, InMemoryAuthorizer authorizer, int shard, int shardCount) {
+    this.vertx = vertx;
+    this.authorizer = authorizer;
+    this.addressPrefix = addressPrefix;
+    this.shard = shard;
+    this.shardCount = shardCount;
+    TokenMessageCodec.register(vertx.eventBus());
+    if (shardCount > 1) {
+      consumers.add(vertx.eventBus().<TokenMessage>localConsumer(address(shard), this::handleForwarded));
+      consumers.add(vertx.eventBus().<JsonObject>localConsumer(addressPrefix + "consents", this::handleConsent));
+    }
+    consumers.add(vertx.eventBus().<Long>localConsumer(addressPrefix + "devices",
+      message -> authorizer.deviceDecided(message.body())));
+    consumers.add(vertx.eventBus().<JsonObject>localConsumer(address(shard) + ".device",
+      message -> message.reply(authorizer.deviceRequest(message.body()))));
+    consumers.add(vertx.eventBus().<String>localConsumer(address(shard) + ".admin", this::handleAdmin));
+    consumers.add(vertx.eventBus().<String>localConsumer(address(shard) + ".revoke", this::handleRevokeUser));
+    consumers.add(vertx.eventBus().<JsonObject>localConsumer(address(shard) + ".export",
+      message -> message.reply(authorizer.exportPage(message.body()))));
+    consumers.add(vertx.eventBus().<JsonArray>localConsumer(address(shard) + ".import",
+      message -> message.reply(authorizer.importRecords(message.body()))));
+  }
+
+  void validate(String accessToken, Handler<AsyncResult<TokenMessage>> handler) {
+    int owner = TokenFountain.shardOf(TokenFountain.parseAccessToken(accessToken), shardCount);
+    if (isLocal(owner)) {
+      handler.handle(Future.succeededFuture(authorizer.validateToken(accessToken)));
+    } else {
+      forward(owner, TokenMessage.validate(accessToken), handler);
+    }
+  }
+
+  void issue(AccessRequest accessRequest, Handler<AsyncResult<TokenMessage>> handler) {
+    // a device code is owned by the shard that owns its user code, and an exchange by the shard that issued the token
+    // being exchanged, which issues the new token too
+    long key;
+    if (accessRequest.isDeviceCode()) {
+      key = TokenFountain.parseDeviceUserCode(accessRequest.getCode());
+    } else if (accessRequest.isTokenExchange()) {
+      key = TokenFountain.parseAccessToken(accessRequest.getCode());
+    } else {
+      key = TokenFountain.parseGrantCode(accessRequest.getCode());
+    }
+    int owner = TokenFountain.shardOf(key, shardCount);
+    if (isLocal(owner)) {
+      handler.handle(Future.succeededFuture(authorizer.issueToken(accessRequest)));
+    } else {
+      forward(owner, accessRequest.toMessage(), handler);
+    }
+  }
+
+  void consentAdded(Authorisation authorisation) {
+    if (shardCount > 1) {
+      vertx.eventBus().publish(addressPrefix + "consents", new JsonObject()
+        .put("shard", shard)
+        .put("clientID", authorisation.getClientID())
+        .put("scope", authorisation.getScope()));
+    }
+  }
+
+  /**
+   * Tell every shard, this one included, that the resource owner has decided on a device's request, so that any poll
+   * it is holding open for it can be answered
+   */
+  void deviceDecided(long userCode) {
+    vertx.eventBus().publish(addressPrefix + "devices", userCode);
+  }
+
+  /**
+   * Look up or decide a pending device request on the shard that owns its user code
+   *
+   * @see InMemoryAuthorizer#deviceRequest
+   */
+  void deviceRequest(long userCode, JsonObject request, Handler<AsyncResult<JsonObject>> handler) {
+    int owner = ownerOf(userCode);
+    if (isLocal(owner)) {
+      handler.handle(Future.succeededFuture(authorizer.deviceRequest(request)));
+    } else {
+      request(owner, ".device", request).setHandler(handler);
+    }
+  }
+
+  void reset() {
+    if (shardCount > 1) {
+      vertx.eventBus().publish(addressPrefix + "consents", new JsonObject().put("shard", shard).put("reset", true));
+    }
+  }
+
+  /**
+   * Collect a report from every shard. <code>report</code> is either <code>usage</code> or <code>stats</code>
+   */
+  void gather(String report, Handler<AsyncResult<List<JsonObject>>> handler) {
+    List<Future<JsonObject>> reports = new ArrayList<>(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      if (i == shard) {
+        reports.add(Future.succeededFuture(report(report)));
+      } else {
+        reports.add(request(i, ".admin", report));
+      }
+    }
+    FutureChain.join(reports).setHandler(handler);
+  }
+
+  /**
+   * Revoke everything every shard holds for <code>username</code>, collecting what each revoked
+   */
+  void revokeUser(String username, Handler<AsyncResult<List<JsonObject>>> handler) {
+    List<Future<JsonObject>> revoked = new ArrayList<>(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      if (i == shard) {
+        Future<JsonObject> future = Future.future();
+        authorizer.revokeLocalUser(username, future::complete);
+        revoked.add(future);
+      } else {
+        revoked.add(request(i, ".revoke", username));
+      }
+    }
+    FutureChain.join(revoked).setHandler(handler);
+  }
+
+  int getShardCount() {
+    return shardCount;
+  }
+
+  /**
+   * @return the shard that owns <code>key</code>, a grant code or access token
+   */
+  int ownerOf(long key) {
+    return Math.max(0, TokenFountain.shardOf(key, shardCount));
+  }
+
+  /**
+   * Fetch the next page of an export from shard <code>owner</code>
+   *
+   * @see InMemoryAuthorizer#exportPage
+   */
+  void exportPage(int owner, JsonObject cursor, Handler<AsyncResult<JsonObject>> handler) {
+    if (owner == shard) {
+      handler.handle(Future.succeededFuture(authorizer.exportPage(cursor)));
+    } else {
+      request(owner, ".export", cursor).setHandler(handler);
+    }
+  }
+
+  /**
+   * Import a batch of records into shard <code>owner</code>
+   *
+   * @see InMemoryAuthorizer#importRecords
+   */
+  void importRecords(int owner, JsonArray records, Handler<AsyncResult<JsonObject>> handler) {
+    if (owner == shard) {
+      handler.handle(Future.succeededFuture(authorizer.importRecords(records)));
+    } else {
+      request(owner, ".import", records).setHandler(handler);
+    }
+  }
+
+  void close() {
+    consumers.forEach(MessageConsumer::unregister);
+    LOG.info("shard {} of {}: {} requests served locally, {} forwarded, {} received from other shards",
+      shard, shardCount, localRequests, forwardedRequests, receivedRequests);
+  }
+
+  private boolean isLocal(int owner) {
+    // keys that no shard could have issued are simply looked up, and missed, here
+    if (owner == shard || owner < 0) {
+      localRequests++;
+      return true;
+    }
+    forwardedRequests++;
+    return false;
+  }
+
+  private void forward(int owner, TokenMessage request, Handler<AsyncResult<TokenMessage>> handler) {
+    vertx.eventBus().<TokenMessage>send(address(owner), request, reply -> {
+      if (reply.succeeded()) {
+        handler.handle(Future.succeededFuture(reply.result().body()));
+      } else {
+        LOG.warn("failed to forward {} to shard {}: {}", request.getOp(), owner, reply.cause().getMessage());
+        handler.handle(Future.failedFuture(reply.cause()));
+      }
+    });
+  }
+
+  private void handleForwarded(Message<TokenMessage> message) {
+    receivedRequests++;
+    TokenMessage request = message.body();
+    try {
+      switch (request.getOp()) {
+        case VALIDATE:
+          message.reply(authorizer.validateToken(request.getAccessToken()));
+          break;
+        case ISSUE:
+          message.reply(authorizer.issueToken(AccessRequest.create(request)));
+          break;
+        default:
+          message.fail(400, "unsupported operation: " + request.getOp());
+      }
+    } catch (Throwable e) {
+      LOG.error("failed to handle forwarded " + request.getOp(), e);
+      message.fail(500, e.getMessage());
+    }
+  }
+
+  private void handleConsent(Message<JsonObject> message) {
+    JsonObject event = message.body();
+    if (event.getInteger("shard") == shard) {
+      return;
+    }
+    if (event.getBoolean("reset", false)) {
+      authorizer.clearState();
+    } else {
+      authorizer.addAuthorisation(Authorisation.create(event.getString("clientID"), event.getString("scope")));
+    }
+  }
+
+  private Future<JsonObject> request(int owner, String suffix, Object body) {
+    Future<JsonObject> future = Future.future();
+    vertx.eventBus().<JsonObject>send(address(owner) + suffix, body, reply -> {
+      if (reply.succeeded()) {
+        future.complete(reply.result().body());
+      } else {
+        future.fail(reply.cause());
+      }
+    });
+    return future;
+  }
+
+  private void handleAdmin(Message<String> message) {
+    message.reply(report(message.body()));
+  }
+
+  private void handleRevokeUser(Message<String> message) {
+    authorizer.revokeLocalUser(message.body(), message::reply);
+  }
+
+  private JsonObject report(String report) {
+    if ("usage".equals(report)) {
+      return authorizer.getUsage();
+    }
+    JsonObject stats = new JsonObject()
+      .put("shard", shard)
+      .put("grants", authorizer.getGrantCount())
+      .put("accessTokens", authorizer.getAccessTokenCount())
+      .put("deviceCodes", authorizer.getDeviceCodeCount())
+      .put("footprint", authorizer.getFootprint())
+      .put("localRequests", localRequests)
+      .put("forwardedRequests", forwardedRequests)
+      .put("receivedRequests", receivedRequests);
+    authorizer.appendShardStats(stats);
+    return stats;
+  }
+
+  private String address(int shard) {
+    return addressPrefix + shard;
+  }
+}
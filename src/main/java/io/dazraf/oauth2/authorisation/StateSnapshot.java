@@ -0,0 +1,376 @@
+package io.dazraf.oauth2.authorisation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A compact binary image of the authorizer state, written on shutdown and memory-mapped on startup.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ *   header:         magic, version, writtenAt, counts and section offsets
+ *   names:          [clientID] ... [scope] ... [username] ... then authorisations as [clientID][scope] ...
+ *   grants:         columns of key (sorted), client, user, scopes, ttl, redirectURI offset
+ *   tokens:         columns of key (sorted), client, user, scopes, ttl
+ *   redirect URIs:  [redirectURI][nonce] ...
+ * </pre>
+ * Strings are an unsigned short length followed by UTF-8 bytes, with an empty nonce for none, so none may exceed
+ * 65535 bytes. Clients and users are indexes into their names (users -1 for none), and scopes are bitsets over the
+ * scope names, which are remapped to the current configuration when read. TTLs are the millis remaining at
+ * <code>writtenAt</code>.
+ * <p>
+ * Nothing is deserialised up front: lookups binary search the key column in the mapped file and only read the row
+ * that matches. Each row can be taken exactly once, either by a lookup or by the background hydration,
+ * after which the authorizer's own tables are the source of truth for it.
+ */
+final class StateSnapshot {
+  private static final Logger LOG = LoggerFactory.getLogger(StateSnapshot.class);
+
+  private static final int MAGIC = 0x4F413253; // "OA2S"
+  private static final int VERSION = 5;
+  private static final int HEADER_SIZE = 48;
+  private static final int GRANT_ROW_SIZE = 8 + 4 + 4 + 8 + 8 + 4;
+  private static final int TOKEN_ROW_SIZE = 8 + 4 + 4 + 8 + 8;
+  private static final int MAX_STRING_BYTES = 0xFFFF;
+
+  interface Sink {
+    void accept(long key, String clientID, String username, long scopes, long expiresAt, String redirectURI,
+                String nonce);
+  }
+
+  private final ByteBuffer buffer;
+  private final long writtenAt;
+  private final int grantCount;
+  private final int tokenCount;
+  private final int grantsOffset;
+  private final int tokensOffset;
+  private final List<String> clientIDs;
+  private final List<String> usernames;
+  private final long[] scopeBits;
+  private final List<Authorisation> authorisations;
+  private final BitSet takenGrants;
+  private final BitSet takenTokens;
+  private int nextGrant = 0;
+  private int nextToken = 0;
+
+  /**
+   * Write the state to <code>path</code>. The snapshot is written to a sibling temp file first and then moved into
+   * place, so a crash part way through never leaves a truncated snapshot behind.
+   *
+   * @param clientIDs client ids, indexed by the client column of the tables
+   * @param scopes scope names, indexed by bit
+   * @param usernames usernames, indexed by the user column of the tables
+   * @throws IOException if it cannot be written, or a string is too long for the format, in which case nothing is
+   *                     written
+   */
+  static void write(Path path, Collection<Authorisation> authorisations, List<String> clientIDs, List<String> scopes,
+                    List<String> usernames, KeyTable grants, KeyTable accessTokens, long now) throws IOException {
+    ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+    DataOutputStream nameOut = new DataOutputStream(nameBytes);
+    for (String clientID : clientIDs) {
+      writeString(nameOut, clientID);
+    }
+    for (String scope : scopes) {
+      writeString(nameOut, scope);
+    }
+    for (String username : usernames) {
+      writeString(nameOut, username);
+    }
+    for (Authorisation authorisation : authorisations) {
+      writeString(nameOut, authorisation.getClientID());
+      writeString(nameOut, authorisation.getScope());
+    }
+
+    // sorted keys are what make the mapped file searchable
+    long[] grantKeys = grants.keys();
+    long[] tokenKeys = accessTokens.keys();
+    Arrays.sort(grantKeys);
+    Arrays.sort(tokenKeys);
+
+    ByteArrayOutputStream redirectBytes = new ByteArrayOutputStream();
+    DataOutputStream redirectOut = new DataOutputStream(redirectBytes);
+    int[] redirectOffsets = new int[grantKeys.length];
+    for (int i = 0; i < grantKeys.length; i++) {
+      redirectOffsets[i] = redirectOut.size();
+      int slot = grants.indexOf(grantKeys[i]);
+      writeString(redirectOut, grants.redirectURIAt(slot));
+      writeString(redirectOut, grants.nonceAt(slot));
+    }
+
+    int grantsOffset = HEADER_SIZE + nameBytes.size();
+    int tokensOffset = grantsOffset + grantKeys.length * GRANT_ROW_SIZE;
+    int redirectsOffset = tokensOffset + tokenKeys.length * TOKEN_ROW_SIZE;
+    int size = redirectsOffset + redirectBytes.size();
+
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, CREATE, TRUNCATE_EXISTING, READ, WRITE)) {
+      MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      out.putInt(MAGIC)
+        .putInt(VERSION)
+        .putLong(now)
+        .putInt(clientIDs.size())
+        .putInt(scopes.size())
+        .putInt(usernames.size())
+        .putInt(authorisations.size())
+        .putInt(grantKeys.length)
+        .putInt(tokenKeys.length)
+        .putInt(grantsOffset)
+        .putInt(tokensOffset);
+      out.put(nameBytes.toByteArray());
+      writeColumns(out, grants, grantKeys, now);
+      for (int redirectOffset : redirectOffsets) {
+        out.putInt(redirectsOffset + redirectOffset);
+      }
+      writeColumns(out, accessTokens, tokenKeys, now);
+      out.put(redirectBytes.toByteArray());
+      out.force();
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    LOG.info("wrote snapshot of {} authorisations, {} grants and {} access tokens ({} bytes) to {}",
+      authorisations.size(), grantKeys.length, tokenKeys.length, size, path);
+  }
+
+  /**
+   * Map a snapshot previously written by {@link #write}. The file is deleted once mapped: the mapping stays valid,
+   * and a crash before the next clean shutdown must not resurrect grants that have since been redeemed.
+   *
+   * @param scopes the current scopes, which the snapshot's scope bits are translated to. Scopes that are no longer
+   *               configured are dropped.
+   * @return the snapshot, or null if there is no snapshot at <code>path</code>
+   */
+  static StateSnapshot open(Path path, ScopeRegistry scopes) throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    try {
+      Files.delete(path);
+    } catch (IOException e) {
+      LOG.warn("could not delete snapshot " + path + " after mapping it", e);
+    }
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("not a snapshot file: " + path);
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("unsupported snapshot version " + buffer.getInt(4) + " in " + path);
+    }
+    return new StateSnapshot(buffer, scopes);
+  }
+
+  private StateSnapshot(ByteBuffer buffer, ScopeRegistry scopes) {
+    this.buffer = buffer;
+    this.writtenAt = buffer.getLong(8);
+    int clientCount = buffer.getInt(16);
+    int scopeCount = buffer.getInt(20);
+    int userCount = buffer.getInt(24);
+    int authorisationCount = buffer.getInt(28);
+    this.grantCount = buffer.getInt(32);
+    this.tokenCount = buffer.getInt(36);
+    this.grantsOffset = buffer.getInt(40);
+    this.tokensOffset = buffer.getInt(44);
+    this.takenGrants = new BitSet(grantCount);
+    this.takenTokens = new BitSet(tokenCount);
+
+    // the names are few, and consents are needed by every /authorize, so they are read eagerly
+    int[] position = {HEADER_SIZE};
+    List<String> clients = new ArrayList<>(clientCount);
+    for (int i = 0; i < clientCount; i++) {
+      clients.add(readString(position));
+    }
+    this.clientIDs = clients;
+    this.scopeBits = new long[scopeCount];
+    for (int i = 0; i < scopeCount; i++) {
+      int bit = scopes.bitOf(readString(position));
+      scopeBits[i] = bit < 0 ? 0 : 1L << bit;
+    }
+    List<String> users = new ArrayList<>(userCount);
+    for (int i = 0; i < userCount; i++) {
+      users.add(readString(position));
+    }
+    this.usernames = users;
+    List<Authorisation> loaded = new ArrayList<>(authorisationCount);
+    for (int i = 0; i < authorisationCount; i++) {
+      loaded.add(Authorisation.create(readString(position), readString(position)));
+    }
+    this.authorisations = loaded;
+  }
+
+  List<Authorisation> getAuthorisations() {
+    return authorisations;
+  }
+
+  int size() {
+    return grantCount + tokenCount;
+  }
+
+  boolean isExhausted() {
+    return nextGrant >= grantCount && nextToken >= tokenCount;
+  }
+
+  /**
+   * Take a grant from the snapshot, handing it to <code>sink</code>
+   *
+   * @return false if it was not in the snapshot, has already been taken, or has expired
+   */
+  boolean takeGrant(long code, long now, Sink sink) {
+    int row = find(grantsOffset, grantCount, takenGrants, code);
+    return row >= 0 && read(grantsOffset, grantCount, takenGrants, true, row, now, sink);
+  }
+
+  /**
+   * Take an access token from the snapshot, handing it to <code>sink</code>
+   *
+   * @return false if it was not in the snapshot, has already been taken, or has expired
+   */
+  boolean takeAccessToken(long token, long now, Sink sink) {
+    int row = find(tokensOffset, tokenCount, takenTokens, token);
+    return row >= 0 && read(tokensOffset, tokenCount, takenTokens, false, row, now, sink);
+  }
+
+  /**
+   * Take up to <code>max</code> of the remaining rows, handing each live one to the relevant sink
+   *
+   * @return the number of rows consumed, live or expired
+   */
+  int hydrate(int max, long now, Sink grantSink, Sink tokenSink) {
+    int consumed = 0;
+    while (consumed < max && nextGrant < grantCount) {
+      int row = nextGrant++;
+      if (!takenGrants.get(row)) {
+        consumed++;
+        read(grantsOffset, grantCount, takenGrants, true, row, now, grantSink);
+      }
+    }
+    while (consumed < max && nextToken < tokenCount) {
+      int row = nextToken++;
+      if (!takenTokens.get(row)) {
+        consumed++;
+        read(tokensOffset, tokenCount, takenTokens, false, row, now, tokenSink);
+      }
+    }
+    return consumed;
+  }
+
+  /**
+   * Read one row of a grant or token section, whose columns are laid out one after the other
+   */
+  private boolean read(int offset, int count, BitSet taken, boolean forGrants, int row, long now, Sink sink) {
+    taken.set(row);
+    long expiresAt = writtenAt + buffer.getLong(offset + count * 24 + row * 8);
+    if (expiresAt <= now) {
+      return false;
+    }
+    String redirectURI = null;
+    String nonce = null;
+    if (forGrants) {
+      int[] position = {buffer.getInt(offset + count * 32 + row * 4)};
+      redirectURI = readString(position);
+      nonce = readString(position);
+      if (nonce.isEmpty()) {
+        nonce = null;
+      }
+    }
+    sink.accept(buffer.getLong(offset + row * 8),
+      clientIDs.get(buffer.getInt(offset + count * 8 + row * 4)),
+      userAt(buffer.getInt(offset + count * 12 + row * 4)),
+      remapScopes(buffer.getLong(offset + count * 16 + row * 8)),
+      expiresAt,
+      redirectURI,
+      nonce);
+    return true;
+  }
+
+  /**
+   * Binary search the sorted key column
+   *
+   * @return the row holding this key if it has not been taken, or -1
+   */
+  private int find(int keysOffset, int count, BitSet taken, long key) {
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long candidate = buffer.getLong(keysOffset + mid * 8);
+      if (candidate < key) {
+        low = mid + 1;
+      } else if (candidate > key) {
+        high = mid - 1;
+      } else {
+        return taken.get(mid) ? -1 : mid;
+      }
+    }
+    return -1;
+  }
+
+  private String userAt(int user) {
+    return user < 0 ? null : usernames.get(user);
+  }
+
+  private long remapScopes(long written) {
+    long current = 0;
+    for (long remaining = written; remaining != 0; remaining &= remaining - 1) {
+      int bit = Long.numberOfTrailingZeros(remaining);
+      if (bit < scopeBits.length) {
+        current |= scopeBits[bit];
+      }
+    }
+    return current;
+  }
+
+  private String readString(int[] position) {
+    int length = buffer.getShort(position[0]) & 0xFFFF;
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = buffer.get(position[0] + 2 + i);
+    }
+    position[0] += 2 + length;
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Write the key, client, user, scopes and ttl columns for <code>keys</code>, which must be sorted
+   */
+  private static void writeColumns(ByteBuffer out, KeyTable table, long[] keys, long now) {
+    for (long key : keys) {
+      out.putLong(key);
+    }
+    for (long key : keys) {
+      out.putInt(table.clientAt(table.indexOf(key)));
+    }
+    for (long key : keys) {
+      out.putInt(table.userAt(table.indexOf(key)));
+    }
+    for (long key : keys) {
+      out.putLong(table.scopesAt(table.indexOf(key)));
+    }
+    for (long key : keys) {
+      out.putLong(table.expiresAt(table.indexOf(key)) - now);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_STRING_BYTES) {
+      throw new IOException("cannot snapshot a string of " + bytes.length + " bytes, the limit is " + MAX_STRING_BYTES);
+    }
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+}
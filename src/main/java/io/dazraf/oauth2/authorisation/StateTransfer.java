@@ -0,0 +1,322 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.RecordParser;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import static io.dazraf.oauth2.util.HttpUtils.httpBadRequest;
+import static io.dazraf.oauth2.util.HttpUtils.httpServiceUnavailable;
+
+/**
+ * Streams the state of every shard out as NDJSON, and back in, for moving it between deployments or inspecting it
+ * offline. One record per line:
+ * <pre>
+ *   {"type":"export","version":1,"exported_at":...}
+ *   {"type":"consent","client_id":...,"scope":...}
+ *   {"type":"grant","code":...,"client_id":...,"username":...,"scope":...,"expires_at":...,"redirect_uri":...,"nonce":...}
+ *   {"type":"access_token","access_token":...,"client_id":...,"username":...,"scope":...,"expires_at":...}
+ * </pre>
+ * Expiries are in epoch millis, and <code>username</code> and <code>nonce</code> are left out if there is none.
+ * <p>
+ * Neither direction holds more than a page or a few batches of records at once, however large the state: the export
+ * only fetches the next page from a shard once the response has room for it, and the import pauses the request
+ * while the shards work through the batches it has parsed.
+ */
+class StateTransfer {
+  private static final Logger LOG = LoggerFactory.getLogger(StateTransfer.class);
+  static final int FORMAT_VERSION = 1;
+  static final int MAX_LINE_LENGTH = 64 * 1024;
+  private static final int IMPORT_BATCH_SIZE = 1000;
+  private static final int MAX_BATCHES_IN_FLIGHT = 4;
+  private static final String[] TABLES = {"grants", "accessTokens"};
+
+  private final Vertx vertx;
+  private final ShardRouter shards;
+  private final Collection<Authorisation> consents;
+
+  /**
+   * @param consents this shard's consents, which are replicated to every shard
+   */
+  static StateTransfer create(Vertx vertx, ShardRouter shards, Collection<Authorisation> consents) {
+    return new StateTransfer(vertx, shards, consents);
+  }
+
+  private StateTransfer(Vertx vertx, ShardRouter shards, Collection<Authorisation> consents) {
+    this.vertx = vertx;
+    this.shards = shards;
+    this.consents = consents;
+  }
+
+  /**
+   * Respond with the state of every shard as chunked NDJSON. A failure part way through closes the connection
+   * rather than ending the response, so a truncated export can't be mistaken for a complete one.
+   */
+  void export(RoutingContext context) {
+    HttpServerResponse response = context.response();
+    response.setChunked(true).putHeader("Content-Type", "application/x-ndjson");
+    StringBuilder head = new StringBuilder();
+    head.append(new JsonObject()
+      .put("type", "export")
+      .put("version", FORMAT_VERSION)
+      .put("exported_at", System.currentTimeMillis()).encode()).append('\n');
+    for (Authorisation consent : consents) {
+      head.append(new JsonObject()
+        .put("type", "consent")
+        .put("client_id", consent.getClientID())
+        .put("scope", consent.getScope()).encode()).append('\n');
+    }
+    response.write(head.toString());
+    exportPage(response, 0, 0, new JsonObject().put("table", TABLES[0]));
+  }
+
+  /**
+   * Polls {@link HttpServerResponse#closed()} rather than setting a close handler, as a response has only the one and
+   * the {@link io.dazraf.oauth2.util.RequestTracker} needs it to see the request finish
+   */
+  private void exportPage(HttpServerResponse response, int shard, int table, JsonObject cursor) {
+    if (response.closed()) {
+      LOG.info("export abandoned by the client at shard {}", shard);
+      return;
+    }
+    shards.exportPage(shard, cursor, page -> {
+      if (response.closed()) {
+        return;
+      }
+      if (page.failed()) {
+        LOG.error("export failed at shard " + shard, page.cause());
+        response.close();
+        return;
+      }
+      JsonObject next = page.result();
+      String records = (String) next.remove("records");
+      if (!records.isEmpty()) {
+        response.write(records);
+      }
+      // a turn of the event loop per page, so a long export neither grows the stack nor starves other requests
+      Runnable continuation = () -> vertx.runOnContext(v -> {
+        if (next.getInteger("offset") >= 0) {
+          exportPage(response, shard, table, next);
+        } else if (table + 1 < TABLES.length) {
+          exportPage(response, shard, table + 1, new JsonObject().put("table", TABLES[table + 1]));
+        } else if (shard + 1 < shards.getShardCount()) {
+          exportPage(response, shard + 1, 0, new JsonObject().put("table", TABLES[0]));
+        } else if (!response.closed()) {
+          response.end();
+        }
+      });
+      if (response.writeQueueFull()) {
+        response.drainHandler(v -> continuation.run());
+      } else {
+        continuation.run();
+      }
+    });
+  }
+
+  /**
+   * Read NDJSON, as written by {@link #export}, from the request body and import it into the shards that own each
+   * record. The body must not have been read already. Each record replaces any existing entry with the same key.
+   * An invalid record fails the import with a bad request, but the records before it will have been imported.
+   */
+  void importState(RoutingContext context) {
+    new Import(context).start();
+  }
+
+  private class Import {
+    private final RoutingContext context;
+    private final HttpServerRequest request;
+    private final JsonArray[] batches = new JsonArray[shards.getShardCount()];
+    private final RecordParser parser = RecordParser.newDelimited("\n", this::parseLine);
+    private long lineNumber = 0;
+    // bytes received but not yet parsed into a line
+    private long buffered = 0;
+    private int inFlight = 0;
+    private boolean ended = false;
+    private boolean finished = false;
+    private int consentCount = 0;
+    private int grantCount = 0;
+    private int accessTokenCount = 0;
+    private int expiredCount = 0;
+
+    Import(RoutingContext context) {
+      this.context = context;
+      this.request = context.request();
+      for (int i = 0; i < batches.length; i++) {
+        batches[i] = new JsonArray();
+      }
+    }
+
+    void start() {
+      request.handler(chunk -> {
+        if (finished) {
+          return;
+        }
+        buffered += chunk.length();
+        parser.handle(chunk);
+        if (buffered > MAX_LINE_LENGTH) {
+          fail("line " + (lineNumber + 1) + " is longer than " + MAX_LINE_LENGTH + " bytes");
+        }
+      });
+      request.endHandler(v -> {
+        if (finished) {
+          return;
+        }
+        // the last line needn't be terminated
+        parser.handle(Buffer.buffer("\n"));
+        ended = true;
+        for (int shard = 0; shard < batches.length; shard++) {
+          flush(shard);
+        }
+        finishIfDone();
+      });
+      request.resume();
+    }
+
+    private void parseLine(Buffer line) {
+      lineNumber++;
+      buffered -= line.length() + 1;
+      if (finished) {
+        return;
+      }
+      String text = line.toString(StandardCharsets.UTF_8.name()).trim();
+      if (text.isEmpty()) {
+        return;
+      }
+      try {
+        route(new JsonObject(text));
+      } catch (DecodeException e) {
+        fail("line " + lineNumber + " is not JSON");
+      } catch (ClassCastException e) {
+        fail("invalid record on line " + lineNumber + ": a field has the wrong type");
+      } catch (IllegalArgumentException e) {
+        fail("invalid record on line " + lineNumber + ": " + e.getMessage());
+      }
+    }
+
+    private void route(JsonObject record) {
+      String type = record.getString("type");
+      if ("export".equals(type)) {
+        if (record.getInteger("version", 0) != FORMAT_VERSION) {
+          throw new IllegalArgumentException("unsupported version " + record.getValue("version"));
+        }
+      } else if ("consent".equals(type)) {
+        require(record, "client_id");
+        require(record, "scope");
+        consentCount++;
+        for (int shard = 0; shard < batches.length; shard++) {
+          add(shard, record);
+        }
+      } else if ("grant".equals(type)) {
+        long code = TokenFountain.parseGrantCode(require(record, "code"));
+        requireEntry(record, code);
+        require(record, "redirect_uri");
+        String nonce = record.getString("nonce");
+        if (nonce != null && nonce.length() > InMemoryAuthorizer.MAX_NONCE_LENGTH) {
+          throw new IllegalArgumentException(
+            "nonce is longer than " + InMemoryAuthorizer.MAX_NONCE_LENGTH + " characters");
+        }
+        grantCount++;
+        add(shards.ownerOf(code), record);
+      } else if ("access_token".equals(type)) {
+        long accessToken = TokenFountain.parseAccessToken(require(record, "access_token"));
+        requireEntry(record, accessToken);
+        accessTokenCount++;
+        add(shards.ownerOf(accessToken), record);
+      } else {
+        throw new IllegalArgumentException("unknown type " + type);
+      }
+    }
+
+    private void requireEntry(JsonObject record, long key) {
+      if (key == 0) {
+        throw new IllegalArgumentException("malformed key");
+      }
+      require(record, "client_id");
+      if (record.getLong("expires_at") == null) {
+        throw new IllegalArgumentException("missing expires_at");
+      }
+      // checks the type, if present
+      record.getString("username");
+      record.getString("scope");
+    }
+
+    private String require(JsonObject record, String field) {
+      String value = record.getString(field);
+      if (value == null) {
+        throw new IllegalArgumentException("missing " + field);
+      }
+      return value;
+    }
+
+    private void add(int shard, JsonObject record) {
+      batches[shard].add(record);
+      if (batches[shard].size() >= IMPORT_BATCH_SIZE) {
+        flush(shard);
+      }
+    }
+
+    private void flush(int shard) {
+      if (batches[shard].isEmpty()) {
+        return;
+      }
+      JsonArray batch = batches[shard];
+      batches[shard] = new JsonArray();
+      inFlight++;
+      if (inFlight >= MAX_BATCHES_IN_FLIGHT) {
+        request.pause();
+      }
+      shards.importRecords(shard, batch, reply -> {
+        inFlight--;
+        if (reply.failed()) {
+          LOG.error("import failed at shard " + shard, reply.cause());
+          if (!finished) {
+            finished = true;
+            request.resume();
+            httpServiceUnavailable(context);
+          }
+          return;
+        }
+        expiredCount += reply.result().getInteger("expired", 0);
+        if (!ended && inFlight < MAX_BATCHES_IN_FLIGHT) {
+          request.resume();
+        }
+        finishIfDone();
+      });
+    }
+
+    private void finishIfDone() {
+      if (finished || !ended || inFlight > 0) {
+        return;
+      }
+      finished = true;
+      JsonObject imported = new JsonObject()
+        .put("consents", consentCount)
+        .put("grants", grantCount)
+        .put("accessTokens", accessTokenCount)
+        .put("expired", expiredCount);
+      LOG.info("imported {}", imported.encode());
+      context.response().putHeader("Content-Type", "application/json").end(imported.encodePrettily());
+    }
+
+    private void fail(String message) {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      LOG.warn("import failed: {}", message);
+      // read, and discard, the rest of the body
+      request.resume();
+      httpBadRequest(context, message);
+    }
+  }
+}
@@ -1,14 +1,217 @@
 package io.dazraf.oauth2.authorisation;
 
-import java.math.BigInteger;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
+/**
+ * Issues grant codes and access tokens that belong to one shard. A key's value modulo the shard count is its owning
+ * shard, which costs log2(shardCount) bits of randomness but lets any shard route a key without a lookup.
+ * <p>
+ * Keys are held as their binary value and only rendered as fixed-width base 32 strings at the edge: 7 characters
+ * for the 32 bit grant codes and 13 for the 64 bit access tokens. Fixed width keeps the string form canonical, so
+ * parsing is the exact inverse of formatting. 0 is never issued.
+ * <p>
+ * Device flow user codes are typed in by people, so they are 8 letters from an alphabet without vowels or look-alikes,
+ * shown as <code>WDJB-MJHT</code>, and parsed regardless of case or punctuation. The device code handed to the device
+ * is a 64 bit secret followed by its user code, so that either can find the pending request in one lookup.
+ */
 class TokenFountain {
-  private SecureRandom random = new SecureRandom();
-  public String nextGrantCode() {
-    return new BigInteger(32, random).toString(32);
+  private static final long GRANT_CODE_RANGE = 1L << 32;
+  private static final int GRANT_CODE_LENGTH = 7;
+  private static final int ACCESS_TOKEN_LENGTH = 13;
+  private static final char[] DIGITS = "0123456789abcdefghijklmnopqrstuv".toCharArray();
+  private static final char[] USER_CODE_DIGITS = "BCDFGHJKLMNPQRSTVWXZ".toCharArray();
+  private static final int USER_CODE_LENGTH = 8;
+  // 20^8, which fits in the 7 base 32 digits the device code carries it in
+  private static final long USER_CODE_RANGE = 25_600_000_000L;
+  private static final int DEVICE_CODE_LENGTH = ACCESS_TOKEN_LENGTH + GRANT_CODE_LENGTH;
+
+  private final SecureRandom random = new SecureRandom();
+  private final int shard;
+  private final int shardCount;
+
+  static TokenFountain create(int shard, int shardCount) {
+    return new TokenFountain(shard, shardCount);
+  }
+
+  private TokenFountain(int shard, int shardCount) {
+    this.shard = shard;
+    this.shardCount = shardCount;
+  }
+
+  public long nextGrantCode() {
+    long value;
+    do {
+      value = random.nextInt() & 0xFFFFFFFFL;
+      value = value - value % shardCount + shard;
+      if (value >= GRANT_CODE_RANGE) {
+        value -= shardCount;
+      }
+    } while (value == 0);
+    return value;
+  }
+
+  public long nextAccessToken() {
+    long value;
+    do {
+      long base = random.nextLong();
+      base -= Long.remainderUnsigned(base, shardCount);
+      value = base + shard;
+      if (Long.compareUnsigned(value, base) < 0) {
+        value -= shardCount;
+      }
+    } while (value == 0);
+    return value;
+  }
+
+  public long nextUserCode() {
+    long value;
+    do {
+      value = Long.remainderUnsigned(random.nextLong(), USER_CODE_RANGE);
+      value = value - value % shardCount + shard;
+      if (value >= USER_CODE_RANGE) {
+        value -= shardCount;
+      }
+    } while (value == 0);
+    return value;
   }
-  public String nextAccessToken() {
-    return new BigInteger(64, random).toString(32);
+
+  /**
+   * @return the secret half of a device code, which any value but 0 will do for
+   */
+  public long nextDeviceSecret() {
+    long value;
+    do {
+      value = random.nextLong();
+    } while (value == 0);
+    return value;
+  }
+
+  static String formatGrantCode(long code) {
+    return format(code, GRANT_CODE_LENGTH);
+  }
+
+  static String formatAccessToken(long token) {
+    return format(token, ACCESS_TOKEN_LENGTH);
+  }
+
+  static String formatUserCode(long userCode) {
+    char[] chars = new char[USER_CODE_LENGTH + 1];
+    for (int i = USER_CODE_LENGTH; i >= 0; i--) {
+      if (i == USER_CODE_LENGTH / 2) {
+        chars[i] = '-';
+        continue;
+      }
+      chars[i] = USER_CODE_DIGITS[(int) (userCode % USER_CODE_DIGITS.length)];
+      userCode /= USER_CODE_DIGITS.length;
+    }
+    return new String(chars);
+  }
+
+  static String formatDeviceCode(long secret, long userCode) {
+    return format(secret, ACCESS_TOKEN_LENGTH) + format(userCode, GRANT_CODE_LENGTH);
+  }
+
+  /**
+   * @return the user code's value, or 0 if it is not a well formed user code. Case, spaces and dashes are ignored.
+   */
+  static long parseUserCode(String userCode) {
+    if (userCode == null) {
+      return 0;
+    }
+    long value = 0;
+    int digits = 0;
+    for (int i = 0; i < userCode.length(); i++) {
+      char c = Character.toUpperCase(userCode.charAt(i));
+      if (c == '-' || c == ' ') {
+        continue;
+      }
+      int digit = Arrays.binarySearch(USER_CODE_DIGITS, c);
+      if (digit < 0 || ++digits > USER_CODE_LENGTH) {
+        return 0;
+      }
+      value = value * USER_CODE_DIGITS.length + digit;
+    }
+    return digits == USER_CODE_LENGTH ? value : 0;
+  }
+
+  /**
+   * @return the value of the user code a device code was issued with, or 0 if it is not a well formed device code
+   */
+  static long parseDeviceUserCode(String deviceCode) {
+    if (deviceCode == null || deviceCode.length() != DEVICE_CODE_LENGTH) {
+      return 0;
+    }
+    long value = parse(deviceCode.substring(ACCESS_TOKEN_LENGTH), GRANT_CODE_LENGTH);
+    return value < USER_CODE_RANGE ? value : 0;
+  }
+
+  /**
+   * @return the secret half of a device code, or 0 if it is not a well formed device code
+   */
+  static long parseDeviceSecret(String deviceCode) {
+    return deviceCode != null && deviceCode.length() == DEVICE_CODE_LENGTH
+      ? parseAccessToken(deviceCode.substring(0, ACCESS_TOKEN_LENGTH)) : 0;
+  }
+
+  /**
+   * @return the code's value, or 0 if it is not a well formed grant code
+   */
+  static long parseGrantCode(String code) {
+    long value = parse(code, GRANT_CODE_LENGTH);
+    return value < GRANT_CODE_RANGE ? value : 0;
+  }
+
+  /**
+   * @return the token's value, or 0 if it is not a well formed access token
+   */
+  static long parseAccessToken(String token) {
+    // 13 digits hold 65 bits, so the leading digit may only use the low 4
+    return token != null && token.length() == ACCESS_TOKEN_LENGTH && digit(token.charAt(0)) < 16
+      ? parse(token, ACCESS_TOKEN_LENGTH) : 0;
+  }
+
+  /**
+   * @return the shard that issued <code>key</code>, or -1 for 0, which no shard issues
+   */
+  static int shardOf(long key, int shardCount) {
+    if (key == 0) {
+      return -1;
+    }
+    return (int) Long.remainderUnsigned(key, shardCount);
+  }
+
+  private static String format(long value, int length) {
+    char[] chars = new char[length];
+    for (int i = length - 1; i >= 0; i--) {
+      chars[i] = DIGITS[(int) (value & 31)];
+      value >>>= 5;
+    }
+    return new String(chars);
+  }
+
+  private static long parse(String text, int length) {
+    if (text == null || text.length() != length) {
+      return 0;
+    }
+    long value = 0;
+    for (int i = 0; i < length; i++) {
+      int digit = digit(text.charAt(i));
+      if (digit < 0) {
+        return 0;
+      }
+      value = (value << 5) | digit;
+    }
+    return value;
+  }
+
+  private static int digit(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    if (c >= 'a' && c <= 'v') {
+      return c - 'a' + 10;
+    }
+    return -1;
   }
 }
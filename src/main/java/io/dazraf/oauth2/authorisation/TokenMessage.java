@@ -0,0 +1,168 @@
+package io.dazraf.oauth2.authorisation;
+
+/**
+ * Request and reply body for the token event bus service. Instances are immutable, so local delivery can hand the
+ * same instance to the consumer without copying it. See {@link TokenMessageCodec} for the wire format.
+ */
+public final class TokenMessage {
+
+  public enum Op {
+    VALIDATE, ISSUE, ACTIVE, INACTIVE, ISSUED, ERROR;
+
+    private static final Op[] VALUES = values();
+
+    static Op valueOf(int ordinal) {
+      return VALUES[ordinal];
+    }
+  }
+
+  private final Op op;
+  private final String accessToken;
+  private final String clientID;
+  private final String redirectURI;
+  private final String code;
+  private final String grantType;
+  private final String scope;
+  private final int expiresIn;
+  private final String error;
+  private final String errorDescription;
+  private final String idToken;
+  private final String audience;
+  // not on the wire: only set, and meaningful, within the deployment that looked the token up
+  private final long scopeBits;
+
+  /**
+   * Ask whether an access token is valid
+   */
+  public static TokenMessage validate(String accessToken) {
+    return new TokenMessage(Op.VALIDATE, accessToken, null, null, null, null, null, 0, null, null, null, null);
+  }
+
+  /**
+   * Ask for an access token in exchange for a grant code, exactly as for the /token end point
+   */
+  public static TokenMessage issue(String clientID, String redirectURI, String code, String grantType) {
+    return new TokenMessage(Op.ISSUE, null, clientID, redirectURI, code, grantType, null, 0, null, null, null, null);
+  }
+
+  /**
+   * Ask for an access token for some or all of the scopes of <code>subjectToken</code>, exactly as for a token exchange
+   * at the /token end point.
+   *
+   * @param scope the scopes wanted, or null for all of the subject token's
+   * @param audience the client the new token is for, or null for <code>clientID</code>
+   */
+  public static TokenMessage exchange(String clientID, String subjectToken, String scope, String audience) {
+    return new TokenMessage(Op.ISSUE, null, clientID, null, subjectToken, AccessRequest.TOKEN_EXCHANGE, scope, 0, null,
+      null, null, audience);
+  }
+
+  static TokenMessage active(String clientID, String scope, long scopeBits, int expiresIn) {
+    return new TokenMessage(Op.ACTIVE, null, clientID, null, null, null, scope, expiresIn, null, null, null, null,
+      scopeBits);
+  }
+
+  static TokenMessage inactive() {
+    return new TokenMessage(Op.INACTIVE, null, null, null, null, null, null, 0, null, null, null, null);
+  }
+
+  /**
+   * @param idToken the OpenID Connect id_token issued along with the access token, or null
+   */
+  static TokenMessage issued(String accessToken, String scope, int expiresIn, String idToken) {
+    return new TokenMessage(Op.ISSUED, accessToken, null, null, null, null, scope, expiresIn, null, null, idToken,
+      null);
+  }
+
+  static TokenMessage error(String error, String errorDescription) {
+    return new TokenMessage(Op.ERROR, null, null, null, null, null, null, 0, error, errorDescription, null, null);
+  }
+
+  TokenMessage(Op op, String accessToken, String clientID, String redirectURI, String code, String grantType,
+               String scope, int expiresIn, String error, String errorDescription, String idToken,
+               String audience) {
+    this(op, accessToken, clientID, redirectURI, code, grantType, scope, expiresIn, error, errorDescription, idToken,
+      audience, 0);
+  }
+
+  private TokenMessage(Op op, String accessToken, String clientID, String redirectURI, String code, String grantType,
+                       String scope, int expiresIn, String error, String errorDescription, String idToken,
+                       String audience, long scopeBits) {
+    this.op = op;
+    this.accessToken = accessToken;
+    this.clientID = clientID;
+    this.redirectURI = redirectURI;
+    this.code = code;
+    this.grantType = grantType;
+    this.scope = scope;
+    this.expiresIn = expiresIn;
+    this.error = error;
+    this.errorDescription = errorDescription;
+    this.idToken = idToken;
+    this.audience = audience;
+    this.scopeBits = scopeBits;
+  }
+
+  public Op getOp() {
+    return op;
+  }
+
+  public boolean isActive() {
+    return op == Op.ACTIVE;
+  }
+
+  public boolean isError() {
+    return op == Op.ERROR;
+  }
+
+  public String getAccessToken() {
+    return accessToken;
+  }
+
+  public String getClientID() {
+    return clientID;
+  }
+
+  public String getRedirectURI() {
+    return redirectURI;
+  }
+
+  public String getCode() {
+    return code;
+  }
+
+  public String getGrantType() {
+    return grantType;
+  }
+
+  public String getScope() {
+    return scope;
+  }
+
+  public int getExpiresIn() {
+    return expiresIn;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  public String getErrorDescription() {
+    return errorDescription;
+  }
+
+  public String getIdToken() {
+    return idToken;
+  }
+
+  /**
+   * @return the client a token exchange is for, or null for the requesting client
+   */
+  public String getAudience() {
+    return audience;
+  }
+
+  long getScopeBits() {
+    return scopeBits;
+  }
+}
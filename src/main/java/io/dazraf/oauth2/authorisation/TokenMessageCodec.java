@@ -0,0 +1,112 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.MessageCodec;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary codec for {@link TokenMessage}.
+ * <p>
+ * Wire format: op (byte), expiresIn (int), then accessToken, clientID, redirectURI, code, grantType, scope, error,
+ * errorDescription, idToken and audience, each as an unsigned short length (0xFFFF for null) followed by UTF-8 bytes.
+ * A string can therefore be at most 65534 bytes, and encoding a longer one fails rather than truncating it.
+ * Local delivery skips the wire format entirely and passes the immutable message straight through.
+ */
+public class TokenMessageCodec implements MessageCodec<TokenMessage, TokenMessage> {
+  public static final String NAME = "oauth2-token";
+  private static final int NULL_LENGTH = 0xFFFF;
+  static final int MAX_LENGTH = NULL_LENGTH - 1;
+
+  /**
+   * Register the codec as the default for {@link TokenMessage}. Safe to call more than once, e.g. once per
+   * verticle instance.
+   */
+  public static synchronized void register(EventBus eventBus) {
+    try {
+      eventBus.registerDefaultCodec(TokenMessage.class, new TokenMessageCodec());
+    } catch (IllegalStateException alreadyRegistered) {
+      // another verticle instance on this event bus got here first
+    }
+  }
+
+  /**
+   * @throws IllegalArgumentException if one of the message's strings is longer than {@link #MAX_LENGTH} bytes
+   */
+  @Override
+  public void encodeToWire(Buffer buffer, TokenMessage message) {
+    buffer.appendByte((byte) message.getOp().ordinal());
+    buffer.appendInt(message.getExpiresIn());
+    appendString(buffer, message.getAccessToken());
+    appendString(buffer, message.getClientID());
+    appendString(buffer, message.getRedirectURI());
+    appendString(buffer, message.getCode());
+    appendString(buffer, message.getGrantType());
+    appendString(buffer, message.getScope());
+    appendString(buffer, message.getError());
+    appendString(buffer, message.getErrorDescription());
+    appendString(buffer, message.getIdToken());
+    appendString(buffer, message.getAudience());
+  }
+
+  @Override
+  public TokenMessage decodeFromWire(int pos, Buffer buffer) {
+    int[] position = {pos};
+    TokenMessage.Op op = TokenMessage.Op.valueOf(buffer.getByte(position[0]));
+    int expiresIn = buffer.getInt(position[0] + 1);
+    position[0] += 5;
+    return new TokenMessage(op,
+      readString(buffer, position),
+      readString(buffer, position),
+      readString(buffer, position),
+      readString(buffer, position),
+      readString(buffer, position),
+      readString(buffer, position),
+      expiresIn,
+      readString(buffer, position),
+      readString(buffer, position),
+      readString(buffer, position),
+      readString(buffer, position));
+  }
+
+  @Override
+  public TokenMessage transform(TokenMessage message) {
+    return message;
+  }
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public byte systemCodecID() {
+    return -1;
+  }
+
+  private static void appendString(Buffer buffer, String value) {
+    if (value == null) {
+      buffer.appendUnsignedShort(NULL_LENGTH);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_LENGTH) {
+      throw new IllegalArgumentException("a string of " + bytes.length + " bytes is longer than the " + MAX_LENGTH
+        + " a token message can carry");
+    }
+    buffer.appendUnsignedShort(bytes.length);
+    buffer.appendBytes(bytes);
+  }
+
+  private static String readString(Buffer buffer, int[] position) {
+    int length = buffer.getUnsignedShort(position[0]);
+    position[0] += 2;
+    if (length == NULL_LENGTH) {
+      return null;
+    }
+    String value = buffer.getString(position[0], position[0] + length, "UTF-8");
+    position[0] += length;
+    return value;
+  }
+}
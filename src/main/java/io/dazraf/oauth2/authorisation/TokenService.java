@@ -0,0 +1,62 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves token validation and issuance from an {@link InMemoryAuthorizer} over the event bus, so that services in
+ * the same Vert.x instance or cluster can skip TLS, HTTP parsing and the router. Use {@link TokenServiceClient} to
+ * call it.
+ */
+public class TokenService {
+  private static final Logger LOG = LoggerFactory.getLogger(TokenService.class);
+  public static final String DEFAULT_ADDRESS = "oauth2.token";
+
+  private final InMemoryAuthorizer authorizer;
+
+  /**
+   * Start serving on <code>address</code>
+   *
+   * @return the consumer, to unregister when the service should stop
+   */
+  public static MessageConsumer<TokenMessage> bind(Vertx vertx, String address, InMemoryAuthorizer authorizer) {
+    TokenMessageCodec.register(vertx.eventBus());
+    TokenService service = new TokenService(authorizer);
+    return vertx.eventBus().consumer(address, service::handle);
+  }
+
+  private TokenService(InMemoryAuthorizer authorizer) {
+    this.authorizer = authorizer;
+  }
+
+  private void handle(Message<TokenMessage> message) {
+    TokenMessage request = message.body();
+    try {
+      switch (request.getOp()) {
+        case VALIDATE:
+          authorizer.validateToken(request.getAccessToken(), reply -> replyWith(message, reply));
+          break;
+        case ISSUE:
+          authorizer.issueToken(AccessRequest.create(request), reply -> replyWith(message, reply));
+          break;
+        default:
+          message.fail(400, "unsupported operation: " + request.getOp());
+      }
+    } catch (Throwable e) {
+      LOG.error("failed to handle " + request.getOp(), e);
+      message.fail(500, e.getMessage());
+    }
+  }
+
+  private static void replyWith(Message<TokenMessage> message, AsyncResult<TokenMessage> reply) {
+    if (reply.succeeded()) {
+      message.reply(reply.result());
+    } else {
+      message.fail(503, reply.cause().getMessage());
+    }
+  }
+}
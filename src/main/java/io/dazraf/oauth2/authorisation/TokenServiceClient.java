@@ -0,0 +1,70 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+
+/**
+ * Client for the {@link TokenService}. Replies are {@link TokenMessage}s:
+ * <ul>
+ *   <li>validate: {@link TokenMessage.Op#ACTIVE} with the client id, scope and seconds to expiry,
+ *   or {@link TokenMessage.Op#INACTIVE}</li>
+ *   <li>issue and exchange: {@link TokenMessage.Op#ISSUED} with the access token, scope and seconds to expiry, and an
+ *   id_token if the openid scope was granted,
+ *   or {@link TokenMessage.Op#ERROR} with an OAuth2 error code and description</li>
+ * </ul>
+ */
+public class TokenServiceClient {
+  private static final long DEFAULT_TIMEOUT = 5000;
+
+  private final Vertx vertx;
+  private final String address;
+  private final DeliveryOptions deliveryOptions;
+
+  public static TokenServiceClient create(Vertx vertx) {
+    return new TokenServiceClient(vertx, TokenService.DEFAULT_ADDRESS, DEFAULT_TIMEOUT);
+  }
+
+  public static TokenServiceClient create(Vertx vertx, String address, long timeoutMillis) {
+    return new TokenServiceClient(vertx, address, timeoutMillis);
+  }
+
+  private TokenServiceClient(Vertx vertx, String address, long timeoutMillis) {
+    TokenMessageCodec.register(vertx.eventBus());
+    this.vertx = vertx;
+    this.address = address;
+    this.deliveryOptions = new DeliveryOptions().setSendTimeout(timeoutMillis);
+  }
+
+  public void validate(String accessToken, Handler<AsyncResult<TokenMessage>> handler) {
+    send(TokenMessage.validate(accessToken), handler);
+  }
+
+  public void issue(String clientID, String redirectURI, String code, String grantType,
+                    Handler<AsyncResult<TokenMessage>> handler) {
+    send(TokenMessage.issue(clientID, redirectURI, code, grantType), handler);
+  }
+
+  /**
+   * Exchange an access token for one with some or all of its scopes, for the same or another client
+   *
+   * @param scope the scopes wanted, or null for all of the subject token's
+   * @param audience the client the new token is for, or null for <code>clientID</code>
+   */
+  public void exchange(String clientID, String subjectToken, String scope, String audience,
+                       Handler<AsyncResult<TokenMessage>> handler) {
+    send(TokenMessage.exchange(clientID, subjectToken, scope, audience), handler);
+  }
+
+  private void send(TokenMessage request, Handler<AsyncResult<TokenMessage>> handler) {
+    vertx.eventBus().<TokenMessage>send(address, request, deliveryOptions, reply -> {
+      if (reply.succeeded()) {
+        handler.handle(Future.succeededFuture(reply.result().body()));
+      } else {
+        handler.handle(Future.failedFuture(reply.cause()));
+      }
+    });
+  }
+}
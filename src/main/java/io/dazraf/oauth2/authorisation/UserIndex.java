@@ -0,0 +1,192 @@
+package io.dazraf.oauth2.authorisation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongPredicate;
+
+/**
+ * Secondary index from each resource owner to the grants and access tokens issued on their behalf, so they can be
+ * revoked without scanning the stores.
+ * <p>
+ * Usernames are interned to an index, which the stores hold in a column. Each user's keys are queued in issue order
+ * as for {@link ClientUsage}: removals are counted straight away, and the keys themselves are popped or compacted
+ * lazily, so the queues may hold keys that are no longer live. A user's queues are released once nothing of theirs
+ * is live. Not thread safe: each shard keeps its own.
+ */
+class UserIndex {
+  static final int NO_USER = -1;
+
+  private final Map<String, Integer> indexes = new HashMap<>();
+  private final List<String> names = new ArrayList<>();
+  private final List<Entries> entries = new ArrayList<>();
+
+  static UserIndex create() {
+    return new UserIndex();
+  }
+
+  private UserIndex() {
+  }
+
+  /**
+   * @return the user's index, assigning one if they don't have one yet, or {@link #NO_USER} for null
+   */
+  int indexOf(String username) {
+    if (username == null) {
+      return NO_USER;
+    }
+    Integer index = indexes.get(username);
+    if (index == null) {
+      index = names.size();
+      indexes.put(username, index);
+      names.add(username);
+      entries.add(null);
+    }
+    return index;
+  }
+
+  /**
+   * @return the user's index, or {@link #NO_USER} if nothing has been issued to them
+   */
+  int find(String username) {
+    Integer index = indexes.get(username);
+    return index == null ? NO_USER : index;
+  }
+
+  /**
+   * @return the number of usernames interned, including those with nothing live
+   */
+  int size() {
+    return names.size();
+  }
+
+  /**
+   * @return the keys queued for all users, including any that have since been removed but not yet popped or compacted
+   */
+  int queuedKeys() {
+    int queued = 0;
+    for (Entries userEntries : entries) {
+      if (userEntries != null) {
+        queued += userEntries.grants.size() + userEntries.tokens.size();
+      }
+    }
+    return queued;
+  }
+
+  String nameOf(int user) {
+    return user == NO_USER ? null : names.get(user);
+  }
+
+  /**
+   * @return usernames, indexed by user
+   */
+  List<String> getNames() {
+    return names;
+  }
+
+  void grantAdded(int user, long code) {
+    if (user != NO_USER) {
+      entriesOf(user).grantAdded(code);
+    }
+  }
+
+  void tokenAdded(int user, long token) {
+    if (user != NO_USER) {
+      entriesOf(user).tokenAdded(token);
+    }
+  }
+
+  /**
+   * @param isLive whether a key is still live and this user's, for compacting the queue
+   */
+  void grantRemoved(int user, long code, LongPredicate isLive) {
+    Entries userEntries = user == NO_USER ? null : entries.get(user);
+    if (userEntries != null) {
+      userEntries.liveGrants--;
+      userEntries.grants.removed(code, userEntries.liveGrants, isLive);
+      releaseIfEmpty(user, userEntries);
+    }
+  }
+
+  /**
+   * @param isLive whether a key is still live and this user's, for compacting the queue
+   */
+  void tokenRemoved(int user, long token, LongPredicate isLive) {
+    Entries userEntries = user == NO_USER ? null : entries.get(user);
+    if (userEntries != null) {
+      userEntries.liveTokens--;
+      userEntries.tokens.removed(token, userEntries.liveTokens, isLive);
+      releaseIfEmpty(user, userEntries);
+    }
+  }
+
+  void grantsCleared() {
+    for (int user = 0; user < entries.size(); user++) {
+      Entries userEntries = entries.get(user);
+      if (userEntries != null) {
+        userEntries.grants.clear();
+        userEntries.liveGrants = 0;
+        releaseIfEmpty(user, userEntries);
+      }
+    }
+  }
+
+  /**
+   * @return the user's queued grant codes, oldest first, some of which may no longer be live
+   */
+  long[] grantsOf(int user) {
+    Entries userEntries = user == NO_USER ? null : entries.get(user);
+    return userEntries == null ? new long[0] : userEntries.grants.toArray();
+  }
+
+  /**
+   * @return the user's queued access tokens, oldest first, some of which may no longer be live
+   */
+  long[] tokensOf(int user) {
+    Entries userEntries = user == NO_USER ? null : entries.get(user);
+    return userEntries == null ? new long[0] : userEntries.tokens.toArray();
+  }
+
+  int liveGrants(int user) {
+    Entries userEntries = user == NO_USER ? null : entries.get(user);
+    return userEntries == null ? 0 : userEntries.liveGrants;
+  }
+
+  int liveTokens(int user) {
+    Entries userEntries = user == NO_USER ? null : entries.get(user);
+    return userEntries == null ? 0 : userEntries.liveTokens;
+  }
+
+  private Entries entriesOf(int user) {
+    Entries userEntries = entries.get(user);
+    if (userEntries == null) {
+      userEntries = new Entries();
+      entries.set(user, userEntries);
+    }
+    return userEntries;
+  }
+
+  private void releaseIfEmpty(int user, Entries userEntries) {
+    if (userEntries.liveGrants <= 0 && userEntries.liveTokens <= 0) {
+      entries.set(user, null);
+    }
+  }
+
+  private static class Entries {
+    private final KeyQueue grants = new KeyQueue();
+    private final KeyQueue tokens = new KeyQueue();
+    private int liveGrants = 0;
+    private int liveTokens = 0;
+
+    void grantAdded(long code) {
+      grants.addLast(code);
+      liveGrants++;
+    }
+
+    void tokenAdded(long token) {
+      tokens.addLast(token);
+      liveTokens++;
+    }
+  }
+}
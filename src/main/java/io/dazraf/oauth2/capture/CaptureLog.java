@@ -0,0 +1,241 @@
+package io.dazraf.oauth2.capture;
+
+import io.vertx.core.http.HttpMethod;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary format of a capture: a sequence of self-contained blocks, so that several writers can append to the one
+ * file as long as each block is a single append.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ *   block:    magic, version, baseMicros, body length, then the records
+ *   record:   start, method, path, status, latency, session, param count, then its params
+ *   param:    name, kind, then a value for VALUE or a pseudonym for SECRET and ISSUED
+ * </pre>
+ * Start is the signed offset in micros from the block's <code>baseMicros</code>, session and pseudonyms are 8 bytes,
+ * and every other number is an unsigned varint. A string is an index into the block's dictionary of the strings seen
+ * so far, and is followed by its varint length and UTF-8 bytes if it is the next new one, so that a path or a client
+ * id costs a byte or two after the first time.
+ */
+public final class CaptureLog {
+  private static final int MAGIC = 0x4F413243; // "OA2C"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+  private static final HttpMethod[] METHODS = HttpMethod.values();
+  private static final CapturedRequest.Param.Kind[] KINDS = CapturedRequest.Param.Kind.values();
+
+  private CaptureLog() {
+  }
+
+  /**
+   * @return every request in the blocks of <code>in</code>, in the order they were written
+   * @throws IOException if <code>in</code> doesn't hold whole blocks
+   */
+  public static List<CapturedRequest> read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    List<CapturedRequest> requests = new ArrayList<>();
+    while (true) {
+      int magic;
+      try {
+        magic = data.readInt();
+      } catch (EOFException e) {
+        return requests;
+      }
+      if (magic != MAGIC) {
+        throw new IOException("not a capture block at request " + requests.size());
+      }
+      int version = data.readInt();
+      if (version != VERSION) {
+        throw new IOException("unsupported capture version " + version);
+      }
+      long baseMicros = data.readLong();
+      byte[] body = new byte[data.readInt()];
+      data.readFully(body);
+      new BlockReader(body, baseMicros).readAll(requests);
+    }
+  }
+
+  /**
+   * Encodes requests into a block until it is taken. Not thread safe.
+   */
+  public static final class Writer {
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private long baseMicros = -1;
+
+    public void write(CapturedRequest request) {
+      if (baseMicros < 0) {
+        baseMicros = request.getStartMicros();
+      }
+      long offset = request.getStartMicros() - baseMicros;
+      writeVarint((offset << 1) ^ (offset >> 63));
+      body.write(request.getMethod().ordinal());
+      writeString(request.getPath());
+      writeVarint(request.getStatus());
+      writeVarint(Math.max(0, request.getLatencyMicros()));
+      writeLong(request.getSession());
+      writeVarint(request.getParams().size());
+      for (CapturedRequest.Param param : request.getParams()) {
+        writeString(param.getName());
+        body.write(param.getKind().ordinal());
+        if (param.getKind() == CapturedRequest.Param.Kind.VALUE) {
+          writeString(param.getValue());
+        } else {
+          writeLong(param.getPseudonym());
+        }
+      }
+    }
+
+    /**
+     * @return the size of the block's body so far, in bytes
+     */
+    public int size() {
+      return body.size();
+    }
+
+    /**
+     * @return the block of what has been written since it was last taken, or an empty array if nothing has, and
+     * start a new one
+     */
+    public byte[] takeBlock() {
+      if (body.size() == 0) {
+        return new byte[0];
+      }
+      byte[] block = new byte[HEADER_SIZE + body.size()];
+      putInt(block, 0, MAGIC);
+      putInt(block, 4, VERSION);
+      for (int i = 0; i < 8; i++) {
+        block[8 + i] = (byte) (baseMicros >>> (56 - 8 * i));
+      }
+      putInt(block, 16, body.size());
+      System.arraycopy(body.toByteArray(), 0, block, HEADER_SIZE, body.size());
+      body.reset();
+      dictionary.clear();
+      baseMicros = -1;
+      return block;
+    }
+
+    private void writeString(String value) {
+      Integer index = dictionary.get(value);
+      if (index != null) {
+        writeVarint(index);
+        return;
+      }
+      writeVarint(dictionary.size());
+      dictionary.put(value, dictionary.size());
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarint(bytes.length);
+      body.write(bytes, 0, bytes.length);
+    }
+
+    private void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        body.write((int) (value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      body.write((int) value);
+    }
+
+    private void writeLong(long value) {
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        body.write((int) (value >>> shift));
+      }
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+      for (int i = 0; i < 4; i++) {
+        bytes[offset + i] = (byte) (value >>> (24 - 8 * i));
+      }
+    }
+  }
+
+  private static final class BlockReader {
+    private final byte[] body;
+    private final long baseMicros;
+    private final List<String> dictionary = new ArrayList<>();
+    private int position = 0;
+
+    BlockReader(byte[] body, long baseMicros) {
+      this.body = body;
+      this.baseMicros = baseMicros;
+    }
+
+    void readAll(List<CapturedRequest> requests) throws IOException {
+      try {
+        while (position < body.length) {
+          long offset = readVarint();
+          long startMicros = baseMicros + ((offset >>> 1) ^ -(offset & 1));
+          HttpMethod method = METHODS[body[position++]];
+          String path = readString();
+          int status = (int) readVarint();
+          long latencyMicros = readVarint();
+          long session = readLong();
+          int paramCount = (int) readVarint();
+          List<CapturedRequest.Param> params = new ArrayList<>(Math.min(paramCount, 16));
+          for (int i = 0; i < paramCount; i++) {
+            String name = readString();
+            CapturedRequest.Param.Kind kind = KINDS[body[position++]];
+            switch (kind) {
+              case VALUE:
+                params.add(CapturedRequest.Param.value(name, readString()));
+                break;
+              case SECRET:
+                params.add(CapturedRequest.Param.secret(name, readLong()));
+                break;
+              default:
+                params.add(CapturedRequest.Param.issued(name, readLong()));
+            }
+          }
+          requests.add(new CapturedRequest(startMicros, method, path, status, latencyMicros, session, params));
+        }
+      } catch (IndexOutOfBoundsException e) {
+        throw new IOException("corrupt capture block at request " + requests.size(), e);
+      }
+    }
+
+    private String readString() throws IOException {
+      int index = (int) readVarint();
+      if (index < dictionary.size()) {
+        return dictionary.get(index);
+      }
+      if (index != dictionary.size()) {
+        throw new IOException("string " + index + " isn't in the dictionary");
+      }
+      int length = (int) readVarint();
+      String value = new String(body, position, length, StandardCharsets.UTF_8);
+      position += length;
+      dictionary.add(value);
+      return value;
+    }
+
+    private long readVarint() {
+      long value = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = body[position++];
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+    }
+
+    private long readLong() {
+      long value = 0;
+      for (int i = 0; i < 8; i++) {
+        value = (value << 8) | (body[position++] & 0xFF);
+      }
+      return value;
+    }
+  }
+}
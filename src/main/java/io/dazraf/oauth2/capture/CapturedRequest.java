@@ -0,0 +1,139 @@
+package io.dazraf.oauth2.capture;
+
+import io.vertx.core.http.HttpMethod;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What {@link TrafficCapture} keeps of a request: when it arrived, where it went, its parameters with any secret
+ * values replaced by pseudonyms, and how the server answered. Times are in microseconds.
+ * <p>
+ * A pseudonym is a keyed hash of a value, with a key that is never written down, so the same token, code or user gets
+ * the same pseudonym throughout a capture, but what it stands for can't be recovered from it.
+ */
+public final class CapturedRequest {
+  private final long startMicros;
+  private final HttpMethod method;
+  private final String path;
+  private final int status;
+  private final long latencyMicros;
+  private final long session;
+  private final List<Param> params;
+
+  public CapturedRequest(long startMicros, HttpMethod method, String path, int status, long latencyMicros,
+                         long session, List<Param> params) {
+    this.startMicros = startMicros;
+    this.method = method;
+    this.path = path;
+    this.status = status;
+    this.latencyMicros = latencyMicros;
+    this.session = session;
+    this.params = Collections.unmodifiableList(new ArrayList<>(params));
+  }
+
+  /**
+   * @return when the request arrived, in microseconds since the epoch
+   */
+  public long getStartMicros() {
+    return startMicros;
+  }
+
+  public HttpMethod getMethod() {
+    return method;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  /**
+   * @return from the request arriving to the last of its response being written
+   */
+  public long getLatencyMicros() {
+    return latencyMicros;
+  }
+
+  /**
+   * @return the pseudonym of the request's session, or 0 if it had none
+   */
+  public long getSession() {
+    return session;
+  }
+
+  public List<Param> getParams() {
+    return params;
+  }
+
+  /**
+   * @return the method and path, which is what latencies are reported by
+   */
+  public String getEndpoint() {
+    return method + " " + path;
+  }
+
+  /**
+   * A parameter of the request, in the order they were given, or something the response issued
+   */
+  public static final class Param {
+    public enum Kind {
+      /** A parameter that isn't secret, with its value */
+      VALUE,
+      /** A secret parameter, with the pseudonym of its value */
+      SECRET,
+      /** A secret the response issued, such as the code in a redirect, with its pseudonym */
+      ISSUED
+    }
+
+    private final String name;
+    private final Kind kind;
+    private final String value;
+    private final long pseudonym;
+
+    public static Param value(String name, String value) {
+      return new Param(name, Kind.VALUE, value, 0);
+    }
+
+    public static Param secret(String name, long pseudonym) {
+      return new Param(name, Kind.SECRET, null, pseudonym);
+    }
+
+    public static Param issued(String name, long pseudonym) {
+      return new Param(name, Kind.ISSUED, null, pseudonym);
+    }
+
+    private Param(String name, Kind kind, String value, long pseudonym) {
+      this.name = name;
+      this.kind = kind;
+      this.value = value;
+      this.pseudonym = pseudonym;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public Kind getKind() {
+      return kind;
+    }
+
+    /**
+     * @return the value of a {@link Kind#VALUE} parameter, otherwise null
+     */
+    public String getValue() {
+      return value;
+    }
+
+    /**
+     * @return the pseudonym of a secret or issued value, otherwise 0
+     */
+    public long getPseudonym() {
+      return pseudonym;
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package io.dazraf.oauth2.capture;
+
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Records what arrives at the server to a {@link CaptureLog}, so that it can be replayed against another build.
+ * <p>
+ * Each request is recorded once its response has been written: when it arrived, its method and path, its query and
+ * form parameters, its status and how long it took. Only the values of the parameters named in <code>values</code>
+ * are kept. Every other value, such as a password, code or token, and the session, is kept as a pseudonym, and a code
+ * issued in a redirect is recorded as issued under its pseudonym, so that a replay can tell which later request used
+ * it. Headers and other bodies aren't recorded at all.
+ * <p>
+ * Records are encoded on the event loop into a block, which is appended to <code>file</code> on a worker every
+ * <code>flushInterval</code> millis, and the instances of a deployment share the file and the pseudonym key. At most
+ * <code>maxBuffered</code> bytes are held between writes, and requests that arrive while the block is full are
+ * counted as dropped rather than recorded. Without a <code>capture</code> config nothing is recorded.
+ */
+public class TrafficCapture {
+  private static final Logger LOG = LoggerFactory.getLogger(TrafficCapture.class);
+  private static final String DEFAULT_FILE = "oauth2-capture.log";
+  private static final long DEFAULT_FLUSH_INTERVAL = 1000;
+  private static final int DEFAULT_MAX_BUFFERED = 1024 * 1024;
+  private static final JsonArray DEFAULT_VALUES = new JsonArray()
+    .add("client_id").add("redirect_uri").add("scope").add("response_type").add("grant_type").add("approved")
+    .add("subject_token_type").add("requested_token_type").add("audience").add("require");
+  private static final String KEYS = "oauth2.capture.keys";
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  private static final Pattern ISSUED_CODE = Pattern.compile("[?&]code=([^&#]+)");
+
+  private final Vertx vertx;
+  private final Path path;
+  private final int maxBuffered;
+  private final Set<String> values = new HashSet<>();
+  private final CaptureLog.Writer writer = new CaptureLog.Writer();
+  private final Mac mac;
+  private final long baseMicros = System.currentTimeMillis() * 1000;
+  private final long baseNanos = System.nanoTime();
+  private final long timerID;
+  private long captured = 0;
+  private long dropped = 0;
+  private long written = 0;
+  private long failed = 0;
+  // only used on the worker
+  private FileChannel channel;
+
+  /**
+   * @param config the <code>capture</code> config, or null to capture nothing
+   * @return null if there is no config
+   */
+  public static TrafficCapture create(Vertx vertx, JsonObject config) {
+    return config == null ? null : new TrafficCapture(vertx, config);
+  }
+
+  private TrafficCapture(Vertx vertx, JsonObject config) {
+    this.vertx = vertx;
+    this.path = Paths.get(config.getString("file", DEFAULT_FILE));
+    this.maxBuffered = config.getInteger("maxBuffered", DEFAULT_MAX_BUFFERED);
+    config.getJsonArray("values", DEFAULT_VALUES).forEach(name -> values.add((String) name));
+    this.mac = createMac(vertx, path);
+    this.timerID = vertx.setPeriodic(config.getLong("flushInterval", DEFAULT_FLUSH_INTERVAL), id -> flush(false));
+  }
+
+  /**
+   * Handler that records each request once its response has been written. Install it first, so that it sees the
+   * whole of every request, including those that are turned away.
+   */
+  public Handler<RoutingContext> capture() {
+    return context -> {
+      long startNanos = System.nanoTime();
+      context.addBodyEndHandler(v -> record(context, startNanos));
+      context.next();
+    };
+  }
+
+  /**
+   * @return how many requests have been recorded and dropped, and how much has been written
+   */
+  public JsonObject toJson() {
+    return new JsonObject()
+      .put("file", path.toString())
+      .put("captured", captured)
+      .put("dropped", dropped)
+      .put("bytesWritten", written)
+      .put("failedWrites", failed);
+  }
+
+  public void close() {
+    vertx.cancelTimer(timerID);
+    flush(true);
+  }
+
+  private void record(RoutingContext context, long startNanos) {
+    if (writer.size() >= maxBuffered) {
+      dropped++;
+      return;
+    }
+    HttpServerRequest request = context.request();
+    List<CapturedRequest.Param> params = new ArrayList<>();
+    MultiMap requestParams = request.params();
+    for (String name : requestParams.names()) {
+      for (String value : requestParams.getAll(name)) {
+        params.add(values.contains(name)
+          ? CapturedRequest.Param.value(name, value) : CapturedRequest.Param.secret(name, pseudonym(value)));
+      }
+    }
+    String location = context.response().headers().get("location");
+    if (location != null) {
+      Matcher code = ISSUED_CODE.matcher(location);
+      if (code.find()) {
+        params.add(CapturedRequest.Param.issued("code", pseudonym(code.group(1))));
+      }
+    }
+    Session session = context.session();
+    writer.write(new CapturedRequest(
+      baseMicros + (startNanos - baseNanos) / 1000,
+      request.method(),
+      request.path(),
+      context.response().getStatusCode(),
+      (System.nanoTime() - startNanos) / 1000,
+      session == null ? 0 : pseudonym(session.id()),
+      params));
+    captured++;
+  }
+
+  private long pseudonym(String value) {
+    byte[] hash = mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+    return ByteBuffer.wrap(hash).getLong();
+  }
+
+  private void flush(boolean close) {
+    byte[] block = writer.takeBlock();
+    if (block.length == 0 && !close) {
+      return;
+    }
+    vertx.<Void>executeBlocking(future -> {
+      try {
+        if (block.length > 0) {
+          if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+              StandardOpenOption.APPEND);
+          }
+          ByteBuffer buffer = ByteBuffer.wrap(block);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+        }
+        if (close && channel != null) {
+          channel.close();
+          channel = null;
+        }
+        future.complete();
+      } catch (IOException e) {
+        future.fail(e);
+      }
+    }, true, result -> {
+      if (result.succeeded()) {
+        written += block.length;
+      } else {
+        failed++;
+        LOG.warn("failed to write captured requests to {}", path, result.cause());
+      }
+    });
+  }
+
+  /**
+   * @return a MAC keyed by a random key that the instances capturing to <code>path</code> share, and that is never
+   * written down
+   */
+  private static Mac createMac(Vertx vertx, Path path) {
+    byte[] generated = new byte[32];
+    new SecureRandom().nextBytes(generated);
+    Buffer shared = vertx.sharedData().<String, Buffer>getLocalMap(KEYS)
+      .putIfAbsent(path.toAbsolutePath().toString(), Buffer.buffer(generated));
+    byte[] key = shared == null ? generated : shared.getBytes();
+    try {
+      Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+      return mac;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("no " + MAC_ALGORITHM + " to make pseudonyms with", e);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package io.dazraf.oauth2.oidc;
+
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Base64;
+
+/**
+ * Signs JWTs with RS256 using the {@link KeyManager}'s active key, and verifies them against its published keys.
+ * <p>
+ * The signer is shared, along with its key manager, by all the instances of a deployment, each on its own event loop.
+ * The JOSE header for each active key is encoded once. A {@link Signature} is neither thread safe nor cheap to set up,
+ * so each thread keeps its own for signing and for verifying, initialised with the key it last used.
+ */
+public class JwtSigner {
+  public static final String ALGORITHM = "RS256";
+  private static final Base64.Encoder BASE64URL = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder BASE64URL_DECODER = Base64.getUrlDecoder();
+
+  private final KeyManager keys;
+  private final ThreadLocal<ThreadSignature> signatures = ThreadLocal.withInitial(ThreadSignature::new);
+  private final ThreadLocal<ThreadSignature> verifiers = ThreadLocal.withInitial(ThreadSignature::new);
+
+  JwtSigner(KeyManager keys) {
+    this.keys = keys;
+  }
+
+  /**
+   * @param payload the claims, encoded as JSON
+   * @return the JWT in compact serialisation
+   * @throws IllegalStateException if the keys haven't been loaded yet
+   */
+  public String sign(byte[] payload) throws GeneralSecurityException {
+    KeyManager.KeySet current = keys.current();
+    if (current == null) {
+      throw new IllegalStateException("no key to sign with yet");
+    }
+    byte[] header = current.activeHeader;
+    byte[] encodedPayload = BASE64URL.encode(payload);
+    byte[] signingInput = new byte[header.length + 1 + encodedPayload.length];
+    System.arraycopy(header, 0, signingInput, 0, header.length);
+    signingInput[header.length] = '.';
+    System.arraycopy(encodedPayload, 0, signingInput, header.length + 1, encodedPayload.length);
+
+    Signature signature = signatures.get().forSigning(current.active);
+    signature.update(signingInput);
+    byte[] encodedSignature = BASE64URL.encode(signature.sign());
+
+    StringBuilder jwt = new StringBuilder(signingInput.length + 1 + encodedSignature.length);
+    jwt.append(new String(signingInput, StandardCharsets.US_ASCII))
+      .append('.')
+      .append(new String(encodedSignature, StandardCharsets.US_ASCII));
+    return jwt.toString();
+  }
+
+  /**
+   * Check a JWT was signed by one of the published keys: one lookup by its kid and one signature check. The claims
+   * themselves, such as its expiry, are left to the caller.
+   *
+   * @return the JWT's claims, or null if it isn't a JWT signed by a published key
+   */
+  public JsonObject verify(String jwt) throws GeneralSecurityException {
+    int headerEnd = jwt.indexOf('.');
+    int payloadEnd = jwt.indexOf('.', headerEnd + 1);
+    if (headerEnd < 0 || payloadEnd < 0 || jwt.indexOf('.', payloadEnd + 1) >= 0) {
+      return null;
+    }
+    try {
+      JsonObject header = decodePart(jwt, 0, headerEnd);
+      String kid = header.getString("kid");
+      if (!ALGORITHM.equals(header.getString("alg")) || kid == null) {
+        return null;
+      }
+      SigningKey key = keys.find(kid);
+      if (key == null) {
+        return null;
+      }
+      // decoded before anything is fed to the thread's Signature, so that bad base64 can't leave input in it
+      byte[] signed = BASE64URL_DECODER.decode(jwt.substring(payloadEnd + 1));
+      ThreadSignature verifier = verifiers.get();
+      try {
+        Signature signature = verifier.forVerifying(key);
+        signature.update(jwt.substring(0, payloadEnd).getBytes(StandardCharsets.US_ASCII));
+        if (!signature.verify(signed)) {
+          return null;
+        }
+      } catch (SignatureException e) {
+        // e.g. a signature of the wrong length, which may leave the Signature part way through
+        verifier.reset();
+        return null;
+      }
+      return decodePart(jwt, headerEnd + 1, payloadEnd);
+    } catch (IllegalArgumentException | DecodeException | ClassCastException e) {
+      // bad base64, bad JSON, or a header field of the wrong type
+      return null;
+    }
+  }
+
+  /**
+   * @return the base64url encoded JOSE header for JWTs signed by <code>key</code>
+   */
+  static byte[] encodeHeader(SigningKey key) {
+    return BASE64URL.encode(new JsonObject()
+      .put("alg", ALGORITHM)
+      .put("typ", "JWT")
+      .put("kid", key.getKid()).encode().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @return <code>bytes</code> in a read only buffer, which can be written to any number of responses
+   */
+  static Buffer readOnly(byte[] bytes) {
+    return Buffer.buffer(Unpooled.unmodifiableBuffer(Unpooled.wrappedBuffer(bytes)));
+  }
+
+  private static JsonObject decodePart(String jwt, int start, int end) throws DecodeException {
+    return new JsonObject(new String(BASE64URL_DECODER.decode(jwt.substring(start, end)), StandardCharsets.UTF_8));
+  }
+
+  private static class ThreadSignature {
+    private SigningKey key;
+    private Signature signature;
+
+    Signature forSigning(SigningKey key) throws GeneralSecurityException {
+      if (this.key != key) {
+        signature().initSign(key.getPrivateKey());
+        this.key = key;
+      }
+      return signature;
+    }
+
+    Signature forVerifying(SigningKey key) throws GeneralSecurityException {
+      if (this.key != key) {
+        signature().initVerify(key.getPublicKey());
+        this.key = key;
+      }
+      return signature;
+    }
+
+    void reset() {
+      key = null;
+    }
+
+    private Signature signature() throws GeneralSecurityException {
+      if (signature == null) {
+        signature = Signature.getInstance("SHA256withRSA");
+      }
+      return signature;
+    }
+  }
+}
@@ -0,0 +1,279 @@
+package io.dazraf.oauth2.oidc;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the keys that JWTs are signed and verified with, and rotates them.
+ * <p>
+ * At any time there is an active key, which signs; the next key, which is published in the JWKS a full rotation
+ * ahead of signing anything, so that relying parties already have it when it becomes active; and the
+ * {@link #RETAINED_KEYS} keys before the active one, which still verify what they signed. Rotating promotes the next
+ * key, generates a new next key and retires the oldest, and swaps the whole set in atomically: signers and verifiers
+ * see either the old set or the new one. Keys are held in a small array indexed by generation, so finding the key for
+ * a kid is a single array read, whichever generation it is.
+ * <p>
+ * The keys are persisted to a PKCS12 keystore file. A private key entry needs a certificate chain, which the JDK can't
+ * create, so each key is kept as a secret key entry holding its PKCS#8 encoding, under the alias
+ * <code>generation-createdAt</code>. Without a file, keys are generated on start and live only as long as the
+ * process.
+ * <p>
+ * One manager is shared by the instances of a deployment. Loading and rotating generate keys and write the file, so
+ * they must be called on a worker; everything else is safe on any thread.
+ */
+public class KeyManager implements Shareable {
+  private static final Logger LOG = LoggerFactory.getLogger(KeyManager.class);
+  static final int RETAINED_KEYS = 2;
+  // the retained keys, the active key and the next key: few enough that consecutive generations never collide
+  static final int SLOTS = RETAINED_KEYS + 2;
+  private static final long DEFAULT_ROTATION_INTERVAL_MILLIS = 24 * 3600 * 1000;
+
+  private final Path path;
+  private final char[] password;
+  private final long rotationInterval;
+  private final AtomicReference<KeySet> keys = new AtomicReference<>();
+  private final JwtSigner signer = new JwtSigner(this);
+
+  /**
+   * @return the manager shared by the instances of deployment <code>deploymentID</code>, creating it if need be
+   * @see #create(JsonObject)
+   */
+  public static KeyManager shared(Vertx vertx, String deploymentID, JsonObject config) {
+    LocalMap<String, KeyManager> managers = vertx.sharedData().getLocalMap("oauth2.keys");
+    KeyManager created = create(config);
+    KeyManager existing = managers.putIfAbsent(deploymentID, created);
+    return existing == null ? created : existing;
+  }
+
+  /**
+   * Remove the manager shared by the instances of deployment <code>deploymentID</code>. Instances that already have
+   * it can carry on using it.
+   */
+  public static void release(Vertx vertx, String deploymentID) {
+    vertx.sharedData().<String, KeyManager>getLocalMap("oauth2.keys").remove(deploymentID);
+  }
+
+  /**
+   * @param config <code>file</code>, the keystore to persist the keys to, its <code>password</code>, and the
+   *               <code>rotationInterval</code> in millis
+   */
+  public static KeyManager create(JsonObject config) {
+    return new KeyManager(config);
+  }
+
+  private KeyManager(JsonObject config) {
+    String file = config.getString("file");
+    this.path = file == null ? null : Paths.get(file);
+    this.password = config.getString("password", "").toCharArray();
+    this.rotationInterval = config.getLong("rotationInterval", DEFAULT_ROTATION_INTERVAL_MILLIS);
+  }
+
+  public JwtSigner getSigner() {
+    return signer;
+  }
+
+  public long getRotationInterval() {
+    return rotationInterval;
+  }
+
+  /**
+   * Load the keys from the file, generating and saving them if there are none yet. Does nothing if they are already
+   * loaded. Blocking.
+   */
+  public synchronized void load() throws IOException, GeneralSecurityException {
+    if (keys.get() != null) {
+      return;
+    }
+    List<SigningKey> loaded = read();
+    long now = System.currentTimeMillis();
+    if (loaded.isEmpty()) {
+      loaded.add(SigningKey.generate(1, now));
+    }
+    if (loaded.size() == 1) {
+      SigningKey only = loaded.get(0);
+      loaded.add(SigningKey.generate(only.getGeneration() + 1, now));
+      write(loaded);
+    }
+    KeySet loadedKeys = new KeySet(loaded);
+    keys.set(loadedKeys);
+    LOG.info("signing with key {}, next key {}", loadedKeys.active.getKid(), loadedKeys.next.getKid());
+  }
+
+  /**
+   * @return true once the next key has been published for a whole rotation interval
+   */
+  public boolean isRotationDue(long now) {
+    KeySet current = keys.get();
+    return current != null && now - current.next.getCreatedAt() >= rotationInterval;
+  }
+
+  /**
+   * Start signing with the next key, and publish a new next key. Blocking.
+   *
+   * @return the keys after rotation, as for {@link #toJson()}
+   * @throws IllegalStateException if the keys haven't been loaded
+   */
+  public synchronized JsonObject rotate() throws IOException, GeneralSecurityException {
+    KeySet current = keys.get();
+    if (current == null) {
+      throw new IllegalStateException("the keys have not been loaded");
+    }
+    List<SigningKey> rotated = new ArrayList<>(current.published);
+    rotated.add(SigningKey.generate(current.next.getGeneration() + 1, System.currentTimeMillis()));
+    while (rotated.size() > SLOTS) {
+      rotated.remove(0);
+    }
+    // persist first: a key must never sign anything that a restart would forget how to verify
+    write(rotated);
+    KeySet next = new KeySet(rotated);
+    keys.set(next);
+    LOG.info("rotated signing keys: signing with {}, next key {}, retired {}", next.active.getKid(),
+      next.next.getKid(), current.published.size() == SLOTS ? current.published.get(0).getKid() : "none");
+    return toJson();
+  }
+
+  /**
+   * @return the active key, the next key and every published kid, or an empty object if the keys aren't loaded
+   */
+  public JsonObject toJson() {
+    KeySet current = keys.get();
+    if (current == null) {
+      return new JsonObject();
+    }
+    JsonArray published = new JsonArray();
+    current.published.forEach(key -> published.add(key.getKid()));
+    return new JsonObject()
+      .put("active", current.active.getKid())
+      .put("next", current.next.getKid())
+      .put("published", published);
+  }
+
+  /**
+   * @return a read only buffer, shared by every caller, of the JWKS for every published key, or null if the keys
+   * aren't loaded
+   */
+  public Buffer getJwks() {
+    KeySet current = keys.get();
+    return current == null ? null : current.jwks;
+  }
+
+  /**
+   * @return the published key with this kid, or null
+   */
+  SigningKey find(String kid) {
+    KeySet current = keys.get();
+    return current == null ? null : current.find(kid);
+  }
+
+  KeySet current() {
+    return keys.get();
+  }
+
+  private List<SigningKey> read() throws IOException, GeneralSecurityException {
+    List<SigningKey> loaded = new ArrayList<>();
+    if (path == null || !Files.exists(path)) {
+      return loaded;
+    }
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    try (InputStream in = Files.newInputStream(path)) {
+      keyStore.load(in, password);
+    }
+    for (String alias : Collections.list(keyStore.aliases())) {
+      int dash = alias.indexOf('-');
+      Key key = keyStore.getKey(alias, password);
+      if (dash < 0 || key == null) {
+        LOG.warn("ignoring unexpected entry {} in {}", alias, path);
+        continue;
+      }
+      loaded.add(SigningKey.decode(Integer.parseInt(alias.substring(0, dash)),
+        Long.parseLong(alias.substring(dash + 1)), key.getEncoded()));
+    }
+    loaded.sort(Comparator.comparingInt(SigningKey::getGeneration));
+    while (loaded.size() > SLOTS) {
+      loaded.remove(0);
+    }
+    LOG.info("loaded {} signing keys from {}", loaded.size(), path);
+    return loaded;
+  }
+
+  /**
+   * Write the keys to a sibling temp file and move it into place, so a crash never leaves a partial file behind
+   */
+  private void write(List<SigningKey> published) throws IOException, GeneralSecurityException {
+    if (path == null) {
+      return;
+    }
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    keyStore.load(null, password);
+    for (SigningKey key : published) {
+      keyStore.setEntry(key.getGeneration() + "-" + key.getCreatedAt(),
+        new KeyStore.SecretKeyEntry(new SecretKeySpec(key.getPrivateKey().getEncoded(), "RSA")),
+        new KeyStore.PasswordProtection(password));
+    }
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(temp)) {
+      keyStore.store(out, password);
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * An immutable generation of keys: oldest first, ending with the active and then the next key
+   */
+  static final class KeySet {
+    final List<SigningKey> published;
+    final SigningKey active;
+    final SigningKey next;
+    // published keys by generation modulo SLOTS
+    private final SigningKey[] slots = new SigningKey[SLOTS];
+    // base64url of the JOSE header for the active key
+    final byte[] activeHeader;
+    final Buffer jwks;
+
+    KeySet(List<SigningKey> published) {
+      this.published = Collections.unmodifiableList(new ArrayList<>(published));
+      this.active = published.get(published.size() - 2);
+      this.next = published.get(published.size() - 1);
+      JsonArray jwkArray = new JsonArray();
+      for (SigningKey key : published) {
+        slots[key.getGeneration() % SLOTS] = key;
+        jwkArray.add(key.toJwk());
+      }
+      this.activeHeader = JwtSigner.encodeHeader(active);
+      this.jwks = JwtSigner.readOnly(new JsonObject().put("keys", jwkArray).encode().getBytes(StandardCharsets.UTF_8));
+    }
+
+    SigningKey find(String kid) {
+      int generation = SigningKey.generationOf(kid);
+      if (generation < 0) {
+        return null;
+      }
+      SigningKey key = slots[generation % SLOTS];
+      return key != null && key.getKid().equals(kid) ? key : null;
+    }
+  }
+}
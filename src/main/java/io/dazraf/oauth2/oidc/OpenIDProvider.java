@@ -0,0 +1,158 @@
+package io.dazraf.oauth2.oidc;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static io.dazraf.oauth2.util.HttpUtils.httpServiceUnavailable;
+
+/**
+ * OpenID Connect on top of the authorization code flow: issues an id_token with the access token for grants that
+ * include the <code>openid</code> scope, and serves the discovery document and JWKS that clients verify them with.
+ * <p>
+ * Claims are written straight to bytes with a JSON generator, rather than built up as a {@link JsonObject} and
+ * encoded. The discovery document is encoded once, and the JWKS once per key rotation, into read only buffers that
+ * every response shares.
+ */
+public class OpenIDProvider {
+  private static final Logger LOG = LoggerFactory.getLogger(OpenIDProvider.class);
+  public static final String SCOPE = "openid";
+  public static final String DISCOVERY_PATH = "/.well-known/openid-configuration";
+  private static final long ID_TOKEN_TTL_MILLIS = 3600 * 1000;
+  // set by the provider, or meaningful to relying parties, so never taken from a user's entry
+  private static final Set<String> RESERVED_CLAIMS = new HashSet<>(Arrays.asList(
+    "iss", "sub", "aud", "exp", "iat", "nbf", "jti", "nonce", "auth_time", "azp", "acr", "amr", "at_hash", "c_hash",
+    "sid"));
+
+  private final String issuer;
+  private final KeyManager keys;
+  private final Function<String, JsonObject> userClaims;
+  private final Buffer discovery;
+
+  /**
+   * @param issuer the issuer identifier: the https URL the discovery document is served under
+   * @param apiURL the URL the authorize, token, device authorization and jwks end points are under
+   * @param userClaims the claims to include for a user, other than <code>sub</code>, or null for an unknown user
+   * @param scopes the configured scopes
+   */
+  public static OpenIDProvider create(String issuer, String apiURL, KeyManager keys,
+                                      Function<String, JsonObject> userClaims, Collection<String> scopes) {
+    return create(issuer, apiURL, keys, userClaims, scopes, false);
+  }
+
+  /**
+   * @param registration whether clients may register at the register end point
+   */
+  public static OpenIDProvider create(String issuer, String apiURL, KeyManager keys,
+                                      Function<String, JsonObject> userClaims, Collection<String> scopes,
+                                      boolean registration) {
+    return new OpenIDProvider(issuer, apiURL, keys, userClaims, scopes, registration);
+  }
+
+  private OpenIDProvider(String issuer, String apiURL, KeyManager keys, Function<String, JsonObject> userClaims,
+                         Collection<String> scopes, boolean registration) {
+    this.issuer = issuer;
+    this.keys = keys;
+    this.userClaims = userClaims;
+    JsonObject discovery = new JsonObject()
+      .put("issuer", issuer)
+      .put("authorization_endpoint", apiURL + "/authorize")
+      .put("token_endpoint", apiURL + "/token")
+      .put("jwks_uri", apiURL + "/jwks")
+      .put("device_authorization_endpoint", apiURL + "/device_authorization")
+      .put("scopes_supported", new JsonArray(new ArrayList<>(scopes)))
+      .put("response_types_supported", new JsonArray().add("code"))
+      .put("grant_types_supported", new JsonArray().add("authorization_code")
+        .add("urn:ietf:params:oauth:grant-type:device_code").add("urn:ietf:params:oauth:grant-type:token-exchange"))
+      .put("subject_types_supported", new JsonArray().add("public"))
+      .put("id_token_signing_alg_values_supported", new JsonArray().add(JwtSigner.ALGORITHM))
+      .put("claims_supported", new JsonArray().add("iss").add("sub").add("aud").add("exp").add("iat").add("nonce"));
+    if (registration) {
+      discovery.put("registration_endpoint", apiURL + "/register");
+    }
+    this.discovery = JwtSigner.readOnly(discovery.encodePrettily().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Sign an id_token identifying <code>username</code> to <code>clientID</code>
+   *
+   * @param nonce the nonce from the authorization request, or null if there wasn't one
+   * @throws IllegalStateException if the keys haven't been loaded yet
+   */
+  public String issueIdToken(String username, String clientID, String nonce, long now)
+    throws IOException, GeneralSecurityException {
+    ByteArrayOutputStream claims = new ByteArrayOutputStream(256);
+    try (JsonGenerator generator = Json.mapper.getFactory().createGenerator(claims, JsonEncoding.UTF8)) {
+      generator.writeStartObject();
+      generator.writeStringField("iss", issuer);
+      generator.writeStringField("sub", username);
+      generator.writeStringField("aud", clientID);
+      generator.writeNumberField("iat", now / 1000);
+      generator.writeNumberField("exp", (now + ID_TOKEN_TTL_MILLIS) / 1000);
+      if (nonce != null) {
+        generator.writeStringField("nonce", nonce);
+      }
+      JsonObject claimsOfUser = userClaims.apply(username);
+      if (claimsOfUser != null) {
+        for (Map.Entry<String, Object> claim : claimsOfUser) {
+          if (!RESERVED_CLAIMS.contains(claim.getKey())) {
+            generator.writeObjectField(claim.getKey(), claim.getValue());
+          }
+        }
+      }
+      generator.writeEndObject();
+    }
+    return keys.getSigner().sign(claims.toByteArray());
+  }
+
+  public void discovery(RoutingContext context) {
+    context.response().putHeader("Content-Type", "application/json").end(discovery);
+  }
+
+  /**
+   * Rotate the signing keys now, rather than waiting for the schedule, and respond with the keys after rotation
+   */
+  public void rotateKeys(RoutingContext context) {
+    context.vertx().<JsonObject>executeBlocking(future -> {
+      try {
+        future.complete(keys.rotate());
+      } catch (Exception e) {
+        future.fail(e);
+      }
+    }, false, rotated -> {
+      if (rotated.failed()) {
+        LOG.error("failed to rotate signing keys", rotated.cause());
+        context.fail(rotated.cause());
+      } else {
+        context.response().putHeader("Content-Type", "application/json").end(rotated.result().encodePrettily());
+      }
+    });
+  }
+
+  public void jwks(RoutingContext context) {
+    Buffer jwks = keys.getJwks();
+    if (jwks == null) {
+      httpServiceUnavailable(context);
+      return;
+    }
+    context.response().putHeader("Content-Type", "application/json").end(jwks);
+  }
+}
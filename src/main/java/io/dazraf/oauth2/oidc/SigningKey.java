@@ -0,0 +1,135 @@
+package io.dazraf.oauth2.oidc;
+
+import io.vertx.core.json.JsonObject;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * An RSA key pair for signing JWTs. Immutable, and parsed once rather than on each use.
+ * <p>
+ * Keys are numbered in the order they were generated. The kid is the generation followed by the RFC 7638 thumbprint
+ * of the public key, e.g. <code>12-se4LJVvi...</code>, so that the {@link KeyManager} can find a key from its kid
+ * without searching.
+ */
+public final class SigningKey {
+  private static final Base64.Encoder BASE64URL = Base64.getUrlEncoder().withoutPadding();
+  private static final int KEY_SIZE = 2048;
+
+  private final int generation;
+  private final long createdAt;
+  private final String kid;
+  private final PrivateKey privateKey;
+  private final RSAPublicKey publicKey;
+
+  /**
+   * Generate a new key pair. Slow, so not for an event loop.
+   */
+  public static SigningKey generate(int generation, long createdAt) throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(KEY_SIZE);
+    KeyPair keyPair = generator.generateKeyPair();
+    return create(generation, createdAt, keyPair.getPrivate(), (RSAPublicKey) keyPair.getPublic());
+  }
+
+  public static SigningKey create(int generation, long createdAt, PrivateKey privateKey, RSAPublicKey publicKey)
+    throws GeneralSecurityException {
+    return new SigningKey(generation, createdAt, privateKey, publicKey);
+  }
+
+  /**
+   * @param encoded the PKCS#8 encoding of an RSA private key, from which the public key is derived
+   */
+  static SigningKey decode(int generation, long createdAt, byte[] encoded) throws GeneralSecurityException {
+    KeyFactory factory = KeyFactory.getInstance("RSA");
+    RSAPrivateCrtKey privateKey = (RSAPrivateCrtKey) factory.generatePrivate(new PKCS8EncodedKeySpec(encoded));
+    RSAPublicKey publicKey = (RSAPublicKey) factory.generatePublic(
+      new RSAPublicKeySpec(privateKey.getModulus(), privateKey.getPublicExponent()));
+    return create(generation, createdAt, privateKey, publicKey);
+  }
+
+  /**
+   * @return the generation a kid was issued for, or -1 if it isn't one of ours
+   */
+  static int generationOf(String kid) {
+    int generation = 0;
+    for (int i = 0; i < kid.length() && i < 10; i++) {
+      char c = kid.charAt(i);
+      if (c == '-') {
+        return i == 0 ? -1 : generation;
+      }
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      generation = generation * 10 + (c - '0');
+    }
+    return -1;
+  }
+
+  private SigningKey(int generation, long createdAt, PrivateKey privateKey, RSAPublicKey publicKey)
+    throws GeneralSecurityException {
+    this.generation = generation;
+    this.createdAt = createdAt;
+    this.privateKey = privateKey;
+    this.publicKey = publicKey;
+    // the thumbprint is over the required members only, in lexical order and without whitespace
+    String members = "{\"e\":\"" + encode(publicKey.getPublicExponent()) + "\",\"kty\":\"RSA\",\"n\":\""
+      + encode(publicKey.getModulus()) + "\"}";
+    this.kid = generation + "-" + BASE64URL.encodeToString(
+      MessageDigest.getInstance("SHA-256").digest(members.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  public int getGeneration() {
+    return generation;
+  }
+
+  public long getCreatedAt() {
+    return createdAt;
+  }
+
+  public String getKid() {
+    return kid;
+  }
+
+  public PrivateKey getPrivateKey() {
+    return privateKey;
+  }
+
+  public RSAPublicKey getPublicKey() {
+    return publicKey;
+  }
+
+  /**
+   * @return the public key as a JWK
+   */
+  public JsonObject toJwk() {
+    return new JsonObject()
+      .put("kty", "RSA")
+      .put("use", "sig")
+      .put("alg", JwtSigner.ALGORITHM)
+      .put("kid", kid)
+      .put("n", encode(publicKey.getModulus()))
+      .put("e", encode(publicKey.getPublicExponent()));
+  }
+
+  /**
+   * @return the unsigned big endian bytes of <code>value</code>, base64url encoded
+   */
+  private static String encode(BigInteger value) {
+    byte[] bytes = value.toByteArray();
+    int leadingZeros = bytes.length > 1 && bytes[0] == 0 ? 1 : 0;
+    return BASE64URL.encodeToString(Arrays.copyOfRange(bytes, leadingZeros, bytes.length));
+  }
+}
@@ -0,0 +1,106 @@
+package io.dazraf.oauth2.tracing;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends spans to <code>file</code> as JSON, one per line. Spans are encoded on the event loop into a batch, which is
+ * written on a worker every <code>flushInterval</code> millis. The instances of a deployment can share the file, as
+ * each batch is a single append.
+ * <p>
+ * At most <code>maxBuffered</code> characters are held between writes, and spans that arrive while the batch is full
+ * are dropped and counted rather than let pile up behind a slow disk.
+ */
+public class FileSpanSink implements SpanSink {
+  private static final Logger LOG = LoggerFactory.getLogger(FileSpanSink.class);
+  private static final String DEFAULT_FILE = "oauth2-spans.log";
+  private static final long DEFAULT_FLUSH_INTERVAL = 1000;
+  private static final int DEFAULT_MAX_BUFFERED = 1024 * 1024;
+
+  private final Vertx vertx;
+  private final Path path;
+  private final int maxBuffered;
+  private final long timerID;
+  private StringBuilder batch = new StringBuilder();
+  private long exported = 0;
+  private long dropped = 0;
+  private long failed = 0;
+  // only used on the worker
+  private FileChannel channel;
+
+  public FileSpanSink(Vertx vertx, JsonObject config) {
+    this.vertx = vertx;
+    this.path = Paths.get(config.getString("file", DEFAULT_FILE));
+    this.maxBuffered = config.getInteger("maxBuffered", DEFAULT_MAX_BUFFERED);
+    this.timerID = vertx.setPeriodic(config.getLong("flushInterval", DEFAULT_FLUSH_INTERVAL), id -> flush(false));
+  }
+
+  @Override
+  public void export(Span span) {
+    if (batch.length() >= maxBuffered) {
+      dropped++;
+      return;
+    }
+    batch.append(span.toJson().encode()).append('\n');
+    exported++;
+  }
+
+  @Override
+  public JsonObject toJson() {
+    return new JsonObject()
+      .put("file", path.toString())
+      .put("exported", exported)
+      .put("dropped", dropped)
+      .put("failedWrites", failed);
+  }
+
+  @Override
+  public void close() {
+    vertx.cancelTimer(timerID);
+    flush(true);
+  }
+
+  private void flush(boolean close) {
+    if (batch.length() == 0 && !close) {
+      return;
+    }
+    byte[] written = batch.toString().getBytes(StandardCharsets.UTF_8);
+    batch = new StringBuilder();
+    vertx.<Void>executeBlocking(future -> {
+      try {
+        if (written.length > 0) {
+          if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+              StandardOpenOption.APPEND);
+          }
+          ByteBuffer buffer = ByteBuffer.wrap(written);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+        }
+        if (close && channel != null) {
+          channel.close();
+          channel = null;
+        }
+        future.complete();
+      } catch (IOException e) {
+        future.fail(e);
+      }
+    }, true, result -> {
+      if (result.failed()) {
+        failed++;
+        LOG.warn("failed to write spans to {}", path, result.cause());
+      }
+    });
+  }
+}
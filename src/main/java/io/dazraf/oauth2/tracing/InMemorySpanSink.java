@@ -0,0 +1,58 @@
+package io.dazraf.oauth2.tracing;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Keeps the last <code>capacity</code> spans in memory, for tests and for looking at from a debugger
+ */
+public class InMemorySpanSink implements SpanSink {
+  private static final int DEFAULT_CAPACITY = 10_000;
+
+  private final int capacity;
+  private final Deque<Span> spans = new ArrayDeque<>();
+  private long exported = 0;
+  private long dropped = 0;
+
+  public InMemorySpanSink(Vertx vertx, JsonObject config) {
+    this(config.getInteger("capacity", DEFAULT_CAPACITY));
+  }
+
+  public InMemorySpanSink(int capacity) {
+    this.capacity = capacity;
+  }
+
+  @Override
+  public synchronized void export(Span span) {
+    if (spans.size() == capacity) {
+      spans.removeFirst();
+      dropped++;
+    }
+    spans.addLast(span);
+    exported++;
+  }
+
+  /**
+   * @return the spans held, oldest first
+   */
+  public synchronized List<Span> getSpans() {
+    return new ArrayList<>(spans);
+  }
+
+  public synchronized void clear() {
+    spans.clear();
+  }
+
+  @Override
+  public synchronized JsonObject toJson() {
+    return new JsonObject()
+      .put("held", spans.size())
+      .put("exported", exported)
+      .put("dropped", dropped);
+  }
+}
@@ -0,0 +1,98 @@
+package io.dazraf.oauth2.tracing;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * A timed stage of a traced request, as exported to a {@link SpanSink}. Its ids are lower case hex as in a W3C
+ * <code>traceparent</code>: 32 digits for the trace, 16 for a span. Times are in microseconds.
+ * <p>
+ * Only the {@link Tracer} writes a span, and only until it has ended; sinks just read them.
+ */
+public final class Span {
+  private final String traceID;
+  private final String spanID;
+  private final String parentSpanID;
+  private final String name;
+  private final long startMicros;
+  private final long startNanos;
+  private final JsonObject attributes = new JsonObject();
+  private long durationMicros = -1;
+
+  Span(String traceID, String spanID, String parentSpanID, String name) {
+    this.traceID = traceID;
+    this.spanID = spanID;
+    this.parentSpanID = parentSpanID;
+    this.name = name;
+    this.startMicros = System.currentTimeMillis() * 1000;
+    this.startNanos = System.nanoTime();
+  }
+
+  public String getTraceID() {
+    return traceID;
+  }
+
+  public String getSpanID() {
+    return spanID;
+  }
+
+  /**
+   * @return the id of the span this is part of, or null if it is the root of its trace
+   */
+  public String getParentSpanID() {
+    return parentSpanID;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return when the span started, in microseconds since the epoch
+   */
+  public long getStartMicros() {
+    return startMicros;
+  }
+
+  /**
+   * @return how long the span lasted, or -1 if it hasn't ended
+   */
+  public long getDurationMicros() {
+    return durationMicros;
+  }
+
+  public JsonObject getAttributes() {
+    return attributes;
+  }
+
+  Span put(String attribute, Object value) {
+    attributes.put(attribute, value);
+    return this;
+  }
+
+  boolean isEnded() {
+    return durationMicros >= 0;
+  }
+
+  void end() {
+    durationMicros = (System.nanoTime() - startNanos) / 1000;
+  }
+
+  public JsonObject toJson() {
+    JsonObject json = new JsonObject()
+      .put("traceId", traceID)
+      .put("spanId", spanID);
+    if (parentSpanID != null) {
+      json.put("parentSpanId", parentSpanID);
+    }
+    return json
+      .put("name", name)
+      .put("start", startMicros)
+      .put("duration", durationMicros)
+      .put("attributes", attributes);
+  }
+
+  @Override
+  public String toString() {
+    return toJson().encode();
+  }
+}
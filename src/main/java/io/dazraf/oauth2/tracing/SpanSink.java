@@ -0,0 +1,28 @@
+package io.dazraf.oauth2.tracing;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Where the {@link Tracer} sends spans once they have ended.
+ * <p>
+ * Implementations are named by the <code>class</code> field of the <code>tracing</code> config, and need a public
+ * constructor that takes the {@link io.vertx.core.Vertx} instance and that config. Each verticle instance has its own
+ * sink, and calls it only from its event loop, so it must not block: anything slow, such as writing to a file or the
+ * network, belongs on a worker.
+ */
+public interface SpanSink {
+  void export(Span span);
+
+  /**
+   * @return what the sink has exported and dropped, for the <code>shards</code> end point
+   */
+  default JsonObject toJson() {
+    return new JsonObject();
+  }
+
+  /**
+   * Export anything still held, and release the sink's resources
+   */
+  default void close() {
+  }
+}
@@ -0,0 +1,282 @@
+package io.dazraf.oauth2.tracing;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.Session;
+
+import java.lang.reflect.InvocationTargetException;
+import java.time.Clock;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Traces requests as a root span per request and a span per handler stage, and exports them to a {@link SpanSink}.
+ * <p>
+ * Whether a request is traced is decided once, by {@link #trace()} as it arrives: it is if it carries a W3C
+ * <code>traceparent</code> with the sampled flag set, in which case its spans join that trace, and otherwise with
+ * probability <code>sampleRate</code>. Any client can set the flag, so at most <code>maxParentSampled</code> such
+ * requests a second are traced on its say so; beyond that they are sampled like any other, though still joining
+ * their parent's trace if they are. A traced request that has a session leaves its trace there, so that the rest
+ * of a browser's authorization flow, through login, consent and back, joins the same trace without the browser
+ * having to send a <code>traceparent</code>. Joining is on the flow's say so too, so it counts against
+ * <code>maxParentSampled</code>, and lasts only until the flow ends, see {@link #endFlow}, or for
+ * {@value #MAX_FLOW_MINUTES} minutes if it never does.
+ * <p>
+ * A stage, wrapped by {@link #stage}, lasts from when its handler is called until the next stage starts or the
+ * response ends, so it includes any asynchronous work the handler waits for. Untraced requests cost a header and a
+ * context lookup. Without a <code>tracing</code> config the tracer is disabled, and stages aren't even wrapped.
+ * <p>
+ * Each verticle instance has its own tracer, and all methods must be called on its event loop.
+ */
+public class Tracer {
+  private static final String TRACE_KEY = "oauth2.trace";
+  private static final int DEFAULT_MAX_PARENT_SAMPLED = 10;
+  private static final int MAX_FLOW_MINUTES = 5;
+  // W3C trace context, version 00, with ids that aren't all zeroes
+  private static final Pattern TRACEPARENT =
+    Pattern.compile("00-(?!0{32})[0-9a-f]{32}-(?!0{16})[0-9a-f]{16}-[0-9a-f]{2}");
+
+  private final SpanSink sink;
+  private final double sampleRate;
+  private final int maxParentSampled;
+  private final String shard;
+  private Clock clock = Clock.systemUTC();
+  private long traced = 0;
+  private long joined = 0;
+  private long parentSampledCapped = 0;
+  private long windowStart = System.nanoTime();
+  private int parentSampledInWindow = 0;
+
+  /**
+   * @param config the <code>tracing</code> config, or null to disable tracing: <code>sampleRate</code>, from 0 to 1,
+   *               <code>maxParentSampled</code>, the requests a second traced because their <code>traceparent</code>
+   *               says so, {@value #DEFAULT_MAX_PARENT_SAMPLED} by default, and the <code>class</code> of the
+   *               {@link SpanSink}, {@link FileSpanSink} by default, which is given the config
+   * @param shard  reported on each request's span
+   */
+  public static Tracer create(Vertx vertx, JsonObject config, int shard) {
+    return new Tracer(config == null ? null : createSink(vertx, config),
+      config == null ? 0 : config.getDouble("sampleRate", 0.0),
+      config == null ? 0 : config.getInteger("maxParentSampled", DEFAULT_MAX_PARENT_SAMPLED), shard);
+  }
+
+  /**
+   * @return a tracer that exports to <code>sink</code>
+   */
+  public static Tracer create(SpanSink sink, double sampleRate) {
+    return create(sink, sampleRate, DEFAULT_MAX_PARENT_SAMPLED);
+  }
+
+  /**
+   * @return a tracer that exports to <code>sink</code>, tracing at most <code>maxParentSampled</code> requests a
+   * second because their <code>traceparent</code> says so
+   */
+  public static Tracer create(SpanSink sink, double sampleRate, int maxParentSampled) {
+    return new Tracer(sink, sampleRate, maxParentSampled, 0);
+  }
+
+  private Tracer(SpanSink sink, double sampleRate, int maxParentSampled, int shard) {
+    this.sink = sink;
+    this.sampleRate = sampleRate;
+    this.maxParentSampled = maxParentSampled;
+    this.shard = Integer.toString(shard);
+  }
+
+  public boolean isEnabled() {
+    return sink != null;
+  }
+
+  /**
+   * End the browser flow <code>context</code> is part of, such as once its code is issued or denied, so that the
+   * session's later requests are no longer joined to the flow's trace
+   */
+  public static void endFlow(RoutingContext context) {
+    Session session = context.session();
+    if (session != null) {
+      session.remove(TRACE_KEY);
+    }
+  }
+
+  void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Handler that decides whether to trace a request and, if so, starts its root span. Install it first, so that the
+   * root span covers the request's whole time on the server.
+   */
+  public Handler<RoutingContext> trace() {
+    if (!isEnabled()) {
+      return RoutingContext::next;
+    }
+    return context -> {
+      String traceparent = context.request().getHeader("traceparent");
+      boolean parented = traceparent != null && TRACEPARENT.matcher(traceparent).matches();
+      boolean parentSampled = parented && (Integer.parseInt(traceparent.substring(53, 55), 16) & 1) == 1;
+      if (parentSampled ? admitParentSampled() || sample() : !parented && sample()) {
+        start(context, parented ? traceparent.substring(3, 35) : randomID(16),
+          parented ? traceparent.substring(36, 52) : null);
+      }
+      context.next();
+    };
+  }
+
+  /**
+   * Handler, to install once sessions are available, that joins an untraced request to the trace of its session's
+   * flow, or records the trace of a traced request in its session. The session holds the flow's trace id, span id
+   * and when it started, separated by dashes.
+   */
+  public Handler<RoutingContext> joinSession() {
+    if (!isEnabled()) {
+      return RoutingContext::next;
+    }
+    return context -> {
+      Session session = context.session();
+      if (session != null) {
+        Trace trace = context.get(TRACE_KEY);
+        String flow = session.get(TRACE_KEY);
+        long now = clock.millis();
+        if (flow != null && now - Long.parseLong(flow.substring(50)) >= TimeUnit.MINUTES.toMillis(MAX_FLOW_MINUTES)) {
+          session.remove(TRACE_KEY);
+          flow = null;
+        }
+        if (trace == null && flow != null) {
+          if (admitParentSampled() || sample()) {
+            joined++;
+            start(context, flow.substring(0, 32), flow.substring(33, 49));
+          }
+        } else if (trace != null && flow == null) {
+          session.put(TRACE_KEY, trace.root.getTraceID() + "-" + trace.root.getSpanID() + "-" + now);
+        }
+      }
+      context.next();
+    };
+  }
+
+  /**
+   * @return <code>handler</code>, timed as the stage <code>name</code> of traced requests
+   */
+  public Handler<RoutingContext> stage(String name, Handler<RoutingContext> handler) {
+    if (!isEnabled()) {
+      return handler;
+    }
+    return context -> {
+      Trace trace = context.get(TRACE_KEY);
+      if (trace != null) {
+        trace.startStage(name);
+      }
+      handler.handle(context);
+    };
+  }
+
+  /**
+   * @return how many requests were traced, and what the sink exported
+   */
+  public JsonObject toJson() {
+    return new JsonObject()
+      .put("sampleRate", sampleRate)
+      .put("traced", traced)
+      .put("joinedFromSession", joined)
+      .put("maxParentSampled", maxParentSampled)
+      .put("parentSampledCapped", parentSampledCapped)
+      .put("sink", sink == null ? null : sink.toJson());
+  }
+
+  public void close() {
+    if (sink != null) {
+      sink.close();
+    }
+  }
+
+  /**
+   * @return whether a request whose parent was sampled, or whose session's flow was, is within this second's
+   * allowance
+   */
+  private boolean admitParentSampled() {
+    long now = System.nanoTime();
+    if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+      windowStart = now;
+      parentSampledInWindow = 0;
+    }
+    if (parentSampledInWindow < maxParentSampled) {
+      parentSampledInWindow++;
+      return true;
+    }
+    parentSampledCapped++;
+    return false;
+  }
+
+  private boolean sample() {
+    return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+  }
+
+  private void start(RoutingContext context, String traceID, String parentSpanID) {
+    traced++;
+    String name = context.request().method() + " " + context.request().path();
+    Span root = new Span(traceID, randomID(8), parentSpanID, name)
+      .put("http.method", context.request().method().name())
+      .put("http.target", context.request().path())
+      .put("shard", shard);
+    Trace trace = new Trace(root);
+    context.put(TRACE_KEY, trace);
+    context.addBodyEndHandler(v -> {
+      trace.root.put("http.status_code", context.response().getStatusCode());
+      trace.end();
+    });
+  }
+
+  private static String randomID(int bytes) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    StringBuilder id = new StringBuilder(bytes * 2);
+    for (int i = 0; i < bytes; i++) {
+      id.append(Character.forDigit(random.nextInt(16), 16)).append(Character.forDigit(random.nextInt(16), 16));
+    }
+    return id.toString();
+  }
+
+  private static SpanSink createSink(Vertx vertx, JsonObject config) {
+    String className = config.getString("class", FileSpanSink.class.getName());
+    try {
+      return Class.forName(className).asSubclass(SpanSink.class).getConstructor(Vertx.class, JsonObject.class)
+        .newInstance(vertx, config);
+    } catch (InvocationTargetException e) {
+      throw new IllegalArgumentException("could not create span sink " + className, e.getCause());
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      throw new IllegalArgumentException("could not create span sink " + className, e);
+    }
+  }
+
+  /**
+   * The spans of one traced request
+   */
+  private class Trace {
+    private final Span root;
+    private Span stage;
+
+    Trace(Span root) {
+      this.root = root;
+    }
+
+    void startStage(String name) {
+      endStage();
+      stage = new Span(root.getTraceID(), randomID(8), root.getSpanID(), name);
+    }
+
+    void end() {
+      endStage();
+      root.end();
+      sink.export(root);
+    }
+
+    private void endStage() {
+      if (stage != null) {
+        stage.end();
+        sink.export(stage);
+        stage = null;
+      }
+    }
+  }
+}
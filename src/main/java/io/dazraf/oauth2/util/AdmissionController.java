@@ -0,0 +1,183 @@
+package io.dazraf.oauth2.util;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static io.dazraf.oauth2.util.HttpUtils.httpServiceUnavailable;
+
+/**
+ * Sheds load before the event loop saturates. A periodic timer measures how late it fires, which is how long work
+ * has been queueing on the event loop, and each request is checked against that lag and the number of requests in
+ * flight. Every {@link Priority} has its own thresholds, so as load rises new flows are turned away first, then
+ * token redemption, and token validation last. Shed requests get an immediate 503 with a Retry-After.
+ * <p>
+ * Install the handlers ahead of the body, session and auth handlers, so that shedding costs next to nothing.
+ * All methods must be called on the verticle's event loop.
+ */
+public class AdmissionController {
+  private static final Logger LOG = LoggerFactory.getLogger(AdmissionController.class);
+  private static final long DEFAULT_PROBE_INTERVAL = 100;
+
+  /**
+   * In the order they are shed
+   */
+  public enum Priority {
+    AUTHORIZE(50, 256),
+    TOKEN(200, 1024),
+    TOKENINFO(500, 4096);
+
+    private final long defaultMaxLag;
+    private final int defaultMaxInFlight;
+
+    Priority(long defaultMaxLag, int defaultMaxInFlight) {
+      this.defaultMaxLag = defaultMaxLag;
+      this.defaultMaxInFlight = defaultMaxInFlight;
+    }
+
+    String configName() {
+      return name().toLowerCase();
+    }
+  }
+
+  private final IntSupplier inFlight;
+  private final long probeInterval;
+  private final long[] maxLag = new long[Priority.values().length];
+  private final int[] maxInFlight = new int[Priority.values().length];
+  private final long[] admitted = new long[Priority.values().length];
+  private final long[] shed = new long[Priority.values().length];
+  private final boolean[] shedding = new boolean[Priority.values().length];
+  private long lag = 0;
+  private long peakLag = 0;
+  private long lastProbe;
+  private long timerID = -1;
+
+  /**
+   * @param config the <code>admission</code> config: <code>probeInterval</code> in millis, and <code>maxLag</code>
+   *               (millis) and <code>maxInFlight</code> objects keyed by priority
+   * @param inFlight the number of requests currently in flight
+   */
+  public static AdmissionController create(Vertx vertx, JsonObject config, IntSupplier inFlight) {
+    AdmissionController controller = new AdmissionController(config, inFlight);
+    controller.start(vertx);
+    return controller;
+  }
+
+  AdmissionController(JsonObject config, IntSupplier inFlight) {
+    this.inFlight = inFlight;
+    this.probeInterval = config.getLong("probeInterval", DEFAULT_PROBE_INTERVAL);
+    JsonObject maxLagConfig = config.getJsonObject("maxLag", new JsonObject());
+    JsonObject maxInFlightConfig = config.getJsonObject("maxInFlight", new JsonObject());
+    for (Priority priority : Priority.values()) {
+      maxLag[priority.ordinal()] = maxLagConfig.getLong(priority.configName(), priority.defaultMaxLag);
+      maxInFlight[priority.ordinal()] = maxInFlightConfig.getInteger(priority.configName(), priority.defaultMaxInFlight);
+    }
+  }
+
+  /**
+   * Handler that passes requests of this priority on, or sheds them while overloaded
+   */
+  public Handler<RoutingContext> admit(Priority priority) {
+    return context -> {
+      if (tryAdmit(priority)) {
+        context.next();
+      } else {
+        httpServiceUnavailable(context);
+      }
+    };
+  }
+
+  public void stop(Vertx vertx) {
+    if (timerID >= 0) {
+      vertx.cancelTimer(timerID);
+      timerID = -1;
+    }
+  }
+
+  /**
+   * @return the current lag, thresholds and per priority admitted and shed counts
+   */
+  public JsonObject toJson() {
+    JsonObject priorities = new JsonObject();
+    for (Priority priority : Priority.values()) {
+      int i = priority.ordinal();
+      priorities.put(priority.configName(), new JsonObject()
+        .put("admitted", admitted[i])
+        .put("shed", shed[i])
+        .put("shedding", shedding[i])
+        .put("maxLag", maxLag[i])
+        .put("maxInFlight", maxInFlight[i]));
+    }
+    return new JsonObject()
+      .put("lag", lag)
+      .put("peakLag", peakLag)
+      .put("inFlight", inFlight.getAsInt())
+      .put("priorities", priorities);
+  }
+
+  /**
+   * @return how late, in millis, the event loop is running
+   */
+  public long getLag() {
+    return lag;
+  }
+
+  /**
+   * @return true if requests of any priority would be shed now
+   */
+  public boolean isOverloaded() {
+    for (Priority priority : Priority.values()) {
+      if (isOverloaded(priority.ordinal())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  boolean tryAdmit(Priority priority) {
+    int i = priority.ordinal();
+    boolean overloaded = isOverloaded(i);
+    if (overloaded != shedding[i]) {
+      shedding[i] = overloaded;
+      if (overloaded) {
+        LOG.warn("shedding {} requests: event loop lag {}ms, {} in flight", priority, lag, inFlight.getAsInt());
+      } else {
+        LOG.info("admitting {} requests again after shedding {}", priority, shed[i]);
+      }
+    }
+    if (overloaded) {
+      shed[i]++;
+      return false;
+    }
+    admitted[i]++;
+    return true;
+  }
+
+  private boolean isOverloaded(int i) {
+    return lag >= maxLag[i] || inFlight.getAsInt() > maxInFlight[i];
+  }
+
+  /**
+   * Record a probe that fired <code>lateBy</code> millis after it was due. Lag rises immediately but halves with
+   * each probe that is on time, so a single stall doesn't shed load for long.
+   */
+  void recordLag(long lateBy) {
+    lag = Math.max(lateBy, lag / 2);
+    peakLag = Math.max(peakLag, lateBy);
+  }
+
+  private void start(Vertx vertx) {
+    lastProbe = System.nanoTime();
+    timerID = vertx.setPeriodic(probeInterval, id -> {
+      long now = System.nanoTime();
+      recordLag(Math.max(0, TimeUnit.NANOSECONDS.toMillis(now - lastProbe) - probeInterval));
+      lastProbe = now;
+    });
+  }
+}
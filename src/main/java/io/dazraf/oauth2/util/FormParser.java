@@ -0,0 +1,278 @@
+package io.dazraf.oauth2.util;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads small <code>application/x-www-form-urlencoded</code> bodies, such as those posted to the token end point, in
+ * place of the {@link io.vertx.ext.web.handler.BodyHandler}. The body is parsed as it arrives and never buffered:
+ * only the values of the fields a route expects are kept, each up to <code>maxFieldLength</code> bytes, and the rest
+ * are skipped. They are then added to the request's params, where a BodyHandler would have put them.
+ * <p>
+ * A body is rejected, and its connection closed, as soon as it is longer than <code>maxBodyLength</code> (413), has a
+ * field that is too long (413), repeats a field (400), or isn't a form at all (415). One that hasn't arrived within
+ * <code>bodyTimeout</code> millis of the request is rejected with a 408, so that a client dripping a body a byte at a
+ * time can't hold a connection open.
+ * <p>
+ * All methods must be called on the verticle's event loop.
+ */
+public class FormParser {
+  private static final Logger LOG = LoggerFactory.getLogger(FormParser.class);
+  private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+  private static final int DEFAULT_MAX_BODY_LENGTH = 16 * 1024;
+  private static final int DEFAULT_MAX_FIELD_LENGTH = 8 * 1024;
+  private static final long DEFAULT_BODY_TIMEOUT = 5000;
+  // longer than any field name we expect, so a longer one is skipped without being kept
+  private static final int MAX_NAME_LENGTH = 64;
+
+  private final Vertx vertx;
+  private final int maxBodyLength;
+  private final int maxFieldLength;
+  private final long bodyTimeout;
+  private long parsed = 0;
+  private long tooLarge = 0;
+  private long malformed = 0;
+  private long unsupported = 0;
+  private long timedOut = 0;
+
+  /**
+   * @param config the <code>forms</code> config: <code>maxBodyLength</code> and <code>maxFieldLength</code> in bytes,
+   *               and <code>bodyTimeout</code> in millis
+   */
+  public static FormParser create(Vertx vertx, JsonObject config) {
+    return new FormParser(vertx, config);
+  }
+
+  private FormParser(Vertx vertx, JsonObject config) {
+    this.vertx = vertx;
+    this.maxBodyLength = config.getInteger("maxBodyLength", DEFAULT_MAX_BODY_LENGTH);
+    this.maxFieldLength = config.getInteger("maxFieldLength", DEFAULT_MAX_FIELD_LENGTH);
+    this.bodyTimeout = config.getLong("bodyTimeout", DEFAULT_BODY_TIMEOUT);
+  }
+
+  /**
+   * Handler that reads the body of a route expecting <code>fields</code> and passes the request on once it has
+   */
+  public Handler<RoutingContext> expect(String... fields) {
+    Set<String> expected = new HashSet<>(Arrays.asList(fields));
+    return context -> new Form(context, expected).start();
+  }
+
+  /**
+   * @return the limits, and how many bodies have been parsed and rejected, by reason
+   */
+  public JsonObject toJson() {
+    return new JsonObject()
+      .put("maxBodyLength", maxBodyLength)
+      .put("maxFieldLength", maxFieldLength)
+      .put("bodyTimeout", bodyTimeout)
+      .put("parsed", parsed)
+      .put("rejected", new JsonObject()
+        .put("tooLarge", tooLarge)
+        .put("malformed", malformed)
+        .put("unsupported", unsupported)
+        .put("timedOut", timedOut));
+  }
+
+  /**
+   * The state of one body as it is parsed
+   */
+  private class Form {
+    private final RoutingContext context;
+    private final HttpServerRequest request;
+    private final Set<String> expected;
+    private final Map<String, String> values = new HashMap<>();
+    private final ByteArrayOutputStream name = new ByteArrayOutputStream(MAX_NAME_LENGTH);
+    private final ByteArrayOutputStream value = new ByteArrayOutputStream();
+    private boolean inValue = false;
+    // the expected field whose value is being read, or null if it is being skipped
+    private String field = null;
+    private int length = 0;
+    private long timerID = -1;
+    private boolean finished = false;
+
+    Form(RoutingContext context, Set<String> expected) {
+      this.context = context;
+      this.request = context.request();
+      this.expected = expected;
+    }
+
+    void start() {
+      String contentType = request.getHeader("Content-Type");
+      String contentLength = request.getHeader("Content-Length");
+      if (request.isEnded() || (contentLength == null && request.getHeader("Transfer-Encoding") == null)) {
+        // there's no body, e.g. a GET with its fields in the query
+        context.next();
+        return;
+      }
+      if (contentType != null && !contentType.toLowerCase().startsWith(FORM_CONTENT_TYPE)) {
+        unsupported++;
+        reject(415, "expected a body of " + FORM_CONTENT_TYPE);
+        return;
+      }
+      if (contentLength != null && !contentLength.matches("\\d{1,9}")) {
+        malformed++;
+        reject(400, "invalid Content-Length");
+        return;
+      }
+      if (contentLength != null && Integer.parseInt(contentLength) > maxBodyLength) {
+        tooLarge++;
+        reject(413, "the body is longer than " + maxBodyLength + " bytes");
+        return;
+      }
+      timerID = vertx.setTimer(bodyTimeout, id -> {
+        timerID = -1;
+        if (!finished && !context.response().closed()) {
+          timedOut++;
+          reject(408, "the body took longer than " + bodyTimeout + "ms to arrive");
+        }
+      });
+      request.handler(this::parse);
+      request.endHandler(v -> {
+        if (finished) {
+          return;
+        }
+        if (endField()) {
+          finish();
+          parsed++;
+          values.forEach(request.params()::add);
+          context.next();
+        }
+      });
+      request.exceptionHandler(e -> finish());
+    }
+
+    private void parse(Buffer chunk) {
+      if (finished) {
+        return;
+      }
+      length += chunk.length();
+      if (length > maxBodyLength) {
+        tooLarge++;
+        reject(413, "the body is longer than " + maxBodyLength + " bytes");
+        return;
+      }
+      for (int i = 0; i < chunk.length(); i++) {
+        byte b = chunk.getByte(i);
+        if (b == '&') {
+          if (!endField()) {
+            return;
+          }
+        } else if (b == '=' && !inValue) {
+          if (!startValue()) {
+            return;
+          }
+        } else if (!inValue) {
+          // a name too long to be expected is only told apart from one that is by its length
+          if (name.size() <= MAX_NAME_LENGTH) {
+            name.write(b);
+          }
+        } else if (field != null) {
+          if (value.size() >= maxFieldLength) {
+            tooLarge++;
+            reject(413, field + " is longer than " + maxFieldLength + " bytes");
+            return;
+          }
+          value.write(b);
+        }
+      }
+    }
+
+    /**
+     * Having read a field's name, decide whether to keep its value
+     *
+     * @return false if the body has been rejected
+     */
+    private boolean startValue() {
+      inValue = true;
+      field = null;
+      if (name.size() > MAX_NAME_LENGTH) {
+        return true;
+      }
+      String decoded = decode(name);
+      if (decoded == null) {
+        return false;
+      }
+      if (expected.contains(decoded)) {
+        if (values.containsKey(decoded)) {
+          malformed++;
+          reject(400, "the body repeats " + decoded);
+          return false;
+        }
+        field = decoded;
+      }
+      return true;
+    }
+
+    /**
+     * Keep the value of the field just read, if it is expected
+     *
+     * @return false if the body has been rejected
+     */
+    private boolean endField() {
+      // a field without a value is empty
+      if (!inValue && name.size() > 0 && !startValue()) {
+        return false;
+      }
+      if (field != null) {
+        String decoded = decode(value);
+        if (decoded == null) {
+          return false;
+        }
+        values.put(field, decoded);
+      }
+      name.reset();
+      value.reset();
+      inValue = false;
+      field = null;
+      return true;
+    }
+
+    /**
+     * @return the decoded text, or null if it isn't properly percent encoded, in which case the body is rejected
+     */
+    private String decode(ByteArrayOutputStream encoded) {
+      try {
+        return URLDecoder.decode(encoded.toString(StandardCharsets.UTF_8.name()), StandardCharsets.UTF_8.name());
+      } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+        malformed++;
+        reject(400, "the body isn't properly percent encoded");
+        return null;
+      }
+    }
+
+    private void finish() {
+      finished = true;
+      if (timerID >= 0) {
+        vertx.cancelTimer(timerID);
+        timerID = -1;
+      }
+    }
+
+    /**
+     * Respond with <code>status</code> and close the connection, so that the rest of the body is never read
+     */
+    private void reject(int status, String reason) {
+      finish();
+      LOG.debug("rejected form body of {}: {}", request.path(), reason);
+      context.response().setStatusCode(status).setStatusMessage(reason).putHeader("Connection", "close").end();
+      context.response().close();
+    }
+  }
+}
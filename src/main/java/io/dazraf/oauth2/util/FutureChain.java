@@ -3,44 +3,65 @@ package io.dazraf.oauth2.util;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
-import io.vertx.core.impl.CompositeFutureImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
 import static java.util.Collections.emptyList;
-import static java.util.stream.Collectors.toList;
-import static java.util.stream.IntStream.range;
-import static java.util.stream.StreamSupport.stream;
 
+/**
+ * A chainable wrapper around a {@link Future}.
+ * <p>
+ * Dependents are held in a single field that moves through a small state machine using compare-and-set:
+ * <code>null</code> (no dependents yet), a single {@link Consumer} (by far the common case for a chain),
+ * an <code>Object[]</code> of consumers, and finally {@link #COMPLETED} once the future has completed and the
+ * dependents have been notified. Dependents added after completion are called straight away.
+ * <p>
+ * A link does not hold on to its parent: the parent is kept alive by whoever holds its underlying future,
+ * which is the only thing that can complete the chain anyway.
+ */
 public class FutureChain<T> implements Future<T> {
   private static final Logger LOG = LoggerFactory.getLogger(FutureChain.class);
+  private static final Object COMPLETED = new Object();
+  @SuppressWarnings("rawtypes")
+  private static final AtomicReferenceFieldUpdater<FutureChain, Object> DEPENDENTS =
+    AtomicReferenceFieldUpdater.newUpdater(FutureChain.class, Object.class, "dependents");
+
   private final Future<T> internalFuture;
-  private final FutureChain parent; // required to avoid the parent being GC'd
-  private List<Consumer<Future<T>>> dependents = new LinkedList<>();
+  private volatile Object dependents;
 
-  private FutureChain(Future<T> future, FutureChain parent) {
+  private FutureChain(Future<T> future) {
     this.internalFuture = future;
-    this.parent = parent;
-    future.setHandler(asyncResult -> {
-      notifyAllDependents(future);
-    });
+    future.setHandler(asyncResult -> notifyAllDependents());
   }
 
-  private synchronized void notifyAllDependents(Future<T> future) {
-    dependents.forEach(dependent -> {
-      try {
-        dependent.accept(future);
-      } catch (Throwable throwable) {
-        LOG.error("during forwarding of a complete future to dependent", throwable);
+  @SuppressWarnings("unchecked")
+  private void notifyAllDependents() {
+    Object current = DEPENDENTS.getAndSet(this, COMPLETED);
+    if (current instanceof Consumer) {
+      notifyDependent((Consumer<Future<T>>) current);
+    } else if (current instanceof Object[]) {
+      for (Object dependent : (Object[]) current) {
+        notifyDependent((Consumer<Future<T>>) dependent);
       }
-    });
+    }
+  }
+
+  private void notifyDependent(Consumer<Future<T>> dependent) {
+    try {
+      dependent.accept(internalFuture);
+    } catch (Throwable throwable) {
+      LOG.error("during forwarding of a complete future to dependent", throwable);
+    }
   }
 
   /**
@@ -51,30 +72,43 @@ public class FutureChain<T> implements Future<T> {
    * @return
    */
   public static <Output> FutureChain<Output> when(Future<Output> future) {
-    return new FutureChain<>(future, null);
+    return new FutureChain<>(future);
   }
 
 
+  @SafeVarargs
+  @SuppressWarnings("varargs")
   public static <T> Future<List<T>> join(Future<T>... args) {
     return join(Arrays.asList(args));
   }
 
+  /**
+   * Wait for all of the futures, completing with their results in the same order, or failing with the first failure.
+   * Results are written straight into a pre-sized array that backs the result list.
+   */
   @SuppressWarnings("unchecked")
   public static <T> Future<List<T>> join(List<Future<T>> futures) {
-    if (futures.size() == 0) {
+    final int size = futures.size();
+    if (size == 0) {
       return Future.succeededFuture(emptyList());
     }
-    Future<List<T>> result = Future.future();
-    final Future[] arrayFutures = futures.toArray(new Future[futures.size()]);
-    when(CompositeFutureImpl.<T>all(arrayFutures))
-      .onSuccess(cf -> {
-        result.complete(
-          range(0, cf.size())
-            .mapToObj(cf::result)
-            .map(item -> (T) item)
-            .collect(toList()));
-      })
-      .onError(result::fail);
+    final Future<List<T>> result = Future.future();
+    final Object[] results = new Object[size];
+    // counts down to zero as results arrive, and is forced negative on the first failure
+    final AtomicInteger remaining = new AtomicInteger(size);
+    for (int i = 0; i < size; i++) {
+      final int index = i;
+      futures.get(i).setHandler(response -> {
+        if (response.succeeded()) {
+          results[index] = response.result();
+          if (remaining.decrementAndGet() == 0) {
+            result.complete((List<T>) Arrays.asList(results));
+          }
+        } else if (remaining.getAndSet(Integer.MIN_VALUE) > 0) {
+          result.fail(response.cause());
+        }
+      });
+    }
     return result;
   }
 
@@ -95,7 +129,7 @@ public class FutureChain<T> implements Future<T> {
         future.fail(response.cause());
       }
     });
-    return new FutureChain<>(future, this);
+    return new FutureChain<>(future);
   }
 
   /**
@@ -120,7 +154,7 @@ public class FutureChain<T> implements Future<T> {
         future.fail(response.cause());
       }
     });
-    return new FutureChain<>(future, this);
+    return new FutureChain<>(future);
   }
 
   /**
@@ -144,7 +178,7 @@ public class FutureChain<T> implements Future<T> {
         future.complete(response.result());
       }
     });
-    return new FutureChain<>(future, this);
+    return new FutureChain<>(future);
   }
 
   /**
@@ -167,7 +201,7 @@ public class FutureChain<T> implements Future<T> {
         future.fail(throwable);
       }
     });
-    return new FutureChain<>(future, this);
+    return new FutureChain<>(future);
   }
 
   /**
@@ -190,7 +224,7 @@ public class FutureChain<T> implements Future<T> {
         future.fail(response.cause());
       }
     });
-    return new FutureChain<>(future, this);
+    return new FutureChain<>(future);
   }
 
   /**
@@ -213,7 +247,7 @@ public class FutureChain<T> implements Future<T> {
         future.fail(response.cause());
       }
     });
-    return new FutureChain<>(future, this);
+    return new FutureChain<>(future);
   }
 
 
@@ -237,7 +271,7 @@ public class FutureChain<T> implements Future<T> {
         future.fail(response.cause());
       }
     });
-    return new FutureChain<>(future, this);
+    return new FutureChain<>(future);
   }
 
   /**
@@ -259,7 +293,7 @@ public class FutureChain<T> implements Future<T> {
         future.fail(response.cause());
       }
     });
-    return new FutureChain<>(future, this);
+    return new FutureChain<>(future);
 
   }
 
@@ -284,7 +318,7 @@ public class FutureChain<T> implements Future<T> {
         future.fail(response.cause());
       }
     });
-    return new FutureChain<>(future, this);
+    return new FutureChain<>(future);
   }
 
   /**
@@ -337,10 +371,26 @@ public class FutureChain<T> implements Future<T> {
     return this;
   }
 
-  private synchronized void addHandler(Consumer<Future<T>> handler) {
-    dependents.add(handler);
-    if (this.internalFuture.isComplete()) {
-      handler.accept(internalFuture);
+  private void addHandler(Consumer<Future<T>> handler) {
+    for (;;) {
+      final Object current = dependents;
+      final Object next;
+      if (current == COMPLETED) {
+        notifyDependent(handler);
+        return;
+      } else if (current == null) {
+        next = handler;
+      } else if (current instanceof Consumer) {
+        next = new Object[]{current, handler};
+      } else {
+        Object[] existing = (Object[]) current;
+        Object[] extended = Arrays.copyOf(existing, existing.length + 1);
+        extended[existing.length] = handler;
+        next = extended;
+      }
+      if (DEPENDENTS.compareAndSet(this, current, next)) {
+        return;
+      }
     }
   }
 
@@ -355,7 +405,7 @@ public class FutureChain<T> implements Future<T> {
         future.fail(throwable);
       }
     });
-    return new FutureChain<>(future, this);
+    return new FutureChain<>(future);
   }
 
   @SuppressWarnings("unchecked")
@@ -369,9 +419,12 @@ public class FutureChain<T> implements Future<T> {
             return;
           }
           Iterable<Item> items = (Iterable<Item>) response.result();
-          final List<Future<Result>> futureResults = stream(items.spliterator(), false)
-            .map(function::apply)
-            .collect(toList());
+          final List<Future<Result>> futureResults = items instanceof Collection
+            ? new ArrayList<>(((Collection<Item>) items).size())
+            : new ArrayList<>();
+          for (Item item : items) {
+            futureResults.add(function.apply(item));
+          }
           when(join(futureResults))
             .completeOn(future.completer());
         } catch (Throwable throwable) {
@@ -382,7 +435,7 @@ public class FutureChain<T> implements Future<T> {
         future.fail(response.cause());
       }
     });
-    return new FutureChain<>(future, this);
+    return new FutureChain<>(future);
   }
 
   @Override
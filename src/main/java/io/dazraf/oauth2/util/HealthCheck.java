@@ -0,0 +1,131 @@
+package io.dazraf.oauth2.util;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Answers liveness and readiness probes from responses encoded ahead of time, so that a load balancer probing every
+ * second costs a buffer write rather than a page.
+ * <p>
+ * Every <code>refreshInterval</code> millis the state is sampled: each condition registered with
+ * {@link #notReadyWhile} and each report registered with {@link #addStats}. Readiness answers 503 while any condition
+ * holds, naming them, so that traffic is routed elsewhere while this instance is starting, restoring state, shedding
+ * load or draining, and 200 otherwise. Liveness answers 200 whenever the event loop gets to it; an instance whose event
+ * loop is stuck doesn't answer at all. Both include the reports.
+ * <p>
+ * Each instance answers from its own state. All methods must be called on the verticle's event loop.
+ */
+public class HealthCheck {
+  private static final long DEFAULT_REFRESH_INTERVAL = 250;
+
+  private final Map<String, BooleanSupplier> conditions = new LinkedHashMap<>();
+  private final Map<String, Supplier<Object>> statsSources = new LinkedHashMap<>();
+  private final long refreshInterval;
+  // until the first refresh, once everything has registered
+  private Buffer live = Buffer.buffer(new JsonObject().put("status", "UP").encode());
+  private Buffer ready = Buffer.buffer(new JsonObject()
+    .put("status", "DOWN").put("failing", new JsonArray().add("starting")).encode());
+  private int readyStatus = 503;
+  private long timerID = -1;
+
+  /**
+   * @param config the <code>health</code> config: <code>refreshInterval</code> in millis
+   */
+  public static HealthCheck create(Vertx vertx, JsonObject config) {
+    HealthCheck health = new HealthCheck(config);
+    health.start(vertx);
+    return health;
+  }
+
+  HealthCheck(JsonObject config) {
+    this.refreshInterval = config.getLong("refreshInterval", DEFAULT_REFRESH_INTERVAL);
+  }
+
+  /**
+   * Answer readiness probes with a 503 while <code>condition</code> holds, naming it <code>name</code>
+   */
+  public void notReadyWhile(String name, BooleanSupplier condition) {
+    conditions.put(name, condition);
+  }
+
+  /**
+   * Include <code>stats</code>, a JSON value, under <code>name</code> in both probes' responses
+   */
+  public void addStats(String name, Supplier<Object> stats) {
+    statsSources.put(name, stats);
+  }
+
+  /**
+   * Handler that answers liveness probes
+   */
+  public Handler<RoutingContext> live() {
+    return context -> respond(context, 200, live);
+  }
+
+  /**
+   * Handler that answers readiness probes
+   */
+  public Handler<RoutingContext> ready() {
+    return context -> respond(context, readyStatus, ready);
+  }
+
+  /**
+   * Sample the state now, rather than at the next refresh, after something that should be seen straight away
+   */
+  public void refresh() {
+    JsonObject stats = new JsonObject();
+    statsSources.forEach((name, source) -> stats.put(name, source.get()));
+    JsonArray failing = new JsonArray();
+    conditions.forEach((name, condition) -> {
+      if (condition.getAsBoolean()) {
+        failing.add(name);
+      }
+    });
+    readyStatus = failing.isEmpty() ? 200 : 503;
+    live = Buffer.buffer(new JsonObject().put("status", "UP").mergeIn(stats).encode());
+    ready = Buffer.buffer(new JsonObject()
+      .put("status", failing.isEmpty() ? "UP" : "DOWN")
+      .put("failing", failing)
+      .mergeIn(stats).encode());
+  }
+
+  public void stop(Vertx vertx) {
+    if (timerID >= 0) {
+      vertx.cancelTimer(timerID);
+      timerID = -1;
+    }
+  }
+
+  int getReadyStatus() {
+    return readyStatus;
+  }
+
+  Buffer getReady() {
+    return ready;
+  }
+
+  Buffer getLive() {
+    return live;
+  }
+
+  private void start(Vertx vertx) {
+    timerID = vertx.setPeriodic(refreshInterval, id -> refresh());
+  }
+
+  private static void respond(RoutingContext context, int status, Buffer body) {
+    context.response()
+      .setStatusCode(status)
+      .putHeader("Content-Type", "application/json")
+      .putHeader("Cache-Control", "no-store")
+      .end(body);
+  }
+}
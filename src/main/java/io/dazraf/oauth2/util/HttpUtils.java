@@ -30,6 +30,20 @@ public class HttpUtils {
     context.response().setStatusCode(400).setStatusMessage(errorMessage).end();
   }
 
+  /**
+   * Respond 403: the request was understood, and is refused
+   */
+  public static void httpForbidden(RoutingContext context, String errorMessage) {
+    context.response().setStatusCode(403).setStatusMessage(errorMessage).end();
+  }
+
+  /**
+   * Respond 503, asking the client to retry shortly
+   */
+  public static void httpServiceUnavailable(RoutingContext context) {
+    context.response().setStatusCode(503).putHeader("Retry-After", "1").end();
+  }
+
   public static void httpRedirectTemporary(RoutingContext context, String redirectURI) {
     context.response()
       .setStatusCode(303)
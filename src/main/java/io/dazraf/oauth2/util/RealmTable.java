@@ -0,0 +1,74 @@
+package io.dazraf.oauth2.util;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the realm a request is for, from its Host header and path.
+ * <p>
+ * Each realm is served under a base path, on one host or on any host. A request goes to the realm with the longest
+ * base path that is a whole segment prefix of its path, preferring realms on the request's host to realms on any host.
+ * A lookup is a hash lookup per path segment, at most, however many realms there are.
+ */
+public class RealmTable<T> {
+  private final Map<String, Map<String, T>> byHost = new HashMap<>();
+  private final Map<String, T> anyHost = new HashMap<>();
+
+  public static <T> RealmTable<T> create() {
+    return new RealmTable<>();
+  }
+
+  private RealmTable() {
+  }
+
+  /**
+   * @param host the host name the realm is served on, or null to serve it on any host
+   * @param basePath the path the realm is served under, starting with a slash
+   * @throws IllegalArgumentException if another realm is already served under the same host and base path
+   */
+  public void add(String host, String basePath, T realm) {
+    if (!basePath.startsWith("/") || basePath.length() < 2 || basePath.endsWith("/")) {
+      throw new IllegalArgumentException("base path must be a path below the root, without a trailing slash: "
+        + basePath);
+    }
+    Map<String, T> paths = host == null ? anyHost : byHost.computeIfAbsent(host.toLowerCase(Locale.ROOT),
+      name -> new HashMap<>());
+    if (paths.putIfAbsent(basePath, realm) != null) {
+      throw new IllegalArgumentException("more than one realm is served under " + (host == null ? "" : host)
+        + basePath);
+    }
+  }
+
+  /**
+   * @param hostHeader the request's Host header, with or without a port, or null
+   * @return the realm for the request, or null if there isn't one
+   */
+  public T find(String hostHeader, String path) {
+    if (hostHeader != null && !byHost.isEmpty()) {
+      Map<String, T> paths = byHost.get(hostName(hostHeader));
+      T realm = paths == null ? null : find(paths, path);
+      if (realm != null) {
+        return realm;
+      }
+    }
+    return find(anyHost, path);
+  }
+
+  private static <T> T find(Map<String, T> paths, String path) {
+    for (int end = path.length(); end > 0; end = path.lastIndexOf('/', end - 1)) {
+      T realm = paths.get(path.substring(0, end));
+      if (realm != null) {
+        return realm;
+      }
+    }
+    return null;
+  }
+
+  private static String hostName(String hostHeader) {
+    // a port follows the last colon, unless the host is an IPv6 literal in brackets and the colon is inside them
+    int colon = hostHeader.lastIndexOf(':');
+    String host = colon > hostHeader.lastIndexOf(']') ? hostHeader.substring(0, colon) : hostHeader;
+    return host.toLowerCase(Locale.ROOT);
+  }
+}
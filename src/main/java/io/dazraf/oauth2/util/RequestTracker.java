@@ -0,0 +1,88 @@
+package io.dazraf.oauth2.util;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.ext.web.RoutingContext;
+
+import static io.dazraf.oauth2.util.HttpUtils.httpServiceUnavailable;
+
+/**
+ * Counts the requests currently in flight through a router so that shutdown can wait for them to finish.
+ * Install it as the first handler on the router. All methods must be called on the verticle's event loop.
+ */
+public class RequestTracker implements Handler<RoutingContext> {
+
+  private int inFlight = 0;
+  private boolean draining = false;
+  private Handler<Void> drainedHandler;
+
+  public static RequestTracker create() {
+    return new RequestTracker();
+  }
+
+  private RequestTracker() {
+  }
+
+  @Override
+  public void handle(RoutingContext context) {
+    inFlight++;
+    // a request finishes either when its response ends or when the connection goes away beneath it
+    boolean[] finished = {false};
+    Handler<Void> onFinished = v -> {
+      if (!finished[0]) {
+        finished[0] = true;
+        inFlight--;
+        if (inFlight == 0) {
+          notifyDrained();
+        }
+      }
+    };
+    context.addBodyEndHandler(onFinished);
+    context.response().closeHandler(onFinished);
+    context.next();
+  }
+
+  public int getInFlight() {
+    return inFlight;
+  }
+
+  public boolean isDraining() {
+    return draining;
+  }
+
+  /**
+   * Handler for routes that must not start new work while draining. Rejects with a 503 so that clients
+   * (and load balancers) retry against another instance.
+   */
+  public Handler<RoutingContext> rejectWhileDraining() {
+    return context -> {
+      if (draining) {
+        httpServiceUnavailable(context);
+      } else {
+        context.next();
+      }
+    };
+  }
+
+  /**
+   * Start draining, calling the handler once no requests are in flight or the timeout has passed,
+   * whichever comes first.
+   */
+  public void drain(Vertx vertx, long timeoutMillis, Handler<Void> handler) {
+    draining = true;
+    drainedHandler = handler;
+    if (inFlight == 0) {
+      notifyDrained();
+    } else {
+      vertx.setTimer(timeoutMillis, id -> notifyDrained());
+    }
+  }
+
+  private void notifyDrained() {
+    Handler<Void> handler = drainedHandler;
+    drainedHandler = null;
+    if (handler != null) {
+      handler.handle(null);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package io.dazraf.oauth2.util;
+
+import io.vertx.core.Handler;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Logs how long after the JVM started the first request on a route was answered, which is the startup time that
+ * matters when scaling out
+ */
+public class StartupReport {
+  private static final Logger LOG = LoggerFactory.getLogger(StartupReport.class);
+  private static final ConcurrentMap<String, AtomicBoolean> REPORTED = new ConcurrentHashMap<>();
+
+  private StartupReport() {
+  }
+
+  /**
+   * Handler that reports the first response on its route, once per JVM however many verticles install it
+   */
+  public static Handler<RoutingContext> firstResponse(String name) {
+    AtomicBoolean reported = REPORTED.computeIfAbsent(name, key -> new AtomicBoolean());
+    return context -> {
+      if (!reported.get() && reported.compareAndSet(false, true)) {
+        context.addBodyEndHandler(v ->
+          LOG.info("first {} answered {}ms after JVM start", name, millisSinceJvmStart()));
+      }
+      context.next();
+    };
+  }
+
+  public static long millisSinceJvmStart() {
+    return ManagementFactory.getRuntimeMXBean().getUptime();
+  }
+}
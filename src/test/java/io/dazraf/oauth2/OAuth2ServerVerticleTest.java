@@ -0,0 +1,42 @@
+package io.dazraf.oauth2;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OAuth2ServerVerticleTest {
+  private final JsonObject config = new JsonObject()
+    .put("basePath", "/oauth2")
+    .put("scopes", new JsonObject().put("fp", new JsonObject()))
+    .put("users", new JsonObject().put("admin", new JsonObject().put("password", "admin").put("roles", "admin")))
+    .put("userDirectory", new JsonObject().put("url", "jdbc:h2:mem:users"))
+    .put("clients", new JsonObject().put("acme1", new JsonObject()))
+    .put("registration", new JsonObject().put("file", "oauth2-clients.log"))
+    .put("realms", new JsonObject()
+      .put("empty", new JsonObject())
+      .put("acme", new JsonObject()
+        .put("users", new JsonObject().put("wile", new JsonObject().put("password", "coyote")))
+        .put("clients", new JsonObject().put("acme2", new JsonObject()))));
+
+  @Test
+  public void testRealmInheritsNeitherUsersNorClients() {
+    JsonObject empty = OAuth2ServerVerticle.realmConfig(config, "empty");
+    Assert.assertEquals("/empty", empty.getString("basePath"));
+    Assert.assertEquals(config.getJsonObject("scopes"), empty.getJsonObject("scopes"));
+    Assert.assertEquals(new JsonObject(), empty.getJsonObject("users"));
+    Assert.assertEquals(new JsonObject(), empty.getJsonObject("clients"));
+    Assert.assertFalse(empty.containsKey("userDirectory"));
+    Assert.assertFalse(empty.containsKey("registration"));
+    Assert.assertFalse(empty.containsKey("realms"));
+  }
+
+  @Test
+  public void testRealmHasOnlyItsOwnUsersAndClients() {
+    JsonObject acme = OAuth2ServerVerticle.realmConfig(config, "acme");
+    Assert.assertEquals(config.getJsonObject("realms").getJsonObject("acme").getJsonObject("users"),
+      acme.getJsonObject("users"));
+    Assert.assertEquals(1, acme.getJsonObject("clients").size());
+    Assert.assertTrue(acme.getJsonObject("clients").containsKey("acme2"));
+    Assert.assertFalse(acme.containsKey("userDirectory"));
+  }
+}
@@ -0,0 +1,150 @@
+package io.dazraf.oauth2.authentication;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.auth.User;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BlockingAuthProviderTest {
+  private final Vertx vertx = Vertx.vertx();
+  private final SlowDirectory directory = new SlowDirectory();
+
+  @After
+  public void closeVertx() {
+    directory.release.countDown();
+    vertx.close();
+  }
+
+  @Test
+  public void testCachesAcceptedAndRefusedLogins() throws Exception {
+    directory.release.countDown();
+    BlockingAuthProvider provider = BlockingAuthProvider.create(vertx, directory, new JsonObject());
+
+    User alice = login(provider, "alice", "alice").get(5, TimeUnit.SECONDS).result();
+    Assert.assertEquals(new JsonObject().put("name", "Alice").put("username", "alice"), alice.principal());
+    Assert.assertTrue(login(provider, "alice", "alice").get(5, TimeUnit.SECONDS).succeeded());
+    Assert.assertEquals(1, directory.lookups("alice"));
+    Assert.assertTrue(login(provider, "bob", "bob").get(5, TimeUnit.SECONDS).failed());
+    Assert.assertTrue(login(provider, "bob", "bob").get(5, TimeUnit.SECONDS).failed());
+    Assert.assertEquals(1, directory.lookups("bob"));
+    Assert.assertNull(provider.getClaims("bob"));
+
+    // another password is the directory's to check, and refusing it doesn't displace the login it accepted
+    Assert.assertEquals("incorrect username or password",
+      login(provider, "alice", "wrong").get(5, TimeUnit.SECONDS).cause().getMessage());
+    Assert.assertEquals(2, directory.lookups("alice"));
+    Assert.assertTrue(login(provider, "alice", "alice").get(5, TimeUnit.SECONDS).succeeded());
+    Assert.assertEquals(2, directory.lookups("alice"));
+    Assert.assertEquals(new JsonObject().put("name", "Alice"), provider.getClaims("alice"));
+
+    // revoking a user makes their next login go back to the directory
+    Assert.assertEquals(1, provider.invalidate("alice"));
+    Assert.assertTrue(login(provider, "alice", "alice").get(5, TimeUnit.SECONDS).succeeded());
+    Assert.assertEquals(3, directory.lookups("alice"));
+  }
+
+  @Test
+  public void testLimitsConcurrentLookups() throws Exception {
+    BlockingAuthProvider provider = BlockingAuthProvider.create(vertx, directory, new JsonObject()
+      .put("maxConcurrency", 2).put("maxQueued", 1).put("timeout", 5000));
+    List<CompletableFuture<AsyncResult<User>>> logins = new ArrayList<>();
+    for (String username : new String[]{"alice", "carol", "dave"}) {
+      logins.add(login(provider, username, username));
+    }
+    // a login for a user already being looked up shares the lookup, so isn't turned away
+    logins.add(login(provider, "alice", "alice"));
+    AsyncResult<User> rejected = login(provider, "erin", "erin").get(5, TimeUnit.SECONDS);
+    Assert.assertEquals("user directory is busy", rejected.cause().getMessage());
+
+    for (int i = 0; i < 100 && directory.concurrent.get() < 2; i++) {
+      Thread.sleep(10);
+    }
+    directory.release.countDown();
+    for (CompletableFuture<AsyncResult<User>> login : logins) {
+      Assert.assertTrue(login.get(5, TimeUnit.SECONDS).succeeded());
+    }
+    Assert.assertEquals(2, directory.maxConcurrent.get());
+    Assert.assertEquals(1, directory.lookups("alice"));
+    JsonObject stats = provider.toJson();
+    Assert.assertEquals(1, (int) stats.getInteger("rejected"));
+    // a lookup stops pending just after its logins are answered
+    for (int i = 0; i < 100 && provider.toJson().getInteger("pending") > 0; i++) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(0, (int) provider.toJson().getInteger("pending"));
+  }
+
+  @Test
+  public void testTimesOutButCachesTheLateAnswer() throws Exception {
+    BlockingAuthProvider provider = BlockingAuthProvider.create(vertx, directory, new JsonObject().put("timeout", 50));
+    AsyncResult<User> timedOut = login(provider, "alice", "alice").get(5, TimeUnit.SECONDS);
+    Assert.assertEquals("user directory timed out", timedOut.cause().getMessage());
+
+    directory.release.countDown();
+    for (int i = 0; i < 100 && provider.getClaims("alice") == null; i++) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(login(provider, "alice", "alice").get(5, TimeUnit.SECONDS).succeeded());
+    Assert.assertEquals(1, directory.lookups("alice"));
+  }
+
+  @Test
+  public void testUserWithoutPasswordCannotLogIn() throws Exception {
+    directory.release.countDown();
+    BlockingAuthProvider provider = BlockingAuthProvider.create(vertx, directory, new JsonObject());
+    Assert.assertEquals("incorrect username or password",
+      login(provider, "sso", "").get(5, TimeUnit.SECONDS).cause().getMessage());
+    Assert.assertTrue(login(provider, "sso", "sso").get(5, TimeUnit.SECONDS).failed());
+  }
+
+  private static CompletableFuture<AsyncResult<User>> login(BlockingAuthProvider provider, String username,
+                                                            String password) {
+    CompletableFuture<AsyncResult<User>> result = new CompletableFuture<>();
+    provider.authenticate(new JsonObject().put("username", username).put("password", password), result::complete);
+    return result;
+  }
+
+  /**
+   * Every user but bob exists, with their name as their password, except sso, who has none. Lookups block until
+   * released.
+   */
+  private static class SlowDirectory implements UserDirectory {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger concurrent = new AtomicInteger();
+    final AtomicInteger maxConcurrent = new AtomicInteger();
+    private final Map<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+
+    @Override
+    public JsonObject authenticate(String username, String password) throws InterruptedException {
+      lookups.computeIfAbsent(username, name -> new AtomicInteger()).incrementAndGet();
+      maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+      try {
+        release.await();
+        if (username.equals("bob") || username.equals("sso") || !username.equals(password)) {
+          return null;
+        }
+        String name = Character.toUpperCase(username.charAt(0)) + username.substring(1);
+        return new JsonObject().put("username", username).put("name", name);
+      } finally {
+        concurrent.decrementAndGet();
+      }
+    }
+
+    int lookups(String username) {
+      AtomicInteger count = lookups.get(username);
+      return count == null ? 0 : count.get();
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package io.dazraf.oauth2.authentication;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.auth.User;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the directory against an in-memory H2 database, standing in for the real one
+ */
+public class JdbcUserDirectoryTest {
+  private final String url = "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+  private final JsonObject config = new JsonObject().put("url", url).put("passwordColumn", "secret");
+  private Connection admin;
+
+  @Before
+  public void createTable() throws SQLException {
+    admin = DriverManager.getConnection(url);
+    try (Statement statement = admin.createStatement()) {
+      statement.execute("CREATE TABLE users (username VARCHAR(64) PRIMARY KEY, secret VARCHAR(128), "
+        + "Full_Name VARCHAR(64), email VARCHAR(64), logins INT, active BOOLEAN, roles VARCHAR(64), "
+        + "created TIMESTAMP)");
+      statement.execute("INSERT INTO users VALUES ('alice', '" + PasswordHash.create("wonderland", 1000)
+        + "', 'Alice Liddell', NULL, 7, TRUE, 'admin', TIMESTAMP '2016-03-01 12:00:00')");
+      statement.execute("INSERT INTO users VALUES ('sso', NULL, 'Signs In Elsewhere', 'sso@example.com', 0, TRUE, "
+        + "NULL, NULL)");
+      // not a hash, so no password logs them in, not even this one
+      statement.execute("INSERT INTO users VALUES ('carol', 'plaintext', 'Carol', NULL, 0, TRUE, NULL, NULL)");
+    }
+  }
+
+  @After
+  public void dropDatabase() throws SQLException {
+    try (Statement statement = admin.createStatement()) {
+      statement.execute("SHUTDOWN");
+    }
+  }
+
+  @Test
+  public void testMapsColumnsToEntry() throws Exception {
+    JsonObject alice = new JdbcUserDirectory(config).authenticate("alice", "wonderland");
+    Assert.assertEquals("alice", alice.getString("username"));
+    // the hash never leaves the directory
+    Assert.assertFalse(alice.containsKey("secret"));
+    Assert.assertFalse(alice.containsKey("password"));
+    // labels are lower cased, null columns are left out, and types JSON doesn't have become strings
+    Assert.assertEquals("Alice Liddell", alice.getString("full_name"));
+    Assert.assertFalse(alice.containsKey("email"));
+    Assert.assertEquals(7, (int) alice.getInteger("logins"));
+    Assert.assertTrue(alice.getBoolean("active"));
+    Assert.assertTrue(alice.getString("created"), alice.getString("created").startsWith("2016-03-01 12:00:00"));
+  }
+
+  @Test
+  public void testChecksThePasswordAgainstItsHash() throws Exception {
+    JdbcUserDirectory directory = new JdbcUserDirectory(config);
+    Assert.assertNotNull(directory.authenticate("alice", "wonderland"));
+    Assert.assertNull(directory.authenticate("alice", "Wonderland"));
+    Assert.assertNull(directory.authenticate("alice", ""));
+    Assert.assertNull(directory.authenticate("bob", "wonderland"));
+    Assert.assertNull(directory.authenticate("sso", ""));
+    Assert.assertNull(directory.authenticate("carol", "plaintext"));
+  }
+
+  @Test
+  public void testReusesIdleConnections() throws Exception {
+    JdbcUserDirectory directory = new JdbcUserDirectory(config.copy().put("maxIdleConnections", 1));
+    for (int i = 0; i < 10; i++) {
+      Assert.assertNotNull(directory.authenticate("alice", "wonderland"));
+    }
+    // this test's own, and the one the directory keeps
+    Assert.assertEquals(2, openSessions());
+  }
+
+  @Test
+  public void testClosesConnectionThatFailsAQuery() throws Exception {
+    JdbcUserDirectory directory = new JdbcUserDirectory(config.copy().put("query",
+      "SELECT * FROM users WHERE username = CAST(? AS INT)"));
+    try {
+      directory.authenticate("alice", "wonderland");
+      Assert.fail("expected the query to fail");
+    } catch (SQLException e) {
+      // expected
+    }
+    Assert.assertEquals(1, openSessions());
+  }
+
+  @Test
+  public void testQueryTimeout() throws Exception {
+    // a scan of a billion rows, which would take far longer than the second allowed
+    JdbcUserDirectory directory = new JdbcUserDirectory(config.copy().put("queryTimeout", 1000).put("query",
+      "SELECT u.* FROM users u, SYSTEM_RANGE(1, 1000000000) r WHERE u.username = ? AND MOD(r.X, 7) = 9"));
+    long start = System.nanoTime();
+    try {
+      directory.authenticate("alice", "wonderland");
+      Assert.fail("expected the query to time out");
+    } catch (SQLException e) {
+      // expected
+    }
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+  }
+
+  @Test
+  public void testUserWithoutPasswordCannotLogIn() throws Exception {
+    Vertx vertx = Vertx.vertx();
+    try {
+      BlockingAuthProvider provider = BlockingAuthProvider.create(vertx, new JdbcUserDirectory(config),
+        new JsonObject());
+      Assert.assertTrue(login(provider, "sso", "").failed());
+      Assert.assertNull(provider.getClaims("sso"));
+      Assert.assertTrue(login(provider, "alice", "").failed());
+      AsyncResult<User> alice = login(provider, "alice", "wonderland");
+      Assert.assertTrue(alice.succeeded());
+      Assert.assertEquals("admin", alice.result().principal().getString("roles"));
+      provider.close();
+    } finally {
+      vertx.close();
+    }
+  }
+
+  @Test
+  public void testOnlyAllowedColumnsAreClaims() throws Exception {
+    Vertx vertx = Vertx.vertx();
+    try {
+      // none of alice's columns is a standard claim
+      BlockingAuthProvider standard = BlockingAuthProvider.create(vertx, new JdbcUserDirectory(config),
+        new JsonObject());
+      Assert.assertTrue(login(standard, "alice", "wonderland").succeeded());
+      Assert.assertEquals(new JsonObject(), standard.getClaims("alice"));
+      standard.close();
+
+      BlockingAuthProvider allowed = BlockingAuthProvider.create(vertx, new JdbcUserDirectory(config),
+        new JsonObject().put("claims", new JsonArray().add("full_name").add("email")));
+      AsyncResult<User> alice = login(allowed, "alice", "wonderland");
+      Assert.assertEquals(new JsonObject().put("full_name", "Alice Liddell"), allowed.getClaims("alice"));
+      Assert.assertEquals(new JsonObject().put("full_name", "Alice Liddell").put("username", "alice")
+        .put("roles", "admin"), alice.result().principal());
+      allowed.close();
+    } finally {
+      vertx.close();
+    }
+  }
+
+  private int openSessions() throws SQLException {
+    try (Statement statement = admin.createStatement();
+         ResultSet count = statement.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.SESSIONS")) {
+      count.next();
+      return count.getInt(1);
+    }
+  }
+
+  private static AsyncResult<User> login(BlockingAuthProvider provider, String username, String password)
+    throws Exception {
+    CompletableFuture<AsyncResult<User>> result = new CompletableFuture<>();
+    provider.authenticate(new JsonObject().put("username", username).put("password", password), result::complete);
+    return result.get(5, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,30 @@
+package io.dazraf.oauth2.authentication;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PasswordHashTest {
+  @Test
+  public void testVerifiesOnlyTheHashedPassword() {
+    String hash = PasswordHash.create("wonderland", 1000);
+    Assert.assertTrue(hash, hash.startsWith("pbkdf2-sha256$1000$"));
+    Assert.assertTrue(PasswordHash.verify(hash, "wonderland"));
+    Assert.assertFalse(PasswordHash.verify(hash, "Wonderland"));
+    Assert.assertFalse(PasswordHash.verify(hash, ""));
+    // salted, so the same password never hashes the same twice
+    Assert.assertNotEquals(hash, PasswordHash.create("wonderland", 1000));
+  }
+
+  @Test
+  public void testRejectsMissingAndMalformedHashes() {
+    String hash = PasswordHash.create("wonderland", 1000);
+    String[] parts = hash.split("\\$");
+    Assert.assertFalse(PasswordHash.verify(null, ""));
+    Assert.assertFalse(PasswordHash.verify("", ""));
+    Assert.assertFalse(PasswordHash.verify("wonderland", "wonderland"));
+    Assert.assertFalse(PasswordHash.verify("sha256$1000$" + parts[2] + "$" + parts[3], "wonderland"));
+    Assert.assertFalse(PasswordHash.verify(parts[0] + "$0$" + parts[2] + "$" + parts[3], "wonderland"));
+    Assert.assertFalse(PasswordHash.verify(parts[0] + "$1000$$" + parts[3], "wonderland"));
+    Assert.assertFalse(PasswordHash.verify(parts[0] + "$1000$" + parts[2] + "$!!!!", "wonderland"));
+  }
+}
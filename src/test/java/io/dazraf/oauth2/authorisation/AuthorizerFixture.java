@@ -0,0 +1,61 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.Context;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The clients and scopes the authorizer tests share, and a way to call an authorizer on its own context
+ */
+final class AuthorizerFixture {
+  static final String REDIRECT_URI = "https://acme.example/cb";
+
+  private AuthorizerFixture() {
+  }
+
+  /**
+   * @return what <code>task</code> returned when run on <code>context</code>, waiting up to five seconds for it
+   */
+  static <T> T onContext(Context context, Supplier<T> task) throws Exception {
+    return onContext(context, 5, task);
+  }
+
+  static <T> T onContext(Context context, int timeoutSeconds, Supplier<T> task) throws Exception {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    context.runOnContext(v -> {
+      try {
+        result.complete(task.get());
+      } catch (Throwable e) {
+        result.completeExceptionally(e);
+      }
+    });
+    return result.get(timeoutSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @return a client with the one redirect URI, to add to {@link #clients()} or adapt
+   */
+  static JsonObject client(String name, String redirectURI) {
+    return new JsonObject().put("name", name).put("redirectURIs", new JsonArray().add(redirectURI));
+  }
+
+  /**
+   * @return the client acme1, redirecting to {@link #REDIRECT_URI}
+   */
+  static JsonObject clients() {
+    return new JsonObject().put("acme1", client("Acme", REDIRECT_URI));
+  }
+
+  /**
+   * @return the scopes fp and loyalty-read
+   */
+  static JsonObject scopes() {
+    return new JsonObject()
+      .put("fp", new JsonObject().put("description", "Access to Faster Payment"))
+      .put("loyalty-read", new JsonObject().put("description", "Access to read your Loyalty balance"));
+  }
+}
@@ -0,0 +1,139 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+public class ClientRegistryTest {
+  private Path file;
+
+  @Before
+  public void createFile() throws IOException {
+    file = Files.createTempFile("oauth2-clients", ".log");
+    Files.delete(file);
+  }
+
+  @After
+  public void deleteFile() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void testRegistrationsAreReplayedLastRecordWins() throws IOException {
+    ClientRegistry registry = load(10);
+    registry.put(client("app1", "First"));
+    registry.put(client("app2", "Second"));
+    registry.put(client("app1", "Renamed"));
+    Assert.assertEquals("Renamed", registry.get("app1").getName());
+    registry.close();
+
+    ClientRegistry reloaded = load(10);
+    Assert.assertEquals("Renamed", reloaded.get("app1").getName());
+    Assert.assertEquals("Second", reloaded.get("app2").getName());
+    Assert.assertTrue(reloaded.get("app1").getRedirectURIs().matches("https://app.example/cb"));
+    Assert.assertTrue(reloaded.contains("acme1"));
+    Assert.assertEquals(2, (int) reloaded.toJson().getInteger("registered"));
+    Assert.assertEquals(3, (int) reloaded.toJson().getInteger("logRecords"));
+    reloaded.close();
+  }
+
+  @Test
+  public void testCutShortRecordIsSkippedAndTerminated() throws IOException {
+    ClientRegistry registry = load(10);
+    registry.put(client("app1", "First"));
+    registry.close();
+    Files.write(file, "{\"clientID\":\"app2\",\"na".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+    ClientRegistry reloaded = load(10);
+    Assert.assertFalse(reloaded.contains("app2"));
+    reloaded.put(client("app3", "Third"));
+    reloaded.close();
+
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    Assert.assertEquals(3, lines.size());
+    Assert.assertTrue(load(10).contains("app3"));
+  }
+
+  @Test
+  public void testConfiguredClientsCannotBeOverridden() throws IOException {
+    Files.write(file, (client("acme1", "Impostor").getConfig().copy().put("clientID", "acme1").encode() + "\n")
+      .getBytes(StandardCharsets.UTF_8));
+    ClientRegistry registry = load(10);
+    Assert.assertEquals("Acme", registry.get("acme1").getName());
+    Assert.assertEquals(0, (int) registry.toJson().getInteger("registered"));
+    registry.close();
+  }
+
+  @Test
+  public void testRegistrationsAreCapped() throws IOException {
+    ClientRegistry registry = load(2);
+    registry.put(client("app1", "First"));
+    registry.put(client("app2", "Second"));
+    try {
+      registry.put(client("app3", "Third"));
+      Assert.fail("registered beyond maxClients");
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+    // updates don't count against the cap
+    registry.put(client("app2", "Renamed"));
+    Assert.assertFalse(registry.contains("app3"));
+    registry.close();
+  }
+
+  @Test
+  public void testSupersededRecordsAreCompacted() throws IOException {
+    ClientRegistry registry = load(10);
+    for (int i = 0; i < 2000; i++) {
+      registry.put(client("app" + i % 2, "Version " + i));
+    }
+    registry.close();
+
+    ClientRegistry reloaded = load(10);
+    Assert.assertEquals("Version 1999", reloaded.get("app1").getName());
+    Assert.assertEquals(2, (int) reloaded.toJson().getInteger("logRecords"));
+    Assert.assertEquals(2, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+    reloaded.close();
+  }
+
+  @Test
+  public void testUnloadedRegistryRejectsRegistrations() throws IOException {
+    ClientRegistry registry = ClientRegistry.create(configured(), new JsonObject().put("file", file.toString()));
+    Assert.assertTrue(registry.contains("acme1"));
+    try {
+      registry.put(client("app1", "First"));
+      Assert.fail("registered before loading");
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+  }
+
+  private ClientRegistry load(int maxClients) throws IOException {
+    ClientRegistry registry = ClientRegistry.create(configured(),
+      new JsonObject().put("file", file.toString()).put("maxClients", maxClients));
+    registry.load();
+    return registry;
+  }
+
+  private static JsonObject configured() {
+    return new JsonObject().put("acme1", new JsonObject().put("name", "Acme")
+      .put("redirectURIs", new JsonArray().add("https://acme.example/cb")));
+  }
+
+  private static RegisteredClient client(String clientID, String name) {
+    return RegisteredClient.create(clientID, new JsonObject()
+      .put("name", name)
+      .put("redirectURIs", new JsonArray().add("https://app.example/cb"))
+      .put("registrationToken", "aGFzaA"));
+  }
+}
@@ -0,0 +1,65 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class ClientUsageTest {
+  @Test
+  public void testCapAndOldestFirst() {
+    ClientUsage usage = ClientUsage.create("acme1", new JsonObject().put("maxTokens", 2), 1);
+    Assert.assertEquals(1.0, usage.tokenHeadroom(), 0);
+    usage.tokenAdded(1);
+    Assert.assertFalse(usage.isAtTokenCap());
+    Assert.assertEquals(0.5, usage.tokenHeadroom(), 0);
+    usage.tokenAdded(2);
+    Assert.assertTrue(usage.isAtTokenCap());
+    Assert.assertEquals(0.0, usage.tokenHeadroom(), 0);
+    Assert.assertFalse(usage.isAtGrantCap());
+
+    Assert.assertEquals(1, usage.pollOldestToken());
+    usage.tokenEvicted();
+    Assert.assertFalse(usage.isAtTokenCap());
+    Assert.assertEquals(1, (int) usage.toJson().getInteger("evictedTokens"));
+  }
+
+  @Test
+  public void testCapsAreSharedAcrossShards() {
+    ClientUsage usage = ClientUsage.create("acme1", new JsonObject().put("maxTokens", 5), 2);
+    for (int i = 0; i < 3; i++) {
+      Assert.assertFalse(usage.isAtTokenCap());
+      usage.tokenAdded(i + 1);
+    }
+    Assert.assertTrue(usage.isAtTokenCap());
+
+    JsonObject merged = ClientUsage.merge(Arrays.asList(usage.toJson(), usage.toJson()));
+    Assert.assertEquals(6, (int) merged.getInteger("liveTokens"));
+    Assert.assertEquals(5, (int) merged.getInteger("maxTokens"));
+  }
+
+  @Test
+  public void testStaleKeysAreCompacted() {
+    ClientUsage usage = ClientUsage.create("acme1", null, 1);
+    Set<Long> live = new HashSet<>();
+    for (long code = 1; code <= 100; code++) {
+      usage.grantAdded(code);
+      live.add(code);
+    }
+    // remove from the tail so nothing is ever popped from the head
+    for (long code = 100; code > 1; code--) {
+      live.remove(code);
+      usage.grantRemoved(code, live::contains);
+    }
+    Assert.assertEquals(1, (int) usage.toJson().getInteger("liveGrants"));
+    Assert.assertEquals(1, usage.pollOldestGrant());
+    int stale = 0;
+    while (usage.pollOldestGrant() != 0) {
+      stale++;
+    }
+    Assert.assertTrue("stale keys were not compacted: " + stale, stale < 40);
+  }
+}
@@ -0,0 +1,161 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.dazraf.oauth2.authentication.InMemoryAuthenticationProvider;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.handler.BodyHandler;
+import io.vertx.ext.web.handler.CookieHandler;
+import io.vertx.ext.web.handler.SessionHandler;
+import io.vertx.ext.web.sstore.LocalSessionStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class DeviceApprovalTest {
+  private static final Pattern APPROVAL_TOKEN = Pattern.compile("name=\"approval_token\" value=\"([^\"]+)\"");
+
+  private final Vertx vertx = Vertx.vertx();
+  private final Context context = vertx.getOrCreateContext();
+  // held on to, as an unreachable client closes its connections when it is collected
+  private final HttpClient client = vertx.createHttpClient();
+  private InMemoryAuthorizer authorizer;
+  private String cookie;
+  private int port;
+
+  @Before
+  public void listen() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    CompletableFuture<Void> listening = new CompletableFuture<>();
+    context.runOnContext(v -> {
+      authorizer = InMemoryAuthorizer.create(vertx, "/oauth2", new JsonObject().put("acme1", new JsonObject()
+          .put("name", "Acme").put("redirectURIs", new JsonArray().add("https://acme.example/cb"))),
+        new JsonObject().put("fp", new JsonObject().put("description", "Access to Faster Payment")));
+      Router router = Router.router(vertx);
+      router.route().handler(CookieHandler.create());
+      router.route().handler(BodyHandler.create());
+      router.route().handler(SessionHandler.create(LocalSessionStore.create(vertx)));
+      // everyone is logged in as john, the victim
+      router.route().handler(routing -> {
+        routing.setUser(new InMemoryAuthenticationProvider.InMemoryUser(new JsonObject().put("username", "john")));
+        routing.next();
+      });
+      router.post("/device_authorization").handler(authorizer::deviceAuthorization);
+      router.get("/device").handler(authorizer::verifyDevice);
+      router.get("/approveauth").handler(authorizer::approveAuth);
+      router.post("/approveauth").handler(authorizer::approveAuth);
+      vertx.createHttpServer().requestHandler(router::accept).listen(port, ar -> {
+        if (ar.succeeded()) {
+          listening.complete(null);
+        } else {
+          listening.completeExceptionally(ar.cause());
+        }
+      });
+    });
+    listening.get(5, TimeUnit.SECONDS);
+  }
+
+  @After
+  public void closeVertx() {
+    vertx.close();
+  }
+
+  @Test
+  public void testApprovalByGetIsRejected() throws Exception {
+    String userCode = startDeviceFlow();
+    Assert.assertEquals(400, send(HttpMethod.GET, "/approveauth?user_code=" + userCode + "&approved=Yes", null).status);
+    // even once the victim has seen the consent page
+    send(HttpMethod.GET, "/device?user_code=" + userCode, null);
+    Assert.assertEquals(400, send(HttpMethod.GET, "/approveauth?user_code=" + userCode + "&approved=Yes", null).status);
+    Assert.assertTrue(isPending(userCode));
+  }
+
+  @Test
+  public void testApprovalNeedsTheConsentPagesToken() throws Exception {
+    String userCode = startDeviceFlow();
+    // a cross-site form post, without the page's token
+    Assert.assertEquals(403, send(HttpMethod.POST, "/approveauth", "user_code=" + userCode + "&approved=Yes").status);
+    Response page = send(HttpMethod.GET, "/device?user_code=" + userCode, null);
+    Assert.assertEquals(403, send(HttpMethod.POST, "/approveauth",
+      "user_code=" + userCode + "&approved=Yes&approval_token=guessed").status);
+    Assert.assertTrue(isPending(userCode));
+
+    // the token was used up by the failed attempt, so the page is shown again
+    page = send(HttpMethod.GET, "/device?user_code=" + userCode, null);
+    Matcher token = APPROVAL_TOKEN.matcher(page.body);
+    Assert.assertTrue(page.body, token.find());
+    Assert.assertTrue(page.body, page.body.contains("method=\"post\""));
+    Response approved = send(HttpMethod.POST, "/approveauth",
+      "user_code=" + userCode + "&approved=Yes&approval_token=" + token.group(1));
+    Assert.assertEquals(303, approved.status);
+    Assert.assertTrue(approved.location, approved.location.endsWith("result=approved"));
+    Assert.assertFalse(isPending(userCode));
+    // and only once
+    Assert.assertEquals(403, send(HttpMethod.POST, "/approveauth",
+      "user_code=" + userCode + "&approved=Yes&approval_token=" + token.group(1)).status);
+  }
+
+  private String startDeviceFlow() throws Exception {
+    Response response = send(HttpMethod.POST, "/device_authorization", "client_id=acme1&scope=fp");
+    Assert.assertEquals(200, response.status);
+    return new JsonObject(response.body).getString("user_code");
+  }
+
+  private boolean isPending(String userCode) throws Exception {
+    CompletableFuture<Boolean> pending = new CompletableFuture<>();
+    context.runOnContext(v -> pending.complete(!authorizer.deviceRequest(
+      new JsonObject().put("user_code", TokenFountain.parseUserCode(userCode))).isEmpty()));
+    return pending.get(5, TimeUnit.SECONDS);
+  }
+
+  private Response send(HttpMethod method, String uri, String form) throws Exception {
+    CompletableFuture<Response> result = new CompletableFuture<>();
+    HttpClientRequest request = client.request(method, port, "localhost", uri, response -> {
+      Buffer body = Buffer.buffer();
+      response.handler(body::appendBuffer);
+      response.endHandler(v -> {
+        String setCookie = response.headers().get("Set-Cookie");
+        if (setCookie != null) {
+          cookie = setCookie.split(";")[0];
+        }
+        result.complete(new Response(response.statusCode(), response.headers().get("Location"), body.toString()));
+      });
+    });
+    if (cookie != null) {
+      request.putHeader("Cookie", cookie);
+    }
+    if (form != null) {
+      request.putHeader("Content-Type", "application/x-www-form-urlencoded").end(form);
+    } else {
+      request.end();
+    }
+    return result.get(5, TimeUnit.SECONDS);
+  }
+
+  private static class Response {
+    final int status;
+    final String location;
+    final String body;
+
+    Response(int status, String location, String body) {
+      this.status = status;
+      this.location = location;
+      this.body = body;
+    }
+  }
+}
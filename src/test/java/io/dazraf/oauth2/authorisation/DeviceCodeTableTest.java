@@ -0,0 +1,69 @@
+package io.dazraf.oauth2.authorisation;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DeviceCodeTableTest {
+  private final DeviceCodeTable table = DeviceCodeTable.create();
+
+  @Test
+  public void testEntriesSurviveGrowthAndRemoval() {
+    for (long userCode = 1; userCode <= 1000; userCode++) {
+      table.put(userCode << 3, userCode * 31, (int) userCode % 7, userCode, Long.MAX_VALUE);
+    }
+    for (long userCode = 2; userCode <= 1000; userCode += 2) {
+      Assert.assertTrue(table.remove(userCode << 3));
+    }
+    Assert.assertEquals(500, table.size());
+    for (long userCode = 1; userCode <= 1000; userCode++) {
+      int slot = table.find(userCode << 3, 0);
+      if (userCode % 2 == 0) {
+        Assert.assertEquals(-1, slot);
+        continue;
+      }
+      Assert.assertEquals(userCode * 31, table.secretAt(slot));
+      Assert.assertEquals(userCode % 7, table.clientAt(slot));
+      Assert.assertEquals(userCode, table.scopesAt(slot));
+      Assert.assertEquals(DeviceCodeTable.PENDING, table.stateAt(slot));
+      Assert.assertEquals(UserIndex.NO_USER, table.userAt(slot));
+    }
+  }
+
+  @Test
+  public void testDecisionsAreKeptUntilCollectedOrRevoked() {
+    table.put(8, 1, 0, 1, Long.MAX_VALUE);
+    table.put(16, 2, 0, 1, Long.MAX_VALUE);
+    table.put(24, 3, 0, 1, Long.MAX_VALUE);
+    table.decide(table.find(8, 0), 5, true);
+    table.decide(table.find(16, 0), 6, false);
+    Assert.assertEquals(DeviceCodeTable.APPROVED, table.stateAt(table.find(8, 0)));
+    Assert.assertEquals(5, table.userAt(table.find(8, 0)));
+    Assert.assertEquals(DeviceCodeTable.DENIED, table.stateAt(table.find(16, 0)));
+
+    // only what user 5 decided, not what is still pending
+    Assert.assertEquals(1, table.removeUser(5));
+    Assert.assertEquals(-1, table.find(8, 0));
+    Assert.assertEquals(2, table.size());
+  }
+
+  @Test
+  public void testExpiredEntriesAreMissedAndSwept() {
+    for (long userCode = 1; userCode <= 100; userCode++) {
+      table.put(userCode, userCode, 0, 1, userCode <= 50 ? 1000 : 3000);
+    }
+    Assert.assertEquals(-1, table.find(10, 2000));
+    Assert.assertTrue(table.indexOf(60) >= 0);
+    int removed = 0;
+    for (int i = 0; i < 100; i++) {
+      removed += table.sweep(2000, 4);
+    }
+    Assert.assertEquals(49, removed);
+    Assert.assertEquals(50, table.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUserCodesAreNotReissuedWhilePending() {
+    table.put(8, 1, 0, 1, Long.MAX_VALUE);
+    table.put(8, 2, 0, 1, Long.MAX_VALUE);
+  }
+}
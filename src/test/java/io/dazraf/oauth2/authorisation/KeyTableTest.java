@@ -0,0 +1,100 @@
+package io.dazraf.oauth2.authorisation;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+public class KeyTableTest {
+  private final List<Long> expired = new ArrayList<>();
+  private final KeyTable table = KeyTable.create(0, true, (key, client, user) -> expired.add(key));
+
+  @Test
+  public void testMatchesHashMapUnderChurn() {
+    Map<Long, Integer> expected = new HashMap<>();
+    Random random = new Random(42);
+    for (int i = 0; i < 200_000; i++) {
+      // a small key space, shifted so keys share their low bits like sharded keys do, forces collisions and shifts
+      long key = (random.nextInt(5000) + 1L) << 3;
+      if (random.nextInt(3) == 0) {
+        Assert.assertEquals(expected.remove(key) != null, table.remove(key));
+      } else {
+        int client = random.nextInt(10);
+        expected.put(key, client);
+        table.put(key, client, client + 100, 1L << client, Long.MAX_VALUE, "uri" + client, "nonce" + client);
+      }
+    }
+    Assert.assertEquals(expected.size(), table.size());
+    for (long key = 8; key <= 5000L << 3; key += 8) {
+      int slot = table.find(key, 0);
+      Integer client = expected.get(key);
+      if (client == null) {
+        Assert.assertEquals(-1, slot);
+      } else {
+        Assert.assertEquals((int) client, table.clientAt(slot));
+        Assert.assertEquals(client + 100, table.userAt(slot));
+        Assert.assertEquals(1L << client, table.scopesAt(slot));
+        Assert.assertEquals("uri" + client, table.redirectURIAt(slot));
+        Assert.assertEquals("nonce" + client, table.nonceAt(slot));
+      }
+    }
+  }
+
+  @Test
+  public void testExpiredEntriesAreMissedAndSwept() {
+    for (long key = 1; key <= 100; key++) {
+      table.put(key, 0, 0, 0, key <= 50 ? 1000 : 3000, null, null);
+    }
+    Assert.assertEquals(-1, table.find(10, 2000));
+    Assert.assertEquals(1, expired.size());
+    Assert.assertTrue(table.find(60, 2000) >= 0);
+
+    // sweeping in small steps must still get round the whole table
+    int removed = 0;
+    for (int i = 0; i < 100; i++) {
+      removed += table.sweep(2000, 8);
+    }
+    Assert.assertEquals(49, removed);
+    Assert.assertEquals(50, table.size());
+    Assert.assertEquals(50, expired.size());
+  }
+
+  @Test
+  public void testScanVisitsSurvivorsOnceDespiteRemovals() {
+    Set<Long> survivors = new HashSet<>();
+    // close to the maximum load factor, so runs of entries are long
+    for (long key = 1; key <= 12_000; key++) {
+      table.put(key << 3, 0, 0, 0, Long.MAX_VALUE, null, null);
+      survivors.add(key << 3);
+    }
+    int layout = table.getLayout();
+    int start = table.scanStart();
+    List<Long> visited = new ArrayList<>();
+    int offset = 0;
+    while (offset >= 0) {
+      offset = table.scan(start, offset, 10, slot -> visited.add(table.keyAt(slot)));
+      // removing the entry just behind where the scan stopped shifts back whatever follows it in the same run
+      long last = visited.get(visited.size() - 1);
+      table.remove(last);
+      survivors.remove(last);
+    }
+    Assert.assertEquals(layout, table.getLayout());
+    Assert.assertEquals(visited.size(), new HashSet<>(visited).size());
+    Assert.assertTrue(visited.containsAll(survivors));
+  }
+
+  @Test
+  public void testResizeChangesLayout() {
+    int layout = table.getLayout();
+    for (long key = 1; key <= 100; key++) {
+      table.put(key, 0, 0, 0, Long.MAX_VALUE, null, null);
+    }
+    Assert.assertNotEquals(layout, table.getLayout());
+  }
+}
@@ -0,0 +1,91 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.json.JsonArray;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RedirectURIMatcherTest {
+  private final RedirectURIMatcher matcher = RedirectURIMatcher.compile(new JsonArray()
+    .add("https://acme.example/callback")
+    .add("https://acme.example/app/*")
+    .add("https://*.acme.example/cb")
+    .add("https://*.tenants.acme.example/portal/*"));
+
+  @Test
+  public void testExact() {
+    Assert.assertTrue(matcher.matches("https://acme.example/callback"));
+    Assert.assertFalse(matcher.matches("https://acme.example/callback2"));
+    Assert.assertFalse(matcher.matches("https://acme.example/callbac"));
+    Assert.assertFalse(matcher.matches("https://acme.example/callback?x=1"));
+    Assert.assertFalse(matcher.matches("http://acme.example/callback"));
+  }
+
+  @Test
+  public void testPrefix() {
+    Assert.assertTrue(matcher.matches("https://acme.example/app/"));
+    Assert.assertTrue(matcher.matches("https://acme.example/app/deep/page?state=1"));
+    Assert.assertFalse(matcher.matches("https://acme.example/app"));
+    Assert.assertFalse(matcher.matches("https://acme.example/application"));
+    Assert.assertFalse(matcher.matches("https://acme.example/app/../admin"));
+    Assert.assertFalse(matcher.matches("https://acme.example/app/x/.."));
+    Assert.assertTrue(matcher.matches("https://acme.example/app/file..txt"));
+    Assert.assertTrue(matcher.matches("https://acme.example/app/./page"));
+    Assert.assertTrue(matcher.matches("https://acme.example/app/page?next=../admin"));
+  }
+
+  @Test
+  public void testPrefixRejectsEncodedDotSegmentsAndBackslashes() {
+    Assert.assertFalse(matcher.matches("https://acme.example/app/%2e%2e/admin"));
+    Assert.assertFalse(matcher.matches("https://acme.example/app/.%2E/admin"));
+    Assert.assertFalse(matcher.matches("https://acme.example/app/%2E./admin"));
+    Assert.assertFalse(matcher.matches("https://acme.example/app/x/%2e%2e"));
+    Assert.assertFalse(matcher.matches("https://acme.example/app/%2e%2e?x=1"));
+    Assert.assertFalse(matcher.matches("https://acme.example/app/..\\admin"));
+    Assert.assertFalse(matcher.matches("https://acme.example/app/\\..\\admin"));
+    Assert.assertTrue(matcher.matches("https://acme.example/app/%2e%2etxt"));
+    Assert.assertTrue(matcher.matches("https://acme.example/app/%2e"));
+  }
+
+  @Test
+  public void testWildcardHost() {
+    Assert.assertTrue(matcher.matches("https://eu.acme.example/cb"));
+    Assert.assertTrue(matcher.matches("https://tenant-42.acme.example/cb"));
+    Assert.assertFalse(matcher.matches("https://acme.example/cb"));
+    Assert.assertFalse(matcher.matches("https://a.b.acme.example/cb"));
+    Assert.assertFalse(matcher.matches("https://evil.com/.acme.example/cb"));
+    Assert.assertFalse(matcher.matches("https://evil.com?.acme.example/cb"));
+    Assert.assertTrue(matcher.matches("https://t1.tenants.acme.example/portal/home"));
+    Assert.assertFalse(matcher.matches("https://t1.tenants.acme.example/portal"));
+  }
+
+  @Test
+  public void testRejectsFragmentsAndOverlongURIs() {
+    Assert.assertFalse(matcher.matches("https://acme.example/app/#x"));
+    Assert.assertFalse(matcher.matches(null));
+    StringBuilder longURI = new StringBuilder("https://acme.example/app/");
+    while (longURI.length() <= RedirectURIMatcher.MAX_URI_LENGTH) {
+      longURI.append('a');
+    }
+    Assert.assertFalse(matcher.matches(longURI.toString()));
+  }
+
+  @Test
+  public void testNoneRegisteredMatchesNothing() {
+    Assert.assertTrue(RedirectURIMatcher.compile(null).isEmpty());
+    Assert.assertFalse(RedirectURIMatcher.compile(new JsonArray()).matches("https://acme.example/callback"));
+  }
+
+  @Test
+  public void testRejectsInvalidPatterns() {
+    String[] invalid = {"https://acme.*.example/cb", "https://acme.example/*/cb", "https://acme.example*",
+      "https://acme.example/cb#x"};
+    for (String pattern : invalid) {
+      try {
+        RedirectURIMatcher.compile(new JsonArray().add(pattern));
+        Assert.fail("expected " + pattern + " to be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ScopePredicateTest {
+  private final ScopeRegistry scopes = ScopeRegistry.create(new JsonObject()
+    .put("fp", new JsonObject())
+    .put("loyalty-read", new JsonObject())
+    .put("loyalty-write", new JsonObject()));
+
+  @Test
+  public void testPlainListRequiresAll() {
+    ScopePredicate predicate = ScopePredicate.compile("fp loyalty-read", scopes);
+    Assert.assertTrue(predicate.test(bits("fp", "loyalty-read")));
+    Assert.assertTrue(predicate.test(bits("fp", "loyalty-read", "loyalty-write")));
+    Assert.assertFalse(predicate.test(bits("fp")));
+    Assert.assertFalse(predicate.test(0));
+  }
+
+  @Test
+  public void testExpression() {
+    ScopePredicate predicate = ScopePredicate.compile("fp AND (loyalty-read OR loyalty-write)", scopes);
+    Assert.assertTrue(predicate.test(bits("fp", "loyalty-read")));
+    Assert.assertTrue(predicate.test(bits("fp", "loyalty-write")));
+    Assert.assertFalse(predicate.test(bits("fp")));
+    Assert.assertFalse(predicate.test(bits("loyalty-read", "loyalty-write")));
+  }
+
+  @Test
+  public void testPrecedenceAndNegation() {
+    ScopePredicate predicate = ScopePredicate.compile("fp OR loyalty-read AND NOT loyalty-write", scopes);
+    Assert.assertTrue(predicate.test(bits("fp", "loyalty-write")));
+    Assert.assertTrue(predicate.test(bits("loyalty-read")));
+    Assert.assertFalse(predicate.test(bits("loyalty-read", "loyalty-write")));
+    Assert.assertTrue(ScopePredicate.compile("NOT (fp OR loyalty-read)", scopes).test(bits("loyalty-write")));
+    Assert.assertFalse(ScopePredicate.compile("NOT (fp OR loyalty-read)", scopes).test(bits("fp")));
+  }
+
+  @Test
+  public void testRejectsMalformedAndUnknown() {
+    String[] invalid = {"", "fp AND", "(fp", "fp)", "OR fp", "fp OR OR loyalty-read", "unknown", "fp AND unknown"};
+    for (String expression : invalid) {
+      try {
+        ScopePredicate.compile(expression, scopes);
+        Assert.fail("expected '" + expression + "' to be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testCacheReusesAndEvictsLeastRecentlyUsed() {
+    ScopePredicate.Cache cache = ScopePredicate.cache(scopes, 2);
+    ScopePredicate fp = cache.get("fp");
+    cache.get("loyalty-read");
+    Assert.assertSame(fp, cache.get("fp"));
+    cache.get("loyalty-write");
+    Assert.assertEquals(2, cache.size());
+    Assert.assertSame(fp, cache.get("fp"));
+    try {
+      cache.get("fp AND");
+      Assert.fail("expected a malformed expression to be rejected");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(2, cache.size());
+    }
+  }
+
+  private long bits(String... names) {
+    return scopes.toBits(names);
+  }
+}
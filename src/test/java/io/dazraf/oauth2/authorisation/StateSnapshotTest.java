@@ -0,0 +1,122 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class StateSnapshotTest {
+  private static final long NOW = 1_000_000L;
+
+  private final KeyTable grants = KeyTable.create(0, true, (key, client, user) -> { });
+  private final KeyTable accessTokens = KeyTable.create(0, false, (key, client, user) -> { });
+  private final List<String> clientIDs = Arrays.asList("app1", "app2");
+  private final List<String> usernames = Arrays.asList("alice", "bob");
+  private final List<Authorisation> authorisations =
+    Arrays.asList(Authorisation.create("app1", "read"), Authorisation.create("app2", "admin"));
+  private Path file;
+
+  @Before
+  public void createFile() throws IOException {
+    file = Files.createTempFile("oauth2-state", ".snapshot");
+    Files.delete(file);
+  }
+
+  @After
+  public void deleteFile() throws IOException {
+    Files.deleteIfExists(file);
+    Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".tmp"));
+  }
+
+  @Test
+  public void testRoundTripRemapsScopesAndDropsExpiredRows() throws IOException {
+    // written with read, write and admin as bits 0, 1 and 2
+    List<String> writtenScopes = Arrays.asList("read", "write", "admin");
+    grants.put(10, 0, 1, 0b011, NOW + 60_000, "https://app1/cb", "n-10");
+    grants.put(20, 1, -1, 0b100, NOW + 60_000, "https://app2/cb", null);
+    grants.put(30, 0, 0, 0b001, NOW - 1, "https://app1/cb", null);
+    accessTokens.put(5, 1, 0, 0b101, NOW + 60_000, null, null);
+    accessTokens.put(7, 0, 1, 0b001, NOW + 100, null, null);
+    StateSnapshot.write(file, authorisations, clientIDs, writtenScopes, usernames, grants, accessTokens, NOW);
+
+    // restored after write was removed from the configuration and admin moved to bit 0
+    ScopeRegistry scopes = ScopeRegistry.create(new JsonObject().put("admin", new JsonObject())
+      .put("read", new JsonObject()));
+    StateSnapshot snapshot = StateSnapshot.open(file, scopes);
+    Assert.assertFalse(Files.exists(file));
+    Assert.assertEquals(authorisations, snapshot.getAuthorisations());
+    Assert.assertEquals(5, snapshot.size());
+
+    long later = NOW + 500;
+    Map<Long, Row> taken = new HashMap<>();
+    Assert.assertTrue(snapshot.takeGrant(10, later, sink(taken)));
+    Assert.assertEquals(new Row("app1", "bob", 0b10, NOW + 60_000, "https://app1/cb", "n-10"), taken.get(10L));
+    Assert.assertFalse("each row can only be taken once", snapshot.takeGrant(10, later, sink(taken)));
+    Assert.assertFalse("expired when written", snapshot.takeGrant(30, later, sink(taken)));
+    Assert.assertFalse("expired since it was written", snapshot.takeAccessToken(7, later, sink(taken)));
+    Assert.assertFalse("not in the snapshot", snapshot.takeAccessToken(6, later, sink(taken)));
+
+    Map<Long, Row> hydratedGrants = new HashMap<>();
+    Map<Long, Row> hydratedTokens = new HashMap<>();
+    Assert.assertEquals(2, snapshot.hydrate(100, later, sink(hydratedGrants), sink(hydratedTokens)));
+    Assert.assertTrue(snapshot.isExhausted());
+    Row hydratedGrant = new Row("app2", null, 0b01, NOW + 60_000, "https://app2/cb", null);
+    Assert.assertEquals(Collections.singletonMap(20L, hydratedGrant), hydratedGrants);
+    Assert.assertEquals(Collections.singletonMap(5L, new Row("app2", "alice", 0b11, NOW + 60_000, null, null)),
+      hydratedTokens);
+  }
+
+  @Test
+  public void testOverlongStringFailsWithoutWriting() {
+    char[] path = new char[70_000];
+    Arrays.fill(path, 'a');
+    grants.put(10, 0, 0, 1, NOW + 60_000, "https://app1/" + new String(path), null);
+    try {
+      StateSnapshot.write(file, authorisations, clientIDs, Collections.singletonList("read"), usernames, grants,
+        accessTokens, NOW);
+      Assert.fail("a redirect URI longer than 65535 bytes was silently truncated");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("70013 bytes"));
+    }
+    Assert.assertFalse(Files.exists(file));
+  }
+
+  private static StateSnapshot.Sink sink(Map<Long, Row> rows) {
+    return (key, clientID, username, scopes, expiresAt, redirectURI, nonce) ->
+      rows.put(key, new Row(clientID, username, scopes, expiresAt, redirectURI, nonce));
+  }
+
+  private static final class Row {
+    private final List<Object> fields;
+
+    Row(String clientID, String username, long scopes, long expiresAt, String redirectURI, String nonce) {
+      this.fields = new ArrayList<>(Arrays.asList(clientID, username, scopes, expiresAt, redirectURI, nonce));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Row && fields.equals(((Row) o).fields);
+    }
+
+    @Override
+    public int hashCode() {
+      return fields.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return fields.toString();
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.dazraf.oauth2.util.RequestTracker;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.REDIRECT_URI;
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.clients;
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.onContext;
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.scopes;
+
+public class StateTransferTest {
+  private final Vertx vertx = Vertx.vertx();
+  private final Context context = vertx.getOrCreateContext();
+  // held on to, as an unreachable client closes its connections when it is collected
+  private final HttpClient client = vertx.createHttpClient();
+  private final RequestTracker requestTracker = RequestTracker.create();
+  private InMemoryAuthorizer source;
+  private InMemoryAuthorizer target;
+  private int port;
+
+  @Before
+  public void listen() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    CompletableFuture<Void> listening = new CompletableFuture<>();
+    context.runOnContext(v -> {
+      source = InMemoryAuthorizer.create(vertx, "/oauth2", clients(), scopes(), "test.source.", 0, 1);
+      target = InMemoryAuthorizer.create(vertx, "/oauth2", clients(), scopes(), "test.target.", 0, 1);
+      Router router = Router.router(vertx);
+      router.route().handler(requestTracker);
+      router.get("/export").handler(source::exportState);
+      router.post("/import").handler(target::importState);
+      vertx.createHttpServer().requestHandler(router::accept).listen(port, ar -> {
+        if (ar.succeeded()) {
+          listening.complete(null);
+        } else {
+          listening.completeExceptionally(ar.cause());
+        }
+      });
+    });
+    listening.get(5, TimeUnit.SECONDS);
+  }
+
+  @After
+  public void closeVertx() {
+    vertx.close();
+  }
+
+  @Test
+  public void testExportImportsIntoAnEmptyAuthorizer() throws Exception {
+    String[] issued = onContext(context, () -> {
+      source.addAuthorisation(Authorisation.create("acme1", "fp"));
+      String redeemed = source.issueGrant(GrantRequest.create("acme1", REDIRECT_URI, "fp", null), "john");
+      String token = source.issueToken(AccessRequest.create("acme1", AccessRequest.AUTHORIZATION_CODE, REDIRECT_URI,
+        redeemed)).getAccessToken();
+      String code = source.issueGrant(GrantRequest.create("acme1", REDIRECT_URI, "fp loyalty-read", "n0nce"), "james");
+      return new String[]{token, code};
+    });
+
+    String exported = send(HttpMethod.GET, "/export", null);
+    Assert.assertEquals(4, exported.split("\n").length);
+    JsonObject imported = new JsonObject(send(HttpMethod.POST, "/import", exported));
+    Assert.assertEquals(1, (int) imported.getInteger("consents"));
+    Assert.assertEquals(1, (int) imported.getInteger("grants"));
+    Assert.assertEquals(1, (int) imported.getInteger("accessTokens"));
+    Assert.assertEquals(0, (int) imported.getInteger("expired"));
+
+    TokenMessage validated = onContext(context, () -> target.validateToken(issued[0]));
+    Assert.assertFalse(validated.getErrorDescription(), validated.isError());
+    Assert.assertEquals("acme1", validated.getClientID());
+    Assert.assertEquals("fp", validated.getScope());
+    TokenMessage redeemed = onContext(context, () -> target.issueToken(AccessRequest.create("acme1",
+      AccessRequest.AUTHORIZATION_CODE, REDIRECT_URI, issued[1])));
+    Assert.assertFalse(redeemed.getErrorDescription(), redeemed.isError());
+    Assert.assertEquals("fp loyalty-read", redeemed.getScope());
+    // and what was imported exports the same, other than the export record itself
+    Assert.assertEquals(records(exported), records(send(HttpMethod.GET, "/export", null)));
+  }
+
+  @Test
+  public void testAbandonedExportIsNoLongerInFlight() throws Exception {
+    // far more than the socket buffers hold, so the export is still being written when the client goes
+    onContext(context, () -> {
+      for (int i = 0; i < 50_000; i++) {
+        source.issueGrant(GrantRequest.create("acme1", REDIRECT_URI, "fp loyalty-read", "n0nce"), "john" + i);
+      }
+      return null;
+    });
+    try (Socket socket = new Socket("localhost", port)) {
+      OutputStream out = socket.getOutputStream();
+      out.write("GET /export HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      InputStream in = socket.getInputStream();
+      Assert.assertTrue(in.read(new byte[4096]) > 0);
+      Assert.assertEquals(1, (int) onContext(context, requestTracker::getInFlight));
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (onContext(context, requestTracker::getInFlight) > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    Assert.assertEquals(0, (int) onContext(context, requestTracker::getInFlight));
+  }
+
+  private static Set<String> records(String export) {
+    Set<String> records = new HashSet<>(Arrays.asList(export.split("\n")));
+    records.removeIf(record -> record.contains("\"type\":\"export\""));
+    return records;
+  }
+
+  private String send(HttpMethod method, String uri, String body) throws Exception {
+    CompletableFuture<String> result = new CompletableFuture<>();
+    HttpClientRequest request = client.request(method, port, "localhost", uri, response -> {
+      Buffer received = Buffer.buffer();
+      response.handler(received::appendBuffer);
+      response.endHandler(v -> {
+        if (response.statusCode() == 200) {
+          result.complete(received.toString());
+        } else {
+          result.completeExceptionally(new AssertionError(response.statusCode() + " " + received));
+        }
+      });
+    });
+    if (body != null) {
+      request.end(body);
+    } else {
+      request.end();
+    }
+    return result.get(5, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,105 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.Vertx;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Measures retained heap per live access token for the compact {@link KeyTable} store against the map of
+ * request objects, with a timer per entry, that it replaced.
+ * <p>
+ * It lives beside the store because the store is package-private. Run with
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=io.dazraf.oauth2.authorisation.StoreFootprintBenchmark -Dexec.args=1000000</code>
+ * and give the JVM enough heap for the legacy store, e.g. <code>MAVEN_OPTS=-Xmx4g</code>.
+ */
+public class StoreFootprintBenchmark {
+  private static final long TTL_MILLIS = 3600 * 1000;
+
+  // keeps each store reachable while it is measured
+  private static Object retained;
+
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    Vertx vertx = Vertx.vertx();
+    try {
+      long compact = measure(() -> compactStore(count));
+      retained = null;
+      long legacy = measure(() -> legacyStore(vertx, count));
+      System.out.printf("%,d tokens%n", count);
+      System.out.printf("legacy:  %,d bytes (%d bytes/token)%n", legacy, legacy / count);
+      System.out.printf("compact: %,d bytes (%d bytes/token)%n", compact, compact / count);
+      System.out.printf("ratio:   %.1fx%n", (double) legacy / compact);
+    } finally {
+      vertx.close();
+    }
+  }
+
+  /**
+   * The previous representation: a String key, an object holding the request's strings, and a Vert.x timer to expire it
+   */
+  private static Object legacyStore(Vertx vertx, int count) {
+    Map<String, LegacyAccessRequest> accessTokens = new HashMap<>();
+    TokenFountain fountain = TokenFountain.create(0, 1);
+    for (int i = 0; i < count; i++) {
+      String token = TokenFountain.formatAccessToken(fountain.nextAccessToken());
+      // each request parses its own copies of the parameters
+      accessTokens.put(token, new LegacyAccessRequest(new String("acme1"), new String("authorization_code"),
+        new String("https://acme.example/oauth2/callback"), TokenFountain.formatGrantCode(fountain.nextGrantCode()),
+        new String("fp loyalty-read"), System.currentTimeMillis() + TTL_MILLIS));
+      vertx.setTimer(TTL_MILLIS, id -> accessTokens.remove(token));
+    }
+    return accessTokens;
+  }
+
+  /**
+   * The table plus the per-client issue order queue, which together replace it
+   */
+  private static Object compactStore(int count) {
+    KeyTable accessTokens = KeyTable.create(0, false, (key, client, user) -> {
+    });
+    ClientUsage usage = ClientUsage.create("acme1", null, 1);
+    TokenFountain fountain = TokenFountain.create(0, 1);
+    for (int i = 0; i < count; i++) {
+      long token = fountain.nextAccessToken();
+      accessTokens.put(token, 0, i % 1000, 0b11, System.currentTimeMillis() + TTL_MILLIS, null, null);
+      usage.tokenAdded(token);
+    }
+    return new Object[] {accessTokens, usage};
+  }
+
+  private static long measure(Supplier<Object> store) throws InterruptedException {
+    long before = usedHeap();
+    retained = store.get();
+    return usedHeap() - before;
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  private static class LegacyAccessRequest {
+    final String clientID;
+    final String grantType;
+    final String redirectedURI;
+    final String code;
+    final String scope;
+    final long expiresAt;
+
+    LegacyAccessRequest(String clientID, String grantType, String redirectedURI, String code, String scope,
+                        long expiresAt) {
+      this.clientID = clientID;
+      this.grantType = grantType;
+      this.redirectedURI = redirectedURI;
+      this.code = code;
+      this.scope = scope;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.REDIRECT_URI;
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.client;
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.clients;
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.onContext;
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.scopes;
+
+/**
+ * Drives a shard through hours of issuing, redeeming, exchanging, validating, expiring and revoking on a simulated
+ * clock, and checks that the heap, the live Vert.x timers and the shard's {@link InMemoryAuthorizer#getFootprint()}
+ * stay flat once it has reached a steady state. If they don't, the classes that grew the most are reported and the
+ * full class histogram is written to <code>target/soak-histogram.txt</code>.
+ * <p>
+ * It runs four simulated hours by default, two of them at steady state, which takes around twenty seconds: most of
+ * it in the sweeps, which run every simulated second as they would in production. For a longer soak, e.g. a
+ * simulated week, run <code>mvn test -Dtest=TokenChurnSoakTest -Dsoak.hours=168</code>, optionally with
+ * <code>-Dsoak.rate</code> grants per simulated second.
+ */
+public class TokenChurnSoakTest {
+  private static final int HOURS = Integer.getInteger("soak.hours", 4);
+  private static final int GRANTS_PER_SECOND = Integer.getInteger("soak.rate", 20);
+  // an hour for the first tokens to expire, and another for the tables to settle at their steady state size
+  private static final int WARM_UP_SECONDS = 2 * 3600;
+  private static final int SECONDS_PER_STEP = 60;
+  private static final int USERS = 1000;
+  // a step of simulated time runs a minute of sweeps
+  private static final int STEP_TIMEOUT_SECONDS = 60;
+  private static final long HEAP_SLACK_BYTES = 16 * 1024 * 1024;
+  // how many stale keys a queue may hold beyond twice its live ones, as KeyQueue allows
+  private static final int QUEUE_SLACK = 33;
+
+  private final Vertx vertx = Vertx.vertx();
+  private final SimulatedClock clock = new SimulatedClock(System.currentTimeMillis());
+  private final Context context = vertx.getOrCreateContext();
+  private final String[] recentTokens = new String[256];
+  private InMemoryAuthorizer authorizer;
+  private long second = 0;
+
+  @After
+  public void closeVertx() {
+    vertx.close();
+  }
+
+  @Test
+  public void testFootprintStaysFlatUnderTokenChurn() throws Exception {
+    Assert.assertTrue("soak.hours must allow for the warm up", HOURS * 3600 > WARM_UP_SECONDS);
+    JsonObject clients = clients()
+      // small enough for its caps to be reached, so that eviction is part of the churn
+      .put("capped", client("Capped", REDIRECT_URI).put("maxTokens", 2000).put("maxGrants", 500));
+    clients.getJsonObject("acme1").put("maxTokens", 1_000_000).put("maxGrants", 100_000);
+    authorizer = onContext(context, STEP_TIMEOUT_SECONDS, () -> {
+      InMemoryAuthorizer created = InMemoryAuthorizer.create(vertx, "/oauth2", clients, scopes());
+      created.setClock(clock);
+      return created;
+    });
+    simulate(WARM_UP_SECONDS);
+    Snapshot baseline = snapshot();
+    simulate(HOURS * 3600 - WARM_UP_SECONDS);
+    Snapshot end = snapshot();
+
+    List<String> problems = new ArrayList<>();
+    checkClose(problems, "grants", baseline.stats.getInteger("grants"), end.stats.getInteger("grants"));
+    checkClose(problems, "accessTokens", baseline.stats.getInteger("accessTokens"),
+      end.stats.getInteger("accessTokens"));
+    // queues are compacted once they hold twice as many keys as are live, so they rise and fall below that bound
+    int live = end.stats.getInteger("grants") + end.stats.getInteger("accessTokens");
+    checkQueued(problems, "clientQueuedKeys", end.footprint, live, end.footprint.getInteger("clients"));
+    checkQueued(problems, "userQueuedKeys", end.footprint, live, end.footprint.getInteger("users"));
+    // everything else must not grow at all
+    baseline.footprint.forEach(entry -> {
+      int before = (Integer) entry.getValue();
+      int after = end.footprint.getInteger(entry.getKey());
+      if (!entry.getKey().endsWith("QueuedKeys") && after > before) {
+        problems.add(entry.getKey() + " grew from " + before + " to " + after);
+      }
+    });
+    if (end.timers > baseline.timers) {
+      problems.add("live timers grew from " + baseline.timers + " to " + end.timers);
+    }
+    if (end.heap > baseline.heap + HEAP_SLACK_BYTES) {
+      problems.add("heap grew from " + baseline.heap + " to " + end.heap + " bytes");
+    }
+    if (!problems.isEmpty()) {
+      Assert.fail("after " + HOURS + " simulated hours: " + problems + "\n" + histogramGrowth(baseline, end));
+    }
+  }
+
+  /**
+   * Run the shard for <code>seconds</code> of simulated time, a step at a time so that its event loop isn't blocked
+   */
+  private void simulate(int seconds) throws Exception {
+    for (int done = 0; done < seconds; done += SECONDS_PER_STEP) {
+      int step = Math.min(SECONDS_PER_STEP, seconds - done);
+      onContext(context, STEP_TIMEOUT_SECONDS, () -> {
+        for (int i = 0; i < step; i++) {
+          tick();
+        }
+        return null;
+      });
+    }
+  }
+
+  private void tick() {
+    clock.advance(1000);
+    second++;
+    for (int i = 0; i < GRANTS_PER_SECOND; i++) {
+      long n = second * GRANTS_PER_SECOND + i;
+      String clientID = n % 4 == 0 ? "capped" : "acme1";
+      String username = "user" + n % USERS;
+      String code = authorizer.issueGrant(GrantRequest.create(clientID, REDIRECT_URI,
+        n % 3 == 0 ? "fp" : "fp loyalty-read", null), username);
+      // some grants are never redeemed, and are left to expire
+      if (n % 10 == 0) {
+        continue;
+      }
+      TokenMessage issued = authorizer.issueToken(AccessRequest.create(clientID, AccessRequest.AUTHORIZATION_CODE,
+        REDIRECT_URI, code));
+      Assert.assertFalse(issued.getErrorDescription(), issued.isError());
+      recentTokens[(int) (n % recentTokens.length)] = issued.getAccessToken();
+      if (n % 5 == 1) {
+        Assert.assertFalse(authorizer.issueToken(AccessRequest.exchange(clientID, issued.getAccessToken(), "fp", null))
+          .isError());
+      }
+      String recent = recentTokens[(int) ((n * 7) % recentTokens.length)];
+      if (recent != null) {
+        authorizer.validateToken(recent);
+      }
+    }
+    if (second % 60 == 0) {
+      authorizer.revokeLocalUser("user" + (second / 60) % USERS, revoked -> {
+      });
+    }
+    authorizer.sweep();
+  }
+
+  private Snapshot snapshot() throws Exception {
+    JsonObject stats = onContext(context, STEP_TIMEOUT_SECONDS, () -> new JsonObject()
+      .put("grants", authorizer.getGrantCount())
+      .put("accessTokens", authorizer.getAccessTokenCount()));
+    JsonObject footprint = onContext(context, STEP_TIMEOUT_SECONDS, authorizer::getFootprint);
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return new Snapshot(stats, footprint, liveTimers(),
+      ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), classHistogram());
+  }
+
+  private static void checkClose(List<String> problems, String name, int before, int after) {
+    if (Math.abs(after - before) > before / 20) {
+      problems.add(name + " went from " + before + " to " + after);
+    }
+  }
+
+  /**
+   * Each owner has a grant queue and a token queue, each allowed twice its live keys plus some slack
+   */
+  private static void checkQueued(List<String> problems, String name, JsonObject footprint, int live, int owners) {
+    int queued = footprint.getInteger(name);
+    if (queued > 2 * live + 2 * owners * QUEUE_SLACK) {
+      problems.add(name + " reached " + queued + " for " + live + " live keys");
+    }
+  }
+
+
+  /**
+   * @return the number of timers Vert.x is holding on to, periodic or not
+   */
+  private int liveTimers() throws Exception {
+    Field timeouts = vertx.getClass().getDeclaredField("timeouts");
+    timeouts.setAccessible(true);
+    return ((Map<?, ?>) timeouts.get(vertx)).size();
+  }
+
+  private static String classHistogram() throws Exception {
+    return (String) ManagementFactory.getPlatformMBeanServer().invoke(
+      new ObjectName("com.sun.management:type=DiagnosticCommand"), "gcClassHistogram",
+      new Object[]{null}, new String[]{String[].class.getName()});
+  }
+
+  /**
+   * @return the classes whose instances grew the most between the two histograms, having written the second out
+   */
+  private static String histogramGrowth(Snapshot baseline, Snapshot end) throws IOException {
+    File file = new File("target", "soak-histogram.txt");
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), end.histogram.getBytes(StandardCharsets.UTF_8));
+
+    Map<String, Long> before = bytesByClass(baseline.histogram);
+    List<Map.Entry<String, Long>> growth = new ArrayList<>();
+    bytesByClass(end.histogram).forEach((name, bytes) -> {
+      long grown = bytes - before.getOrDefault(name, 0L);
+      if (grown > 0) {
+        growth.add(new HashMap.SimpleEntry<>(name, grown));
+      }
+    });
+    growth.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+    StringBuilder report = new StringBuilder("largest growth by class (full histogram in ")
+      .append(file.getAbsolutePath()).append("):");
+    growth.stream().limit(15).forEach(entry ->
+      report.append(String.format("%n%,14d bytes  %s", entry.getValue(), entry.getKey())));
+    return report.toString();
+  }
+
+  /**
+   * Parse histogram lines of the form <code>rank: instances bytes class-name [module]</code>
+   */
+  private static Map<String, Long> bytesByClass(String histogram) {
+    Map<String, Long> bytes = new HashMap<>();
+    for (String line : histogram.split("\n")) {
+      String[] columns = line.trim().split("\\s+");
+      if (columns.length >= 4 && columns[0].endsWith(":")) {
+        bytes.put(columns[3], Long.parseLong(columns[2]));
+      }
+    }
+    return bytes;
+  }
+
+  private static class Snapshot {
+    final JsonObject stats;
+    final JsonObject footprint;
+    final int timers;
+    final long heap;
+    final String histogram;
+
+    Snapshot(JsonObject stats, JsonObject footprint, int timers, long heap, String histogram) {
+      this.stats = stats;
+      this.footprint = footprint;
+      this.timers = timers;
+      this.heap = heap;
+      this.histogram = histogram;
+    }
+  }
+
+  /**
+   * A clock that only moves when it is told to
+   */
+  private static class SimulatedClock extends Clock {
+    private volatile long millis;
+
+    SimulatedClock(long millis) {
+      this.millis = millis;
+    }
+
+    void advance(long by) {
+      millis += by;
+    }
+
+    @Override
+    public long millis() {
+      return millis;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(millis);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.REDIRECT_URI;
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.client;
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.clients;
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.onContext;
+import static io.dazraf.oauth2.authorisation.AuthorizerFixture.scopes;
+
+public class TokenExchangeTest {
+  private static final long START = 1_500_000_000_000L;
+
+  private final Vertx vertx = Vertx.vertx();
+  private final Context context = vertx.getOrCreateContext();
+  private InMemoryAuthorizer authorizer;
+  private String subjectToken;
+
+  @Before
+  public void issueSubjectToken() throws Exception {
+    JsonObject clients = clients()
+      .put("acme2", client("Acme API", "https://api.acme.example/cb"))
+      .put("acme3", client("Acme Billing", "https://billing.acme.example/cb"));
+    clients.getJsonObject("acme1").put("exchangeAudiences", new JsonArray().add("acme2"));
+    subjectToken = onContext(context, () -> {
+      authorizer = InMemoryAuthorizer.create(vertx, "/oauth2", clients, scopes(), "test.exchange.", 0, 1);
+      authorizer.setClock(Clock.fixed(Instant.ofEpochMilli(START), ZoneOffset.UTC));
+      String code = authorizer.issueGrant(GrantRequest.create("acme1", REDIRECT_URI, "fp loyalty-read", null), "john");
+      return authorizer.issueToken(AccessRequest.create("acme1", AccessRequest.AUTHORIZATION_CODE, REDIRECT_URI, code))
+        .getAccessToken();
+    });
+  }
+
+  @After
+  public void closeVertx() {
+    vertx.close();
+  }
+
+  @Test
+  public void testSubsetOfTheScopesIsIssued() throws Exception {
+    TokenMessage exchanged = exchange("loyalty-read", null);
+    Assert.assertFalse(exchanged.getErrorDescription(), exchanged.isError());
+    Assert.assertEquals("loyalty-read", exchanged.getScope());
+
+    TokenMessage validated = onContext(context, () -> authorizer.validateToken(exchanged.getAccessToken()));
+    Assert.assertTrue(validated.isActive());
+    Assert.assertEquals("acme1", validated.getClientID());
+    Assert.assertEquals("loyalty-read", validated.getScope());
+  }
+
+  @Test
+  public void testAllowedAudienceIsIssued() throws Exception {
+    TokenMessage exchanged = exchange("fp", "acme2");
+    Assert.assertFalse(exchanged.getErrorDescription(), exchanged.isError());
+
+    TokenMessage validated = onContext(context, () -> authorizer.validateToken(exchanged.getAccessToken()));
+    Assert.assertEquals("acme2", validated.getClientID());
+    Assert.assertEquals("fp", validated.getScope());
+  }
+
+  @Test
+  public void testSupersetOfTheScopesIsRefused() throws Exception {
+    TokenMessage narrowed = exchange("fp", null);
+    Assert.assertFalse(narrowed.getErrorDescription(), narrowed.isError());
+    subjectToken = narrowed.getAccessToken();
+
+    TokenMessage exchanged = exchange("fp loyalty-read", null);
+    Assert.assertTrue(exchanged.isError());
+    Assert.assertEquals("invalid_scope", exchanged.getError());
+  }
+
+  @Test
+  public void testAudienceNotInExchangeAudiencesIsRefused() throws Exception {
+    // acme3 is registered, but acme1 may not exchange for it
+    TokenMessage exchanged = exchange(null, "acme3");
+    Assert.assertTrue(exchanged.isError());
+    Assert.assertEquals("invalid_target", exchanged.getError());
+    Assert.assertEquals("invalid_target", exchange(null, "nobody").getError());
+  }
+
+  @Test
+  public void testExpiryIsCappedAtTheSubjectToken() throws Exception {
+    long later = START + TimeUnit.MINUTES.toMillis(40);
+    onContext(context, () -> {
+      authorizer.setClock(Clock.fixed(Instant.ofEpochMilli(later), ZoneOffset.UTC));
+      return null;
+    });
+    TokenMessage exchanged = exchange(null, null);
+    Assert.assertFalse(exchanged.getErrorDescription(), exchanged.isError());
+    Assert.assertEquals(TimeUnit.MINUTES.toSeconds(20), exchanged.getExpiresIn());
+    TokenMessage validated = onContext(context, () -> authorizer.validateToken(exchanged.getAccessToken()));
+    Assert.assertEquals(TimeUnit.MINUTES.toSeconds(20), validated.getExpiresIn());
+  }
+
+  private TokenMessage exchange(String scope, String audience) throws Exception {
+    String subject = subjectToken;
+    return onContext(context, () -> authorizer.issueToken(AccessRequest.exchange("acme1", subject, scope, audience)));
+  }
+}
@@ -0,0 +1,78 @@
+package io.dazraf.oauth2.authorisation;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenFountainTest {
+  @Test
+  public void testKeysEncodeTheirShard() {
+    for (int shardCount : new int[] {1, 3, 8}) {
+      for (int shard = 0; shard < shardCount; shard++) {
+        TokenFountain fountain = TokenFountain.create(shard, shardCount);
+        for (int i = 0; i < 1000; i++) {
+          Assert.assertEquals(shard, TokenFountain.shardOf(fountain.nextGrantCode(), shardCount));
+          Assert.assertEquals(shard, TokenFountain.shardOf(fountain.nextAccessToken(), shardCount));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testFormatIsFixedWidthAndParsesBack() {
+    for (long token : new long[] {1, 31, 32, Long.MAX_VALUE, -1L, Long.MIN_VALUE}) {
+      String formatted = TokenFountain.formatAccessToken(token);
+      Assert.assertEquals(13, formatted.length());
+      Assert.assertEquals(token, TokenFountain.parseAccessToken(formatted));
+    }
+    for (long code : new long[] {1, 0xFFFFFFFFL}) {
+      String formatted = TokenFountain.formatGrantCode(code);
+      Assert.assertEquals(7, formatted.length());
+      Assert.assertEquals(code, TokenFountain.parseGrantCode(formatted));
+    }
+  }
+
+  @Test
+  public void testMalformedKeysParseToZero() {
+    Assert.assertEquals(0, TokenFountain.parseAccessToken(null));
+    Assert.assertEquals(0, TokenFountain.parseAccessToken("not a token!"));
+    // unpadded, and one bit too many
+    Assert.assertEquals(0, TokenFountain.parseAccessToken("abc"));
+    Assert.assertEquals(0, TokenFountain.parseAccessToken("g000000000000"));
+    Assert.assertEquals(0, TokenFountain.parseGrantCode("4000000"));
+    Assert.assertEquals(-1, TokenFountain.shardOf(0, 4));
+  }
+
+  @Test
+  public void testUserCodesEncodeTheirShardAndParseLeniently() {
+    TokenFountain fountain = TokenFountain.create(2, 3);
+    for (int i = 0; i < 1000; i++) {
+      long userCode = fountain.nextUserCode();
+      Assert.assertEquals(2, TokenFountain.shardOf(userCode, 3));
+      String formatted = TokenFountain.formatUserCode(userCode);
+      Assert.assertTrue(formatted, formatted.matches("[BCDFGHJKLMNPQRSTVWXZ]{4}-[BCDFGHJKLMNPQRSTVWXZ]{4}"));
+      Assert.assertEquals(userCode, TokenFountain.parseUserCode(formatted));
+      Assert.assertEquals(userCode, TokenFountain.parseUserCode(" " + formatted.toLowerCase().replace("-", "")));
+    }
+    Assert.assertEquals(0, TokenFountain.parseUserCode(null));
+    Assert.assertEquals(0, TokenFountain.parseUserCode("BCDF-GHJ"));
+    Assert.assertEquals(0, TokenFountain.parseUserCode("BCDF-GHJKL"));
+    Assert.assertEquals(0, TokenFountain.parseUserCode("BCDF-GHJA"));
+  }
+
+  @Test
+  public void testDeviceCodesCarryTheirUserCode() {
+    TokenFountain fountain = TokenFountain.create(0, 1);
+    for (int i = 0; i < 1000; i++) {
+      long userCode = fountain.nextUserCode();
+      long secret = fountain.nextDeviceSecret();
+      String deviceCode = TokenFountain.formatDeviceCode(secret, userCode);
+      Assert.assertEquals(20, deviceCode.length());
+      Assert.assertEquals(userCode, TokenFountain.parseDeviceUserCode(deviceCode));
+      Assert.assertEquals(secret, TokenFountain.parseDeviceSecret(deviceCode));
+    }
+    Assert.assertEquals(0, TokenFountain.parseDeviceUserCode("abc"));
+    Assert.assertEquals(0, TokenFountain.parseDeviceSecret(null));
+    // past the largest user code
+    Assert.assertEquals(0, TokenFountain.parseDeviceUserCode("0000000000001vvvvvvv"));
+  }
+}
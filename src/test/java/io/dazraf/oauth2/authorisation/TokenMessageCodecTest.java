@@ -0,0 +1,91 @@
+package io.dazraf.oauth2.authorisation;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TokenMessageCodecTest {
+  private final TokenMessageCodec codec = new TokenMessageCodec();
+
+  @Test
+  public void testRoundTripFromOffset() {
+    TokenMessage message = new TokenMessage(TokenMessage.Op.ISSUE, null, "acme1", "https://acme.example/cb?x=\u00fc",
+      "abc", "authorization_code", "fp loyalty-read", 3600, null, "", "eyJ.e30.c2ln", null);
+    Buffer buffer = Buffer.buffer().appendString("prefix");
+    codec.encodeToWire(buffer, message);
+
+    TokenMessage decoded = codec.decodeFromWire(6, buffer);
+    Assert.assertEquals(TokenMessage.Op.ISSUE, decoded.getOp());
+    Assert.assertNull(decoded.getAccessToken());
+    Assert.assertEquals("acme1", decoded.getClientID());
+    Assert.assertEquals("https://acme.example/cb?x=\u00fc", decoded.getRedirectURI());
+    Assert.assertEquals("abc", decoded.getCode());
+    Assert.assertEquals("authorization_code", decoded.getGrantType());
+    Assert.assertEquals("fp loyalty-read", decoded.getScope());
+    Assert.assertEquals(3600, decoded.getExpiresIn());
+    Assert.assertNull(decoded.getError());
+    Assert.assertEquals("", decoded.getErrorDescription());
+    Assert.assertEquals("eyJ.e30.c2ln", decoded.getIdToken());
+    Assert.assertNull(decoded.getAudience());
+  }
+
+  @Test
+  public void testExchangeRoundTripsToTheSameAccessRequest() {
+    Buffer buffer = Buffer.buffer();
+    codec.encodeToWire(buffer, AccessRequest.exchange("acme1", "0123456789012", "fp", "acme2").toMessage());
+
+    TokenMessage message = codec.decodeFromWire(0, buffer);
+    Assert.assertEquals("acme2", message.getAudience());
+    Assert.assertNull(message.getRedirectURI());
+    AccessRequest decoded = AccessRequest.create(message);
+    Assert.assertTrue(decoded.isTokenExchange());
+    Assert.assertEquals("acme1", decoded.getClientID());
+    Assert.assertEquals("0123456789012", decoded.getCode());
+    Assert.assertEquals("fp", decoded.getScope());
+    Assert.assertEquals("acme2", decoded.getAudience());
+    Assert.assertNull(decoded.getRedirectedURI());
+
+    decoded = AccessRequest.create(TokenMessage.issue("acme1", "https://acme.example/cb", "abc", "authorization_code"));
+    Assert.assertFalse(decoded.isTokenExchange());
+    Assert.assertEquals("https://acme.example/cb", decoded.getRedirectedURI());
+    Assert.assertNull(decoded.getAudience());
+  }
+
+  @Test
+  public void testLongestStringRoundTrips() {
+    // two bytes a character in UTF-8, as the limit is in bytes
+    String longest = repeat('\u00fc', TokenMessageCodec.MAX_LENGTH / 2);
+    Buffer buffer = Buffer.buffer();
+    codec.encodeToWire(buffer, TokenMessage.validate(longest));
+    TokenMessage decoded = codec.decodeFromWire(0, buffer);
+    Assert.assertEquals(longest, decoded.getAccessToken());
+    Assert.assertNull(decoded.getClientID());
+  }
+
+  @Test
+  public void testLongerStringIsRejected() {
+    // 65535 bytes would otherwise decode as null, and anything longer be truncated
+    for (int length : new int[]{TokenMessageCodec.MAX_LENGTH + 1, 70_000}) {
+      try {
+        codec.encodeToWire(Buffer.buffer(), TokenMessage.validate(repeat('a', length)));
+        Assert.fail("a " + length + " byte string was encoded");
+      } catch (IllegalArgumentException e) {
+        Assert.assertTrue(e.getMessage(), e.getMessage().contains(length + " bytes"));
+      }
+    }
+  }
+
+  @Test
+  public void testLocalDeliveryDoesNotCopy() {
+    TokenMessage message = TokenMessage.validate("token");
+    Assert.assertSame(message, codec.transform(message));
+  }
+
+  private static String repeat(char c, int count) {
+    char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+}
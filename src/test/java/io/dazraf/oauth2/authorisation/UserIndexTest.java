@@ -0,0 +1,85 @@
+package io.dazraf.oauth2.authorisation;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class UserIndexTest {
+  @Test
+  public void testInterning() {
+    UserIndex users = UserIndex.create();
+    Assert.assertEquals(UserIndex.NO_USER, users.indexOf(null));
+    Assert.assertEquals(UserIndex.NO_USER, users.find("alice"));
+    int alice = users.indexOf("alice");
+    int bob = users.indexOf("bob");
+    Assert.assertNotEquals(alice, bob);
+    Assert.assertEquals(alice, users.indexOf("alice"));
+    Assert.assertEquals(alice, users.find("alice"));
+    Assert.assertEquals("bob", users.nameOf(bob));
+    Assert.assertNull(users.nameOf(UserIndex.NO_USER));
+  }
+
+  @Test
+  public void testEntriesAreKeptPerUser() {
+    UserIndex users = UserIndex.create();
+    int alice = users.indexOf("alice");
+    int bob = users.indexOf("bob");
+    users.grantAdded(alice, 1);
+    users.tokenAdded(alice, 2);
+    users.tokenAdded(bob, 3);
+    users.tokenAdded(UserIndex.NO_USER, 4);
+
+    Assert.assertArrayEquals(new long[]{1}, users.grantsOf(alice));
+    Assert.assertArrayEquals(new long[]{2}, users.tokensOf(alice));
+    Assert.assertArrayEquals(new long[]{3}, users.tokensOf(bob));
+    Assert.assertEquals(0, users.tokensOf(UserIndex.NO_USER).length);
+
+    users.grantRemoved(alice, 1, key -> false);
+    Assert.assertEquals(0, users.grantsOf(alice).length);
+    Assert.assertEquals(1, users.liveTokens(alice));
+  }
+
+  @Test
+  public void testReleasedWhenNothingIsLive() {
+    UserIndex users = UserIndex.create();
+    int alice = users.indexOf("alice");
+    users.grantAdded(alice, 1);
+    users.grantAdded(alice, 2);
+    // removed out of order, so the second stays queued until the user has nothing live
+    users.grantRemoved(alice, 2, key -> key == 1);
+    Assert.assertArrayEquals(new long[]{1, 2}, users.grantsOf(alice));
+    users.grantRemoved(alice, 1, key -> false);
+    Assert.assertEquals(0, users.grantsOf(alice).length);
+    Assert.assertEquals(0, users.liveGrants(alice));
+  }
+
+  @Test
+  public void testStaleKeysAreCompacted() {
+    UserIndex users = UserIndex.create();
+    int alice = users.indexOf("alice");
+    Set<Long> live = new HashSet<>();
+    for (long token = 1; token <= 100; token++) {
+      users.tokenAdded(alice, token);
+      live.add(token);
+    }
+    for (long token = 100; token > 1; token--) {
+      live.remove(token);
+      users.tokenRemoved(alice, token, live::contains);
+    }
+    Assert.assertEquals(1, users.liveTokens(alice));
+    Assert.assertTrue("stale keys were not compacted", users.tokensOf(alice).length < 40);
+  }
+
+  @Test
+  public void testGrantsCleared() {
+    UserIndex users = UserIndex.create();
+    int alice = users.indexOf("alice");
+    users.grantAdded(alice, 1);
+    users.tokenAdded(alice, 2);
+    users.grantsCleared();
+    Assert.assertEquals(0, users.grantsOf(alice).length);
+    Assert.assertArrayEquals(new long[]{2}, users.tokensOf(alice));
+  }
+}
@@ -0,0 +1,91 @@
+package io.dazraf.oauth2.bench;
+
+import io.dazraf.oauth2.util.FutureChain;
+import io.vertx.core.Future;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link FutureChain} with the original implementation in {@link LegacyFutureChain} for the shapes we
+ * actually use: short linear chains built before completion, and joins over a handful of futures.
+ * <p>
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=io.dazraf.oauth2.bench.FutureChainBenchmark</code>
+ * and add <code>-prof gc</code> via <code>-Dexec.args</code> to see allocation per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FutureChainBenchmark {
+
+  @Param({"1", "4", "16"})
+  int width;
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder().include(FutureChainBenchmark.class.getSimpleName()).build()).run();
+  }
+
+  @Benchmark
+  public Object chain() {
+    Future<Integer> source = Future.future();
+    Future<Integer> result = FutureChain.when(source)
+      .map(value -> value + 1)
+      .then(value -> Future.succeededFuture(value * 2))
+      .onSuccess((Integer value) -> {
+      })
+      .map(value -> value - 1);
+    source.complete(1);
+    return result.result();
+  }
+
+  @Benchmark
+  public Object legacyChain() {
+    Future<Integer> source = Future.future();
+    Future<Integer> result = LegacyFutureChain.when(source)
+      .map(value -> value + 1)
+      .then(value -> Future.succeededFuture(value * 2))
+      .onSuccess((Integer value) -> {
+      })
+      .map(value -> value - 1);
+    source.complete(1);
+    return result.result();
+  }
+
+  @Benchmark
+  public void join(Blackhole blackhole) {
+    List<Future<Integer>> futures = futures();
+    Future<List<Integer>> joined = FutureChain.join(futures);
+    complete(futures);
+    blackhole.consume(joined.result());
+  }
+
+  @Benchmark
+  public void legacyJoin(Blackhole blackhole) {
+    List<Future<Integer>> futures = futures();
+    Future<List<Integer>> joined = LegacyFutureChain.join(futures);
+    complete(futures);
+    blackhole.consume(joined.result());
+  }
+
+  private List<Future<Integer>> futures() {
+    List<Future<Integer>> futures = new ArrayList<>(width);
+    for (int i = 0; i < width; i++) {
+      futures.add(Future.future());
+    }
+    return futures;
+  }
+
+  private void complete(List<Future<Integer>> futures) {
+    for (int i = 0; i < futures.size(); i++) {
+      futures.get(i).complete(i);
+    }
+  }
+}
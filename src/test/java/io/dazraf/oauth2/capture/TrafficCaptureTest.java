@@ -0,0 +1,180 @@
+package io.dazraf.oauth2.capture;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.handler.BodyHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class TrafficCaptureTest {
+  private final Vertx vertx = Vertx.vertx();
+  private final File file = createFile();
+  private HttpClient client;
+  private int port;
+
+  @After
+  public void closeVertx() {
+    vertx.close();
+    file.delete();
+  }
+
+  @Test
+  public void testLogRoundTrip() throws Exception {
+    CaptureLog.Writer writer = new CaptureLog.Writer();
+    CapturedRequest first = new CapturedRequest(1_000_000, HttpMethod.GET, "/oauth2/api/authorize", 302, 1500, 42,
+      Arrays.asList(CapturedRequest.Param.value("client_id", "acme1"), CapturedRequest.Param.secret("state", -7),
+        CapturedRequest.Param.issued("code", Long.MIN_VALUE)));
+    // answered before the first, so it is written first
+    CapturedRequest second = new CapturedRequest(999_000, HttpMethod.POST, "/oauth2/api/token", 200, 300, 0,
+      Collections.singletonList(CapturedRequest.Param.value("client_id", "acme1")));
+    writer.write(second);
+    writer.write(first);
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    log.write(writer.takeBlock());
+    Assert.assertEquals(0, writer.takeBlock().length);
+    writer.write(first);
+    log.write(writer.takeBlock());
+
+    List<CapturedRequest> read = CaptureLog.read(new ByteArrayInputStream(log.toByteArray()));
+    Assert.assertEquals(3, read.size());
+    assertSame(second, read.get(0));
+    assertSame(first, read.get(1));
+    assertSame(first, read.get(2));
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedLogIsRejected() throws Exception {
+    CaptureLog.Writer writer = new CaptureLog.Writer();
+    writer.write(new CapturedRequest(1, HttpMethod.GET, "/", 200, 1, 0, Collections.emptyList()));
+    byte[] block = writer.takeBlock();
+    CaptureLog.read(new ByteArrayInputStream(Arrays.copyOf(block, block.length - 1)));
+  }
+
+  @Test
+  public void testSecretsArePseudonymised() throws Exception {
+    listen();
+    Assert.assertEquals(302, send(HttpMethod.GET, "/authorize?client_id=acme1&state=s3cr3t", null));
+    Assert.assertEquals(200, send(HttpMethod.POST, "/token", "client_id=acme1&code=c0d3abc&password=hunter2"));
+    // the capture is written every 50ms
+    Thread.sleep(300);
+
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    String raw = new String(bytes, StandardCharsets.ISO_8859_1);
+    for (String secret : Arrays.asList("s3cr3t", "c0d3abc", "hunter2")) {
+      Assert.assertFalse(secret + " was captured", raw.contains(secret));
+    }
+    List<CapturedRequest> captured;
+    try (InputStream in = new FileInputStream(file)) {
+      captured = CaptureLog.read(in);
+    }
+    Assert.assertEquals(2, captured.size());
+    CapturedRequest authorize = captured.get(0);
+    Assert.assertEquals("GET /authorize", authorize.getEndpoint());
+    Assert.assertEquals(302, authorize.getStatus());
+    Assert.assertEquals(CapturedRequest.Param.Kind.VALUE, param(authorize, "client_id").getKind());
+    Assert.assertEquals("acme1", param(authorize, "client_id").getValue());
+    Assert.assertEquals(CapturedRequest.Param.Kind.SECRET, param(authorize, "state").getKind());
+
+    // the code that was issued in the redirect is the one the token request used
+    CapturedRequest token = captured.get(1);
+    Assert.assertEquals(200, token.getStatus());
+    CapturedRequest.Param issued = authorize.getParams().get(authorize.getParams().size() - 1);
+    Assert.assertEquals(CapturedRequest.Param.Kind.ISSUED, issued.getKind());
+    Assert.assertEquals(CapturedRequest.Param.Kind.SECRET, param(token, "code").getKind());
+    Assert.assertEquals(issued.getPseudonym(), param(token, "code").getPseudonym());
+    Assert.assertNotEquals(issued.getPseudonym(), param(token, "password").getPseudonym());
+    Assert.assertTrue(token.getStartMicros() >= authorize.getStartMicros());
+  }
+
+  private void listen() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    JsonObject config = new JsonObject().put("file", file.getPath()).put("flushInterval", 50);
+    CompletableFuture<Void> listening = new CompletableFuture<>();
+    Context context = vertx.getOrCreateContext();
+    context.runOnContext(v -> {
+      // the capture is confined to the event loop that the server's requests are handled on
+      TrafficCapture capture = TrafficCapture.create(vertx, config);
+      Router router = Router.router(vertx);
+      router.route().handler(capture.capture());
+      router.route().handler(BodyHandler.create());
+      router.get("/authorize").handler(routing ->
+        routing.response().putHeader("location", "/cb?code=c0d3abc&state=s3cr3t").setStatusCode(302).end());
+      router.post("/token").handler(routing -> routing.response().end());
+      vertx.createHttpServer().requestHandler(router::accept).listen(port, ar -> {
+        if (ar.succeeded()) {
+          listening.complete(null);
+        } else {
+          listening.completeExceptionally(ar.cause());
+        }
+      });
+    });
+    listening.get(5, TimeUnit.SECONDS);
+    client = vertx.createHttpClient();
+  }
+
+  private int send(HttpMethod method, String uri, String form) throws Exception {
+    CompletableFuture<Integer> status = new CompletableFuture<>();
+    HttpClientRequest request = client.request(method, port, "localhost", uri,
+      response -> response.endHandler(v -> status.complete(response.statusCode())));
+    if (form != null) {
+      request.putHeader("Content-Type", "application/x-www-form-urlencoded").end(form);
+    } else {
+      request.end();
+    }
+    return status.get(5, TimeUnit.SECONDS);
+  }
+
+  private static CapturedRequest.Param param(CapturedRequest request, String name) {
+    return request.getParams().stream().filter(param -> param.getName().equals(name)).findFirst().orElse(null);
+  }
+
+  private static void assertSame(CapturedRequest expected, CapturedRequest actual) {
+    Assert.assertEquals(expected.getStartMicros(), actual.getStartMicros());
+    Assert.assertEquals(expected.getEndpoint(), actual.getEndpoint());
+    Assert.assertEquals(expected.getStatus(), actual.getStatus());
+    Assert.assertEquals(expected.getLatencyMicros(), actual.getLatencyMicros());
+    Assert.assertEquals(expected.getSession(), actual.getSession());
+    Assert.assertEquals(expected.getParams().size(), actual.getParams().size());
+    for (int i = 0; i < expected.getParams().size(); i++) {
+      CapturedRequest.Param expectedParam = expected.getParams().get(i);
+      CapturedRequest.Param actualParam = actual.getParams().get(i);
+      Assert.assertEquals(expectedParam.getName(), actualParam.getName());
+      Assert.assertEquals(expectedParam.getKind(), actualParam.getKind());
+      Assert.assertEquals(expectedParam.getValue(), actualParam.getValue());
+      Assert.assertEquals(expectedParam.getPseudonym(), actualParam.getPseudonym());
+    }
+  }
+
+  private static File createFile() {
+    try {
+      File file = File.createTempFile("oauth2-capture", ".log");
+      file.delete();
+      return file;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
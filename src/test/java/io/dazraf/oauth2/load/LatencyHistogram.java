@@ -0,0 +1,106 @@
+package io.dazraf.oauth2.load;
+
+/**
+ * A fixed-size log-linear histogram of latencies in microseconds, good to about 3% at any magnitude.
+ * Recording is allocation free. Not thread safe: each histogram belongs to one event loop.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_MAGNITUDE = 40;
+
+  private final long[] counts = new long[(MAX_MAGNITUDE + 1) * SUB_BUCKETS];
+  private long count = 0;
+  private long errors = 0;
+  private long max = 0;
+  private long sum = 0;
+
+  public void record(long micros) {
+    long value = Math.max(0, micros);
+    counts[indexOf(value)]++;
+    count++;
+    sum += value;
+    max = Math.max(max, value);
+  }
+
+  public void recordError() {
+    errors++;
+  }
+
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    errors += other.errors;
+    sum += other.sum;
+    max = Math.max(max, other.max);
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getErrors() {
+    return errors;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /**
+   * @param percentile in the range 0 - 100
+   * @return the upper bound of the bucket holding that percentile, capped at the recorded max
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(max, upperBoundOf(i));
+      }
+    }
+    return max;
+  }
+
+  public String summary(String name) {
+    return String.format("%-12s count=%-8d errors=%-6d mean=%8.2fms p50=%8.2fms p90=%8.2fms p99=%8.2fms p99.9=%8.2fms max=%8.2fms",
+      name, count, errors, getMean() / 1000.0,
+      getValueAtPercentile(50) / 1000.0,
+      getValueAtPercentile(90) / 1000.0,
+      getValueAtPercentile(99) / 1000.0,
+      getValueAtPercentile(99.9) / 1000.0,
+      max / 1000.0);
+  }
+
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    if (magnitude > MAX_MAGNITUDE) {
+      return (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS - 1;
+    }
+    int shift = magnitude - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long upperBoundOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS;
+    return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,204 @@
+package io.dazraf.oauth2.load;
+
+import io.dazraf.oauth2.OAuth2ServerVerticle;
+import io.vertx.core.*;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.json.JsonObject;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open-model load driver for {@link OAuth2ServerVerticle}.
+ * <p>
+ * Flows arrive on a schedule (constant or Poisson) regardless of how quickly the server responds. At most
+ * <code>concurrency</code> flows run at once; arrivals beyond that queue, and their latency still counts from
+ * when they were due to start, so a stalling server shows up in the percentiles rather than quietly lowering
+ * the offered load.
+ * <p>
+ * Run with an optional JSON config file argument. Any field left out takes its default from {@link #defaults()}.
+ * With <code>"deploy": true</code> the server is deployed in-process first using its default config.
+ */
+public class LoadGenerator extends AbstractVerticle {
+  private static final Logger LOG = LoggerFactory.getLogger(LoadGenerator.class);
+
+  private final JsonObject config;
+  private final Map<OAuth2Flow.Step, LatencyHistogram> warmupHistograms = createHistograms();
+  private final Map<OAuth2Flow.Step, LatencyHistogram> histograms = createHistograms();
+  private final Deque<Long> backlog = new ArrayDeque<>();
+  private final Random random = new Random();
+  private final List<String> usernames = new ArrayList<>();
+  private final Handler<Map<OAuth2Flow.Step, LatencyHistogram>> resultHandler;
+  private HttpClient client;
+  private JsonObject users;
+  private int active = 0;
+  private int maxActive;
+  private long nextArrival;
+  private long warmupEnd;
+  private long arrivalsEnd;
+  private long drainEnd;
+  private long timerID;
+
+  public static void main(String[] args) throws Exception {
+    JsonObject config = defaults();
+    if (args.length > 0) {
+      try (InputStream in = new FileInputStream(args[0])) {
+        config.mergeIn(new JsonObject(IOUtils.toString(in)));
+      }
+    }
+    run(config);
+  }
+
+  static JsonObject defaults() throws IOException {
+    JsonObject serverConfig = new JsonObject(
+      IOUtils.toString(ClassLoader.getSystemClassLoader().getResourceAsStream("config/default.json")));
+    return new JsonObject()
+      .put("deploy", true)
+      .put("serverInstances", 1) // shards when deployed in-process
+      .put("host", "localhost")
+      .put("port", serverConfig.getInteger("port", 8080))
+      .put("apiPath", serverConfig.getString("basePath") + serverConfig.getString("apiPath"))
+      .put("clientID", "acme1")
+      .put("redirectURI", "/oauth2/showToken.html")
+      .put("scope", "fp")
+      .put("users", serverConfig.getJsonObject("users"))
+      .put("rate", 50.0) // flows per second
+      .put("arrival", "constant") // or poisson
+      .put("concurrency", 64)
+      .put("instances", 1)
+      .put("warmupSeconds", 5)
+      .put("durationSeconds", 30)
+      .put("drainSeconds", 30)
+      .put("tokenInfoCalls", 10);
+  }
+
+  static void run(JsonObject config) throws Exception {
+    Vertx vertx = Vertx.vertx();
+    if (config.getBoolean("deploy")) {
+      CountDownLatch deployed = new CountDownLatch(1);
+      DeploymentOptions serverOptions = new DeploymentOptions().setInstances(config.getInteger("serverInstances"));
+      vertx.deployVerticle(OAuth2ServerVerticle.class.getName(), serverOptions, ar -> {
+        if (ar.failed()) {
+          LOG.error("failed to deploy the server", ar.cause());
+        }
+        deployed.countDown();
+      });
+      deployed.await(30, TimeUnit.SECONDS);
+    }
+
+    // each instance gets its own event loop, client and share of the rate and concurrency
+    int instances = config.getInteger("instances");
+    JsonObject instanceConfig = config.copy()
+      .put("rate", config.getDouble("rate") / instances)
+      .put("concurrency", Math.max(1, config.getInteger("concurrency") / instances));
+    Map<OAuth2Flow.Step, LatencyHistogram> results = createHistograms();
+    CountDownLatch finished = new CountDownLatch(instances);
+    for (int i = 0; i < instances; i++) {
+      vertx.deployVerticle(new LoadGenerator(instanceConfig, instanceResults -> {
+        synchronized (results) {
+          instanceResults.forEach((step, histogram) -> results.get(step).add(histogram));
+        }
+        finished.countDown();
+      }));
+    }
+    long timeout = config.getInteger("warmupSeconds") + config.getInteger("durationSeconds") + config.getInteger("drainSeconds") + 10;
+    finished.await(timeout, TimeUnit.SECONDS);
+
+    System.out.println(String.format("offered %.1f flows/s (%s arrivals), concurrency %d, %ds measured after %ds warmup",
+      config.getDouble("rate"), config.getString("arrival"), config.getInteger("concurrency"),
+      config.getInteger("durationSeconds"), config.getInteger("warmupSeconds")));
+    synchronized (results) {
+      results.forEach((step, histogram) -> System.out.println(histogram.summary(step.name().toLowerCase())));
+      System.out.println(String.format("achieved %.1f flows/s",
+        results.get(OAuth2Flow.Step.FLOW).getCount() / (double) config.getInteger("durationSeconds")));
+    }
+    vertx.close();
+  }
+
+  private LoadGenerator(JsonObject config, Handler<Map<OAuth2Flow.Step, LatencyHistogram>> resultHandler) {
+    this.config = config;
+    this.resultHandler = resultHandler;
+  }
+
+  @Override
+  public void start() throws Exception {
+    maxActive = config.getInteger("concurrency");
+    users = config.getJsonObject("users");
+    usernames.addAll(users.fieldNames());
+    client = vertx.createHttpClient(new HttpClientOptions()
+      .setDefaultHost(config.getString("host"))
+      .setDefaultPort(config.getInteger("port"))
+      .setSsl(true)
+      .setTrustAll(true)
+      .setVerifyHost(false)
+      .setKeepAlive(true)
+      .setMaxPoolSize(maxActive));
+
+    long now = System.nanoTime();
+    nextArrival = now;
+    warmupEnd = now + TimeUnit.SECONDS.toNanos(config.getInteger("warmupSeconds"));
+    arrivalsEnd = warmupEnd + TimeUnit.SECONDS.toNanos(config.getInteger("durationSeconds"));
+    drainEnd = arrivalsEnd + TimeUnit.SECONDS.toNanos(config.getInteger("drainSeconds"));
+    timerID = vertx.setPeriodic(1, id -> tick());
+  }
+
+  private void tick() {
+    long now = System.nanoTime();
+    while (nextArrival <= now && nextArrival < arrivalsEnd) {
+      backlog.add(nextArrival);
+      nextArrival += interArrivalNanos();
+    }
+    startBackloggedFlows();
+
+    boolean arrivalsDone = now >= arrivalsEnd;
+    if (arrivalsDone && ((active == 0 && backlog.isEmpty()) || now >= drainEnd)) {
+      vertx.cancelTimer(timerID);
+      // whatever never got to start counts against us
+      backlog.forEach(intendedStart -> histogramsFor(intendedStart).get(OAuth2Flow.Step.FLOW).recordError());
+      backlog.clear();
+      client.close();
+      resultHandler.handle(histograms);
+    }
+  }
+
+  private void startBackloggedFlows() {
+    while (active < maxActive && !backlog.isEmpty()) {
+      long intendedStart = backlog.poll();
+      String username = usernames.get(random.nextInt(usernames.size()));
+      String password = users.getJsonObject(username).getString("password");
+      active++;
+      new OAuth2Flow(client, config, username, password, histogramsFor(intendedStart), intendedStart, succeeded -> {
+        active--;
+        startBackloggedFlows();
+      }).start();
+    }
+  }
+
+  private Map<OAuth2Flow.Step, LatencyHistogram> histogramsFor(long intendedStart) {
+    return intendedStart < warmupEnd ? warmupHistograms : histograms;
+  }
+
+  private long interArrivalNanos() {
+    double meanNanos = TimeUnit.SECONDS.toNanos(1) / config.getDouble("rate");
+    if ("poisson".equals(config.getString("arrival"))) {
+      return (long) (-Math.log(1.0 - random.nextDouble()) * meanNanos);
+    }
+    return (long) meanNanos;
+  }
+
+  private static Map<OAuth2Flow.Step, LatencyHistogram> createHistograms() {
+    Map<OAuth2Flow.Step, LatencyHistogram> histograms = new EnumMap<>(OAuth2Flow.Step.class);
+    for (OAuth2Flow.Step step : OAuth2Flow.Step.values()) {
+      histograms.put(step, new LatencyHistogram());
+    }
+    return histograms;
+  }
+}
@@ -0,0 +1,194 @@
+package io.dazraf.oauth2.load;
+
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+
+import java.net.URLEncoder;
+import java.util.Map;
+
+/**
+ * One scripted run through the authorization code flow, as a browser and a client application would drive it:
+ * <ol>
+ *   <li>/authorize, which bounces us to the login page</li>
+ *   <li>/login with the user's credentials</li>
+ *   <li>/authorize again, which either renders the consent page or redirects straight back with a code</li>
+ *   <li>/approveauth if we were asked for consent</li>
+ *   <li>/token to exchange the code</li>
+ *   <li>/tokeninfo, repeatedly</li>
+ * </ol>
+ * Each step's latency is measured from when it was sent, except the first, which is measured from the flow's
+ * intended start so that time spent queued behind a saturated server is not hidden (coordinated omission).
+ */
+class OAuth2Flow {
+  enum Step {AUTHORIZE, LOGIN, CONSENT, APPROVE, TOKEN, TOKENINFO, FLOW}
+
+  private final HttpClient client;
+  private final String apiPath;
+  private final String clientID;
+  private final String redirectURI;
+  private final String scope;
+  private final String username;
+  private final String password;
+  private final int tokenInfoCalls;
+  private final Map<Step, LatencyHistogram> histograms;
+  private final long intendedStart;
+  private final Handler<Boolean> completionHandler;
+  private String sessionCookie;
+  private int remainingTokenInfoCalls;
+  private boolean finished = false;
+
+  OAuth2Flow(HttpClient client, JsonObject config, String username, String password,
+             Map<Step, LatencyHistogram> histograms, long intendedStart, Handler<Boolean> completionHandler) {
+    this.client = client;
+    this.apiPath = config.getString("apiPath");
+    this.clientID = config.getString("clientID");
+    this.redirectURI = config.getString("redirectURI");
+    this.scope = config.getString("scope");
+    this.tokenInfoCalls = config.getInteger("tokenInfoCalls");
+    this.username = username;
+    this.password = password;
+    this.histograms = histograms;
+    this.intendedStart = intendedStart;
+    this.completionHandler = completionHandler;
+  }
+
+  void start() {
+    send(Step.AUTHORIZE, HttpMethod.GET, apiPath + "/authorize?" + authorizeQuery(), null, intendedStart, response -> {
+      expectStatus(response, 302);
+      login();
+    });
+  }
+
+  private void login() {
+    String form = "username=" + encode(username) + "&password=" + encode(password);
+    send(Step.LOGIN, HttpMethod.POST, apiPath + "/login", form, System.nanoTime(), response -> {
+      expectStatus(response, 302);
+      send(Step.CONSENT, HttpMethod.GET, apiPath + "/authorize?" + authorizeQuery(), null, System.nanoTime(), consent -> {
+        if (consent.statusCode() == 200) {
+          approve();
+        } else {
+          exchangeCode(codeFrom(consent));
+        }
+      });
+    });
+  }
+
+  private void approve() {
+    send(Step.APPROVE, HttpMethod.GET, apiPath + "/approveauth?approved=Yes&" + authorizeQuery(), null, System.nanoTime(),
+      response -> exchangeCode(codeFrom(response)));
+  }
+
+  private void exchangeCode(String code) {
+    String form = "client_id=" + encode(clientID)
+      + "&redirect_uri=" + encode(redirectURI)
+      + "&grant_type=authorization_code"
+      + "&code=" + encode(code);
+    send(Step.TOKEN, HttpMethod.POST, apiPath + "/token", form, System.nanoTime(), response -> {
+      expectStatus(response, 200);
+      response.bodyHandler(body -> {
+        String accessToken;
+        try {
+          accessToken = new JsonObject(body.toString()).getString("access_token");
+        } catch (Throwable e) {
+          histograms.get(Step.TOKEN).recordError();
+          finish(false);
+          return;
+        }
+        remainingTokenInfoCalls = tokenInfoCalls;
+        tokenInfo(accessToken);
+      });
+    });
+  }
+
+  private void tokenInfo(String accessToken) {
+    if (remainingTokenInfoCalls-- <= 0) {
+      finish(true);
+      return;
+    }
+    send(Step.TOKENINFO, HttpMethod.GET, apiPath + "/tokeninfo?access_token=" + encode(accessToken), null, System.nanoTime(),
+      response -> {
+        expectStatus(response, 200);
+        tokenInfo(accessToken);
+      });
+  }
+
+  private void send(Step step, HttpMethod method, String uri, String form, long startNanos,
+                    Handler<HttpClientResponse> handler) {
+    HttpClientRequest request = client.request(method, uri, response -> {
+      histograms.get(step).record((System.nanoTime() - startNanos) / 1000);
+      rememberSessionCookie(response.headers());
+      try {
+        handler.handle(response);
+      } catch (Throwable e) {
+        histograms.get(step).recordError();
+        finish(false);
+      }
+    });
+    request.exceptionHandler(e -> {
+      histograms.get(step).recordError();
+      finish(false);
+    });
+    if (sessionCookie != null) {
+      request.putHeader("Cookie", sessionCookie);
+    }
+    if (form != null) {
+      request.putHeader("Content-Type", "application/x-www-form-urlencoded").end(form);
+    } else {
+      request.end();
+    }
+  }
+
+  private void finish(boolean succeeded) {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    if (succeeded) {
+      histograms.get(Step.FLOW).record((System.nanoTime() - intendedStart) / 1000);
+    } else {
+      histograms.get(Step.FLOW).recordError();
+    }
+    completionHandler.handle(succeeded);
+  }
+
+  private void rememberSessionCookie(MultiMap headers) {
+    for (String cookie : headers.getAll("Set-Cookie")) {
+      sessionCookie = cookie.split(";", 2)[0];
+    }
+  }
+
+  private String authorizeQuery() {
+    return "client_id=" + encode(clientID)
+      + "&redirect_uri=" + encode(redirectURI)
+      + "&scope=" + encode(scope)
+      + "&response_type=code"
+      + "&state=load";
+  }
+
+  private static String codeFrom(HttpClientResponse response) {
+    expectStatus(response, 303);
+    String location = response.getHeader("Location");
+    int start = location.indexOf("code=") + "code=".length();
+    int end = location.indexOf('&', start);
+    return location.substring(start, end < 0 ? location.length() : end);
+  }
+
+  private static void expectStatus(HttpClientResponse response, int status) {
+    if (response.statusCode() != status) {
+      throw new IllegalStateException("expected " + status + " but got " + response.statusCode());
+    }
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
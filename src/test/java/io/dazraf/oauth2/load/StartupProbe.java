@@ -0,0 +1,106 @@
+package io.dazraf.oauth2.load;
+
+import io.dazraf.oauth2.OAuth2ServerVerticle;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures time to first tokeninfo: launches the server as a separate process, polls <code>tokeninfo</code> until it
+ * answers, and stops it. Repeats <code>runs</code> times and prints each result and the median, so that the
+ * server can be compared with and without a class data sharing archive.
+ * <p>
+ * Arguments: <code>runs url command...</code>, e.g.
+ * <code>5 https://localhost:8080/oauth2/api/tokeninfo java -XX:SharedArchiveFile=target/oauth2-server-1.0-SNAPSHOT.jsa -jar target/oauth2-server-1.0-SNAPSHOT.jar</code>
+ * <p>
+ * The server's own log also reports when it answered its first tokeninfo, relative to its JVM starting.
+ *
+ * @see OAuth2ServerVerticle
+ */
+public class StartupProbe {
+  private static final long POLL_INTERVAL_MILLIS = 5;
+  private static final long TIMEOUT_MILLIS = 60_000;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("usage: StartupProbe runs url command...");
+      System.exit(1);
+    }
+    int runs = Integer.parseInt(args[0]);
+    URL url = new URL(args[1] + "?access_token=0000000000000");
+    String[] command = Arrays.copyOfRange(args, 2, args.length);
+    trustAll();
+
+    long[] results = new long[runs];
+    for (int i = 0; i < runs; i++) {
+      results[i] = probe(url, command);
+      System.out.printf("run %d: first tokeninfo after %dms%n", i + 1, results[i]);
+    }
+    Arrays.sort(results);
+    System.out.printf("median: %dms%n", results[runs / 2]);
+  }
+
+  private static long probe(URL url, String[] command) throws Exception {
+    long start = System.nanoTime();
+    Process server = new ProcessBuilder(command).inheritIO().start();
+    try {
+      while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS)) {
+        if (!server.isAlive()) {
+          throw new IllegalStateException("server exited with " + server.exitValue());
+        }
+        if (answers(url)) {
+          return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+        Thread.sleep(POLL_INTERVAL_MILLIS);
+      }
+      throw new IllegalStateException("no answer within " + TIMEOUT_MILLIS + "ms");
+    } finally {
+      server.destroy();
+      server.waitFor();
+    }
+  }
+
+  private static boolean answers(URL url) {
+    try {
+      HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+      connection.setConnectTimeout(100);
+      connection.setReadTimeout(1000);
+      try {
+        // any status will do: an unknown token is a 400
+        return connection.getResponseCode() > 0;
+      } finally {
+        connection.disconnect();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static void trustAll() throws Exception {
+    // the server's certificate is self-signed
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, new TrustManager[] {new X509TrustManager() {
+      @Override
+      public void checkClientTrusted(X509Certificate[] chain, String authType) {
+      }
+
+      @Override
+      public void checkServerTrusted(X509Certificate[] chain, String authType) {
+      }
+
+      @Override
+      public X509Certificate[] getAcceptedIssuers() {
+        return new X509Certificate[0];
+      }
+    }}, null);
+    HttpsURLConnection.setDefaultSSLSocketFactory(context.getSocketFactory());
+    HttpsURLConnection.setDefaultHostnameVerifier((host, session) -> true);
+  }
+}
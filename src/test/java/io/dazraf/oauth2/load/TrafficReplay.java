@@ -0,0 +1,485 @@
+package io.dazraf.oauth2.load;
+
+import io.dazraf.oauth2.capture.CaptureLog;
+import io.dazraf.oauth2.capture.CapturedRequest;
+import io.dazraf.oauth2.capture.TrafficCapture;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays a capture recorded by {@link TrafficCapture} against a running server, and compares the latencies of two
+ * captures or replays, so that a new build can be held to the load production actually sees.
+ * <p>
+ * <code>TrafficReplay capture.log [replay.json]</code> sends each captured request when it arrived, relative to the
+ * first, with the gaps divided by <code>speed</code>. As with {@link LoadGenerator}, requests are sent on schedule
+ * however quickly the server answers, and latency counts from when a request was due. The requests of a session are
+ * sent in order, one at a time, with the cookies the server gave that session.
+ * <p>
+ * The capture holds pseudonyms rather than secrets, so they are stood in for: a username by one of the configured
+ * <code>users</code>, picked by its pseudonym, and a password by that user's password; a code by the code the replay
+ * was issued by the request that issued it in the capture, waiting up to <code>codeWaitMillis</code> for it; a token
+ * by one of the tokens the replay has been issued, in the order it first uses them, if the captured request succeeded;
+ * and anything else by its pseudonym in hex, which the server will turn down as it would a wrong value.
+ * <p>
+ * It prints the latencies by end point, next to those the server recorded in the capture, and how many answers had a
+ * different status. With an <code>output</code> file the replay is written as a capture too, with the latencies it
+ * measured, and <code>TrafficReplay compare before.log after.log</code> prints the latencies of two such files side by
+ * side, to compare a build with the one before it.
+ */
+public class TrafficReplay extends AbstractVerticle {
+  private static final Pattern ISSUED_CODE = Pattern.compile("[?&]code=([^&#]+)");
+  private static final int OUTPUT_BLOCK_SIZE = 1024 * 1024;
+
+  private final List<CapturedRequest> requests;
+  private final JsonObject config;
+  private final Handler<Void> doneHandler;
+  private final double speed;
+  private final Map<String, LatencyHistogram> captured = new TreeMap<>();
+  private final Map<String, LatencyHistogram> replayed = new TreeMap<>();
+  private final Map<String, Integer> statusChanged = new TreeMap<>();
+  private final Map<Long, Conversation> conversations = new HashMap<>();
+  private final Map<Long, String> issuedCodes = new HashMap<>();
+  private final Map<Long, List<Pending>> awaitingCodes = new HashMap<>();
+  private final Map<Long, String> tokens = new HashMap<>();
+  private final Deque<String> unclaimedTokens = new ArrayDeque<>();
+  private final List<String> usernames = new ArrayList<>();
+  private final CaptureLog.Writer output = new CaptureLog.Writer();
+  private final ByteArrayOutputStream outputBlocks = new ByteArrayOutputStream();
+  private JsonObject users;
+  private HttpClient client;
+  private String lastToken;
+  private int next = 0;
+  private int inFlight = 0;
+  private long startNanos;
+  private long startMicros;
+  private long drainEnd = Long.MAX_VALUE;
+  private long timerID;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 3 && "compare".equals(args[0])) {
+      compare(read(args[1]), read(args[2]));
+      return;
+    }
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("usage: TrafficReplay capture [config.json] | TrafficReplay compare before after");
+      System.exit(1);
+    }
+    JsonObject config = defaults();
+    if (args.length > 1) {
+      try (InputStream in = new FileInputStream(args[1])) {
+        config.mergeIn(new JsonObject(IOUtils.toString(in)));
+      }
+    }
+    run(read(args[0]), config);
+  }
+
+  static JsonObject defaults() throws IOException {
+    JsonObject serverConfig = new JsonObject(
+      IOUtils.toString(ClassLoader.getSystemClassLoader().getResourceAsStream("config/default.json")));
+    return new JsonObject()
+      .put("host", "localhost")
+      .put("port", serverConfig.getInteger("port", 8080))
+      .put("users", serverConfig.getJsonObject("users"))
+      .put("speed", 1.0) // 2 replays twice as fast as captured
+      .put("connections", 64)
+      .put("codeWaitMillis", 5000)
+      .put("drainSeconds", 30);
+  }
+
+  static void run(List<CapturedRequest> requests, JsonObject config) throws Exception {
+    if (requests.isEmpty()) {
+      System.out.println("nothing to replay");
+      return;
+    }
+    requests.sort(Comparator.comparingLong(CapturedRequest::getStartMicros));
+    long spanMicros = requests.get(requests.size() - 1).getStartMicros() - requests.get(0).getStartMicros();
+    System.out.println(String.format("replaying %d requests captured over %.1fs at %.1fx speed", requests.size(),
+      spanMicros / 1e6, config.getDouble("speed")));
+
+    Vertx vertx = Vertx.vertx();
+    CountDownLatch finished = new CountDownLatch(1);
+    vertx.deployVerticle(new TrafficReplay(requests, config, v -> finished.countDown()));
+    long timeoutMillis = (long) (spanMicros / 1000 / config.getDouble("speed"))
+      + config.getInteger("codeWaitMillis") + TimeUnit.SECONDS.toMillis(config.getInteger("drainSeconds") + 10);
+    if (!finished.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+      System.err.println("the replay didn't finish within " + timeoutMillis + "ms");
+    }
+    vertx.close();
+  }
+
+  static List<CapturedRequest> read(String file) throws IOException {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      return CaptureLog.read(in);
+    }
+  }
+
+  /**
+   * Prints the latencies of each end point in <code>before</code> and <code>after</code>, and how they changed
+   */
+  static void compare(List<CapturedRequest> before, List<CapturedRequest> after) {
+    Map<String, LatencyHistogram> beforeLatencies = latencies(before);
+    Map<String, LatencyHistogram> afterLatencies = latencies(after);
+    Set<String> endpoints = new TreeSet<>(beforeLatencies.keySet());
+    endpoints.addAll(afterLatencies.keySet());
+    for (String endpoint : endpoints) {
+      LatencyHistogram was = beforeLatencies.getOrDefault(endpoint, new LatencyHistogram());
+      LatencyHistogram is = afterLatencies.getOrDefault(endpoint, new LatencyHistogram());
+      System.out.println(endpoint);
+      System.out.println("  " + was.summary("before"));
+      System.out.println("  " + is.summary("after"));
+      System.out.println(String.format("  %-12s p50 x%.2f p99 x%.2f max x%.2f", "change",
+        ratio(is.getValueAtPercentile(50), was.getValueAtPercentile(50)),
+        ratio(is.getValueAtPercentile(99), was.getValueAtPercentile(99)),
+        ratio(is.getMax(), was.getMax())));
+    }
+  }
+
+  private TrafficReplay(List<CapturedRequest> requests, JsonObject config, Handler<Void> doneHandler) {
+    this.requests = requests;
+    this.config = config;
+    this.doneHandler = doneHandler;
+    this.speed = config.getDouble("speed");
+  }
+
+  @Override
+  public void start() throws Exception {
+    users = config.getJsonObject("users");
+    usernames.addAll(new TreeSet<>(users.fieldNames()));
+    client = vertx.createHttpClient(new HttpClientOptions()
+      .setDefaultHost(config.getString("host"))
+      .setDefaultPort(config.getInteger("port"))
+      .setSsl(true)
+      .setTrustAll(true)
+      .setVerifyHost(false)
+      .setKeepAlive(true)
+      .setMaxPoolSize(config.getInteger("connections")));
+    startNanos = System.nanoTime();
+    startMicros = System.currentTimeMillis() * 1000;
+    timerID = vertx.setPeriodic(1, id -> tick());
+  }
+
+  private void tick() {
+    long now = System.nanoTime();
+    while (next < requests.size() && dueNanos(requests.get(next)) <= now) {
+      CapturedRequest request = requests.get(next++);
+      submit(new Pending(request, dueNanos(request)));
+      if (next == requests.size()) {
+        drainEnd = now + TimeUnit.MILLISECONDS.toNanos(config.getInteger("codeWaitMillis"))
+          + TimeUnit.SECONDS.toNanos(config.getInteger("drainSeconds"));
+      }
+    }
+
+    // a code that still hasn't been issued won't be, so send what was waiting for it as it is
+    long codeWait = TimeUnit.MILLISECONDS.toNanos(config.getInteger("codeWaitMillis"));
+    List<Pending> expired = new ArrayList<>();
+    awaitingCodes.values().removeIf(waiting -> {
+      waiting.removeIf(pending -> now - pending.intendedNanos >= codeWait && expired.add(pending));
+      return waiting.isEmpty();
+    });
+    expired.forEach(this::enqueue);
+
+    boolean idle = inFlight == 0 && awaitingCodes.isEmpty()
+      && conversations.values().stream().allMatch(conversation -> conversation.queue.isEmpty());
+    if (next == requests.size() && (idle || now >= drainEnd)) {
+      vertx.cancelTimer(timerID);
+      client.close();
+      report();
+      doneHandler.handle(null);
+    }
+  }
+
+  private long dueNanos(CapturedRequest request) {
+    long offsetMicros = request.getStartMicros() - requests.get(0).getStartMicros();
+    return startNanos + (long) (TimeUnit.MICROSECONDS.toNanos(offsetMicros) / speed);
+  }
+
+  private void submit(Pending pending) {
+    histogram(captured, pending.request).record(pending.request.getLatencyMicros());
+    for (CapturedRequest.Param param : pending.request.getParams()) {
+      if (param.getKind() == CapturedRequest.Param.Kind.SECRET && "code".equals(param.getName())
+        && !issuedCodes.containsKey(param.getPseudonym())) {
+        awaitingCodes.computeIfAbsent(param.getPseudonym(), code -> new ArrayList<>()).add(pending);
+        return;
+      }
+    }
+    enqueue(pending);
+  }
+
+  private void enqueue(Pending pending) {
+    long session = pending.request.getSession();
+    if (session == 0) {
+      send(pending, null);
+      return;
+    }
+    Conversation conversation = conversations.computeIfAbsent(session, id -> new Conversation());
+    conversation.queue.add(pending);
+    if (!conversation.busy) {
+      sendNext(conversation);
+    }
+  }
+
+  private void sendNext(Conversation conversation) {
+    Pending pending = conversation.queue.poll();
+    conversation.busy = pending != null;
+    if (pending != null) {
+      send(pending, conversation);
+    }
+  }
+
+  private void send(Pending pending, Conversation conversation) {
+    CapturedRequest request = pending.request;
+    String username = null;
+    for (CapturedRequest.Param param : request.getParams()) {
+      if (param.getKind() == CapturedRequest.Param.Kind.SECRET && "username".equals(param.getName())) {
+        username = usernames.get((int) Math.floorMod(param.getPseudonym(), (long) usernames.size()));
+      }
+    }
+    StringBuilder params = new StringBuilder();
+    for (CapturedRequest.Param param : request.getParams()) {
+      String value;
+      switch (param.getKind()) {
+        case VALUE:
+          value = param.getValue();
+          break;
+        case SECRET:
+          value = standIn(request, param.getName(), param.getPseudonym(), username);
+          break;
+        default:
+          continue;
+      }
+      params.append(params.length() == 0 ? "" : "&").append(encode(param.getName())).append('=').append(encode(value));
+    }
+    boolean inQuery = request.getMethod() == HttpMethod.GET || request.getMethod() == HttpMethod.HEAD
+      || request.getMethod() == HttpMethod.DELETE;
+    String uri = inQuery && params.length() > 0 ? request.getPath() + "?" + params : request.getPath();
+
+    inFlight++;
+    HttpClientRequest clientRequest = client.request(request.getMethod(), uri, response ->
+      response.bodyHandler(body -> completed(pending, conversation, response, body)));
+    clientRequest.exceptionHandler(e -> failed(pending, conversation));
+    clientRequest.setTimeout(TimeUnit.SECONDS.toMillis(config.getInteger("drainSeconds")));
+    if (conversation != null && !conversation.cookies.isEmpty()) {
+      StringBuilder cookies = new StringBuilder();
+      conversation.cookies.forEach((name, value) ->
+        cookies.append(cookies.length() == 0 ? "" : "; ").append(name).append('=').append(value));
+      clientRequest.putHeader("Cookie", cookies.toString());
+    }
+    if (inQuery) {
+      clientRequest.end();
+    } else {
+      clientRequest.putHeader("Content-Type", "application/x-www-form-urlencoded");
+      clientRequest.end(params.toString());
+    }
+  }
+
+  private String standIn(CapturedRequest request, String name, long pseudonym, String username) {
+    switch (name) {
+      case "username":
+        return username;
+      case "password":
+        return username == null ? hex(pseudonym) : users.getJsonObject(username).getString("password");
+      case "code":
+        return issuedCodes.getOrDefault(pseudonym, hex(pseudonym));
+      case "access_token":
+      case "refresh_token":
+      case "subject_token":
+      case "token":
+        // a token that was turned down in the capture was no good, so the same goes for its stand in
+        return request.getStatus() / 100 == 2 ? tokenFor(pseudonym) : hex(pseudonym);
+      default:
+        return hex(pseudonym);
+    }
+  }
+
+  private String tokenFor(long pseudonym) {
+    String token = tokens.get(pseudonym);
+    if (token == null) {
+      token = unclaimedTokens.poll();
+      if (token != null) {
+        tokens.put(pseudonym, token);
+      } else {
+        // nothing issued yet that another hasn't claimed, so make do with the latest
+        token = lastToken != null ? lastToken : hex(pseudonym);
+      }
+    }
+    return token;
+  }
+
+  private void completed(Pending pending, Conversation conversation, HttpClientResponse response, Buffer body) {
+    CapturedRequest request = pending.request;
+    long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - pending.intendedNanos);
+    histogram(replayed, request).record(latencyMicros);
+    if (response.statusCode() != request.getStatus()) {
+      statusChanged.merge(request.getEndpoint(), 1, Integer::sum);
+    }
+    for (String cookie : response.headers().getAll("set-cookie")) {
+      String pair = cookie.split(";", 2)[0];
+      int equals = pair.indexOf('=');
+      if (conversation != null && equals > 0) {
+        conversation.cookies.put(pair.substring(0, equals).trim(), pair.substring(equals + 1).trim());
+      }
+    }
+    for (CapturedRequest.Param param : request.getParams()) {
+      if (param.getKind() == CapturedRequest.Param.Kind.ISSUED) {
+        issued(param.getPseudonym(), response.headers().get("location"));
+      }
+    }
+    if (request.getPath().endsWith("/token") && response.statusCode() == 200) {
+      try {
+        String token = new JsonObject(body.toString()).getString("access_token");
+        if (token != null) {
+          unclaimedTokens.add(token);
+          lastToken = token;
+        }
+      } catch (DecodeException e) {
+        // not a token response after all
+      }
+    }
+    record(pending, response.statusCode(), latencyMicros);
+    finished(conversation);
+  }
+
+  private void failed(Pending pending, Conversation conversation) {
+    histogram(replayed, pending.request).recordError();
+    record(pending, 0, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - pending.intendedNanos));
+    finished(conversation);
+  }
+
+  private void finished(Conversation conversation) {
+    inFlight--;
+    if (conversation != null) {
+      sendNext(conversation);
+    }
+  }
+
+  private void issued(long pseudonym, String location) {
+    Matcher code = location == null ? null : ISSUED_CODE.matcher(location);
+    if (code != null && code.find()) {
+      issuedCodes.put(pseudonym, code.group(1));
+      List<Pending> waiting = awaitingCodes.remove(pseudonym);
+      if (waiting != null) {
+        waiting.forEach(this::enqueue);
+      }
+    }
+  }
+
+  private void record(Pending pending, int status, long latencyMicros) {
+    if (!config.containsKey("output")) {
+      return;
+    }
+    CapturedRequest request = pending.request;
+    long replayedAt = startMicros + TimeUnit.NANOSECONDS.toMicros(pending.intendedNanos - startNanos);
+    output.write(new CapturedRequest(replayedAt, request.getMethod(), request.getPath(), status, latencyMicros,
+      request.getSession(), request.getParams()));
+    if (output.size() >= OUTPUT_BLOCK_SIZE) {
+      byte[] block = output.takeBlock();
+      outputBlocks.write(block, 0, block.length);
+    }
+  }
+
+  private void report() {
+    try {
+      System.out.println("captured latencies were measured by the server, replayed ones by this client from when each"
+        + " request was due");
+      for (Map.Entry<String, LatencyHistogram> endpoint : captured.entrySet()) {
+        System.out.println(endpoint.getKey());
+        System.out.println("  " + endpoint.getValue().summary("captured"));
+        System.out.println("  " + replayed.getOrDefault(endpoint.getKey(), new LatencyHistogram()).summary("replayed"));
+        Integer changed = statusChanged.get(endpoint.getKey());
+        if (changed != null) {
+          System.out.println(String.format("  %-12s %d answered with a different status", "", changed));
+        }
+      }
+      if (config.containsKey("output")) {
+        byte[] block = output.takeBlock();
+        outputBlocks.write(block, 0, block.length);
+        try (OutputStream out = new FileOutputStream(config.getString("output"))) {
+          outputBlocks.writeTo(out);
+        }
+        System.out.println("wrote the replay to " + config.getString("output"));
+      }
+    } catch (IOException e) {
+      System.err.println("failed to write the replay: " + e);
+    }
+  }
+
+  private static Map<String, LatencyHistogram> latencies(List<CapturedRequest> requests) {
+    Map<String, LatencyHistogram> latencies = new TreeMap<>();
+    for (CapturedRequest request : requests) {
+      LatencyHistogram histogram = histogram(latencies, request);
+      if (request.getStatus() == 0) {
+        histogram.recordError();
+      } else {
+        histogram.record(request.getLatencyMicros());
+      }
+    }
+    return latencies;
+  }
+
+  private static LatencyHistogram histogram(Map<String, LatencyHistogram> histograms, CapturedRequest request) {
+    return histograms.computeIfAbsent(request.getEndpoint(), endpoint -> new LatencyHistogram());
+  }
+
+  private static double ratio(long is, long was) {
+    return was == 0 ? Double.NaN : (double) is / was;
+  }
+
+  private static String hex(long pseudonym) {
+    return String.format("%016x", pseudonym);
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * A request waiting to be sent, and when it was due
+   */
+  private static class Pending {
+    final CapturedRequest request;
+    final long intendedNanos;
+
+    Pending(CapturedRequest request, long intendedNanos) {
+      this.request = request;
+      this.intendedNanos = intendedNanos;
+    }
+  }
+
+  /**
+   * The cookies of a captured session, and its requests waiting for the one before them to be answered
+   */
+  private static class Conversation {
+    final Map<String, String> cookies = new LinkedHashMap<>();
+    final Deque<Pending> queue = new ArrayDeque<>();
+    boolean busy = false;
+  }
+}
@@ -0,0 +1,95 @@
+package io.dazraf.oauth2.oidc;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+public class KeyManagerTest {
+  private static final byte[] CLAIMS = "{\"sub\":\"alice\"}".getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void testTokensVerifyUntilTheirKeyIsRetired() throws Exception {
+    KeyManager keys = KeyManager.create(new JsonObject());
+    keys.load();
+    JwtSigner signer = keys.getSigner();
+    String first = signer.sign(CLAIMS);
+    String firstKid = keys.current().active.getKid();
+    String nextKid = keys.current().next.getKid();
+
+    // the next key is published before it signs anything, and becomes active on rotation
+    Assert.assertNotNull(keys.find(nextKid));
+    keys.rotate();
+    Assert.assertEquals(nextKid, keys.current().active.getKid());
+    String second = signer.sign(CLAIMS);
+    Assert.assertEquals("alice", signer.verify(first).getString("sub"));
+    Assert.assertEquals("alice", signer.verify(second).getString("sub"));
+
+    // retained for RETAINED_KEYS rotations after it stops signing, and no longer
+    for (int i = 1; i < KeyManager.RETAINED_KEYS; i++) {
+      keys.rotate();
+    }
+    Assert.assertNotNull(signer.verify(first));
+    keys.rotate();
+    Assert.assertNull(keys.find(firstKid));
+    Assert.assertNull(signer.verify(first));
+    Assert.assertNotNull(signer.verify(second));
+    Assert.assertEquals(KeyManager.SLOTS, keys.toJson().getJsonArray("published").size());
+  }
+
+  @Test
+  public void testForgedTokensDoNotVerify() throws Exception {
+    KeyManager keys = KeyManager.create(new JsonObject());
+    keys.load();
+    JwtSigner signer = keys.getSigner();
+    String jwt = signer.sign(CLAIMS);
+    int payloadStart = jwt.indexOf('.') + 1;
+    String otherPayload = Base64.getUrlEncoder().withoutPadding()
+      .encodeToString("{\"sub\":\"mallory\"}".getBytes(StandardCharsets.UTF_8));
+
+    String signature = jwt.substring(jwt.lastIndexOf('.'));
+
+    Assert.assertNull(signer.verify(jwt.substring(0, payloadStart) + otherPayload + signature));
+    Assert.assertNull(signer.verify(jwt.substring(0, jwt.length() - 4)));
+    Assert.assertNull(signer.verify(jwt + ".x"));
+    Assert.assertNull(signer.verify("not a jwt"));
+    Assert.assertNull(signer.verify("!!.e30.e30"));
+    // a signature that isn't base64, from a known kid, followed by a valid token on the same thread
+    Assert.assertNull(signer.verify(jwt.substring(0, jwt.lastIndexOf('.') + 1) + "!!!!"));
+    Assert.assertEquals("alice", signer.verify(jwt).getString("sub"));
+    // a kid from the right slot but another key
+    String kid = keys.current().active.getKid();
+    Assert.assertNull(keys.find(kid.substring(0, kid.length() - 1) + (kid.endsWith("A") ? "B" : "A")));
+    Assert.assertNull(keys.find("x-" + kid));
+    // the verifier is still usable after the failures
+    Assert.assertNotNull(signer.verify(jwt));
+  }
+
+  @Test
+  public void testKeysSurviveARestart() throws Exception {
+    Path dir = Files.createTempDirectory("keys");
+    Path file = dir.resolve("signing-keys.p12");
+    JsonObject config = new JsonObject().put("file", file.toString()).put("password", "secret");
+    try {
+      KeyManager keys = KeyManager.create(config);
+      keys.load();
+      keys.rotate();
+      String jwt = keys.getSigner().sign(CLAIMS);
+      JsonObject before = keys.toJson();
+
+      KeyManager restarted = KeyManager.create(config);
+      restarted.load();
+      Assert.assertEquals(before, restarted.toJson());
+      Assert.assertEquals("alice", restarted.getSigner().verify(jwt).getString("sub"));
+      Assert.assertFalse(restarted.isRotationDue(System.currentTimeMillis()));
+      Assert.assertTrue(restarted.isRotationDue(System.currentTimeMillis() + restarted.getRotationInterval()));
+    } finally {
+      Files.deleteIfExists(file);
+      Files.deleteIfExists(dir);
+    }
+  }
+}
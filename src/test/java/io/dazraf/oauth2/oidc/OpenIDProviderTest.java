@@ -0,0 +1,86 @@
+package io.dazraf.oauth2.oidc;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.Collections;
+
+public class OpenIDProviderTest {
+  private static final Base64.Decoder BASE64URL = Base64.getUrlDecoder();
+
+  @Test
+  public void testIdTokenIsSignedAndCarriesTheClaims() throws Exception {
+    KeyManager keys = KeyManager.create(new JsonObject());
+    keys.load();
+    OpenIDProvider provider = OpenIDProvider.create("https://op.example/oauth2", "https://op.example/oauth2/api",
+      keys, username -> new JsonObject().put("name", "Alice"), Collections.singletonList("openid"));
+
+    String[] parts = provider.issueIdToken("alice", "acme1", "n-0S6_WzA2Mj", 1_000_000_000_000L).split("\\.");
+    Assert.assertEquals(3, parts.length);
+
+    JsonObject header = new JsonObject(new String(BASE64URL.decode(parts[0]), StandardCharsets.UTF_8));
+    Assert.assertEquals("RS256", header.getString("alg"));
+    Assert.assertEquals(keys.current().active.getKid(), header.getString("kid"));
+
+    JsonObject claims = new JsonObject(new String(BASE64URL.decode(parts[1]), StandardCharsets.UTF_8));
+    Assert.assertEquals("https://op.example/oauth2", claims.getString("iss"));
+    Assert.assertEquals("alice", claims.getString("sub"));
+    Assert.assertEquals("acme1", claims.getString("aud"));
+    Assert.assertEquals("n-0S6_WzA2Mj", claims.getString("nonce"));
+    Assert.assertEquals("Alice", claims.getString("name"));
+    Assert.assertEquals(1_000_000_000L, (long) claims.getLong("iat"));
+    Assert.assertEquals(1_000_003_600L, (long) claims.getLong("exp"));
+
+    Signature verifier = Signature.getInstance("SHA256withRSA");
+    verifier.initVerify(keys.current().active.getPublicKey());
+    verifier.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+    Assert.assertTrue(verifier.verify(BASE64URL.decode(parts[2])));
+  }
+
+  @Test
+  public void testUserEntryCannotOverrideRegisteredClaims() throws Exception {
+    KeyManager keys = KeyManager.create(new JsonObject());
+    keys.load();
+    OpenIDProvider provider = OpenIDProvider.create("https://op.example/oauth2", "https://op.example/oauth2/api",
+      keys, username -> new JsonObject().put("name", "Mallory").put("sub", "alice").put("iss", "https://evil.example")
+        .put("aud", "other-client").put("exp", Long.MAX_VALUE).put("nonce", "n"),
+      Collections.singletonList("openid"));
+
+    String payload = new String(BASE64URL.decode(
+      provider.issueIdToken("mallory", "acme1", null, 1_000_000_000_000L).split("\\.")[1]), StandardCharsets.UTF_8);
+    Assert.assertEquals(payload, 1, payload.split("\"sub\"", -1).length - 1);
+    Assert.assertFalse(payload, payload.contains("evil") || payload.contains("other-client"));
+    JsonObject claims = new JsonObject(payload);
+    Assert.assertEquals("mallory", claims.getString("sub"));
+    Assert.assertEquals("acme1", claims.getString("aud"));
+    Assert.assertEquals(1_000_003_600L, (long) claims.getLong("exp"));
+    Assert.assertFalse(claims.containsKey("nonce"));
+    Assert.assertEquals("Mallory", claims.getString("name"));
+  }
+
+  @Test
+  public void testJwksIsEncodedOncePerRotation() throws Exception {
+    KeyManager keys = KeyManager.create(new JsonObject());
+    Assert.assertNull(keys.getJwks());
+    keys.load();
+
+    Buffer jwks = keys.getJwks();
+    Assert.assertSame(jwks, keys.getJwks());
+    JsonObject key = new JsonObject(jwks.toString()).getJsonArray("keys").getJsonObject(0);
+    Assert.assertEquals(keys.current().active.getKid(), key.getString("kid"));
+    Assert.assertEquals("RSA", key.getString("kty"));
+    Assert.assertEquals("AQAB", key.getString("e"));
+    try {
+      jwks.setByte(0, (byte) ' ');
+      Assert.fail("the shared JWKS buffer should be read only");
+    } catch (UnsupportedOperationException expected) {
+    }
+    keys.rotate();
+    Assert.assertNotSame(jwks, keys.getJwks());
+  }
+}
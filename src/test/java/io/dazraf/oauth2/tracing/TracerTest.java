@@ -0,0 +1,230 @@
+package io.dazraf.oauth2.tracing;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.CookieHandler;
+import io.vertx.ext.web.handler.SessionHandler;
+import io.vertx.ext.web.sstore.LocalSessionStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class TracerTest {
+  private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+  private static final String PARENT_ID = "00f067aa0ba902b7";
+
+  private final Vertx vertx = Vertx.vertx();
+  private final InMemorySpanSink sink = new InMemorySpanSink(100);
+  private HttpClient client;
+  private int port;
+  private volatile String cookie;
+
+  @After
+  public void closeVertx() {
+    vertx.close();
+  }
+
+  @Test
+  public void testSampledParentIsJoined() throws Exception {
+    listen(Tracer.create(sink, 0));
+    Assert.assertEquals(201, get("00-" + TRACE_ID + "-" + PARENT_ID + "-01"));
+    List<Span> spans = sink.getSpans();
+    Assert.assertEquals(3, spans.size());
+    Span root = spans.get(2);
+    Assert.assertEquals("GET /token", root.getName());
+    Assert.assertEquals(TRACE_ID, root.getTraceID());
+    Assert.assertEquals(PARENT_ID, root.getParentSpanID());
+    Assert.assertEquals(201, (int) root.getAttributes().getInteger("http.status_code"));
+    Assert.assertEquals("parse", spans.get(0).getName());
+    Assert.assertEquals("respond", spans.get(1).getName());
+    for (Span stage : spans.subList(0, 2)) {
+      Assert.assertEquals(TRACE_ID, stage.getTraceID());
+      Assert.assertEquals(root.getSpanID(), stage.getParentSpanID());
+      Assert.assertTrue(stage.getDurationMicros() >= 0);
+    }
+    // the second stage waited for the response, so it covers the wait
+    Assert.assertTrue(spans.get(1).getDurationMicros() >= 20_000);
+    Assert.assertTrue(root.getDurationMicros() >= spans.get(1).getDurationMicros());
+  }
+
+  @Test
+  public void testSampledParentsAreCapped() throws Exception {
+    Tracer tracer = Tracer.create(sink, 0, 5);
+    listen(tracer);
+    String traceparent = "00-" + TRACE_ID + "-" + PARENT_ID + "-01";
+    long start = System.nanoTime();
+    List<CompletableFuture<Integer>> responses = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      responses.add(send(traceparent));
+    }
+    for (CompletableFuture<Integer> response : responses) {
+      Assert.assertEquals(201, (int) response.get(5, TimeUnit.SECONDS));
+    }
+    long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+    Thread.sleep(50);
+
+    // every request asked to be traced, but no more than 5 a second were
+    JsonObject counts = tracer.toJson();
+    long traced = counts.getLong("traced");
+    Assert.assertTrue(counts.encode(), traced >= 5 && traced <= 5 * (seconds + 2));
+    Assert.assertEquals(100 - traced, (long) counts.getLong("parentSampledCapped"));
+  }
+
+  @Test
+  public void testUnsampledParentIsNotTraced() throws Exception {
+    listen(Tracer.create(sink, 1));
+    get("00-" + TRACE_ID + "-" + PARENT_ID + "-00");
+    Assert.assertTrue(sink.getSpans().isEmpty());
+  }
+
+  @Test
+  public void testSampleRate() throws Exception {
+    listen(Tracer.create(sink, 0));
+    get(null);
+    get("not a traceparent");
+    get("00-" + TRACE_ID + "-0000000000000000-01");
+    Assert.assertTrue(sink.getSpans().isEmpty());
+
+    listen(Tracer.create(sink, 1));
+    get("not a traceparent");
+    List<Span> spans = sink.getSpans();
+    Assert.assertEquals(3, spans.size());
+    Assert.assertNull(spans.get(2).getParentSpanID());
+    Assert.assertTrue(spans.get(2).getTraceID().matches("[0-9a-f]{32}"));
+    Assert.assertNotEquals(TRACE_ID, spans.get(2).getTraceID());
+  }
+
+  @Test
+  public void testSessionJoinsTheFlowUntilItEnds() throws Exception {
+    Tracer tracer = Tracer.create(sink, 0);
+    listen(tracer);
+    Assert.assertEquals(201, get("00-" + TRACE_ID + "-" + PARENT_ID + "-01"));
+    Assert.assertEquals(201, get(null));
+    Assert.assertEquals(200, get("/done"));
+    Assert.assertEquals(201, get(null));
+
+    // the request that started the flow, the one that joined it, and the one that ended it
+    Assert.assertEquals(3, (long) tracer.toJson().getLong("traced"));
+    Assert.assertEquals(2, (long) tracer.toJson().getLong("joinedFromSession"));
+    for (Span span : sink.getSpans()) {
+      Assert.assertEquals(TRACE_ID, span.getTraceID());
+    }
+  }
+
+  @Test
+  public void testSessionStopsJoiningAnAbandonedFlow() throws Exception {
+    Tracer tracer = Tracer.create(sink, 0);
+    Instant start = Instant.now();
+    tracer.setClock(Clock.fixed(start, ZoneOffset.UTC));
+    listen(tracer);
+    get("00-" + TRACE_ID + "-" + PARENT_ID + "-01");
+    tracer.setClock(Clock.fixed(start.plus(4, ChronoUnit.MINUTES), ZoneOffset.UTC));
+    get(null);
+    tracer.setClock(Clock.fixed(start.plus(5, ChronoUnit.MINUTES), ZoneOffset.UTC));
+    get(null);
+    Assert.assertEquals(1, (long) tracer.toJson().getLong("joinedFromSession"));
+  }
+
+  @Test
+  public void testSessionJoinsAreCapped() throws Exception {
+    Tracer tracer = Tracer.create(sink, 0, 2);
+    listen(tracer);
+    long start = System.nanoTime();
+    get("00-" + TRACE_ID + "-" + PARENT_ID + "-01");
+    for (int i = 0; i < 10; i++) {
+      send(null).get(5, TimeUnit.SECONDS);
+    }
+    long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+
+    // the flow's requests share its allowance with those that asked to be traced
+    JsonObject counts = tracer.toJson();
+    long joined = counts.getLong("joinedFromSession");
+    Assert.assertTrue(counts.encode(), joined >= 1 && joined + 1 <= 2 * (seconds + 2));
+    Assert.assertEquals(10 - joined, (long) counts.getLong("parentSampledCapped"));
+  }
+
+  @Test
+  public void testDisabledTracerLeavesHandlersAlone() {
+    Tracer tracer = Tracer.create(vertx, null, 0);
+    Handler<RoutingContext> handler = RoutingContext::next;
+    Assert.assertFalse(tracer.isEnabled());
+    Assert.assertSame(handler, tracer.stage("stage", handler));
+  }
+
+  private void listen(Tracer tracer) throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    Router router = Router.router(vertx);
+    router.route().handler(tracer.trace());
+    router.route().handler(CookieHandler.create());
+    router.route().handler(SessionHandler.create(LocalSessionStore.create(vertx)));
+    router.route().handler(tracer.joinSession());
+    router.route("/done").handler(context -> {
+      Tracer.endFlow(context);
+      context.response().end();
+    });
+    router.route("/token").handler(tracer.stage("parse", RoutingContext::next));
+    router.route("/token").handler(tracer.stage("respond", context ->
+      vertx.setTimer(20, id -> context.response().setStatusCode(201).end())));
+    CompletableFuture<Void> listening = new CompletableFuture<>();
+    vertx.createHttpServer().requestHandler(router::accept).listen(port, ar -> {
+      if (ar.succeeded()) {
+        listening.complete(null);
+      } else {
+        listening.completeExceptionally(ar.cause());
+      }
+    });
+    listening.get(5, TimeUnit.SECONDS);
+    client = vertx.createHttpClient();
+    cookie = null;
+  }
+
+  /**
+   * @param traceparent the header to send, or a path starting with <code>/</code> to request instead of /token
+   */
+  private int get(String traceparent) throws Exception {
+    int result = send(traceparent).get(5, TimeUnit.SECONDS);
+    // the spans are exported once the response has been written
+    Thread.sleep(50);
+    return result;
+  }
+
+  private CompletableFuture<Integer> send(String traceparent) {
+    CompletableFuture<Integer> status = new CompletableFuture<>();
+    boolean path = traceparent != null && traceparent.startsWith("/");
+    HttpClientRequest request = client.request(HttpMethod.GET, port, "localhost", path ? traceparent : "/token",
+      response -> {
+        // keep the session, as a browser would
+        String setCookie = response.headers().get("Set-Cookie");
+        if (setCookie != null) {
+          cookie = setCookie.split(";", 2)[0];
+        }
+        response.endHandler(v -> status.complete(response.statusCode()));
+      });
+    if (traceparent != null && !path) {
+      request.putHeader("traceparent", traceparent);
+    }
+    if (cookie != null) {
+      request.putHeader("Cookie", cookie);
+    }
+    request.end();
+    return status;
+  }
+}
@@ -0,0 +1,86 @@
+package io.dazraf.oauth2.util;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.dazraf.oauth2.util.AdmissionController.Priority.AUTHORIZE;
+import static io.dazraf.oauth2.util.AdmissionController.Priority.TOKEN;
+import static io.dazraf.oauth2.util.AdmissionController.Priority.TOKENINFO;
+
+public class AdmissionControllerTest {
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AdmissionController controller = new AdmissionController(new JsonObject()
+    .put("maxLag", new JsonObject().put("authorize", 50).put("token", 200).put("tokeninfo", 500))
+    .put("maxInFlight", new JsonObject().put("authorize", 10).put("token", 20).put("tokeninfo", 30)),
+    inFlight::get);
+
+  @Test
+  public void testShedsLowestPriorityFirstAsLagRises() {
+    controller.recordLag(0);
+    assertAdmits(true, true, true);
+    controller.recordLag(100);
+    assertAdmits(false, true, true);
+    controller.recordLag(300);
+    assertAdmits(false, false, true);
+    controller.recordLag(600);
+    assertAdmits(false, false, false);
+  }
+
+  @Test
+  public void testRecoversAsProbesComeBackOnTime() {
+    controller.recordLag(600);
+    assertAdmits(false, false, false);
+    controller.recordLag(0);
+    assertAdmits(false, false, true);
+    controller.recordLag(0);
+    controller.recordLag(0);
+    assertAdmits(false, true, true);
+    controller.recordLag(0);
+    assertAdmits(true, true, true);
+  }
+
+  @Test
+  public void testShedsOnRequestsInFlight() {
+    inFlight.set(15);
+    assertAdmits(false, true, true);
+    inFlight.set(25);
+    assertAdmits(false, false, true);
+    inFlight.set(5);
+    assertAdmits(true, true, true);
+  }
+
+  @Test
+  public void testReportsOverloadWithoutRequests() {
+    Assert.assertFalse(controller.isOverloaded());
+    controller.recordLag(100);
+    Assert.assertTrue(controller.isOverloaded());
+    Assert.assertEquals(100, controller.getLag());
+    controller.recordLag(0);
+    controller.recordLag(0);
+    Assert.assertFalse(controller.isOverloaded());
+    inFlight.set(11);
+    Assert.assertTrue(controller.isOverloaded());
+  }
+
+  @Test
+  public void testCountsDecisions() {
+    controller.tryAdmit(AUTHORIZE);
+    controller.recordLag(100);
+    controller.tryAdmit(AUTHORIZE);
+    controller.tryAdmit(AUTHORIZE);
+    JsonObject authorize = controller.toJson().getJsonObject("priorities").getJsonObject("authorize");
+    Assert.assertEquals(1L, (long) authorize.getLong("admitted"));
+    Assert.assertEquals(2L, (long) authorize.getLong("shed"));
+    Assert.assertTrue(authorize.getBoolean("shedding"));
+    Assert.assertEquals(100L, (long) controller.toJson().getLong("peakLag"));
+  }
+
+  private void assertAdmits(boolean authorize, boolean token, boolean tokenInfo) {
+    Assert.assertEquals(authorize, controller.tryAdmit(AUTHORIZE));
+    Assert.assertEquals(token, controller.tryAdmit(TOKEN));
+    Assert.assertEquals(tokenInfo, controller.tryAdmit(TOKENINFO));
+  }
+}
@@ -0,0 +1,89 @@
+package io.dazraf.oauth2.util;
+
+import io.dazraf.oauth2.authentication.InMemoryAuthenticationProvider;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.handler.CookieHandler;
+import io.vertx.ext.web.handler.SessionHandler;
+import io.vertx.ext.web.sstore.LocalSessionStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class AuthRedirectHandlerTest {
+  private final Vertx vertx = Vertx.vertx();
+  // held on to, as an unreachable client closes its connections when it is collected
+  private final HttpClient client = vertx.createHttpClient();
+  private final InMemoryAuthenticationProvider provider = InMemoryAuthenticationProvider.create(new JsonObject()
+    .put("admin", new JsonObject().put("password", "admin").put("roles", new JsonArray().add("admin")))
+    .put("ops", new JsonObject().put("password", "ops").put("roles", "audit, admin"))
+    .put("john", new JsonObject().put("password", "john").put("name", "John Smith")));
+  private int port;
+
+  @Before
+  public void listen() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    Router router = Router.router(vertx);
+    router.route().handler(CookieHandler.create());
+    router.route().handler(SessionHandler.create(LocalSessionStore.create(vertx)));
+    // logs in whoever is named, standing in for the login form
+    router.route().handler(context -> {
+      String username = context.request().getParam("as");
+      if (username == null) {
+        context.next();
+        return;
+      }
+      provider.authenticate(new JsonObject().put("username", username).put("password", username), user -> {
+        context.setUser(user.result());
+        context.next();
+      });
+    });
+    router.route("/private").handler(
+      AuthRedirectHandler.create(provider, "/login.html").addAuthority(InMemoryAuthenticationProvider.ADMIN));
+    router.route("/private").handler(context -> context.response().end("ok"));
+    CompletableFuture<Void> listening = new CompletableFuture<>();
+    vertx.createHttpServer().requestHandler(router::accept).listen(port, ar -> {
+      if (ar.succeeded()) {
+        listening.complete(null);
+      } else {
+        listening.completeExceptionally(ar.cause());
+      }
+    });
+    listening.get(5, TimeUnit.SECONDS);
+  }
+
+  @After
+  public void closeVertx() {
+    vertx.close();
+  }
+
+  @Test
+  public void testOnlyAdminsArePermitted() throws Exception {
+    Assert.assertEquals(302, get("/private"));
+    Assert.assertEquals(403, get("/private?as=john"));
+    Assert.assertEquals(200, get("/private?as=admin"));
+    Assert.assertEquals(200, get("/private?as=ops"));
+  }
+
+  @Test
+  public void testRolesAreNotClaims() {
+    Assert.assertFalse(provider.getClaims("admin").containsKey("roles"));
+    Assert.assertEquals("John Smith", provider.getClaims("john").getString("name"));
+  }
+
+  private int get(String uri) throws Exception {
+    CompletableFuture<Integer> status = new CompletableFuture<>();
+    client.getNow(port, "localhost", uri, response -> response.endHandler(v -> status.complete(response.statusCode())));
+    return status.get(5, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,146 @@
+package io.dazraf.oauth2.util;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetSocket;
+import io.vertx.ext.web.Router;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class FormParserTest {
+  private final Vertx vertx = Vertx.vertx();
+  // held on to, as an unreachable client closes its connections when it is collected
+  private final NetClient client = vertx.createNetClient();
+  private FormParser parser;
+  private int port;
+
+  @Before
+  public void listen() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    parser = FormParser.create(vertx, new JsonObject()
+      .put("maxBodyLength", 256)
+      .put("maxFieldLength", 32)
+      .put("bodyTimeout", 200));
+    Router router = Router.router(vertx);
+    router.route("/token").handler(parser.expect("grant_type", "code", "scope"));
+    router.route("/token").handler(context -> context.response().end(
+      context.request().getParam("grant_type") + "|" + context.request().getParam("code") + "|"
+        + context.request().getParam("scope") + "|" + context.request().getParam("junk")));
+    CompletableFuture<Void> listening = new CompletableFuture<>();
+    vertx.createHttpServer().requestHandler(router::accept).listen(port, ar -> {
+      if (ar.succeeded()) {
+        listening.complete(null);
+      } else {
+        listening.completeExceptionally(ar.cause());
+      }
+    });
+    listening.get(5, TimeUnit.SECONDS);
+  }
+
+  @After
+  public void closeVertx() {
+    vertx.close();
+  }
+
+  @Test
+  public void testOnlyExpectedFieldsAreKept() throws Exception {
+    String response = post("grant_type=authorization_code&junk=" + repeat('j', 100) + "&code=a%2Bb+c&scope", true);
+    Assert.assertTrue(response, response.startsWith("HTTP/1.1 200"));
+    Assert.assertTrue(response, response.endsWith("authorization_code|a+b c||null"));
+    Assert.assertEquals(1, (long) parser.toJson().getLong("parsed"));
+  }
+
+  @Test
+  public void testRequestWithoutBodyPassesStraightThrough() throws Exception {
+    String response = send("GET /token?code=abc HTTP/1.1\r\nHost: localhost\r\n\r\n");
+    Assert.assertTrue(response, response.endsWith("null|abc|null|null"));
+  }
+
+  @Test
+  public void testLongBodiesAreRejected() throws Exception {
+    String body = "code=abc&junk=" + repeat('j', 300);
+    Assert.assertTrue(post(body, true).startsWith("HTTP/1.1 413"));
+    // without a Content-Length, it is rejected once too much has arrived
+    Assert.assertTrue(post(body, false).startsWith("HTTP/1.1 413"));
+    Assert.assertEquals(2, (long) parser.toJson().getJsonObject("rejected").getLong("tooLarge"));
+  }
+
+  @Test
+  public void testLongFieldsAreRejected() throws Exception {
+    Assert.assertTrue(post("code=" + repeat('c', 33), true).startsWith("HTTP/1.1 413"));
+    Assert.assertTrue(post("code=" + repeat('c', 32), true).startsWith("HTTP/1.1 200"));
+  }
+
+  @Test
+  public void testMalformedBodiesAreRejected() throws Exception {
+    Assert.assertTrue(post("code=a&code=b", true).startsWith("HTTP/1.1 400"));
+    Assert.assertTrue(post("code=%zz", true).startsWith("HTTP/1.1 400"));
+    Assert.assertTrue(send("POST /token HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+      + "Content-Length: 2\r\n\r\n{}").startsWith("HTTP/1.1 415"));
+  }
+
+  @Test
+  public void testSlowBodiesAreRejected() throws Exception {
+    String response = send("POST /token HTTP/1.1\r\nHost: localhost\r\n"
+      + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: 50\r\n\r\ncode=");
+    Assert.assertTrue(response, response.startsWith("HTTP/1.1 408"));
+    Assert.assertEquals(1, (long) parser.toJson().getJsonObject("rejected").getLong("timedOut"));
+  }
+
+  private String post(String body, boolean withLength) throws Exception {
+    String request = "POST /token HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/x-www-form-urlencoded\r\n";
+    if (withLength) {
+      return send(request + "Content-Length: " + body.length() + "\r\n\r\n" + body);
+    }
+    String chunked = Integer.toHexString(body.length()) + "\r\n" + body + "\r\n0\r\n\r\n";
+    return send(request + "Transfer-Encoding: chunked\r\n\r\n" + chunked);
+  }
+
+  /**
+   * @return the response, once the server has sent its body or closed the connection
+   */
+  private String send(String request) throws Exception {
+    CompletableFuture<String> result = new CompletableFuture<>();
+    client.connect(port, "localhost", connected -> {
+      if (connected.failed()) {
+        result.completeExceptionally(connected.cause());
+        return;
+      }
+      NetSocket socket = connected.result();
+      Buffer received = Buffer.buffer();
+      socket.handler(data -> {
+        received.appendBuffer(data);
+        String response = received.toString();
+        int headersEnd = response.indexOf("\r\n\r\n");
+        if (headersEnd >= 0 && response.matches("(?s).*Content-Length: (\\d+).*")) {
+          int length = Integer.parseInt(response.replaceAll("(?s).*Content-Length: (\\d+).*", "$1"));
+          if (response.length() >= headersEnd + 4 + length) {
+            result.complete(response);
+            socket.close();
+          }
+        }
+      });
+      socket.closeHandler(v -> result.complete(received.toString()));
+      socket.write(request);
+    });
+    return result.get(5, TimeUnit.SECONDS);
+  }
+
+  private static String repeat(char c, int count) {
+    StringBuilder repeated = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      repeated.append(c);
+    }
+    return repeated.toString();
+  }
+}
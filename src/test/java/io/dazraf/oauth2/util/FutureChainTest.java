@@ -0,0 +1,102 @@
+package io.dazraf.oauth2.util;
+
+import io.vertx.core.Future;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FutureChainTest {
+  @Test
+  public void testChainCompletesAfterTheFact() {
+    Future<Integer> source = Future.future();
+    Future<String> result = FutureChain.when(source)
+      .map(value -> value * 2)
+      .then(value -> Future.succeededFuture("value:" + value));
+    Assert.assertFalse(result.isComplete());
+    source.complete(21);
+    Assert.assertEquals("value:42", result.result());
+  }
+
+  @Test
+  public void testChainOnAlreadyCompletedFuture() {
+    Future<Integer> result = FutureChain.when(Future.succeededFuture(1)).map(value -> value + 1);
+    Assert.assertEquals(Integer.valueOf(2), result.result());
+  }
+
+  @Test
+  public void testErrorsPropagateAndOtherwiseRecovers() {
+    List<String> errors = new ArrayList<>();
+    Future<Integer> source = Future.future();
+    Future<Integer> result = FutureChain.when(source)
+      .map(value -> value + 1)
+      .onError(error -> errors.add(error.getMessage()))
+      .otherwise(error -> Future.succeededFuture(-1));
+    source.fail("boom");
+    Assert.assertEquals(Arrays.asList("boom"), errors);
+    Assert.assertEquals(Integer.valueOf(-1), result.result());
+  }
+
+  @Test
+  public void testAllDependentsNotifiedInOrder() {
+    List<Integer> seen = new ArrayList<>();
+    Future<Integer> source = Future.future();
+    FutureChain<Integer> chain = FutureChain.when(source);
+    for (int i = 0; i < 5; i++) {
+      final int index = i;
+      chain.peekSuccess(value -> seen.add(index));
+    }
+    source.complete(0);
+    chain.peekSuccess(value -> seen.add(5));
+    Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), seen);
+  }
+
+  @Test
+  public void testJoinKeepsOrderAndFailsOnFirstFailure() {
+    Future<String> first = Future.future();
+    Future<String> second = Future.future();
+    Future<List<String>> joined = FutureChain.join(first, second);
+    second.complete("b");
+    first.complete("a");
+    Assert.assertEquals(Arrays.asList("a", "b"), joined.result());
+
+    Future<String> third = Future.future();
+    Future<String> fourth = Future.future();
+    Future<List<String>> failed = FutureChain.join(third, fourth);
+    fourth.fail("nope");
+    third.complete("c");
+    Assert.assertTrue(failed.failed());
+    Assert.assertEquals("nope", failed.cause().getMessage());
+  }
+
+  @Test
+  public void testConcurrentDependentsAreEachNotifiedOnce() throws Exception {
+    final int threads = 8;
+    final int perThread = 1000;
+    for (int round = 0; round < 20; round++) {
+      Future<Integer> source = Future.future();
+      FutureChain<Integer> chain = FutureChain.when(source);
+      AtomicInteger notified = new AtomicInteger();
+      CountDownLatch ready = new CountDownLatch(threads);
+      CountDownLatch done = new CountDownLatch(threads);
+      for (int t = 0; t < threads; t++) {
+        new Thread(() -> {
+          ready.countDown();
+          for (int i = 0; i < perThread; i++) {
+            chain.peek(response -> notified.incrementAndGet());
+          }
+          done.countDown();
+        }).start();
+      }
+      ready.await();
+      source.complete(1);
+      Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+      Assert.assertEquals(threads * perThread, notified.get());
+    }
+  }
+}
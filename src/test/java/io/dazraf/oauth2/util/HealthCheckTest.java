@@ -0,0 +1,67 @@
+package io.dazraf.oauth2.util;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HealthCheckTest {
+  private final HealthCheck health = new HealthCheck(new JsonObject());
+  private final AtomicBoolean restoring = new AtomicBoolean();
+  private final AtomicBoolean shedding = new AtomicBoolean();
+  private final AtomicLong lag = new AtomicLong();
+
+  @Test
+  public void testNotReadyUntilFirstRefresh() {
+    Assert.assertEquals(503, health.getReadyStatus());
+    JsonObject ready = new JsonObject(health.getReady().toString());
+    Assert.assertEquals("DOWN", ready.getString("status"));
+    Assert.assertEquals("starting", ready.getJsonArray("failing").getString(0));
+    Assert.assertEquals("UP", new JsonObject(health.getLive().toString()).getString("status"));
+  }
+
+  @Test
+  public void testReadinessFollowsConditions() {
+    register();
+    health.refresh();
+    Assert.assertEquals(200, health.getReadyStatus());
+    Assert.assertTrue(new JsonObject(health.getReady().toString()).getJsonArray("failing").isEmpty());
+
+    restoring.set(true);
+    shedding.set(true);
+    // sampled, so nothing changes until the next refresh
+    Assert.assertEquals(200, health.getReadyStatus());
+    health.refresh();
+    Assert.assertEquals(503, health.getReadyStatus());
+    JsonObject ready = new JsonObject(health.getReady().toString());
+    Assert.assertEquals("DOWN", ready.getString("status"));
+    Assert.assertEquals(2, ready.getJsonArray("failing").size());
+    Assert.assertEquals("restoring", ready.getJsonArray("failing").getString(0));
+    Assert.assertEquals("shedding", ready.getJsonArray("failing").getString(1));
+
+    restoring.set(false);
+    shedding.set(false);
+    health.refresh();
+    Assert.assertEquals(200, health.getReadyStatus());
+  }
+
+  @Test
+  public void testStatsAreReportedByBoth() {
+    register();
+    lag.set(42);
+    health.refresh();
+    Assert.assertEquals(42L, (long) new JsonObject(health.getLive().toString()).getLong("lag"));
+    Assert.assertEquals(42L, (long) new JsonObject(health.getReady().toString()).getLong("lag"));
+    Assert.assertEquals("acme1", new JsonObject(health.getReady().toString())
+      .getJsonObject("tokens").getString("fullestClient"));
+  }
+
+  private void register() {
+    health.notReadyWhile("restoring", restoring::get);
+    health.notReadyWhile("shedding", shedding::get);
+    health.addStats("lag", lag::get);
+    health.addStats("tokens", () -> new JsonObject().put("headroom", 0.5).put("fullestClient", "acme1"));
+  }
+}
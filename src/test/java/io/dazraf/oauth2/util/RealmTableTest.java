@@ -0,0 +1,57 @@
+package io.dazraf.oauth2.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RealmTableTest {
+  private final RealmTable<String> realms = RealmTable.create();
+
+  {
+    realms.add(null, "/oauth2", "default");
+    realms.add(null, "/acme", "acme");
+    realms.add(null, "/acme/eu", "acme-eu");
+    realms.add("login.globex.com", "/oauth2", "globex");
+  }
+
+  @Test
+  public void testFindsTheLongestWholeSegmentBasePath() {
+    Assert.assertEquals("default", realms.find("localhost:8080", "/oauth2/api/token"));
+    Assert.assertEquals("acme", realms.find("localhost:8080", "/acme"));
+    Assert.assertEquals("acme", realms.find("localhost:8080", "/acme/api/token"));
+    Assert.assertEquals("acme-eu", realms.find("localhost:8080", "/acme/eu/api/token"));
+    Assert.assertEquals("acme", realms.find("localhost:8080", "/acme/euro/api/token"));
+    Assert.assertNull(realms.find("localhost:8080", "/acmes/api/token"));
+    Assert.assertNull(realms.find("localhost:8080", "/"));
+    Assert.assertNull(realms.find(null, "/other"));
+  }
+
+  @Test
+  public void testPrefersRealmsOnTheRequestsHost() {
+    Assert.assertEquals("globex", realms.find("login.globex.com", "/oauth2/api/token"));
+    Assert.assertEquals("globex", realms.find("LOGIN.Globex.com:8443", "/oauth2/login.html"));
+    // anything the host's own realms don't serve falls through to the realms on any host
+    Assert.assertEquals("acme", realms.find("login.globex.com", "/acme/api/token"));
+    Assert.assertEquals("default", realms.find("[::1]:8080", "/oauth2/api/token"));
+    Assert.assertEquals("default", realms.find(null, "/oauth2/api/token"));
+  }
+
+  @Test
+  public void testRejectsAmbiguousAndMalformedBasePaths() {
+    assertRejected(null, "/acme");
+    assertRejected("login.globex.com", "/oauth2");
+    assertRejected(null, "/");
+    assertRejected(null, "acme2");
+    assertRejected(null, "/acme2/");
+    realms.add("login.initech.com", "/oauth2", "initech");
+    Assert.assertEquals("initech", realms.find("login.initech.com", "/oauth2/api/token"));
+  }
+
+  private void assertRejected(String host, String basePath) {
+    try {
+      realms.add(host, basePath, "rejected");
+      Assert.fail("expected " + host + basePath + " to be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}